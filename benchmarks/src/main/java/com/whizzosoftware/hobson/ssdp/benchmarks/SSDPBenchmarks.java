@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the SSDP benchmarks with the GC profiler enabled so that allocation rates are reported alongside
+ * throughput. An optional argument restricts the run to benchmarks matching a regular expression.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPBenchmarks {
+    public static void main(String[] args) throws RunnerException {
+        Options opts = new OptionsBuilder()
+            .include(args.length > 0 ? args[0] : SSDPBenchmarks.class.getPackage().getName() + ".*Benchmark")
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(opts).run();
+    }
+}
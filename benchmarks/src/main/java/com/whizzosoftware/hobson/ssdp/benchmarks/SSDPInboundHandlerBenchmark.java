@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp.benchmarks;
+
+import com.whizzosoftware.hobson.api.disco.DeviceAdvertisement;
+import com.whizzosoftware.hobson.ssdp.SSDPContext;
+import com.whizzosoftware.hobson.ssdp.SSDPInboundHandler;
+import com.whizzosoftware.hobson.ssdp.SSDPPacket;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.Future;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures end-to-end SSDPInboundHandler.channelRead() throughput through an EmbeddedChannel with a stub
+ * SSDPContext that runs tasks inline.
+ *
+ * @author Dan Noguerol
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SSDPInboundHandlerBenchmark {
+    @Param({"NOTIFY", "SEARCH", "RESPONSE"})
+    public String type;
+
+    private byte[] data;
+    private InetSocketAddress sender;
+    private InetSocketAddress recipient;
+    private StubContext context;
+    private EmbeddedChannel channel;
+
+    @Setup
+    public void setup() {
+        data = SSDPPayloads.get(type).getBytes(CharsetUtil.UTF_8);
+        sender = new InetSocketAddress("192.0.2.10", 1900);
+        recipient = new InetSocketAddress("239.255.255.250", 1900);
+        context = new StubContext();
+        channel = new EmbeddedChannel(new SSDPInboundHandler.Builder(context).build());
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finish();
+    }
+
+    @Benchmark
+    public long channelRead() {
+        channel.writeInbound(new DatagramPacket(Unpooled.wrappedBuffer(data), recipient, sender));
+        return context.count;
+    }
+
+    private static class StubContext implements SSDPContext {
+        long count;
+
+        @Override
+        public void processDiscoveryRequest(InetSocketAddress address, SSDPPacket packet) {
+            count++;
+        }
+
+        @Override
+        public void publishDeviceAdvertisement(DeviceAdvertisement advertisement, boolean internal) {
+            count++;
+        }
+
+        @Override
+        public void publishDeviceAdvertisements(Collection<DeviceAdvertisement> advertisements, boolean internal) {
+            count += advertisements.size();
+        }
+
+        @Override
+        public Future executeInEventLoop(Runnable runnable) {
+            runnable.run();
+            return null;
+        }
+
+        @Override
+        public boolean executeInWorker(String key, Runnable runnable) {
+            runnable.run();
+            return true;
+        }
+
+        @Override
+        public int getWorkerIndex(String key) {
+            return 0;
+        }
+
+        @Override
+        public void sendDiscoveryPacket() {
+        }
+
+        @Override
+        public void channelWritabilityChanged(Channel channel) {
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp.benchmarks;
+
+import io.netty.util.CharsetUtil;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Synthesises NOTIFY traffic from a population of virtual devices. Each device has its own USN, LOCATION and
+ * (in embedded mode) sender address, and announces itself at a fixed rate. Announcements are spread evenly
+ * across devices so the aggregate rate is smooth rather than arriving in bursts.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPLoadGenerator {
+    private final int deviceCount;
+    private final double notifyRate;
+    private final byte[][] payloads;
+    private final InetSocketAddress[] senders;
+
+    /**
+     * Constructor.
+     *
+     * @param deviceCount the number of virtual devices
+     * @param notifyRate the NOTIFY rate for each device (per second)
+     * @param maxAge the CACHE-CONTROL max-age the devices advertise
+     */
+    public SSDPLoadGenerator(int deviceCount, double notifyRate, int maxAge) {
+        this.deviceCount = deviceCount;
+        this.notifyRate = notifyRate;
+        this.payloads = new byte[deviceCount][];
+        this.senders = new InetSocketAddress[deviceCount];
+        for (int i = 0; i < deviceCount; i++) {
+            InetAddress addr = getDeviceAddress(i);
+            senders[i] = new InetSocketAddress(addr, 1900);
+            payloads[i] = ("NOTIFY * HTTP/1.1\r\n" +
+                "HOST: 239.255.255.250:1900\r\n" +
+                "CACHE-CONTROL: max-age=" + maxAge + "\r\n" +
+                "LOCATION: http://" + addr.getHostAddress() + ":49153/description.xml\r\n" +
+                "NT: upnp:rootdevice\r\n" +
+                "NTS: ssdp:alive\r\n" +
+                "SERVER: Linux/3.14 UPnP/1.0 SSDPLoadGenerator/1.0\r\n" +
+                "USN: uuid:" + String.format("00000000-0000-1000-8000-%012x", i) + "::upnp:rootdevice\r\n\r\n").getBytes(CharsetUtil.UTF_8);
+        }
+    }
+
+    /**
+     * Sends traffic for a period of time.
+     *
+     * @param harness the harness to send to
+     * @param durationMillis how long to send for
+     *
+     * @return the time spent sending in nanoseconds
+     */
+    public long run(SSDPTrafficHarness harness, long durationMillis) {
+        double totalRate = deviceCount * notifyRate;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        long sent = 0;
+        int next = 0;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            // send everything that should have gone out by now, then sleep briefly; at high rates this batches
+            // naturally instead of sleeping between every datagram
+            long due = (long)((now - start) / 1e9 * totalRate);
+            while (sent < due) {
+                harness.send(senders[next], payloads[next]);
+                next = (next + 1) % deviceCount;
+                sent++;
+            }
+            LockSupport.parkNanos(100000);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static InetAddress getDeviceAddress(int i) {
+        try {
+            return InetAddress.getByAddress(new byte[] {10, (byte)(i >> 16), (byte)(i >> 8), (byte)i});
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp.benchmarks;
+
+import com.whizzosoftware.hobson.ssdp.SSDPPacket;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding of outbound packets with SSDPPacket.toString().
+ *
+ * @author Dan Noguerol
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SSDPPacketEncodeBenchmark {
+    private SSDPPacket searchRequest;
+    private SSDPPacket searchResponse;
+
+    @Setup
+    public void setup() {
+        searchRequest = SSDPPacket.createSearchRequest();
+        searchResponse = SSDPPacket.createSearchResponse("http://192.168.0.10:8182/description.xml", "urn:schemas-upnp-org:device:Basic:1", "uuid:3f8a1c52-0b5e-4bd5-8f0a-1ab2f7e0c9d1::urn:schemas-upnp-org:device:Basic:1");
+    }
+
+    @Benchmark
+    public String encodeSearchRequest() {
+        return searchRequest.toString();
+    }
+
+    @Benchmark
+    public String encodeSearchResponse() {
+        return searchResponse.toString();
+    }
+}
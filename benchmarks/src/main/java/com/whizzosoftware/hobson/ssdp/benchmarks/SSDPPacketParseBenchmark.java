@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp.benchmarks;
+
+import com.whizzosoftware.hobson.ssdp.SSDPPacket;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures SSDPPacket.createWithData() for the String and ByteBuf entry points. Each benchmark reads the headers
+ * that SSDPInboundHandler inspects for every packet.
+ *
+ * @author Dan Noguerol
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SSDPPacketParseBenchmark {
+    @Param({"NOTIFY", "SEARCH", "RESPONSE"})
+    public String type;
+
+    private String data;
+    private ByteBuf buf;
+
+    @Setup
+    public void setup() {
+        data = SSDPPayloads.get(type);
+        buf = Unpooled.directBuffer().writeBytes(data.getBytes(CharsetUtil.UTF_8));
+    }
+
+    @TearDown
+    public void tearDown() {
+        buf.release();
+    }
+
+    @Benchmark
+    public void parseString(Blackhole bh) {
+        SSDPPacket p = SSDPPacket.createWithData(data);
+        bh.consume(p.getMethod());
+        bh.consume(p.getUSN());
+        bh.consume(p.getLocation());
+    }
+
+    @Benchmark
+    public void parseByteBuf(Blackhole bh) {
+        SSDPPacket p = SSDPPacket.createWithData(buf);
+        bh.consume(p.getMethod());
+        bh.consume(p.getUSN());
+        bh.consume(p.getLocation());
+    }
+}
@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp.benchmarks;
+
+import com.whizzosoftware.hobson.api.disco.DeviceAdvertisement;
+import com.whizzosoftware.hobson.ssdp.SSDPAdvertisementCache;
+import com.whizzosoftware.hobson.ssdp.SSDPContext;
+import com.whizzosoftware.hobson.ssdp.SSDPHistogram;
+import com.whizzosoftware.hobson.ssdp.SSDPInboundHandler;
+import com.whizzosoftware.hobson.ssdp.SSDPInterfaceMonitor;
+import com.whizzosoftware.hobson.ssdp.SSDPMetrics;
+import com.whizzosoftware.hobson.ssdp.SSDPPacket;
+import com.whizzosoftware.hobson.ssdp.SSDPWorkerStage;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.Future;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a real SSDPInboundHandler with synthetic or replayed traffic and measures what comes out of it.
+ *
+ * Traffic is delivered either through an EmbeddedChannel (measuring the handler alone) or over a loopback UDP
+ * socket (measuring the handler plus the kernel and Netty receive path). Each datagram is stamped with its send
+ * time in an extra header so that the latency from send to publication can be measured in either mode.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPTrafficHarness implements SSDPContext, Closeable {
+    public static final String SENT_HEADER = "X-SSDP-SENT";
+
+    private static final InetSocketAddress MULTICAST_RECIPIENT = new InetSocketAddress("239.255.255.250", 1900);
+
+    private final SSDPMetrics metrics = new SSDPMetrics();
+    private final SSDPHistogram latency = new SSDPHistogram();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong sendFailures = new AtomicLong();
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong searchCount = new AtomicLong();
+    private final SSDPInboundHandler handler;
+    private final EmbeddedChannel embeddedChannel;
+    private final EventLoopGroup group;
+    private final Channel serverChannel;
+    private final java.nio.channels.DatagramChannel client;
+    private final SSDPWorkerStage workerStage;
+
+    /**
+     * Constructor.
+     *
+     * @param loopback true to deliver traffic over a loopback UDP socket; false to use an EmbeddedChannel
+     * @param cacheSize the size of the duplicate advertisement cache (0 to publish every advertisement)
+     * @param workers the number of worker threads in the processing stage (0 to process inline)
+     *
+     * @throws IOException if the loopback sockets can't be created
+     */
+    public SSDPTrafficHarness(boolean loopback, int cacheSize, int workers) throws IOException {
+        workerStage = (workers > 0) ? new SSDPWorkerStage("ssdp-worker", workers, SSDPWorkerStage.DEFAULT_QUEUE_SIZE, SSDPWorkerStage.OverloadPolicy.DROP_OLDEST) : null;
+        // an unrefreshed monitor has no local addresses so traffic from loopback isn't mistaken for our own
+        handler = new SSDPInboundHandler.Builder(this)
+            .advertisementCache((cacheSize > 0) ? new SSDPAdvertisementCache(cacheSize) : null)
+            .metrics(metrics)
+            .interfaceMonitor(new SSDPInterfaceMonitor(null))
+            .build();
+        if (loopback) {
+            embeddedChannel = null;
+            group = new NioEventLoopGroup(1);
+            serverChannel = new Bootstrap()
+                .group(group)
+                .channel(NioDatagramChannel.class)
+                .option(ChannelOption.SO_RCVBUF, 8 * 1024 * 1024)
+                .handler(handler)
+                .bind(new InetSocketAddress("127.0.0.1", 0))
+                .syncUninterruptibly()
+                .channel();
+            client = java.nio.channels.DatagramChannel.open();
+            client.connect(serverChannel.localAddress());
+        } else {
+            embeddedChannel = new EmbeddedChannel(handler);
+            group = null;
+            serverChannel = null;
+            client = null;
+        }
+    }
+
+    public boolean isLoopback() {
+        return client != null;
+    }
+
+    /**
+     * Sends a datagram to the handler. In loopback mode the sender address is always the loopback socket's.
+     *
+     * @param sender the sender address
+     * @param data the datagram payload
+     */
+    public void send(InetSocketAddress sender, byte[] data) {
+        byte[] stamped = stamp(data, System.nanoTime());
+        sentCount.incrementAndGet();
+        if (client != null) {
+            try {
+                client.write(ByteBuffer.wrap(stamped));
+            } catch (IOException e) {
+                sendFailures.incrementAndGet();
+            }
+        } else {
+            embeddedChannel.writeInbound(new DatagramPacket(Unpooled.wrappedBuffer(stamped), MULTICAST_RECIPIENT, sender));
+        }
+    }
+
+    /**
+     * Waits until every sent datagram has been received or until nothing has arrived for the given time.
+     *
+     * @param idleMillis the time without progress after which the remaining datagrams are considered dropped
+     */
+    public void awaitQuiescence(long idleMillis) {
+        long last = -1;
+        long lastProgress = System.currentTimeMillis();
+        while ((getReceivedCount() < sentCount.get() - sendFailures.get() || getQueuedCount() > 0) && System.currentTimeMillis() - lastProgress < idleMillis) {
+            long r = getReceivedCount() + getCompletedCount();
+            if (r != last) {
+                last = r;
+                lastProgress = System.currentTimeMillis();
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getReceivedCount() {
+        SSDPMetrics.Snapshot s = metrics.getSnapshot();
+        return s.getValue(SSDPMetrics.PACKETS_RECEIVED_MULTICAST) + s.getValue(SSDPMetrics.PACKETS_RECEIVED_UNICAST);
+    }
+
+    private int getQueuedCount() {
+        return (workerStage != null) ? workerStage.getQueuedCount() : 0;
+    }
+
+    private long getCompletedCount() {
+        return (workerStage != null) ? workerStage.getCompletedCount() : 0;
+    }
+
+    public long getPublishedCount() {
+        return publishedCount.get();
+    }
+
+    public long getSearchCount() {
+        return searchCount.get();
+    }
+
+    public SSDPMetrics getMetrics() {
+        return metrics;
+    }
+
+    public SSDPHistogram.Snapshot getLatency() {
+        return latency.getSnapshot();
+    }
+
+    /**
+     * Prints a summary of throughput, drops and latency.
+     *
+     * @param out the stream to print to
+     * @param elapsedNanos the time it took to send the traffic
+     */
+    public void printReport(PrintStream out, long elapsedNanos) {
+        SSDPMetrics.Snapshot s = metrics.getSnapshot();
+        double secs = Math.max(1, elapsedNanos) / 1e9;
+        long sent = sentCount.get();
+        long received = getReceivedCount();
+        out.println("mode:                  " + (isLoopback() ? "loopback UDP" : "embedded"));
+        out.println("elapsed:               " + String.format("%.3f s", secs));
+        out.println("sent:                  " + sent + String.format(" (%.0f/s)", sent / secs));
+        out.println("received:              " + received + String.format(" (%.0f/s)", received / secs));
+        out.println("dropped in transport:  " + (sent - received) + " (" + sendFailures.get() + " send failures)");
+        out.println("parse failures:        " + s.getValue(SSDPMetrics.PARSE_FAILURES));
+        out.println("ignored:               " + s.getValue(SSDPMetrics.PACKETS_IGNORED));
+        out.println("duplicates suppressed: " + s.getValue(SSDPMetrics.DUPLICATES_SUPPRESSED));
+        if (workerStage != null) {
+            out.println("dropped by workers:    " + workerStage.getDroppedCount() + " (" + workerStage.getWorkerCount() + " workers, " + workerStage.getOverloadPolicy() + ")");
+        }
+        out.println("published:             " + publishedCount.get());
+        out.println("search requests:       " + searchCount.get());
+        out.println("parse time (us):       " + s.getHistogram(SSDPMetrics.PARSE_TIME_MICROS));
+        out.println("latency (us):          " + latency.getSnapshot());
+    }
+
+    @Override
+    public void close() {
+        if (embeddedChannel != null) {
+            embeddedChannel.finish();
+        }
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (serverChannel != null) {
+            serverChannel.close().syncUninterruptibly();
+        }
+        if (group != null) {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        }
+        if (workerStage != null) {
+            workerStage.shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void processDiscoveryRequest(InetSocketAddress address, SSDPPacket packet) {
+        searchCount.incrementAndGet();
+        recordLatency(packet);
+    }
+
+    @Override
+    public void publishDeviceAdvertisement(DeviceAdvertisement advertisement, boolean internal) {
+        publishedCount.incrementAndGet();
+        if (advertisement.getObject() instanceof SSDPPacket) {
+            recordLatency((SSDPPacket)advertisement.getObject());
+        }
+    }
+
+    @Override
+    public void publishDeviceAdvertisements(Collection<DeviceAdvertisement> advertisements, boolean internal) {
+        for (DeviceAdvertisement da : advertisements) {
+            publishDeviceAdvertisement(da, internal);
+        }
+    }
+
+    @Override
+    public Future executeInEventLoop(Runnable runnable) {
+        runnable.run();
+        return null;
+    }
+
+    @Override
+    public boolean executeInWorker(String key, Runnable runnable) {
+        if (workerStage != null) {
+            return workerStage.submit(key, runnable);
+        }
+        runnable.run();
+        return true;
+    }
+
+    @Override
+    public int getWorkerIndex(String key) {
+        return (workerStage != null) ? workerStage.getWorkerIndex(key) : 0;
+    }
+
+    @Override
+    public void sendDiscoveryPacket() {
+    }
+
+    @Override
+    public void channelWritabilityChanged(Channel channel) {
+    }
+
+    private void recordLatency(SSDPPacket packet) {
+        String sent = packet.getHeader(SENT_HEADER);
+        if (sent != null) {
+            try {
+                latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - Long.parseLong(sent)));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Inserts the send time header after the start line of a datagram.
+     *
+     * @param data the datagram payload
+     * @param nanos the send time
+     *
+     * @return the stamped payload (or the original payload if it has no start line)
+     */
+    static byte[] stamp(byte[] data, long nanos) {
+        for (int i = 0; i < data.length - 1; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n') {
+                byte[] header = (SENT_HEADER + ": " + nanos + "\r\n").getBytes(CharsetUtil.US_ASCII);
+                byte[] b = new byte[data.length + header.length];
+                System.arraycopy(data, 0, b, 0, i + 2);
+                System.arraycopy(header, 0, b, i + 2, header.length);
+                System.arraycopy(data, i + 2, b, i + 2 + header.length, data.length - i - 2);
+                return b;
+            }
+        }
+        return data;
+    }
+}
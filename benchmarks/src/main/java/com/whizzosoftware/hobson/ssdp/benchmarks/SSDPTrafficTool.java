@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp.benchmarks;
+
+import com.whizzosoftware.hobson.ssdp.SSDPAdvertisementCache;
+import com.whizzosoftware.hobson.ssdp.SSDPTrafficLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A command-line tool for reproducing discovery storms. It replays traffic recorded by the plugin (see the
+ * trafficLogFile configuration property) or generates synthetic NOTIFY traffic from virtual devices, drives it
+ * through SSDPInboundHandler and reports throughput, drops and latency percentiles.
+ *
+ * <pre>
+ * java -cp benchmarks.jar com.whizzosoftware.hobson.ssdp.benchmarks.SSDPTrafficTool replay [options] &lt;log file&gt;
+ * java -cp benchmarks.jar com.whizzosoftware.hobson.ssdp.benchmarks.SSDPTrafficTool load [options]
+ *
+ *   --udp             deliver traffic over a loopback UDP socket instead of an EmbeddedChannel
+ *   --cache N         duplicate advertisement cache size; 0 disables it (default 1024)
+ *   --workers N       worker threads in the processing stage; 0 processes inline (default 0)
+ *   --speed X         replay speed multiplier; 0 replays as fast as possible (default 1)
+ *   --devices N       number of virtual devices (default 10000)
+ *   --rate R          NOTIFY rate per device per second (default 1)
+ *   --duration S      load duration in seconds (default 30)
+ *   --max-age S       max-age advertised by virtual devices (default 1800)
+ * </pre>
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPTrafficTool {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            usage();
+            return;
+        }
+
+        boolean udp = false;
+        int cacheSize = SSDPAdvertisementCache.DEFAULT_CAPACITY;
+        int workers = 0;
+        double speed = 1;
+        int devices = 10000;
+        double rate = 1;
+        int duration = 30;
+        int maxAge = 1800;
+        String file = null;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--udp":
+                    udp = true;
+                    break;
+                case "--cache":
+                    cacheSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--workers":
+                    workers = Integer.parseInt(args[++i]);
+                    break;
+                case "--speed":
+                    speed = Double.parseDouble(args[++i]);
+                    break;
+                case "--devices":
+                    devices = Integer.parseInt(args[++i]);
+                    break;
+                case "--rate":
+                    rate = Double.parseDouble(args[++i]);
+                    break;
+                case "--duration":
+                    duration = Integer.parseInt(args[++i]);
+                    break;
+                case "--max-age":
+                    maxAge = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    file = args[i];
+            }
+        }
+
+        try (SSDPTrafficHarness harness = new SSDPTrafficHarness(udp, cacheSize, workers)) {
+            long elapsed;
+            switch (args[0]) {
+                case "replay":
+                    if (file == null) {
+                        usage();
+                        return;
+                    }
+                    elapsed = replay(harness, new File(file), speed);
+                    break;
+                case "load":
+                    elapsed = new SSDPLoadGenerator(devices, rate, maxAge).run(harness, TimeUnit.SECONDS.toMillis(duration));
+                    break;
+                default:
+                    usage();
+                    return;
+            }
+            harness.awaitQuiescence(2000);
+            harness.printReport(System.out, elapsed);
+        }
+    }
+
+    /**
+     * Replays a traffic log, preserving the spacing between datagrams scaled by a speed multiplier.
+     *
+     * @param harness the harness to send to
+     * @param file the log file
+     * @param speed the speed multiplier (0 to send as fast as possible)
+     *
+     * @return the time spent sending in nanoseconds
+     * @throws IOException if the log can't be read
+     */
+    static long replay(SSDPTrafficHarness harness, File file, double speed) throws IOException {
+        long start = System.nanoTime();
+        try (SSDPTrafficLog.Reader reader = SSDPTrafficLog.openReader(file)) {
+            long firstMicros = -1;
+            SSDPTrafficLog.Record r;
+            while ((r = reader.next()) != null) {
+                if (firstMicros == -1) {
+                    firstMicros = r.getTimeMicros();
+                }
+                if (speed > 0) {
+                    long due = start + (long)(TimeUnit.MICROSECONDS.toNanos(r.getTimeMicros() - firstMicros) / speed);
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                harness.send(r.getSender(), r.getData());
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: SSDPTrafficTool replay [--udp] [--cache N] [--workers N] [--speed X] <log file>");
+        System.err.println("       SSDPTrafficTool load [--udp] [--cache N] [--workers N] [--devices N] [--rate R] [--duration S] [--max-age S]");
+    }
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, USN-keyed cache of recently published advertisements. It is used to drop re-announcements that
+ * have not changed since they were last published so that they never reach the DiscoManager.
+ *
+ * Each entry holds a fingerprint of the LOCATION, NT and SERVER headers and an expiration time derived from the
+ * CACHE-CONTROL max-age. The least recently used entry is evicted once the cache reaches its capacity.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPAdvertisementCache implements SSDPMetrics.Source {
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int DEFAULT_MAX_AGE = 1800;
+
+    private final int capacity;
+    private final Map<String,CacheEntry> entries;
+    private long hitCount;
+    private long missCount;
+
+    public SSDPAdvertisementCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SSDPAdvertisementCache(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be greater than zero");
+        }
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<String,CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,CacheEntry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Determines whether a packet should be published. A packet is suppressed when an unexpired entry exists for
+     * its USN with the same fingerprint; otherwise the entry is (re-)recorded and the packet should be published.
+     *
+     * @param packet the packet to check (must have a USN)
+     * @param now the current time in milliseconds
+     *
+     * @return true if the packet should be published
+     */
+    synchronized public boolean shouldPublish(SSDPPacket packet, long now) {
+        if (isPublished(packet, now)) {
+            return false;
+        }
+        record(packet, now);
+        return true;
+    }
+
+    /**
+     * Indicates whether an unexpired entry with the same fingerprint exists for a packet's USN, i.e. whether the
+     * same advertisement has already been published.
+     *
+     * @param packet the packet to check (must have a USN)
+     * @param now the current time in milliseconds
+     *
+     * @return a boolean
+     */
+    synchronized public boolean isPublished(SSDPPacket packet, long now) {
+        CacheEntry e = entries.get(packet.getUSN());
+        if (e != null && e.fingerprint == createFingerprint(packet) && now < e.expiration) {
+            hitCount++;
+            return true;
+        }
+        missCount++;
+        return false;
+    }
+
+    /**
+     * Records that a packet is being published so that unchanged re-announcements of it are suppressed until its
+     * CACHE-CONTROL max-age runs out.
+     *
+     * @param packet the packet (must have a USN)
+     * @param now the current time in milliseconds
+     */
+    synchronized public void record(SSDPPacket packet, long now) {
+        String usn = packet.getUSN();
+        long fingerprint = createFingerprint(packet);
+        int maxAge = packet.getCacheControlMaxAge();
+        long expiration = now + (maxAge > -1 ? maxAge : DEFAULT_MAX_AGE) * 1000L;
+        CacheEntry e = entries.get(usn);
+        if (e != null) {
+            e.fingerprint = fingerprint;
+            e.expiration = expiration;
+        } else {
+            entries.put(usn, new CacheEntry(fingerprint, expiration));
+        }
+    }
+
+    /**
+     * Removes the entry for a USN so that the next advertisement for it is always published.
+     *
+     * @param usn the USN
+     */
+    synchronized public void remove(String usn) {
+        entries.remove(usn);
+    }
+
+    /**
+     * Removes the entry for a packet's USN if it was recorded for that packet (i.e. it has the same fingerprint).
+     * This undoes shouldPublish() for a packet that ends up not being published without discarding the entry of
+     * a different advertisement for the same device that has been recorded since.
+     *
+     * @param packet the packet (must have a USN)
+     */
+    synchronized public void remove(SSDPPacket packet) {
+        String usn = packet.getUSN();
+        CacheEntry e = entries.get(usn);
+        if (e != null && e.fingerprint == createFingerprint(packet)) {
+            entries.remove(usn);
+        }
+    }
+
+    synchronized public void clear() {
+        entries.clear();
+    }
+
+    synchronized public int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    synchronized public long getHitCount() {
+        return hitCount;
+    }
+
+    synchronized public long getMissCount() {
+        return missCount;
+    }
+
+    @Override
+    public void registerGauges(SSDPMetrics metrics) {
+        metrics.registerGauge("duplicateCacheHits", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getHitCount();
+            }
+        });
+        metrics.registerGauge("duplicateCacheMisses", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getMissCount();
+            }
+        });
+    }
+
+    static long createFingerprint(SSDPPacket packet) {
+        return ((long)hash(packet.getLocation()) << 32) ^ (31L * hash(packet.getNT()) + hash(packet.getServer()));
+    }
+
+    private static int hash(String s) {
+        return (s != null) ? s.hashCode() : 0;
+    }
+
+    private static class CacheEntry {
+        long fingerprint;
+        long expiration;
+
+        CacheEntry(long fingerprint, long expiration) {
+            this.fingerprint = fingerprint;
+            this.expiration = expiration;
+        }
+    }
+}
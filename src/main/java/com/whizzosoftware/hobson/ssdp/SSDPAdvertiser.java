@@ -0,0 +1,295 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import com.whizzosoftware.hobson.api.disco.DeviceAdvertisement;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Announces internal device advertisements with NOTIFY ssdp:alive packets and withdraws them with ssdp:byebye.
+ *
+ * Each advertisement is first announced at a random point within a short initial window. After that it is
+ * re-announced at a random point between one quarter and one half of its max-age, as the UPnP Device Architecture
+ * recommends, so announcements drift apart over the interval instead of going out in bursts. As with the response
+ * scheduler, no more than a fixed number of announcements are released per tick.
+ *
+ * The alive and byebye packets for an advertisement are encoded once into pooled direct buffers and re-encoded only
+ * when its location changes.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPAdvertiser implements SSDPMetrics.Source {
+    public static final int DEFAULT_MAX_AGE = 1800;
+    public static final long DEFAULT_TICK_MILLIS = 250;
+    public static final int DEFAULT_MAX_ANNOUNCEMENTS_PER_TICK = 16;
+    public static final int INITIAL_WINDOW_MILLIS = 3000;
+
+    private final SSDPClock clock;
+    private final Random random;
+    private final ByteBufAllocator allocator;
+    private final int maxAge;
+    private final int maxAnnouncementsPerTick;
+    private final AnnouncementSink sink;
+    private final SSDPTimingWheel<Announcement> wheel;
+    private final Map<String,Announcement> announcements = new HashMap<>();
+    private final Queue<Announcement> ready = new ArrayDeque<>();
+    private long aliveCount;
+    private long byebyeCount;
+
+    public SSDPAdvertiser(int maxAge, AnnouncementSink sink) {
+        this(SSDPClock.MONOTONIC, new Random(), PooledByteBufAllocator.DEFAULT, maxAge, DEFAULT_TICK_MILLIS, DEFAULT_MAX_ANNOUNCEMENTS_PER_TICK, sink);
+    }
+
+    public SSDPAdvertiser(SSDPClock clock, Random random, ByteBufAllocator allocator, int maxAge, long tickMillis, int maxAnnouncementsPerTick, AnnouncementSink sink) {
+        if (maxAge < 4) {
+            throw new IllegalArgumentException("Max age must be at least 4 seconds");
+        }
+        this.clock = clock;
+        this.random = random;
+        this.allocator = allocator;
+        this.maxAge = maxAge;
+        this.maxAnnouncementsPerTick = maxAnnouncementsPerTick;
+        this.sink = sink;
+        this.wheel = new SSDPTimingWheel<>(tickMillis, 1024, clock.currentTimeMillis());
+    }
+
+    public int getMaxAge() {
+        return maxAge;
+    }
+
+    public long getTickMillis() {
+        return wheel.getTickMillis();
+    }
+
+    /**
+     * Brings the set of announced advertisements in line with the currently published ones. New advertisements
+     * are announced shortly, advertisements with a new location are re-announced shortly and advertisements that
+     * are no longer published are withdrawn immediately.
+     *
+     * @param current the currently published internal advertisements
+     */
+    public void sync(Collection<DeviceAdvertisement> current) {
+        List<ByteBuf> byebyes = null;
+        synchronized (this) {
+            long now = clock.currentTimeMillis();
+            Set<String> ids = new HashSet<>();
+            if (current != null) {
+                for (DeviceAdvertisement da : current) {
+                    ids.add(da.getId());
+                    Announcement a = announcements.get(da.getId());
+                    if (a == null) {
+                        a = new Announcement(da.getId());
+                        a.encode(da.getUri());
+                        announcements.put(da.getId(), a);
+                        a.timeout = wheel.schedule(a, now + random.nextInt(INITIAL_WINDOW_MILLIS));
+                    } else if (!equals(a.location, da.getUri())) {
+                        a.release();
+                        a.encode(da.getUri());
+                        reschedule(a, now + random.nextInt(INITIAL_WINDOW_MILLIS));
+                    }
+                }
+            }
+            Iterator<Announcement> it = announcements.values().iterator();
+            while (it.hasNext()) {
+                Announcement a = it.next();
+                if (!ids.contains(a.id)) {
+                    if (byebyes == null) {
+                        byebyes = new ArrayList<>();
+                    }
+                    byebyes.add(withdraw(a));
+                    it.remove();
+                }
+            }
+        }
+        if (byebyes != null) {
+            sink.sendAnnouncements(byebyes);
+        }
+    }
+
+    /**
+     * Sends every announcement that is due. This should be called once per tick.
+     */
+    public void tick() {
+        List<ByteBuf> batch = null;
+        synchronized (this) {
+            long now = clock.currentTimeMillis();
+            wheel.expire(now, ready);
+            int count = 0;
+            Announcement a;
+            while (count < maxAnnouncementsPerTick && (a = ready.poll()) != null) {
+                if (a.alive != null) {
+                    if (batch == null) {
+                        batch = new ArrayList<>();
+                    }
+                    batch.add(a.alive.duplicate().retain());
+                    a.timeout = wheel.schedule(a, now + getNextInterval());
+                    aliveCount++;
+                    count++;
+                }
+            }
+        }
+        if (batch != null) {
+            sink.sendAnnouncements(batch);
+        }
+    }
+
+    /**
+     * Withdraws every advertisement. This should be called when the plugin shuts down.
+     */
+    public void byebyeAll() {
+        List<ByteBuf> byebyes = new ArrayList<>();
+        synchronized (this) {
+            for (Announcement a : announcements.values()) {
+                byebyes.add(withdraw(a));
+            }
+            announcements.clear();
+            ready.clear();
+        }
+        if (!byebyes.isEmpty()) {
+            sink.sendAnnouncements(byebyes);
+        }
+    }
+
+    /**
+     * Forgets every advertisement without withdrawing them.
+     */
+    synchronized public void clear() {
+        for (Announcement a : announcements.values()) {
+            a.release();
+        }
+        announcements.clear();
+        wheel.clear();
+        ready.clear();
+    }
+
+    synchronized public int size() {
+        return announcements.size();
+    }
+
+    synchronized public long getAliveCount() {
+        return aliveCount;
+    }
+
+    synchronized public long getByebyeCount() {
+        return byebyeCount;
+    }
+
+    @Override
+    public void registerGauges(SSDPMetrics metrics) {
+        metrics.registerGauge("notifyAliveSent", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getAliveCount();
+            }
+        });
+        metrics.registerGauge("notifyByebyeSent", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getByebyeCount();
+            }
+        });
+    }
+
+    /**
+     * Returns the NT for an advertisement ID. IDs of the form "uuid:device-UUID::type" use the type; any other ID
+     * is used as is.
+     *
+     * @param id the advertisement ID (i.e. its USN)
+     *
+     * @return the notification type
+     */
+    static String getNotificationType(String id) {
+        int ix = id.indexOf("::");
+        return (ix > -1) ? id.substring(ix + 2) : id;
+    }
+
+    private long getNextInterval() {
+        // a random point between 1/4 and 1/2 of the max-age
+        int quarter = maxAge * 250;
+        return quarter + random.nextInt(quarter);
+    }
+
+    private void reschedule(Announcement a, long deadline) {
+        if (a.timeout != null) {
+            wheel.cancel(a.timeout);
+        }
+        a.timeout = wheel.schedule(a, deadline);
+    }
+
+    private ByteBuf withdraw(Announcement a) {
+        if (a.timeout != null) {
+            wheel.cancel(a.timeout);
+            a.timeout = null;
+        }
+        ByteBuf buf = a.byebye.duplicate().retain();
+        a.release();
+        byebyeCount++;
+        return buf;
+    }
+
+    private ByteBuf encode(SSDPPacket packet) {
+        // the encoder adds the terminating empty line that is required for NOTIFY packets
+        return SSDPEncoder.encode(allocator, packet);
+    }
+
+    private static boolean equals(String s1, String s2) {
+        return (s1 == null) ? s2 == null : s1.equals(s2);
+    }
+
+    private class Announcement {
+        final String id;
+        String location;
+        ByteBuf alive;
+        ByteBuf byebye;
+        SSDPTimingWheel.Timeout<Announcement> timeout;
+
+        Announcement(String id) {
+            this.id = id;
+        }
+
+        void encode(String location) {
+            String nt = getNotificationType(id);
+            this.location = location;
+            this.alive = SSDPAdvertiser.this.encode(SSDPPacket.createAliveNotification(location, nt, id, maxAge));
+            this.byebye = SSDPAdvertiser.this.encode(SSDPPacket.createByebyeNotification(nt, id));
+        }
+
+        void release() {
+            if (alive != null) {
+                alive.release();
+                alive = null;
+            }
+            if (byebye != null) {
+                byebye.release();
+                byebye = null;
+            }
+        }
+    }
+
+    /**
+     * The recipient of announcements that are due to be sent. It takes ownership of the buffers it is given.
+     */
+    public interface AnnouncementSink {
+        void sendAnnouncements(List<ByteBuf> packets);
+    }
+}
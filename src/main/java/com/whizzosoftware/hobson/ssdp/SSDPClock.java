@@ -0,0 +1,35 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+/**
+ * An abstraction for the current time so that time-based components can be driven manually in tests.
+ *
+ * SYSTEM is wall-clock time and should only be used for absolute timestamps (e.g. those persisted across
+ * restarts). Anything that schedules work or measures durations uses MONOTONIC, which never goes backwards when the
+ * wall clock is stepped (e.g. by NTP or by hand); its values are only meaningful relative to each other.
+ *
+ * @author Dan Noguerol
+ */
+public interface SSDPClock {
+    SSDPClock SYSTEM = new SSDPClock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    SSDPClock MONOTONIC = new SSDPClock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.nanoTime() / 1000000L;
+        }
+    };
+
+    long currentTimeMillis();
+}
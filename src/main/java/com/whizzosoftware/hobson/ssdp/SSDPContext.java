@@ -8,10 +8,12 @@
 package com.whizzosoftware.hobson.ssdp;
 
 import com.whizzosoftware.hobson.api.disco.DeviceAdvertisement;
+import io.netty.channel.Channel;
 import io.netty.util.concurrent.Future;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.Collection;
 
 /**
  * An abstraction for actions taken by SSDPInboundHandler.
@@ -21,6 +23,38 @@ import java.net.InetSocketAddress;
 public interface SSDPContext {
     void processDiscoveryRequest(InetSocketAddress address, SSDPPacket packet) throws IOException;
     void publishDeviceAdvertisement(DeviceAdvertisement advertisement, boolean internal);
+
+    /**
+     * Publishes a batch of advertisements (e.g. those received during a single read cycle).
+     *
+     * @param advertisements the advertisements to publish (at most one per ID)
+     * @param internal whether the advertisements are for internal devices
+     */
+    void publishDeviceAdvertisements(Collection<DeviceAdvertisement> advertisements, boolean internal);
     Future executeInEventLoop(Runnable runnable);
+
+    /**
+     * Runs processing work off the I/O threads. Tasks submitted with the same key run in submission order. A
+     * SSDPWorkerStage.DroppableTask is notified if it is queued but later discarded without running.
+     *
+     * @param key the ordering key (e.g. the USN of an advertisement)
+     * @param runnable the task to run
+     *
+     * @return false if the task was dropped because the processing stage is overloaded
+     */
+    boolean executeInWorker(String key, Runnable runnable);
+
+    /**
+     * Returns the processing worker that tasks submitted with a key run on. Tasks submitted with keys that map to
+     * the same worker run in submission order, so a task covering several keys keeps each of them in order as long
+     * as all of them map to the worker it is submitted to.
+     *
+     * @param key the ordering key
+     *
+     * @return the worker index
+     */
+    int getWorkerIndex(String key);
+
     void sendDiscoveryPacket();
+    void channelWritabilityChanged(Channel channel);
 }
@@ -0,0 +1,45 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A low-overhead counter for values that are updated from several threads but read rarely. Updates are spread
+ * across padded cells selected by thread so that concurrent increments don't contend on a single value; reading
+ * the counter sums the cells.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPCounter {
+    private static final int CELLS = 8;
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(CELLS * PADDING);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        cells.getAndAdd((int)(Thread.currentThread().getId() & (CELLS - 1)) * PADDING, delta);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < CELLS; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(get());
+    }
+}
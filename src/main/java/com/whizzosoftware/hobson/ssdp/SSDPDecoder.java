@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * A decoder that turns inbound datagrams into SSDPEnvelopes. Datagrams sent by this host and datagrams that can't
+ * be parsed are dropped here so that SSDPInboundHandler only sees well-formed packets from other hosts.
+ *
+ * Header values are not decoded until they are requested; each decoded packet holds a reference to its datagram's
+ * buffer until the envelope is released or the packet is detached.
+ *
+ * @author Dan Noguerol
+ */
+@ChannelHandler.Sharable
+public class SSDPDecoder extends MessageToMessageDecoder<DatagramPacket> {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final SSDPMetrics metrics;
+    private final SSDPInterfaceMonitor interfaceMonitor;
+
+    /**
+     * Constructor.
+     *
+     * @param metrics the metrics to record inbound activity to
+     * @param interfaceMonitor the monitor whose local addresses identify packets sent by this host
+     */
+    public SSDPDecoder(SSDPMetrics metrics, SSDPInterfaceMonitor interfaceMonitor) {
+        this.metrics = metrics;
+        this.interfaceMonitor = interfaceMonitor;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, DatagramPacket msg, List<Object> out) throws Exception {
+        SSDPEnvelope e = decode(msg);
+        if (e != null) {
+            out.add(e);
+        }
+    }
+
+    /**
+     * Decodes a datagram. The datagram's reference count is not changed; the returned envelope holds its own
+     * reference to the buffer.
+     *
+     * @param p the datagram
+     *
+     * @return an SSDPEnvelope (or null if the datagram should be ignored)
+     */
+    SSDPEnvelope decode(DatagramPacket p) {
+        metrics.onPacketReceived(p.recipient() != null && p.recipient().getAddress().isMulticastAddress());
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("Received data from {}: {}", p.sender().getHostString(), p.content().toString(CharsetUtil.UTF_8));
+        }
+
+        // ignore packets that originated from Hobson
+        if (interfaceMonitor.isLocalAddress(p.sender().getAddress())) {
+            SSDPTrafficRing.outcome(SSDPTrafficRing.Outcome.LOCAL);
+            return null;
+        }
+
+        SSDPPacket packet = null;
+        long start = System.nanoTime();
+        try {
+            packet = SSDPPacket.createWithOwnedData(p.content().retain());
+            packet.getMethod();
+        } catch (Throwable e) {
+            if (packet != null) {
+                packet.release();
+            } else {
+                p.content().release();
+            }
+            metrics.onParseFailure();
+            SSDPTrafficRing.outcome(SSDPTrafficRing.Outcome.PARSE_ERROR);
+            logger.error("Error creating SSDP packet", e);
+            return null;
+        }
+        metrics.onPacketParsed(System.nanoTime() - start);
+
+        return new SSDPEnvelope(packet, p.recipient(), p.sender());
+    }
+}
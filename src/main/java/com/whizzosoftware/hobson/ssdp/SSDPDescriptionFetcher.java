@@ -0,0 +1,677 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ChannelFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * An asynchronous fetcher for device description documents.
+ *
+ * - Concurrent requests for the same LOCATION are coalesced into a single HTTP request.
+ * - No more than a fixed number of connections are opened to any one host; additional requests wait for one to
+ *   become free and keep-alive connections are reused until they have been idle for a while.
+ * - Descriptions are cached by LOCATION for the advertisement's max-age (or the response's own max-age if that is
+ *   shorter). Expired entries are revalidated with If-None-Match / If-Modified-Since when the response carried an
+ *   ETag or Last-Modified header.
+ * - No more than a fixed number of requests are outstanding (connecting, waiting for a connection or waiting for
+ *   a response) at a time; fetches beyond that fail immediately.
+ *
+ * All connection and request state is confined to a single event loop so none of it needs to be locked. Documents
+ * are parsed on a separate executor (when one is provided) so that parsing never holds up that loop, which may
+ * also be reading datagrams.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPDescriptionFetcher implements SSDPMetrics.Source {
+    private static final Logger logger = LoggerFactory.getLogger(SSDPDescriptionFetcher.class);
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 2;
+    public static final int DEFAULT_MAX_REQUESTS = 64;
+    public static final int DEFAULT_CACHE_SIZE = 256;
+    public static final int DEFAULT_TIMEOUT_MILLIS = 5000;
+    public static final int DEFAULT_IDLE_SECONDS = 30;
+    public static final int DEFAULT_MAX_AGE = 1800;
+    public static final int MAX_CONTENT_LENGTH = 256 * 1024;
+
+    private static final AttributeKey<Request> REQUEST = AttributeKey.valueOf("ssdpDescriptionRequest");
+    private static final AttributeKey<HostPool> POOL = AttributeKey.valueOf("ssdpDescriptionPool");
+
+    private final EventLoop loop;
+    private final Bootstrap bootstrap;
+    private final Executor parseExecutor;
+    private final SSDPClock clock;
+    private final int maxConnectionsPerHost;
+    private final int maxRequests;
+    private final int timeoutMillis;
+    private final Map<String,CacheEntry> cache;
+    private final Map<String,Request> inFlight = new HashMap<>();
+    private final Map<String,HostPool> pools = new HashMap<>();
+    private boolean closed;
+    private volatile long requestCount;
+    private volatile long cacheHitCount;
+    private volatile long coalescedCount;
+    private volatile long revalidatedCount;
+    private volatile long failureCount;
+
+    /**
+     * Constructor.
+     *
+     * @param group the group whose next event loop the connections run on
+     * @param channelFactory the factory for the connections' channels
+     * @param parseExecutor the executor documents are parsed on (or null to parse them on the event loop); tasks
+     *                      it rejects by throwing RejectedExecutionException or drops as a
+     *                      SSDPWorkerStage.DroppableTask fail their fetch
+     */
+    public SSDPDescriptionFetcher(EventLoopGroup group, ChannelFactory<Channel> channelFactory, Executor parseExecutor) {
+        this(group, channelFactory, parseExecutor, SSDPClock.MONOTONIC, DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_REQUESTS, DEFAULT_CACHE_SIZE, DEFAULT_TIMEOUT_MILLIS, DEFAULT_IDLE_SECONDS);
+    }
+
+    public SSDPDescriptionFetcher(EventLoopGroup group, ChannelFactory<Channel> channelFactory, Executor parseExecutor, SSDPClock clock, int maxConnectionsPerHost, int maxRequests, final int cacheSize, int timeoutMillis, final int idleSeconds) {
+        this.loop = group.next();
+        this.parseExecutor = parseExecutor;
+        this.clock = clock;
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.maxRequests = maxRequests;
+        this.timeoutMillis = timeoutMillis;
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<String,CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,CacheEntry> eldest) {
+                return size() > cacheSize;
+            }
+        });
+        this.bootstrap = new Bootstrap()
+            .group(loop)
+            .channelFactory(channelFactory)
+            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeoutMillis)
+            .option(ChannelOption.TCP_NODELAY, true)
+            .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+            .handler(new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(Channel channel) throws Exception {
+                    channel.pipeline().addLast(
+                        new IdleStateHandler(0, 0, idleSeconds),
+                        new HttpClientCodec(),
+                        new HttpObjectAggregator(MAX_CONTENT_LENGTH),
+                        new ResponseHandler()
+                    );
+                }
+            });
+    }
+
+    /**
+     * Fetches the description document at a location.
+     *
+     * @param location the URL of the document (an advertisement's LOCATION)
+     * @param maxAge the number of seconds the advertisement is valid for (or -1 to use the default)
+     *
+     * @return a Future that completes with the description
+     */
+    public Future<SSDPDeviceDescription> fetch(final String location, final int maxAge) {
+        final Promise<SSDPDeviceDescription> promise = loop.newPromise();
+        if (loop.inEventLoop()) {
+            doFetch(location, maxAge, promise);
+        } else {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    doFetch(location, maxAge, promise);
+                }
+            });
+        }
+        return promise;
+    }
+
+    /**
+     * Returns a cached description regardless of whether it has expired.
+     *
+     * @param location the URL of the document
+     *
+     * @return a SSDPDeviceDescription (or null if there is none)
+     */
+    public SSDPDeviceDescription getCachedDescription(String location) {
+        CacheEntry e = cache.get(location);
+        return (e != null) ? e.description : null;
+    }
+
+    public void invalidate(String location) {
+        cache.remove(location);
+    }
+
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    /**
+     * Closes all connections and fails any requests that are still outstanding.
+     */
+    public void close() {
+        if (loop.inEventLoop()) {
+            doClose();
+        } else {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    doClose();
+                }
+            });
+        }
+    }
+
+    public long getRequestCount() {
+        return requestCount;
+    }
+
+    public long getCacheHitCount() {
+        return cacheHitCount;
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    public long getRevalidatedCount() {
+        return revalidatedCount;
+    }
+
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    @Override
+    public void registerGauges(SSDPMetrics metrics) {
+        metrics.registerGauge("descriptionsFetched", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getRequestCount();
+            }
+        });
+        metrics.registerGauge("descriptionCacheHits", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getCacheHitCount() + getCoalescedCount();
+            }
+        });
+        metrics.registerGauge("descriptionFetchFailures", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getFailureCount();
+            }
+        });
+    }
+
+    private void doFetch(String location, int maxAge, Promise<SSDPDeviceDescription> promise) {
+        if (closed) {
+            promise.tryFailure(new IllegalStateException("Description fetcher has been closed"));
+            return;
+        }
+
+        CacheEntry e = cache.get(location);
+        if (e != null && clock.currentTimeMillis() < e.expiration) {
+            cacheHitCount++;
+            promise.trySuccess(e.description);
+            return;
+        }
+
+        Request r = inFlight.get(location);
+        if (r != null) {
+            coalescedCount++;
+            r.promises.add(promise);
+            return;
+        }
+
+        if (inFlight.size() >= maxRequests) {
+            // advertisements are unauthenticated so a flood of them with distinct LOCATIONs mustn't be able to
+            // queue an unbounded number of requests
+            failureCount++;
+            promise.tryFailure(new IOException("Too many description requests outstanding; not fetching " + location));
+            return;
+        }
+
+        URI uri;
+        try {
+            uri = new URI(location);
+            if (!"http".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null) {
+                throw new URISyntaxException(location, "Only http URLs are supported");
+            }
+        } catch (URISyntaxException ex) {
+            failureCount++;
+            promise.tryFailure(ex);
+            return;
+        }
+
+        r = new Request(location, uri, maxAge, e);
+        r.promises.add(promise);
+        inFlight.put(location, r);
+        requestCount++;
+        getPool(uri).submit(r);
+    }
+
+    private HostPool getPool(URI uri) {
+        int port = (uri.getPort() > -1) ? uri.getPort() : 80;
+        String key = uri.getHost() + ":" + port;
+        HostPool pool = pools.get(key);
+        if (pool == null) {
+            pool = new HostPool(key, uri.getHost(), port);
+            pools.put(key, pool);
+        }
+        return pool;
+    }
+
+    private void doClose() {
+        closed = true;
+        for (HostPool pool : new ArrayList<>(pools.values())) {
+            pool.close();
+        }
+        pools.clear();
+        for (Request r : new ArrayList<>(inFlight.values())) {
+            complete(r, null, new ClosedChannelException());
+        }
+    }
+
+    private void complete(Request r, SSDPDeviceDescription description, Throwable cause) {
+        if (r.timeout != null) {
+            r.timeout.cancel(false);
+            r.timeout = null;
+        }
+        if (inFlight.get(r.location) == r) {
+            inFlight.remove(r.location);
+        }
+        if (cause != null) {
+            failureCount++;
+            logger.debug("Unable to fetch device description from {}: {}", r.location, cause.toString());
+        }
+        for (Promise<SSDPDeviceDescription> p : r.promises) {
+            if (cause != null) {
+                p.tryFailure(cause);
+            } else {
+                p.trySuccess(description);
+            }
+        }
+    }
+
+    private void handleResponse(Request r, FullHttpResponse response) {
+        // the request has already been detached from its channel so it must be completed here no matter what
+        // goes wrong; otherwise it would stay in flight and every later fetch for its location would wait on it
+        try {
+            int status = response.getStatus().code();
+            HttpHeaders headers = response.headers();
+            long expiration = clock.currentTimeMillis() + getTTL(r.maxAge, headers.get(HttpHeaders.Names.CACHE_CONTROL)) * 1000L;
+            if (status == 304 && r.cached != null) {
+                revalidatedCount++;
+                String etag = headers.get(HttpHeaders.Names.ETAG);
+                String lastModified = headers.get(HttpHeaders.Names.LAST_MODIFIED);
+                cache.put(r.location, new CacheEntry(
+                    r.cached.description,
+                    (etag != null) ? etag : r.cached.etag,
+                    (lastModified != null) ? lastModified : r.cached.lastModified,
+                    expiration
+                ));
+                complete(r, r.cached.description, null);
+            } else if (status == 200) {
+                CacheEntry e = new CacheEntry(null, headers.get(HttpHeaders.Names.ETAG), headers.get(HttpHeaders.Names.LAST_MODIFIED), expiration);
+                if (parseExecutor != null) {
+                    parse(r, response.content().retain(), e);
+                } else {
+                    completeParse(r, e, SSDPDeviceDescription.parse(new ByteBufInputStream(response.content())), null);
+                }
+            } else {
+                complete(r, null, new IOException("Unexpected HTTP status " + status + " fetching " + r.location));
+            }
+        } catch (Throwable t) {
+            complete(r, null, t);
+        }
+    }
+
+    /**
+     * Parses a description document on the parse executor and completes its request back on the event loop.
+     *
+     * @param r the request
+     * @param content the document; ownership of it passes to this method
+     * @param e the cache entry to record the description with
+     */
+    private void parse(final Request r, final ByteBuf content, final CacheEntry e) {
+        try {
+            parseExecutor.execute(new SSDPWorkerStage.DroppableTask() {
+                @Override
+                public void run() {
+                    SSDPDeviceDescription d = null;
+                    Throwable cause = null;
+                    try {
+                        d = SSDPDeviceDescription.parse(new ByteBufInputStream(content));
+                    } catch (Throwable t) {
+                        cause = t;
+                    } finally {
+                        content.release();
+                    }
+                    completeParseInLoop(r, e, d, cause);
+                }
+
+                @Override
+                public void onDropped() {
+                    content.release();
+                    completeParseInLoop(r, e, null, new RejectedExecutionException("Description parsing is overloaded"));
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            content.release();
+            complete(r, null, ex);
+        }
+    }
+
+    private void completeParseInLoop(final Request r, final CacheEntry e, final SSDPDeviceDescription d, final Throwable cause) {
+        try {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    completeParse(r, e, d, cause);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            logger.debug("Unable to complete description request for {}; the fetcher has shut down", r.location);
+        }
+    }
+
+    private void completeParse(Request r, CacheEntry e, SSDPDeviceDescription d, Throwable cause) {
+        if (inFlight.get(r.location) != r) {
+            // completed while it was being parsed (i.e. the fetcher was closed)
+            return;
+        }
+        if (d != null) {
+            cache.put(r.location, new CacheEntry(d, e.etag, e.lastModified, e.expiration));
+        }
+        complete(r, d, cause);
+    }
+
+    /**
+     * Returns the number of seconds a description should be cached for.
+     *
+     * @param maxAge the advertisement's max-age (or -1 if it didn't have one)
+     * @param cacheControl the response's Cache-Control header (or null)
+     *
+     * @return the number of seconds
+     */
+    static int getTTL(int maxAge, String cacheControl) {
+        int ttl = (maxAge > -1) ? maxAge : DEFAULT_MAX_AGE;
+        int httpMaxAge = SSDPPacket.parseMaxAge(cacheControl);
+        if (httpMaxAge > -1 && httpMaxAge < ttl) {
+            ttl = httpMaxAge;
+        }
+        return ttl;
+    }
+
+    /**
+     * The connections to a single host.
+     */
+    private class HostPool {
+        final String key;
+        final String host;
+        final int port;
+        final List<Channel> channels = new ArrayList<>();
+        final Deque<Channel> idle = new ArrayDeque<>();
+        final Queue<Request> waiting = new ArrayDeque<>();
+        int connections;
+
+        HostPool(String key, String host, int port) {
+            this.key = key;
+            this.host = host;
+            this.port = port;
+        }
+
+        void submit(Request r) {
+            Channel ch;
+            while ((ch = idle.pollFirst()) != null) {
+                if (ch.isActive()) {
+                    send(ch, r);
+                    return;
+                }
+            }
+            if (connections < maxConnectionsPerHost) {
+                connect(r);
+            } else {
+                waiting.add(r);
+            }
+        }
+
+        void connect(final Request r) {
+            connections++;
+            bootstrap.connect(host, port).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (future.isSuccess()) {
+                        final Channel ch = future.channel();
+                        channels.add(ch);
+                        ch.attr(POOL).set(HostPool.this);
+                        ch.closeFuture().addListener(new ChannelFutureListener() {
+                            @Override
+                            public void operationComplete(ChannelFuture future) throws Exception {
+                                onClosed(ch);
+                            }
+                        });
+                        send(ch, r);
+                    } else {
+                        connections--;
+                        complete(r, null, future.cause());
+                        next();
+                    }
+                }
+            });
+        }
+
+        void send(final Channel ch, final Request r) {
+            if (r.promises.isEmpty() || inFlight.get(r.location) != r) {
+                // the request was completed (e.g. the fetcher was closed) while it was waiting
+                release(ch, true);
+                return;
+            }
+
+            ch.attr(REQUEST).set(r);
+            String path = r.uri.getRawPath();
+            if (path == null || path.isEmpty()) {
+                path = "/";
+            }
+            if (r.uri.getRawQuery() != null) {
+                path = path + "?" + r.uri.getRawQuery();
+            }
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path);
+            request.headers().set(HttpHeaders.Names.HOST, (port == 80) ? host : host + ":" + port);
+            request.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+            request.headers().set(HttpHeaders.Names.ACCEPT, "text/xml, application/xml");
+            if (r.cached != null) {
+                if (r.cached.etag != null) {
+                    request.headers().set(HttpHeaders.Names.IF_NONE_MATCH, r.cached.etag);
+                }
+                if (r.cached.lastModified != null) {
+                    request.headers().set(HttpHeaders.Names.IF_MODIFIED_SINCE, r.cached.lastModified);
+                }
+            }
+
+            r.timeout = loop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (ch.attr(REQUEST).get() == r) {
+                        ch.attr(REQUEST).set(null);
+                        complete(r, null, new TimeoutException("Timed out fetching " + r.location));
+                        ch.close();
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+            ch.writeAndFlush(request).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (!future.isSuccess()) {
+                        if (ch.attr(REQUEST).get() == r) {
+                            ch.attr(REQUEST).set(null);
+                            complete(r, null, future.cause());
+                        }
+                        ch.close();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Returns a channel to the pool once its response has been received.
+         */
+        void release(Channel ch, boolean keepAlive) {
+            if (keepAlive && ch.isActive() && !closed) {
+                Request next = waiting.poll();
+                if (next != null) {
+                    send(ch, next);
+                } else {
+                    idle.addFirst(ch);
+                }
+            } else {
+                // waiting requests are picked up once the close completes
+                ch.close();
+            }
+        }
+
+        void onClosed(Channel ch) {
+            connections--;
+            channels.remove(ch);
+            idle.remove(ch);
+            Request r = ch.attr(REQUEST).getAndSet(null);
+            if (r != null) {
+                complete(r, null, new ClosedChannelException());
+            }
+            next();
+        }
+
+        void next() {
+            if (!closed && !waiting.isEmpty() && connections < maxConnectionsPerHost) {
+                connect(waiting.poll());
+            } else if (connections == 0 && waiting.isEmpty() && idle.isEmpty()) {
+                pools.remove(key);
+            }
+        }
+
+        void close() {
+            for (Channel ch : new ArrayList<>(channels)) {
+                ch.close();
+            }
+            idle.clear();
+            waiting.clear();
+        }
+    }
+
+    /**
+     * Receives the response for the request that is outstanding on a channel.
+     */
+    private class ResponseHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) throws Exception {
+            Channel ch = ctx.channel();
+            Request r = ch.attr(REQUEST).getAndSet(null);
+            if (r != null) {
+                handleResponse(r, response);
+            }
+            HostPool pool = ch.attr(POOL).get();
+            if (pool != null) {
+                pool.release(ch, r != null && HttpHeaders.isKeepAlive(response));
+            }
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof IdleStateEvent) {
+                ctx.close();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            Request r = ctx.channel().attr(REQUEST).getAndSet(null);
+            if (r != null) {
+                complete(r, null, cause);
+            }
+            ctx.close();
+        }
+    }
+
+    /**
+     * A request for a location and everyone waiting on it.
+     */
+    private static class Request {
+        final String location;
+        final URI uri;
+        final int maxAge;
+        final CacheEntry cached;
+        final List<Promise<SSDPDeviceDescription>> promises = new ArrayList<>(1);
+        ScheduledFuture<?> timeout;
+
+        Request(String location, URI uri, int maxAge, CacheEntry cached) {
+            this.location = location;
+            this.uri = uri;
+            this.maxAge = maxAge;
+            this.cached = cached;
+        }
+    }
+
+    private static class CacheEntry {
+        final SSDPDeviceDescription description;
+        final String etag;
+        final String lastModified;
+        final long expiration;
+
+        CacheEntry(SSDPDeviceDescription description, String etag, String lastModified, long expiration) {
+            this.description = description;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expiration = expiration;
+        }
+    }
+}
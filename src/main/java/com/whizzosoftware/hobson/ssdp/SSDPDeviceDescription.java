@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A compact model of a UPnP device description document (the XML document at an advertisement's LOCATION).
+ *
+ * Only the fields that consumers commonly need are kept. The document is parsed with a streaming reader so the DOM
+ * is never built.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPDeviceDescription {
+    private static final XMLInputFactory XML_INPUT_FACTORY;
+    private static final int MAX_DEVICE_DEPTH = 16;
+
+    static {
+        XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    }
+
+    private String urlBase;
+    private String deviceType;
+    private String friendlyName;
+    private String manufacturer;
+    private String modelName;
+    private String modelNumber;
+    private String serialNumber;
+    private String udn;
+    private String presentationURL;
+    private List<Service> services = Collections.emptyList();
+    private List<SSDPDeviceDescription> devices = Collections.emptyList();
+
+    private SSDPDeviceDescription() {}
+
+    /**
+     * Parses a device description document.
+     *
+     * @param in the document
+     *
+     * @return a SSDPDeviceDescription instance
+     *
+     * @throws IOException if the document can't be read or is not a device description
+     */
+    static public SSDPDeviceDescription parse(InputStream in) throws IOException {
+        XMLStreamReader r = null;
+        try {
+            r = XML_INPUT_FACTORY.createXMLStreamReader(in);
+            String urlBase = null;
+            SSDPDeviceDescription root = null;
+            while (r.hasNext()) {
+                if (r.next() == XMLStreamConstants.START_ELEMENT) {
+                    String name = r.getLocalName();
+                    if ("URLBase".equals(name)) {
+                        urlBase = r.getElementText().trim();
+                    } else if ("device".equals(name) && root == null) {
+                        root = parseDevice(r, 1);
+                    }
+                }
+            }
+            if (root == null) {
+                throw new IOException("Document does not contain a device element");
+            }
+            root.urlBase = urlBase;
+            return root;
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to parse device description", e);
+        } finally {
+            if (r != null) {
+                try {
+                    r.close();
+                } catch (XMLStreamException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a device element. The reader must be positioned at its start and is left at its end.
+     */
+    static private SSDPDeviceDescription parseDevice(XMLStreamReader r, int level) throws XMLStreamException {
+        if (level > MAX_DEVICE_DEPTH) {
+            throw new XMLStreamException("Embedded devices are nested too deeply");
+        }
+        SSDPDeviceDescription d = new SSDPDeviceDescription();
+        int depth = 1;
+        while (depth > 0 && r.hasNext()) {
+            int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = r.getLocalName();
+                if (depth == 1) {
+                    switch (name) {
+                        case "deviceType":
+                            d.deviceType = text(r);
+                            break;
+                        case "friendlyName":
+                            d.friendlyName = text(r);
+                            break;
+                        case "manufacturer":
+                            d.manufacturer = text(r);
+                            break;
+                        case "modelName":
+                            d.modelName = text(r);
+                            break;
+                        case "modelNumber":
+                            d.modelNumber = text(r);
+                            break;
+                        case "serialNumber":
+                            d.serialNumber = text(r);
+                            break;
+                        case "UDN":
+                            d.udn = text(r);
+                            break;
+                        case "presentationURL":
+                            d.presentationURL = text(r);
+                            break;
+                        default:
+                            depth++;
+                    }
+                } else if (depth == 2 && "service".equals(name)) {
+                    if (d.services.isEmpty()) {
+                        d.services = new ArrayList<>(4);
+                    }
+                    d.services.add(parseService(r));
+                } else if (depth == 2 && "device".equals(name)) {
+                    if (d.devices.isEmpty()) {
+                        d.devices = new ArrayList<>(2);
+                    }
+                    d.devices.add(parseDevice(r, level + 1));
+                } else {
+                    depth++;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        return d;
+    }
+
+    static private Service parseService(XMLStreamReader r) throws XMLStreamException {
+        Service s = new Service();
+        int depth = 1;
+        while (depth > 0 && r.hasNext()) {
+            int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (r.getLocalName()) {
+                    case "serviceType":
+                        s.serviceType = text(r);
+                        break;
+                    case "serviceId":
+                        s.serviceId = text(r);
+                        break;
+                    case "SCPDURL":
+                        s.scpdURL = text(r);
+                        break;
+                    case "controlURL":
+                        s.controlURL = text(r);
+                        break;
+                    case "eventSubURL":
+                        s.eventSubURL = text(r);
+                        break;
+                    default:
+                        depth++;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        return s;
+    }
+
+    static private String text(XMLStreamReader r) throws XMLStreamException {
+        return r.getElementText().trim();
+    }
+
+    public String getURLBase() {
+        return urlBase;
+    }
+
+    public String getDeviceType() {
+        return deviceType;
+    }
+
+    public String getFriendlyName() {
+        return friendlyName;
+    }
+
+    public String getManufacturer() {
+        return manufacturer;
+    }
+
+    public String getModelName() {
+        return modelName;
+    }
+
+    public String getModelNumber() {
+        return modelNumber;
+    }
+
+    public String getSerialNumber() {
+        return serialNumber;
+    }
+
+    public String getUDN() {
+        return udn;
+    }
+
+    public String getPresentationURL() {
+        return presentationURL;
+    }
+
+    public List<Service> getServices() {
+        return Collections.unmodifiableList(services);
+    }
+
+    /**
+     * Returns the embedded devices.
+     *
+     * @return a List of SSDPDeviceDescription objects (never null)
+     */
+    public List<SSDPDeviceDescription> getDevices() {
+        return Collections.unmodifiableList(devices);
+    }
+
+    public String toString() {
+        return "deviceType=" + deviceType + ", friendlyName=" + friendlyName + ", UDN=" + udn;
+    }
+
+    /**
+     * A service offered by a device.
+     */
+    public static class Service {
+        private String serviceType;
+        private String serviceId;
+        private String scpdURL;
+        private String controlURL;
+        private String eventSubURL;
+
+        public String getServiceType() {
+            return serviceType;
+        }
+
+        public String getServiceId() {
+            return serviceId;
+        }
+
+        public String getSCPDURL() {
+            return scpdURL;
+        }
+
+        public String getControlURL() {
+            return controlURL;
+        }
+
+        public String getEventSubURL() {
+            return eventSubURL;
+        }
+    }
+}
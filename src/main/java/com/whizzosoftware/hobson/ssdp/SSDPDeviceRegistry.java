@@ -0,0 +1,457 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A registry of external devices, keyed by USN, that tracks the lease each advertisement grants. Every alive
+ * notification or search response renews a device's lease for its CACHE-CONTROL max-age; an ssdp:byebye removes
+ * the device immediately and a lease that is not renewed in time expires it.
+ *
+ * Leases are held on a hashed timing wheel so that expiry costs O(1) per device however many devices are
+ * registered. Renewing a lease only records the new expiration; the wheel entry is moved lazily when its original
+ * deadline comes around, so the frequent case of a device re-announcing itself does no wheel work at all.
+ *
+ * Devices restored from an SSDPDiscoverySnapshot are provisional until they renew their leases; a provisional
+ * device that doesn't re-announce itself simply expires when its restored lease runs out.
+ *
+ * Lease times (and a Device's first seen, last seen and expiration times) are measured by the registry's clock,
+ * which is monotonic by default so that a wall clock step can't stall or rush expiry. Snapshots convert them to
+ * and from wall-clock time.
+ *
+ * Listeners are told about added and removed devices on the thread that caused the change, outside of the
+ * registry's lock.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPDeviceRegistry implements SSDPMetrics.Source {
+    private static final Logger logger = LoggerFactory.getLogger(SSDPDeviceRegistry.class);
+
+    public static final int DEFAULT_MAX_AGE = 1800;
+    public static final long DEFAULT_TICK_MILLIS = 1000;
+    public static final int DEFAULT_WHEEL_SIZE = 4096;
+
+    public enum RemovalReason {
+        BYEBYE,
+        EXPIRED
+    }
+
+    private final SSDPClock clock;
+    private final SSDPTimingWheel<Device> wheel;
+    private final Map<String,Device> devices = new HashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile List<Device> snapshot = Collections.emptyList();
+    private boolean snapshotStale;
+    private long renewalCount;
+    private long byebyeCount;
+    private long expiredCount;
+    private long restoredCount;
+    private long modificationCount;
+
+    public SSDPDeviceRegistry() {
+        this(SSDPClock.MONOTONIC, DEFAULT_TICK_MILLIS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param clock the clock used for lease times
+     * @param tickMillis the expiry resolution in milliseconds
+     */
+    public SSDPDeviceRegistry(SSDPClock clock, long tickMillis) {
+        this.clock = clock;
+        this.wheel = new SSDPTimingWheel<>(tickMillis, DEFAULT_WHEEL_SIZE, clock.currentTimeMillis());
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public long getTickMillis() {
+        return wheel.getTickMillis();
+    }
+
+    /**
+     * Returns the clock that lease times are measured by.
+     *
+     * @return a SSDPClock
+     */
+    public SSDPClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Renews (or creates) the lease for the device that sent an alive notification or search response.
+     *
+     * @param packet the packet
+     * @param sender the address the packet came from
+     *
+     * @return true if the device was not previously registered
+     */
+    public boolean renew(SSDPPacket packet, InetSocketAddress sender) {
+        String nt = packet.getNT();
+        return renew(packet.getUSN(), packet.getLocation(), (nt != null) ? nt : packet.getST(), packet.getServer(), packet.getCacheControlMaxAge(), sender);
+    }
+
+    /**
+     * Renews (or creates) the lease for a device.
+     *
+     * @param usn the USN
+     * @param location the LOCATION
+     * @param notificationType the NT (or ST for search responses)
+     * @param server the SERVER
+     * @param maxAge the lease duration in seconds (or -1 to use the default)
+     * @param sender the address the advertisement came from
+     *
+     * @return true if the device was not previously registered
+     */
+    public boolean renew(String usn, String location, String notificationType, String server, int maxAge, InetSocketAddress sender) {
+        if (usn == null) {
+            return false;
+        }
+        long now = clock.currentTimeMillis();
+        long expiration = now + (maxAge > -1 ? maxAge : DEFAULT_MAX_AGE) * 1000L;
+        Device d;
+        synchronized (this) {
+            renewalCount++;
+            d = devices.get(usn);
+            if (d != null) {
+                if (location == null ? d.location != null : !location.equals(d.location)) {
+                    modificationCount++;
+                }
+                d.update(location, server, sender, now, expiration);
+                if (expiration < d.deadline) {
+                    // the lease got shorter so the wheel entry has to move earlier
+                    wheel.cancel(d.timeout);
+                    schedule(d, expiration);
+                }
+                return false;
+            }
+            d = new Device(usn, notificationType, now);
+            d.update(location, server, sender, now, expiration);
+            devices.put(usn, d);
+            schedule(d, expiration);
+            snapshotStale = true;
+            modificationCount++;
+        }
+        for (Listener l : listeners) {
+            try {
+                l.deviceAdded(d);
+            } catch (Throwable e) {
+                logger.error("Error notifying SSDP device listener", e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Registers a provisional device restored from a snapshot. The device keeps the remainder of the lease it had
+     * when the snapshot was written and is confirmed by its next alive notification or search response.
+     *
+     * @param entry the snapshot entry
+     * @param wallTime the current wall-clock time in milliseconds since the epoch (which the entry's expiration is
+     *                 measured by)
+     *
+     * @return the new Device (or null if the device is already registered or its lease has run out)
+     */
+    public Device restore(SSDPDiscoverySnapshot.Entry entry, long wallTime) {
+        long remaining = entry.getExpiration() - wallTime;
+        if (entry.getUSN() == null || remaining <= 0) {
+            return null;
+        }
+        long now = clock.currentTimeMillis();
+        long expiration = now + remaining;
+        Device d;
+        synchronized (this) {
+            if (devices.containsKey(entry.getUSN())) {
+                return null;
+            }
+            d = new Device(entry.getUSN(), entry.getNotificationType(), now);
+            d.update(entry.getLocation(), entry.getServer(), entry.getAddress(), now, expiration);
+            d.provisional = true;
+            devices.put(entry.getUSN(), d);
+            schedule(d, expiration);
+            snapshotStale = true;
+            restoredCount++;
+            modificationCount++;
+        }
+        for (Listener l : listeners) {
+            try {
+                l.deviceAdded(d);
+            } catch (Throwable e) {
+                logger.error("Error notifying SSDP device listener", e);
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Removes a device in response to an ssdp:byebye.
+     *
+     * @param usn the USN
+     *
+     * @return true if the device was registered
+     */
+    public boolean byebye(String usn) {
+        Device d;
+        synchronized (this) {
+            d = (usn != null) ? devices.remove(usn) : null;
+            if (d == null) {
+                return false;
+            }
+            wheel.cancel(d.timeout);
+            snapshotStale = true;
+            byebyeCount++;
+            modificationCount++;
+        }
+        fireRemoved(Collections.singletonList(d), RemovalReason.BYEBYE);
+        return true;
+    }
+
+    /**
+     * Expires any devices whose leases have run out. This should be called about once per tick.
+     *
+     * @return the number of devices that expired
+     */
+    public int tick() {
+        List<Device> removed;
+        synchronized (this) {
+            long now = clock.currentTimeMillis();
+            List<Device> due = new ArrayList<>();
+            if (wheel.expire(now, due) == 0) {
+                return 0;
+            }
+            removed = new ArrayList<>(due.size());
+            for (Device d : due) {
+                if (d.expiration > now) {
+                    // renewed since it was scheduled
+                    schedule(d, d.expiration);
+                } else {
+                    devices.remove(d.usn);
+                    removed.add(d);
+                }
+            }
+            if (!removed.isEmpty()) {
+                snapshotStale = true;
+                expiredCount += removed.size();
+                modificationCount++;
+            }
+        }
+        fireRemoved(removed, RemovalReason.EXPIRED);
+        return removed.size();
+    }
+
+    synchronized public Device get(String usn) {
+        return devices.get(usn);
+    }
+
+    synchronized public int size() {
+        return devices.size();
+    }
+
+    /**
+     * Returns an immutable snapshot of the registered devices. The snapshot is only rebuilt after devices have
+     * been added or removed, so repeated calls while the set of devices is stable cost nothing.
+     *
+     * @return a List of Device objects
+     */
+    public List<Device> getDevices() {
+        synchronized (this) {
+            if (snapshotStale) {
+                snapshot = Collections.unmodifiableList(Arrays.asList(devices.values().toArray(new Device[devices.size()])));
+                snapshotStale = false;
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Removes all devices without notifying listeners.
+     */
+    synchronized public void clear() {
+        devices.clear();
+        wheel.clear();
+        snapshotStale = true;
+    }
+
+    synchronized public long getRenewalCount() {
+        return renewalCount;
+    }
+
+    synchronized public long getByebyeCount() {
+        return byebyeCount;
+    }
+
+    synchronized public long getExpiredCount() {
+        return expiredCount;
+    }
+
+    synchronized public long getRestoredCount() {
+        return restoredCount;
+    }
+
+    /**
+     * Returns a number that changes whenever a device is added or removed or its LOCATION changes. Lease renewals
+     * that change nothing else don't count. This can be used to tell whether the registry has changed since it was
+     * last looked at.
+     *
+     * @return a long
+     */
+    synchronized public long getModificationCount() {
+        return modificationCount;
+    }
+
+    @Override
+    public void registerGauges(SSDPMetrics metrics) {
+        metrics.registerGauge("devicesRegistered", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return size();
+            }
+        });
+        metrics.registerGauge("deviceByebyes", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getByebyeCount();
+            }
+        });
+        metrics.registerGauge("deviceExpirations", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getExpiredCount();
+            }
+        });
+        metrics.registerGauge("devicesRestored", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getRestoredCount();
+            }
+        });
+    }
+
+    private void schedule(Device d, long deadline) {
+        d.deadline = deadline;
+        d.timeout = wheel.schedule(d, deadline);
+    }
+
+    private void fireRemoved(List<Device> removed, RemovalReason reason) {
+        for (Device d : removed) {
+            for (Listener l : listeners) {
+                try {
+                    l.deviceRemoved(d, reason);
+                } catch (Throwable e) {
+                    logger.error("Error notifying SSDP device listener", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * An interface for components that want to know when devices come and go.
+     */
+    public interface Listener {
+        void deviceAdded(Device device);
+        void deviceRemoved(Device device, RemovalReason reason);
+    }
+
+    /**
+     * A registered device and the state of its lease.
+     */
+    public static class Device {
+        private final String usn;
+        private final String notificationType;
+        private final long firstSeen;
+        private volatile String location;
+        private volatile String server;
+        private volatile InetSocketAddress address;
+        private volatile long lastSeen;
+        private volatile long expiration;
+        private volatile boolean provisional;
+
+        // wheel state; only accessed while holding the registry's lock
+        private long deadline;
+        private SSDPTimingWheel.Timeout<Device> timeout;
+
+        Device(String usn, String notificationType, long firstSeen) {
+            this.usn = usn;
+            this.notificationType = notificationType;
+            this.firstSeen = firstSeen;
+        }
+
+        void update(String location, String server, InetSocketAddress address, long lastSeen, long expiration) {
+            this.location = location;
+            this.server = server;
+            this.address = address;
+            this.lastSeen = lastSeen;
+            this.expiration = expiration;
+            this.provisional = false;
+        }
+
+        public String getUSN() {
+            return usn;
+        }
+
+        public String getNotificationType() {
+            return notificationType;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+
+        public String getServer() {
+            return server;
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        public long getFirstSeen() {
+            return firstSeen;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        public long getExpiration() {
+            return expiration;
+        }
+
+        /**
+         * Indicates whether the device was restored from a snapshot and hasn't announced itself since.
+         *
+         * @return a boolean
+         */
+        public boolean isProvisional() {
+            return provisional;
+        }
+
+        @Override
+        public String toString() {
+            return usn + " (" + location + ")";
+        }
+    }
+}
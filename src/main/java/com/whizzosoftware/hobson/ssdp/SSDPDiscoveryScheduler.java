@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Schedules outbound M-SEARCH rounds.
+ *
+ * General (ssdp:all) rounds are sent with exponential backoff: the first goes out shortly after start() or
+ * restart() and each following interval doubles until it reaches the maximum, after which rounds continue at the
+ * maximum interval. restart() should be called whenever the network changes so that the plugin converges quickly.
+ *
+ * Targeted searches for specific search targets can be requested at any time. Requests that arrive within the
+ * merge window of each other, or of a general round, are sent together in a single round. Targets that are
+ * registered with addSearchTarget() are searched for again every time the backoff restarts.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPDiscoveryScheduler implements SSDPMetrics.Source {
+    public static final long DEFAULT_INITIAL_INTERVAL = 1000;
+    public static final long DEFAULT_MAX_INTERVAL = 300000;
+    public static final long DEFAULT_MERGE_WINDOW = 250;
+    public static final long DEFAULT_TICK_MILLIS = 100;
+    public static final int DEFAULT_MX = 3;
+
+    private final SSDPClock clock;
+    private final long initialInterval;
+    private final long maxInterval;
+    private final long mergeWindow;
+    private final int mx;
+    private final SearchSink sink;
+    private final Set<String> searchTargets = new LinkedHashSet<>();
+    private final Set<String> pendingTargets = new LinkedHashSet<>();
+    private long pendingDeadline;
+    private long nextRound = -1;
+    private long interval;
+    private long roundCount;
+
+    public SSDPDiscoveryScheduler(SearchSink sink) {
+        this(SSDPClock.MONOTONIC, DEFAULT_INITIAL_INTERVAL, DEFAULT_MAX_INTERVAL, DEFAULT_MERGE_WINDOW, DEFAULT_MX, sink);
+    }
+
+    public SSDPDiscoveryScheduler(SSDPClock clock, long initialInterval, long maxInterval, long mergeWindow, int mx, SearchSink sink) {
+        this.clock = clock;
+        this.initialInterval = initialInterval;
+        this.maxInterval = Math.max(initialInterval, maxInterval);
+        this.mergeWindow = mergeWindow;
+        this.mx = mx;
+        this.sink = sink;
+    }
+
+    /**
+     * Starts (or restarts) the backoff. The next general round is sent after the merge window so that requests
+     * arriving at about the same time are folded into it.
+     */
+    synchronized public void restart() {
+        long now = clock.currentTimeMillis();
+        interval = initialInterval;
+        nextRound = now + mergeWindow;
+        if (!searchTargets.isEmpty()) {
+            request(searchTargets, now);
+        }
+    }
+
+    /**
+     * Stops sending rounds until restart() is called.
+     */
+    synchronized public void stop() {
+        nextRound = -1;
+        pendingTargets.clear();
+    }
+
+    /**
+     * Registers a search target that should be searched for now and whenever the backoff restarts.
+     *
+     * @param st the search target
+     */
+    synchronized public void addSearchTarget(String st) {
+        if (searchTargets.add(st)) {
+            search(st);
+        }
+    }
+
+    synchronized public void removeSearchTarget(String st) {
+        searchTargets.remove(st);
+    }
+
+    synchronized public Collection<String> getSearchTargets() {
+        return new ArrayList<>(searchTargets);
+    }
+
+    /**
+     * Requests a one-time search for a search target.
+     *
+     * @param st the search target
+     */
+    synchronized public void search(String st) {
+        List<String> l = new ArrayList<>(1);
+        l.add(st);
+        request(l, clock.currentTimeMillis());
+    }
+
+    private void request(Collection<String> sts, long now) {
+        if (pendingTargets.isEmpty()) {
+            pendingDeadline = now + mergeWindow;
+        }
+        pendingTargets.addAll(sts);
+    }
+
+    /**
+     * Sends a round if one is due. This should be called once per tick.
+     */
+    public void tick() {
+        List<String> round = null;
+        synchronized (this) {
+            long now = clock.currentTimeMillis();
+            boolean general = (nextRound > -1 && now >= nextRound);
+            boolean targeted = (!pendingTargets.isEmpty() && now >= pendingDeadline);
+
+            // a targeted round that falls just before a general round is folded into it and vice versa
+            if (targeted && !general && nextRound > -1 && nextRound - now <= mergeWindow) {
+                general = true;
+            }
+            if (general && !targeted && !pendingTargets.isEmpty()) {
+                targeted = true;
+            }
+
+            if (general || targeted) {
+                round = new ArrayList<>();
+                if (general) {
+                    round.add(SSDPSearchTargetIndex.ALL);
+                    nextRound = now + interval;
+                    interval = Math.min(interval * 2, maxInterval);
+                }
+                if (targeted) {
+                    for (String st : pendingTargets) {
+                        if (!general || !SSDPSearchTargetIndex.ALL.equals(st)) {
+                            round.add(st);
+                        }
+                    }
+                    pendingTargets.clear();
+                }
+                roundCount++;
+            }
+        }
+        if (round != null && !round.isEmpty()) {
+            sink.sendSearches(round, mx);
+        }
+    }
+
+    synchronized public long getNextRoundTime() {
+        return nextRound;
+    }
+
+    synchronized public long getRoundCount() {
+        return roundCount;
+    }
+
+    @Override
+    public void registerGauges(SSDPMetrics metrics) {
+        metrics.registerGauge("searchRoundsSent", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getRoundCount();
+            }
+        });
+    }
+
+    /**
+     * The recipient of search rounds that are due to be sent.
+     */
+    public interface SearchSink {
+        void sendSearches(List<String> searchTargets, int mx);
+    }
+}
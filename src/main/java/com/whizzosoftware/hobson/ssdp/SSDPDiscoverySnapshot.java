@@ -0,0 +1,297 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import io.netty.util.CharsetUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A compact binary snapshot of the external devices in an SSDPDeviceRegistry, written periodically so that a
+ * restarted plugin can republish the devices it knew about straight away instead of waiting for them to announce
+ * themselves again.
+ *
+ * A snapshot starts with a magic number, a version and the time (in milliseconds since the epoch) it was written.
+ * Each record that follows holds a device's remaining lease in milliseconds relative to that time, its USN,
+ * LOCATION, NT and SERVER and the address it was last heard from. Lengths and times are written as unsigned
+ * varints. A snapshot is replaced as a whole by writing a temporary file and renaming it over the old one, so a
+ * crash while writing leaves the previous snapshot intact; a record that was cut short anyway marks the end of
+ * the snapshot.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPDiscoverySnapshot {
+    static final byte[] MAGIC = {'S', 'S', 'D', 'P', 'S', 'N', 'A', 'P'};
+    static final int VERSION = 1;
+    static final int MAX_STRING_LENGTH = 4096;
+
+    private SSDPDiscoverySnapshot() {}
+
+    /**
+     * Replaces a snapshot file with the current state of a set of devices. Devices whose leases have already run
+     * out and devices with a USN, LOCATION, NT or SERVER longer than MAX_STRING_LENGTH bytes are not written.
+     *
+     * @param file the snapshot file
+     * @param devices the devices
+     * @param now the current time in milliseconds since the epoch
+     * @param leaseNow the current time on the clock the devices' lease times are measured by (see
+     *                 SSDPDeviceRegistry.getClock())
+     *
+     * @return the number of devices written
+     * @throws IOException on failure
+     */
+    public static int write(File file, Collection<SSDPDeviceRegistry.Device> devices, long now, long leaseNow) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        int count;
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024)) {
+            count = write(os, devices, now, leaseNow);
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return count;
+    }
+
+    /**
+     * Writes a snapshot of a set of devices to a stream. Devices whose leases have already run out and devices
+     * with a USN, LOCATION, NT or SERVER longer than MAX_STRING_LENGTH bytes are not written.
+     *
+     * @param os the stream
+     * @param devices the devices
+     * @param now the current time in milliseconds since the epoch
+     * @param leaseNow the current time on the clock the devices' lease times are measured by (see
+     *                 SSDPDeviceRegistry.getClock())
+     *
+     * @return the number of devices written
+     * @throws IOException on failure
+     */
+    public static int write(OutputStream os, Collection<SSDPDeviceRegistry.Device> devices, long now, long leaseNow) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(now);
+        int count = 0;
+        for (SSDPDeviceRegistry.Device d : devices) {
+            long remaining = d.getExpiration() - leaseNow;
+            if (remaining <= 0) {
+                continue;
+            }
+            // the reader rejects oversized strings as corruption so a device that sent one is left out rather
+            // than making the whole snapshot unreadable
+            byte[] usn = encode(d.getUSN());
+            byte[] location = encode(d.getLocation());
+            byte[] nt = encode(d.getNotificationType());
+            byte[] server = encode(d.getServer());
+            if (isTooLong(usn) || isTooLong(location) || isTooLong(nt) || isTooLong(server)) {
+                continue;
+            }
+            SSDPTrafficLog.writeVarLong(out, remaining);
+            writeString(out, usn);
+            writeString(out, location);
+            writeString(out, nt);
+            writeString(out, server);
+            InetSocketAddress a = d.getAddress();
+            if (a != null && a.getAddress() != null) {
+                byte[] addr = a.getAddress().getAddress();
+                out.writeByte(addr.length);
+                out.write(addr);
+                out.writeShort(a.getPort());
+            } else {
+                out.writeByte(0);
+            }
+            count++;
+        }
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Reads the devices from a snapshot file whose leases have not yet run out.
+     *
+     * @param file the snapshot file
+     * @param now the current time in milliseconds since the epoch
+     *
+     * @return a List of Entry objects (empty if the file doesn't exist)
+     * @throws IOException on failure or if the file is not a snapshot
+     */
+    public static List<Entry> read(File file, long now) throws IOException {
+        if (!file.exists()) {
+            return Collections.emptyList();
+        }
+        try (InputStream is = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+            return read(is, now);
+        }
+    }
+
+    /**
+     * Reads the devices from a snapshot whose leases have not yet run out.
+     *
+     * @param is the stream to read from
+     * @param now the current time in milliseconds since the epoch
+     *
+     * @return a List of Entry objects
+     * @throws IOException on failure or if the stream is not a snapshot
+     */
+    public static List<Entry> read(InputStream is, long now) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        long writtenAt;
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not an SSDP discovery snapshot");
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported SSDP discovery snapshot version: " + version);
+            }
+            writtenAt = in.readLong();
+        } catch (EOFException e) {
+            throw new IOException("Not an SSDP discovery snapshot", e);
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        try {
+            while (true) {
+                int b = in.read();
+                if (b == -1) {
+                    break;
+                }
+                long remaining = readVarLong(in, b);
+                String usn = readString(in);
+                String location = readString(in);
+                String nt = readString(in);
+                String server = readString(in);
+                InetSocketAddress address = null;
+                int len = in.readUnsignedByte();
+                if (len > 0) {
+                    byte[] addr = new byte[len];
+                    in.readFully(addr);
+                    address = new InetSocketAddress(InetAddress.getByAddress(addr), in.readUnsignedShort());
+                }
+                long expiration = writtenAt + remaining;
+                if (expiration > now && usn != null) {
+                    entries.add(new Entry(usn, location, nt, server, address, expiration));
+                }
+            }
+        } catch (EOFException e) {
+            // a partially written record at the end of the snapshot
+        }
+        return entries;
+    }
+
+    private static byte[] encode(String s) {
+        return (s != null) ? s.getBytes(CharsetUtil.UTF_8) : null;
+    }
+
+    private static boolean isTooLong(byte[] b) {
+        return b != null && b.length > MAX_STRING_LENGTH;
+    }
+
+    private static void writeString(DataOutputStream out, byte[] b) throws IOException {
+        if (b == null) {
+            out.writeByte(0);
+        } else {
+            SSDPTrafficLog.writeVarLong(out, b.length + 1);
+            out.write(b);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        long len = SSDPTrafficLog.readVarLong(in);
+        if (len == 0) {
+            return null;
+        } else if (len > MAX_STRING_LENGTH + 1) {
+            throw new IOException("Invalid string length in SSDP discovery snapshot: " + len);
+        }
+        byte[] b = new byte[(int)len - 1];
+        in.readFully(b);
+        return new String(b, CharsetUtil.UTF_8);
+    }
+
+    private static long readVarLong(DataInputStream in, int first) throws IOException {
+        long v = first & 0x7F;
+        if ((first & 0x80) != 0) {
+            v |= SSDPTrafficLog.readVarLong(in) << 7;
+        }
+        return v;
+    }
+
+    /**
+     * A device read from a snapshot.
+     */
+    public static class Entry {
+        private final String usn;
+        private final String location;
+        private final String notificationType;
+        private final String server;
+        private final InetSocketAddress address;
+        private final long expiration;
+
+        public Entry(String usn, String location, String notificationType, String server, InetSocketAddress address, long expiration) {
+            this.usn = usn;
+            this.location = location;
+            this.notificationType = notificationType;
+            this.server = server;
+            this.address = address;
+            this.expiration = expiration;
+        }
+
+        public String getUSN() {
+            return usn;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+
+        public String getNotificationType() {
+            return notificationType;
+        }
+
+        public String getServer() {
+            return server;
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        public long getExpiration() {
+            return expiration;
+        }
+
+        @Override
+        public String toString() {
+            return usn + " (" + location + ")";
+        }
+    }
+}
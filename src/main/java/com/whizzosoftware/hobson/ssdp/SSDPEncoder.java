@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.util.List;
+
+/**
+ * An encoder that turns outbound SSDPEnvelopes into datagrams. Packets are written directly into a direct buffer
+ * from the channel's allocator (pooled when the channel is configured with PooledByteBufAllocator).
+ *
+ * @author Dan Noguerol
+ */
+@ChannelHandler.Sharable
+public class SSDPEncoder extends MessageToMessageEncoder<SSDPEnvelope> {
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, SSDPEnvelope msg, List<Object> out) throws Exception {
+        out.add(new DatagramPacket(encode(ctx.alloc(), msg.content()), msg.recipient(), msg.sender()));
+    }
+
+    /**
+     * Encodes a packet, including the blank line that ends its headers, into a new direct buffer. The caller owns
+     * the returned buffer.
+     *
+     * @param alloc the allocator to obtain the buffer from
+     * @param packet the packet to encode
+     *
+     * @return a ByteBuf
+     */
+    static public ByteBuf encode(ByteBufAllocator alloc, SSDPPacket packet) {
+        ByteBuf buf = alloc.directBuffer(packet.getEncodedLength() + CRLF.length);
+        try {
+            packet.encode(buf);
+            buf.writeBytes(CRLF);
+            return buf;
+        } catch (RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import io.netty.channel.DefaultAddressedEnvelope;
+
+import java.net.InetSocketAddress;
+
+/**
+ * An SSDPPacket together with the addresses it was received on/from or is to be sent to. This is the message type
+ * passed between SSDPDecoder and SSDPInboundHandler and accepted by SSDPEncoder.
+ *
+ * Releasing the envelope releases the packet's reference to the buffer it was decoded from (if any).
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPEnvelope extends DefaultAddressedEnvelope<SSDPPacket,InetSocketAddress> {
+    public SSDPEnvelope(SSDPPacket packet, InetSocketAddress recipient) {
+        super(packet, recipient);
+    }
+
+    public SSDPEnvelope(SSDPPacket packet, InetSocketAddress recipient, InetSocketAddress sender) {
+        super(packet, recipient, sender);
+    }
+
+    @Override
+    public boolean release() {
+        content().release();
+        return true;
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return release();
+    }
+}
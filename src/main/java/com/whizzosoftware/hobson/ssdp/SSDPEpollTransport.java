@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ChannelFactory;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * The native epoll transport. This class is only loaded once SSDPTransport has determined that the native
+ * transport is on the classpath.
+ *
+ * @author Dan Noguerol
+ */
+class SSDPEpollTransport extends SSDPTransport {
+    static boolean isAvailable() {
+        return Epoll.isAvailable();
+    }
+
+    @Override
+    public String getName() {
+        return "epoll";
+    }
+
+    @Override
+    public EventLoopGroup createEventLoopGroup(int threads, String name) {
+        return new EpollEventLoopGroup(threads, new DefaultThreadFactory(name, true));
+    }
+
+    @Override
+    public ChannelFactory<Channel> createChannelFactory() {
+        return new ChannelFactory<Channel>() {
+            @Override
+            public Channel newChannel() {
+                return new EpollDatagramChannel();
+            }
+        };
+    }
+
+    @Override
+    public ChannelFactory<Channel> createSocketChannelFactory() {
+        return new ChannelFactory<Channel>() {
+            @Override
+            public Channel newChannel() {
+                return new EpollSocketChannel();
+            }
+        };
+    }
+
+    @Override
+    public boolean isMulticastSupported() {
+        // EpollDatagramChannel fails joinGroup() with "Multicast not supported" in Netty 4.0
+        return false;
+    }
+
+    @Override
+    public boolean isReusePortSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean enableReusePort(Bootstrap bootstrap) {
+        bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        return true;
+    }
+}
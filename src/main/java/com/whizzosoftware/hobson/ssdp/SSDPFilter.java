@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A predicate over the header fields of an inbound SSDP advertisement, used to subscribe to a subset of
+ * advertisements through SSDPSubscriptionIndex. A filter is a list of conditions that must all match; a filter
+ * with no conditions matches everything.
+ *
+ * Filters are immutable and are created with the static factory methods, e.g.:
+ *
+ *   SSDPFilter.type(SSDPFilter.Field.TARGET, "urn:schemas-upnp-org:device:MediaRenderer", 1)
+ *       .and(SSDPFilter.prefix(SSDPFilter.Field.SERVER, "Linux"))
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPFilter {
+    /**
+     * The header fields a condition can test.
+     */
+    public enum Field {
+        /**
+         * The NT header of a notification or the ST header of a search response.
+         */
+        TARGET,
+        USN,
+        SERVER
+    }
+
+    /**
+     * The ways a condition can test a field's value.
+     */
+    public enum Kind {
+        /**
+         * The value equals the condition value.
+         */
+        EXACT,
+        /**
+         * The value starts with the condition value.
+         */
+        PREFIX,
+        /**
+         * The value is a URN of the condition's type (e.g. "urn:schemas-upnp-org:device:MediaRenderer") with a
+         * version of at least the condition's minimum version. For USNs, the part after "::" is tested.
+         */
+        TYPE
+    }
+
+    private static final SSDPFilter ALL = new SSDPFilter(Collections.<Condition>emptyList());
+
+    private final List<Condition> conditions;
+
+    private SSDPFilter(List<Condition> conditions) {
+        this.conditions = conditions;
+    }
+
+    static public SSDPFilter all() {
+        return ALL;
+    }
+
+    static public SSDPFilter exact(Field field, String value) {
+        return new SSDPFilter(Collections.singletonList(new Condition(field, Kind.EXACT, value, 0)));
+    }
+
+    static public SSDPFilter prefix(Field field, String prefix) {
+        return new SSDPFilter(Collections.singletonList(new Condition(field, Kind.PREFIX, prefix, 0)));
+    }
+
+    static public SSDPFilter type(Field field, String type, int minVersion) {
+        if (type.endsWith(":")) {
+            type = type.substring(0, type.length() - 1);
+        }
+        return new SSDPFilter(Collections.singletonList(new Condition(field, Kind.TYPE, type, minVersion)));
+    }
+
+    /**
+     * Returns a filter that matches only when both this filter and another filter match.
+     *
+     * @param filter the other filter
+     *
+     * @return a new SSDPFilter
+     */
+    public SSDPFilter and(SSDPFilter filter) {
+        List<Condition> l = new ArrayList<>(conditions.size() + filter.conditions.size());
+        l.addAll(conditions);
+        l.addAll(filter.conditions);
+        return new SSDPFilter(Collections.unmodifiableList(l));
+    }
+
+    public List<Condition> getConditions() {
+        return conditions;
+    }
+
+    /**
+     * Tests a packet against every condition. SSDPSubscriptionIndex only calls this for conditions it hasn't
+     * already matched through its index.
+     *
+     * @param packet the packet
+     *
+     * @return a boolean
+     */
+    public boolean matches(SSDPPacket packet) {
+        for (Condition c : conditions) {
+            if (!c.matches(getValue(packet, c.getField()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String getValue(SSDPPacket packet, Field field) {
+        switch (field) {
+            case TARGET:
+                String nt = packet.getNT();
+                return (nt != null) ? nt : packet.getST();
+            case USN:
+                return packet.getUSN();
+            case SERVER:
+                return packet.getServer();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the URN part of a value that a TYPE condition tests (i.e. the part of a USN after "::").
+     *
+     * @param value the value
+     *
+     * @return a String
+     */
+    static String getTypeValue(String value) {
+        int ix = value.indexOf("::");
+        return (ix > -1) ? value.substring(ix + 2) : value;
+    }
+
+    @Override
+    public String toString() {
+        return conditions.toString();
+    }
+
+    /**
+     * A single test against a header field.
+     */
+    static public class Condition {
+        private final Field field;
+        private final Kind kind;
+        private final String value;
+        private final int minVersion;
+
+        Condition(Field field, Kind kind, String value, int minVersion) {
+            if (field == null || kind == null || value == null) {
+                throw new IllegalArgumentException("Filter conditions require a field, kind and value");
+            }
+            this.field = field;
+            this.kind = kind;
+            this.value = value;
+            this.minVersion = minVersion;
+        }
+
+        public Field getField() {
+            return field;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public int getMinVersion() {
+            return minVersion;
+        }
+
+        boolean matches(String v) {
+            if (v == null) {
+                return false;
+            }
+            switch (kind) {
+                case EXACT:
+                    return v.equals(value);
+                case PREFIX:
+                    return v.startsWith(value);
+                case TYPE:
+                    v = getTypeValue(v);
+                    int ix = v.lastIndexOf(':');
+                    return ix == value.length() && v.startsWith(value) && SSDPSearchTargetIndex.parseVersion(v, ix) >= minVersion;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return field + " " + kind + " " + value + (kind == Kind.TYPE ? ":" + minVersion + "+" : "");
+        }
+    }
+}
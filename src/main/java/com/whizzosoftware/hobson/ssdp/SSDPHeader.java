@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The SSDP headers that SSDPPacket knows about. Each one carries its canonical (upper case) name as both a String
+ * and an ASCII byte array so that inbound data can be matched without creating any intermediate objects, and
+ * whether its values repeat often enough across packets to be worth interning.
+ *
+ * @author Dan Noguerol
+ */
+public enum SSDPHeader {
+    BOOTID("BOOTID.UPNP.ORG", false),
+    CACHE_CONTROL("CACHE-CONTROL", true),
+    CONFIGID("CONFIGID.UPNP.ORG", false),
+    CONTENT_LENGTH("CONTENT-LENGTH", true),
+    DATE("DATE", false),
+    EXT("EXT", true),
+    HOST("HOST", true),
+    LOCATION("LOCATION", true),
+    MAN("MAN", true),
+    MX("MX", true),
+    NT("NT", true),
+    NTS("NTS", true),
+    SEARCHPORT("SEARCHPORT.UPNP.ORG", true),
+    SERVER("SERVER", true),
+    ST("ST", true),
+    USER_AGENT("USER-AGENT", true),
+    USN("USN", false);
+
+    private static final SSDPHeader[][] BY_LENGTH;
+    private static final Map<String,SSDPHeader> BY_NAME = new HashMap<>();
+
+    static {
+        int max = 0;
+        for (SSDPHeader h : values()) {
+            max = Math.max(max, h.nameBytes.length);
+            BY_NAME.put(h.headerName, h);
+        }
+        int[] counts = new int[max + 1];
+        for (SSDPHeader h : values()) {
+            counts[h.nameBytes.length]++;
+        }
+        BY_LENGTH = new SSDPHeader[max + 1][];
+        for (int i = 0; i <= max; i++) {
+            BY_LENGTH[i] = new SSDPHeader[counts[i]];
+            counts[i] = 0;
+        }
+        for (SSDPHeader h : values()) {
+            int len = h.nameBytes.length;
+            BY_LENGTH[len][counts[len]++] = h;
+        }
+    }
+
+    private final String headerName;
+    private final byte[] nameBytes;
+    private final boolean interned;
+
+    SSDPHeader(String headerName, boolean interned) {
+        this.headerName = headerName;
+        this.nameBytes = headerName.getBytes(CharsetUtil.US_ASCII);
+        this.interned = interned;
+    }
+
+    /**
+     * Returns the canonical header name (e.g. "CACHE-CONTROL").
+     *
+     * @return a String
+     */
+    public String getHeaderName() {
+        return headerName;
+    }
+
+    /**
+     * Returns the canonical header name as ASCII bytes. Callers must not modify the returned array.
+     *
+     * @return a byte array
+     */
+    byte[] getNameBytes() {
+        return nameBytes;
+    }
+
+    /**
+     * Indicates whether values of this header are shared across packets through the SSDPInternPool. Values that
+     * are unique to a packet or a device (USN, DATE, etc.) are not.
+     *
+     * @return a boolean
+     */
+    boolean isInterned() {
+        return interned;
+    }
+
+    /**
+     * Returns the known header with the exact (canonical) name provided.
+     *
+     * @param name the header name
+     *
+     * @return a SSDPHeader or null if the name is not a known header
+     */
+    public static SSDPHeader forName(String name) {
+        return BY_NAME.get(name);
+    }
+
+    /**
+     * Performs a case-insensitive match of a region of a buffer against the known header names. No objects are
+     * created in the process.
+     *
+     * @param buf the buffer
+     * @param index the index of the first byte of the header name
+     * @param length the length of the header name
+     *
+     * @return a SSDPHeader or null if the region does not contain a known header name
+     */
+    public static SSDPHeader lookup(ByteBuf buf, int index, int length) {
+        if (length <= 0 || length >= BY_LENGTH.length) {
+            return null;
+        }
+        for (SSDPHeader h : BY_LENGTH[length]) {
+            if (h.matches(buf, index)) {
+                return h;
+            }
+        }
+        return null;
+    }
+
+    private boolean matches(ByteBuf buf, int index) {
+        for (int i = 0; i < nameBytes.length; i++) {
+            byte b = buf.getByte(index + i);
+            if (b >= 'a' && b <= 'z') {
+                b -= 32;
+            }
+            if (b != nameBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
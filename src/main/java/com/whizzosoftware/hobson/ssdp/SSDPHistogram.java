@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram with power-of-two buckets. Recording a value is a couple of atomic increments, which
+ * makes it cheap enough to use on the event loop. Percentiles are approximated by the upper bound of the bucket
+ * they fall into.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPHistogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final SSDPCounter count = new SSDPCounter();
+    private final SSDPCounter sum = new SSDPCounter();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     *
+     * @param value the value
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        count.increment();
+        sum.add(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+    }
+
+    public Snapshot getSnapshot() {
+        long[] b = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            b[i] = buckets.get(i);
+            total += b[i];
+        }
+        return new Snapshot(total, sum.get(), max.get(), percentile(b, total, 0.5), percentile(b, total, 0.9), percentile(b, total, 0.99));
+    }
+
+    private static long percentile(long[] b, long total, double p) {
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (long)Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < b.length; i++) {
+            seen += b[i];
+            if (seen >= threshold) {
+                return (i == 0) ? 0 : (1L << i) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * A point-in-time view of a histogram.
+     */
+    public static class Snapshot {
+        private final long count;
+        private final long sum;
+        private final long max;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+
+        Snapshot(long count, long sum, long max, long p50, long p90, long p99) {
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+            this.p50 = Math.min(p50, max);
+            this.p90 = Math.min(p90, max);
+            this.p99 = Math.min(p99, max);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return (count > 0) ? (double)sum / count : 0;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long get50thPercentile() {
+            return p50;
+        }
+
+        public long get90thPercentile() {
+            return p90;
+        }
+
+        public long get99thPercentile() {
+            return p99;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", mean=" + getMean() + ", p50=" + p50 + ", p90=" + p90 + ", p99=" + p99 + ", max=" + max;
+        }
+    }
+}
@@ -8,28 +8,85 @@
 package com.whizzosoftware.hobson.ssdp;
 
 import com.whizzosoftware.hobson.api.disco.DeviceAdvertisement;
-import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandler;
 import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * A handler for inbound SSDP packets. It delegates the appropriate action to the SSDPContext object that it
  * is provided.
  *
+ * The handler expects SSDPEnvelopes from an SSDPDecoder earlier in the pipeline. Raw datagrams are also accepted
+ * and decoded in place so the handler can be used on its own.
+ *
+ * A single instance may be shared by channels running on different event loops so it holds no per-channel state.
+ * Advertisements that qualify for publication are collected per thread for the duration of a read cycle (an event
+ * loop finishes a channel's read cycle before it reads from another channel) with only the newest advertisement for
+ * each USN kept. In channelReadComplete() the batch is split by the processing worker each USN maps to and handed
+ * over as one task per worker, submitted with one of the batch's USNs as its key. Advertisements published outside
+ * of a read cycle (e.g. once a description fetch completes) are submitted with their own USN as the key, so every
+ * advertisement for a device goes through the same worker whichever path it takes and is published in order.
+ *
+ * An advertisement is only recorded in the advertisement cache once it has been handed to a worker, so the cache
+ * never suppresses a re-announcement of something that hasn't been published yet. While an advertisement waits
+ * for its description, a newer advertisement for the same USN supersedes it; the older one is discarded when its
+ * fetch completes so it can't be published after the newer one. A byebye discards the device's advertisements that
+ * haven't been handed to a worker and is applied to the device registry on the device's worker so it stays in
+ * order with the ones that have.
+ *
  * @author Dan Noguerol
  */
+@ChannelHandler.Sharable
 public class SSDPInboundHandler implements ChannelInboundHandler {
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
-    private SSDPContext context;
+    private final SSDPContext context;
+    private final SSDPAdvertisementCache advertisementCache;
+    private final SSDPMetrics metrics;
+    private final SSDPDescriptionFetcher descriptionFetcher;
+    private final boolean retainRawData;
+    private final SSDPDeviceRegistry deviceRegistry;
+    private final SSDPInterfaceMonitor interfaceMonitor;
+    private final SSDPDecoder decoder;
+    private final ConcurrentMap<String,PendingAdvertisement> fetching = new ConcurrentHashMap<>();
+    private final ThreadLocal<PublishBatch> batches = new ThreadLocal<PublishBatch>() {
+        @Override
+        protected PublishBatch initialValue() {
+            return new PublishBatch();
+        }
+    };
 
-    public SSDPInboundHandler(SSDPContext context) {
-        this.context = context;
+    private SSDPInboundHandler(Builder b) {
+        this.context = b.context;
+        this.advertisementCache = b.advertisementCache;
+        this.metrics = (b.metrics != null) ? b.metrics : new SSDPMetrics();
+        SSDPInterfaceMonitor interfaceMonitor = b.interfaceMonitor;
+        if (interfaceMonitor == null) {
+            interfaceMonitor = new SSDPInterfaceMonitor(null);
+            interfaceMonitor.refresh();
+        }
+        this.descriptionFetcher = b.descriptionFetcher;
+        this.retainRawData = b.retainRawData;
+        this.deviceRegistry = b.deviceRegistry;
+        this.interfaceMonitor = interfaceMonitor;
+        this.decoder = new SSDPDecoder(this.metrics, interfaceMonitor);
     }
 
     @Override
@@ -54,51 +111,295 @@ public class SSDPInboundHandler implements ChannelInboundHandler {
 
     @Override
     public void channelRead(ChannelHandlerContext channelHandlerContext, Object o) throws Exception {
-        final DatagramPacket p = (io.netty.channel.socket.DatagramPacket)o;
-        ByteBuf buf = p.content();
-        byte[] b = new byte[buf.readableBytes()];
-        buf.readBytes(b);
-        final String data = new String(b, 0, b.length, "UTF8");
-        buf.release();
-        logger.trace("Received data from {}: {}", p.sender().getHostString(), data);
-
-        // publish the advertisement
+        batches.get().reading = true;
+
+        final SSDPEnvelope env;
+        if (o instanceof SSDPEnvelope) {
+            env = (SSDPEnvelope)o;
+        } else {
+            // no SSDPDecoder ahead of this handler so decode the datagram here
+            DatagramPacket dp = (DatagramPacket)o;
+            try {
+                env = decoder.decode(dp);
+            } finally {
+                dp.release();
+            }
+            if (env == null) {
+                return;
+            }
+        }
+
+        final SSDPPacket packet = env.content();
+        final InetSocketAddress sender = env.sender();
         try {
-            final SSDPPacket packet = SSDPPacket.createWithData(data);
-            // ignore packets that originated from Hobson
-            if (!p.sender().getAddress().equals(InetAddress.getLocalHost())) {
-                if ("M-SEARCH".equals(packet.getMethod())) {
-                    context.executeInEventLoop(new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                context.processDiscoveryRequest(p.sender(), packet);
-                            } catch (Throwable e) {
-                                logger.error("Error processing discovery packet", e);
-                            }
+            String method = packet.getMethod();
+            if ("M-SEARCH".equals(method)) {
+                packet.detach();
+                boolean queued = context.executeInWorker(sender.getAddress().getHostAddress(), new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            context.processDiscoveryRequest(sender, packet);
+                        } catch (Throwable e) {
+                            logger.error("Error processing discovery packet", e);
                         }
-                    });
-                } else if (packet.getUSN() != null && packet.getLocation() != null) {
-                    // execute this in the event loop so we can get on with processing UDP packets as
-                    // quickly as possible
-                    context.executeInEventLoop(new Runnable() {
+                    }
+                });
+                if (queued) {
+                    SSDPTrafficRing.outcome(SSDPTrafficRing.Outcome.SEARCH);
+                } else {
+                    logger.trace("Dropped SSDP search request from {}; processing is overloaded", sender);
+                    SSDPTrafficRing.outcome(SSDPTrafficRing.Outcome.OVERLOADED);
+                }
+            } else if ("NOTIFY".equals(method) && SSDPPacket.NTS_BYEBYE.equals(packet.getNTS())) {
+                String usn = packet.getUSN();
+                if (usn != null) {
+                    logger.trace("Received SSDP byebye for {}", usn);
+                    byebye(usn);
+                    SSDPTrafficRing.outcome(SSDPTrafficRing.Outcome.BYEBYE);
+                } else {
+                    metrics.onPacketIgnored();
+                    SSDPTrafficRing.outcome(SSDPTrafficRing.Outcome.IGNORED);
+                }
+            } else if (packet.getUSN() != null && packet.getLocation() != null) {
+                if (isDuplicate(packet)) {
+                    // a re-announcement still renews the device's lease; the lease of an advertisement that is
+                    // published is renewed by the worker so it can't be undone by an earlier byebye
+                    if (deviceRegistry != null) {
+                        deviceRegistry.renew(packet, sender);
+                    }
+                    logger.trace("Ignoring unchanged SSDP advertisement for {}", packet.getUSN());
+                    metrics.onDuplicateSuppressed();
+                    SSDPTrafficRing.outcome(SSDPTrafficRing.Outcome.DUPLICATE);
+                    return;
+                }
+                final String data = retainRawData ? packet.getRawData() : null;
+                packet.detach();
+                // the diagnostic entry (if any) goes along so it can be updated once the advertisement is
+                // actually published or dropped
+                final PendingAdvertisement pa = new PendingAdvertisement(packet, sender, data, SSDPTrafficRing.current());
+                SSDPTrafficRing.outcome(SSDPTrafficRing.Outcome.ACCEPTED);
+                if (descriptionFetcher != null && isFetchable(packet.getLocation(), sender)) {
+                    final String usn = packet.getUSN();
+                    PendingAdvertisement superseded = fetching.put(usn, pa);
+                    if (superseded != null) {
+                        metrics.onDuplicateSuppressed();
+                        superseded.setOutcome(SSDPTrafficRing.Outcome.DUPLICATE);
+                    }
+                    // attach the description document so consumers don't each fetch it themselves; the
+                    // advertisement is still published if the fetch fails
+                    descriptionFetcher.fetch(packet.getLocation(), packet.getCacheControlMaxAge()).addListener(new GenericFutureListener<Future<SSDPDeviceDescription>>() {
                         @Override
-                        public void run() {
-                            context.publishDeviceAdvertisement(new DeviceAdvertisement.Builder(packet.getUSN(), SSDPPacket.PROTOCOL_ID).rawData(data).object(packet).build(), false);
+                        public void operationComplete(Future<SSDPDeviceDescription> future) throws Exception {
+                            // a newer advertisement for the device arrived while this one waited; it may already
+                            // have been published so this one must not be
+                            if (fetching.remove(usn, pa)) {
+                                if (future.isSuccess()) {
+                                    packet.setDescription(future.getNow());
+                                }
+                                enqueue(pa);
+                            }
                         }
                     });
                 } else {
-                    logger.trace("Ignoring SSDP packet with USN {} and location: {}", packet.getUSN(), packet.getLocation());
+                    enqueue(pa);
+                }
+            } else {
+                logger.trace("Ignoring SSDP packet with USN {} and location: {}", packet.getUSN(), packet.getLocation());
+                metrics.onPacketIgnored();
+                SSDPTrafficRing.outcome(SSDPTrafficRing.Outcome.IGNORED);
+            }
+        } catch (Throwable t) {
+            logger.error("Error processing SSDP packet", t);
+        } finally {
+            env.release();
+        }
+    }
+
+    /**
+     * Handles a byebye. The device's advertisements that haven't been handed to a worker yet are discarded and
+     * its registry entry is removed on the worker its advertisements are published on, after any that have been
+     * handed over, so that nobody sees the device come back after it has left.
+     *
+     * @param usn the USN of the device that is going away
+     */
+    private void byebye(final String usn) {
+        // forget the device's last advertisement right away so that its next alive is published even if nothing
+        // about it has changed
+        if (advertisementCache != null) {
+            advertisementCache.remove(usn);
+        }
+        PendingAdvertisement pa = batches.get().pending.remove(usn);
+        if (pa != null) {
+            pa.setOutcome(SSDPTrafficRing.Outcome.WITHDRAWN);
+        }
+        pa = fetching.remove(usn);
+        if (pa != null) {
+            pa.setOutcome(SSDPTrafficRing.Outcome.WITHDRAWN);
+        }
+        if (deviceRegistry != null) {
+            boolean queued = context.executeInWorker(usn, new SSDPWorkerStage.DroppableTask() {
+                @Override
+                public void run() {
+                    deviceRegistry.byebye(usn);
+                }
+
+                @Override
+                public void onDropped() {
+                    // better out of order than not at all; otherwise the device would linger until its lease ran out
+                    deviceRegistry.byebye(usn);
+                }
+            });
+            if (!queued) {
+                deviceRegistry.byebye(usn);
+            }
+        }
+    }
+
+    /**
+     * Indicates whether an advertisement is unchanged from the one last published for its USN or the one already
+     * waiting for its description.
+     *
+     * @param packet the advertisement packet
+     *
+     * @return a boolean
+     */
+    private boolean isDuplicate(SSDPPacket packet) {
+        PendingAdvertisement pa = fetching.get(packet.getUSN());
+        if (pa != null && pa.fingerprint == SSDPAdvertisementCache.createFingerprint(packet)) {
+            return true;
+        }
+        return advertisementCache != null && advertisementCache.isPublished(packet, SSDPClock.MONOTONIC.currentTimeMillis());
+    }
+
+    /**
+     * Indicates whether the description at an advertisement's LOCATION may be fetched. Advertisements are
+     * unauthenticated multicast packets so descriptions are only fetched from the host that sent the advertisement
+     * or from a host on one of the local subnets; a LOCATION with a host name is never resolved.
+     *
+     * @param location the advertisement's LOCATION
+     * @param sender the address the advertisement came from
+     *
+     * @return a boolean
+     */
+    private boolean isFetchable(String location, InetSocketAddress sender) {
+        String host;
+        try {
+            host = new URI(location).getHost();
+        } catch (URISyntaxException e) {
+            return false;
+        }
+        if (host == null) {
+            return false;
+        } else if (host.equals(sender.getAddress().getHostAddress()) || interfaceMonitor.isOnLocalSubnet(host)) {
+            return true;
+        }
+        logger.trace("Not fetching SSDP description from {} on behalf of {}", location, sender);
+        return false;
+    }
+
+    /**
+     * Adds an advertisement to the current thread's batch if it is in the middle of a read cycle or publishes it
+     * on its own if it isn't (e.g. when a description fetch completes later).
+     *
+     * @param pa the advertisement
+     */
+    private void enqueue(PendingAdvertisement pa) {
+        PublishBatch batch = batches.get();
+        if (batch.reading) {
+            PendingAdvertisement replaced = batch.pending.put(pa.packet.getUSN(), pa);
+            if (replaced != null) {
+                // an older advertisement for the same device from this read cycle has been replaced
+                metrics.onDuplicateSuppressed();
+                replaced.setOutcome(SSDPTrafficRing.Outcome.DUPLICATE);
+            }
+        } else {
+            publish(pa.packet.getUSN(), Collections.singletonList(pa));
+        }
+    }
+
+    private void publish(String key, final Collection<PendingAdvertisement> pending) {
+        if (advertisementCache != null) {
+            // from here on an unchanged re-announcement is a duplicate of what the worker is about to publish
+            long now = SSDPClock.MONOTONIC.currentTimeMillis();
+            for (PendingAdvertisement pa : pending) {
+                advertisementCache.record(pa.packet, now);
+            }
+        }
+        // hand this to the processing stage so we can get on with processing UDP packets as quickly as
+        // possible; the advertisements are only built there
+        boolean queued = context.executeInWorker(key, new SSDPWorkerStage.DroppableTask() {
+            @Override
+            public void run() {
+                List<DeviceAdvertisement> ads = new ArrayList<>(pending.size());
+                for (PendingAdvertisement pa : pending) {
+                    if (deviceRegistry != null) {
+                        deviceRegistry.renew(pa.packet, pa.sender);
+                    }
+                    DeviceAdvertisement.Builder b = new DeviceAdvertisement.Builder(pa.packet.getUSN(), SSDPPacket.PROTOCOL_ID).object(pa.packet);
+                    if (pa.data != null) {
+                        b.rawData(pa.data);
+                    }
+                    ads.add(b.build());
+                }
+                context.publishDeviceAdvertisements(ads, false);
+                metrics.onAdvertisementsPublished(ads.size());
+                for (PendingAdvertisement pa : pending) {
+                    pa.setOutcome(SSDPTrafficRing.Outcome.PUBLISHED);
                 }
             }
-        } catch (Throwable e) {
-            logger.error("Error creating SSDP packet", e);
+
+            @Override
+            public void onDropped() {
+                // evicted from the worker's queue by a newer task
+                dropped(pending);
+            }
+        });
+        if (!queued) {
+            dropped(pending);
+        }
+    }
+
+    /**
+     * Records that advertisements were dropped by the processing stage. They were recorded in the advertisement
+     * cache when they were handed to the worker so they are removed from it again; otherwise the device's identical
+     * re-announcements would be suppressed as duplicates until the entry expired even though nothing was ever
+     * published for it.
+     *
+     * @param pending the dropped advertisements
+     */
+    private void dropped(Collection<PendingAdvertisement> pending) {
+        logger.trace("Dropped {} SSDP advertisement(s); processing is overloaded", pending.size());
+        for (PendingAdvertisement pa : pending) {
+            if (advertisementCache != null) {
+                advertisementCache.remove(pa.packet);
+            }
+            pa.setOutcome(SSDPTrafficRing.Outcome.OVERLOADED);
         }
     }
 
     @Override
     public void channelReadComplete(ChannelHandlerContext channelHandlerContext) throws Exception {
         logger.trace("channelReadComplete");
+        PublishBatch batch = batches.get();
+        batch.reading = false;
+        if (!batch.pending.isEmpty()) {
+            Map<Integer,List<PendingAdvertisement>> byWorker = new LinkedHashMap<>();
+            for (PendingAdvertisement pa : batch.pending.values()) {
+                Integer worker = context.getWorkerIndex(pa.packet.getUSN());
+                List<PendingAdvertisement> l = byWorker.get(worker);
+                if (l == null) {
+                    l = new ArrayList<>();
+                    byWorker.put(worker, l);
+                }
+                l.add(pa);
+            }
+            batch.pending.clear();
+            for (List<PendingAdvertisement> l : byWorker.values()) {
+                // any of the USNs maps to the right worker
+                publish(l.get(0).packet.getUSN(), l);
+            }
+        }
     }
 
     @Override
@@ -109,6 +410,7 @@ public class SSDPInboundHandler implements ChannelInboundHandler {
     @Override
     public void channelWritabilityChanged(ChannelHandlerContext channelHandlerContext) throws Exception {
         logger.trace("channelWritabilityChanged");
+        context.channelWritabilityChanged(channelHandlerContext.channel());
     }
 
     @Override
@@ -125,4 +427,142 @@ public class SSDPInboundHandler implements ChannelInboundHandler {
     public void exceptionCaught(ChannelHandlerContext channelHandlerContext, Throwable throwable) throws Exception {
         logger.error("Exception in SSDP handler", throwable);
     }
+
+    /**
+     * An advertisement waiting to be published.
+     */
+    private static class PendingAdvertisement {
+        final SSDPPacket packet;
+        final InetSocketAddress sender;
+        final long fingerprint;
+        final String data;
+        final SSDPTrafficRing.Entry traffic;
+
+        PendingAdvertisement(SSDPPacket packet, InetSocketAddress sender, String data, SSDPTrafficRing.Entry traffic) {
+            this.packet = packet;
+            this.sender = sender;
+            this.fingerprint = SSDPAdvertisementCache.createFingerprint(packet);
+            this.data = data;
+            this.traffic = traffic;
+        }
+
+        void setOutcome(SSDPTrafficRing.Outcome outcome) {
+            if (traffic != null) {
+                traffic.setOutcome(outcome);
+            }
+        }
+    }
+
+    /**
+     * The advertisements collected by a thread during the current read cycle, keyed by USN.
+     */
+    private static class PublishBatch {
+        final Map<String,PendingAdvertisement> pending = new LinkedHashMap<>();
+        boolean reading;
+    }
+
+    /**
+     * Builds SSDPInboundHandler instances. Only the context is required; every other dependency is optional.
+     */
+    public static class Builder {
+        private final SSDPContext context;
+        private SSDPAdvertisementCache advertisementCache;
+        private SSDPMetrics metrics;
+        private SSDPInterfaceMonitor interfaceMonitor;
+        private SSDPDescriptionFetcher descriptionFetcher;
+        private boolean retainRawData = true;
+        private SSDPDeviceRegistry deviceRegistry;
+
+        /**
+         * Constructor.
+         *
+         * @param context the context to delegate actions to
+         */
+        public Builder(SSDPContext context) {
+            this.context = context;
+        }
+
+        /**
+         * Sets the cache used to suppress unchanged re-announcements. Without one, every advertisement is
+         * published.
+         *
+         * @param advertisementCache the cache
+         *
+         * @return this builder
+         */
+        public Builder advertisementCache(SSDPAdvertisementCache advertisementCache) {
+            this.advertisementCache = advertisementCache;
+            return this;
+        }
+
+        /**
+         * Sets the metrics to record inbound activity to. Without them, activity is recorded to a private
+         * instance.
+         *
+         * @param metrics the metrics
+         *
+         * @return this builder
+         */
+        public Builder metrics(SSDPMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Sets the monitor whose local addresses identify packets sent by this host. Without one, a one-time
+         * snapshot of the local addresses is taken.
+         *
+         * @param interfaceMonitor the monitor
+         *
+         * @return this builder
+         */
+        public Builder interfaceMonitor(SSDPInterfaceMonitor interfaceMonitor) {
+            this.interfaceMonitor = interfaceMonitor;
+            return this;
+        }
+
+        /**
+         * Sets the fetcher used to attach description documents to advertisements before they are published.
+         * Without one, advertisements are published without them. Descriptions are only fetched from the host
+         * that sent an advertisement or a host on a local subnet.
+         *
+         * @param descriptionFetcher the fetcher
+         *
+         * @return this builder
+         */
+        public Builder descriptionFetcher(SSDPDescriptionFetcher descriptionFetcher) {
+            this.descriptionFetcher = descriptionFetcher;
+            return this;
+        }
+
+        /**
+         * Sets whether published advertisements carry the raw packet data (the default). The parsed SSDPPacket
+         * is always attached so this can be turned off to save memory.
+         *
+         * @param retainRawData whether to retain the raw data
+         *
+         * @return this builder
+         */
+        public Builder retainRawData(boolean retainRawData) {
+            this.retainRawData = retainRawData;
+            return this;
+        }
+
+        /**
+         * Sets the registry whose device leases are renewed by advertisements and ended by byebyes. Without one,
+         * devices aren't tracked.
+         *
+         * @param deviceRegistry the registry
+         *
+         * @return this builder
+         */
+        public Builder deviceRegistry(SSDPDeviceRegistry deviceRegistry) {
+            this.deviceRegistry = deviceRegistry;
+            return this;
+        }
+
+        public SSDPInboundHandler build() {
+            return new SSDPInboundHandler(this);
+        }
+    }
 }
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+
+/**
+ * An IPv4 address on a multicast-capable network interface that SSDP sockets can be bound to.
+ *
+ * Two instances are equal when their interface name, address and prefix length are equal so that an address change
+ * on an interface is seen as one interface going away and another one appearing.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPInterface {
+    private final String name;
+    private final NetworkInterface networkInterface;
+    private final InetAddress address;
+    private final int prefixLength;
+
+    public SSDPInterface(String name, NetworkInterface networkInterface, InetAddress address, int prefixLength) {
+        this.name = name;
+        this.networkInterface = networkInterface;
+        this.address = address;
+        this.prefixLength = prefixLength;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public NetworkInterface getNetworkInterface() {
+        return networkInterface;
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    /**
+     * Indicates whether an address is on this interface's subnet.
+     *
+     * @param a the address to check
+     *
+     * @return a boolean
+     */
+    public boolean isOnSubnet(InetAddress a) {
+        if (!(a instanceof Inet4Address) || !(address instanceof Inet4Address) || prefixLength < 0 || prefixLength > 32) {
+            return false;
+        }
+        int mask = (prefixLength == 0) ? 0 : -1 << (32 - prefixLength);
+        return (toInt(a) & mask) == (toInt(address) & mask);
+    }
+
+    private static int toInt(InetAddress a) {
+        byte[] b = a.getAddress();
+        return ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SSDPInterface)) {
+            return false;
+        }
+        SSDPInterface i = (SSDPInterface)o;
+        return name.equals(i.name) && address.equals(i.address) && prefixLength == i.prefixLength;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * name.hashCode() + address.hashCode()) + prefixLength;
+    }
+
+    @Override
+    public String toString() {
+        return name + "/" + address.getHostAddress() + "/" + prefixLength;
+    }
+}
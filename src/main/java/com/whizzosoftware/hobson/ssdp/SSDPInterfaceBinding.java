@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.socket.DatagramChannel;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The sockets bound to a single network interface: one or more unicast sockets (more than one when SO_REUSEPORT
+ * fan-out is in use) and the sender for the primary one. Membership of the shared multicast socket in the SSDP group
+ * on this interface is tracked here as well.
+ *
+ * @author Dan Noguerol
+ */
+class SSDPInterfaceBinding {
+    private final SSDPInterface iface;
+    private final InetSocketAddress localAddress;
+    private final List<DatagramChannel> channels = new CopyOnWriteArrayList<>();
+    private volatile SSDPSender sender;
+    private volatile boolean closed;
+    private boolean joined;
+
+    SSDPInterfaceBinding(SSDPInterface iface, InetSocketAddress localAddress) {
+        this.iface = iface;
+        this.localAddress = localAddress;
+    }
+
+    SSDPInterface getInterface() {
+        return iface;
+    }
+
+    InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    SSDPSender getSender() {
+        return sender;
+    }
+
+    boolean isJoined() {
+        return joined;
+    }
+
+    void setJoined(boolean joined) {
+        this.joined = joined;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Adds a newly bound unicast channel. If the binding has already been closed, the channel is closed instead.
+     *
+     * @param channel the channel
+     * @param primary whether this is the channel that outbound packets are sent from
+     *
+     * @return true if the channel was added
+     */
+    synchronized boolean addChannel(DatagramChannel channel, boolean primary) {
+        if (closed) {
+            channel.close();
+            return false;
+        }
+        channels.add(channel);
+        if (primary) {
+            sender = new SSDPSender(channel);
+        }
+        return true;
+    }
+
+    boolean hasChannel(Channel channel) {
+        return channels.contains(channel);
+    }
+
+    /**
+     * Closes every channel in the binding.
+     *
+     * @return the futures for the channel closes
+     */
+    synchronized List<ChannelFuture> close() {
+        closed = true;
+        if (sender != null) {
+            sender.close();
+        }
+        List<ChannelFuture> futures = new ArrayList<>(channels.size());
+        for (DatagramChannel c : channels) {
+            futures.add(c.close());
+        }
+        channels.clear();
+        return futures;
+    }
+}
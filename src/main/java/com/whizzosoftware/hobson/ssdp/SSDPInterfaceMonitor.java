@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tracks the host's network interfaces. It keeps two things up to date each time it is refreshed:
+ *
+ * 1. The set of every address assigned to the host. This is used to drop packets that the host sent itself. The set
+ *    is rebuilt off to the side and swapped in with a single volatile write so that the per-packet check is a hash
+ *    lookup with no locking, syscalls or name resolution.
+ * 2. The eligible SSDP interfaces (up, multicast-capable, non-loopback with an IPv4 address). When these change,
+ *    the listener is told which interfaces were added and removed so their sockets can be rebound.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPInterfaceMonitor {
+    private static final Logger logger = LoggerFactory.getLogger(SSDPInterfaceMonitor.class);
+
+    private final Listener listener;
+    private volatile Set<InetAddress> localAddresses = Collections.emptySet();
+    private Set<SSDPInterface> interfaces = Collections.emptySet();
+
+    public SSDPInterfaceMonitor(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Indicates whether an address is assigned to this host.
+     *
+     * @param address the address to check
+     *
+     * @return a boolean
+     */
+    public boolean isLocalAddress(InetAddress address) {
+        return localAddresses.contains(address);
+    }
+
+    /**
+     * Indicates whether a host is an IPv4 address literal on the subnet of one of the eligible interfaces. Host
+     * names are never resolved.
+     *
+     * @param host the host (e.g. from a URL)
+     *
+     * @return a boolean
+     */
+    public boolean isOnLocalSubnet(String host) {
+        InetAddress a = parseIPv4Literal(host);
+        if (a != null) {
+            for (SSDPInterface i : getInterfaces()) {
+                if (i.isOnSubnet(a)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public Set<InetAddress> getLocalAddresses() {
+        return localAddresses;
+    }
+
+    synchronized public Collection<SSDPInterface> getInterfaces() {
+        return interfaces;
+    }
+
+    /**
+     * Enumerates the host's network interfaces and notifies the listener of any changes.
+     *
+     * @return true if the eligible interfaces changed
+     */
+    public boolean refresh() {
+        Set<InetAddress> addresses = new HashSet<>();
+        Set<SSDPInterface> current = new LinkedHashSet<>();
+        try {
+            Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces();
+            while (e != null && e.hasMoreElements()) {
+                NetworkInterface ni = e.nextElement();
+                boolean eligible = isEligible(ni);
+                for (InterfaceAddress ia : ni.getInterfaceAddresses()) {
+                    addresses.add(ia.getAddress());
+                    if (eligible && ia.getAddress() instanceof Inet4Address) {
+                        current.add(new SSDPInterface(ni.getName(), ni, ia.getAddress(), ia.getNetworkPrefixLength()));
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            logger.error("Unable to enumerate network interfaces", e);
+            return false;
+        }
+        return update(current, addresses);
+    }
+
+    /**
+     * Replaces the set of local addresses and eligible interfaces and notifies the listener of any changes.
+     *
+     * @param current the eligible interfaces
+     * @param addresses every address assigned to the host
+     *
+     * @return true if the eligible interfaces changed
+     */
+    synchronized boolean update(Set<SSDPInterface> current, Set<InetAddress> addresses) {
+        localAddresses = Collections.unmodifiableSet(addresses);
+
+        List<SSDPInterface> added = new ArrayList<>();
+        List<SSDPInterface> removed = new ArrayList<>();
+        for (SSDPInterface i : interfaces) {
+            if (!current.contains(i)) {
+                removed.add(i);
+            }
+        }
+        for (SSDPInterface i : current) {
+            if (!interfaces.contains(i)) {
+                added.add(i);
+            }
+        }
+        interfaces = Collections.unmodifiableSet(current);
+
+        if (listener != null) {
+            for (SSDPInterface i : removed) {
+                logger.debug("Network interface removed: {}", i);
+                listener.interfaceRemoved(i);
+            }
+            for (SSDPInterface i : added) {
+                logger.debug("Network interface added: {}", i);
+                listener.interfaceAdded(i);
+            }
+        }
+
+        return !added.isEmpty() || !removed.isEmpty();
+    }
+
+    /**
+     * Parses a dotted-quad IPv4 address without performing a lookup.
+     *
+     * @param s the string to parse
+     *
+     * @return an InetAddress (or null if the string isn't an IPv4 address literal)
+     */
+    static InetAddress parseIPv4Literal(String s) {
+        String[] parts = s.split("\\.", -1);
+        if (parts.length != 4) {
+            return null;
+        }
+        byte[] b = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            String p = parts[i];
+            if (p.isEmpty() || p.length() > 3) {
+                return null;
+            }
+            int v = 0;
+            for (int j = 0; j < p.length(); j++) {
+                char c = p.charAt(j);
+                if (c < '0' || c > '9') {
+                    return null;
+                }
+                v = v * 10 + (c - '0');
+            }
+            if (v > 255) {
+                return null;
+            }
+            b[i] = (byte)v;
+        }
+        try {
+            return InetAddress.getByAddress(b);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static boolean isEligible(NetworkInterface ni) {
+        try {
+            return ni.isUp() && !ni.isLoopback() && !ni.isPointToPoint() && ni.supportsMulticast();
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A listener for interface changes.
+     */
+    public interface Listener {
+        void interfaceAdded(SSDPInterface i);
+        void interfaceRemoved(SSDPInterface i);
+    }
+}
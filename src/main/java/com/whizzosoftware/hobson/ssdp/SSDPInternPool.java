@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * A bounded pool of canonical String instances for header values that repeat across many packets (SERVER, NT,
+ * LOCATION, etc.) so that retained advertisements share one copy of each value rather than holding their own.
+ *
+ * The pool is a fixed-size, direct-mapped table of weak references: a value that hashes to an occupied slot
+ * simply replaces it, and values that are no longer referenced anywhere else can be garbage collected. Values can
+ * be interned straight from a buffer, in which case a String is only created when the value is not already in
+ * the pool. Races between threads can at worst cause a value to be stored twice; they never return a wrong value.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPInternPool implements SSDPMetrics.Source {
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int MAX_LENGTH = 256;
+
+    public static final SSDPInternPool DEFAULT = new SSDPInternPool(DEFAULT_CAPACITY);
+
+    private final WeakReference[] slots;
+    private final int mask;
+    private final SSDPCounter hitCount = new SSDPCounter();
+    private final SSDPCounter missCount = new SSDPCounter();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the number of slots (rounded up to a power of two)
+     */
+    public SSDPInternPool(int capacity) {
+        int size = Math.max(16, Integer.highestOneBit(Math.max(1, capacity - 1) << 1));
+        this.slots = new WeakReference[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Returns the canonical instance of a String.
+     *
+     * @param s the String (may be null)
+     *
+     * @return the pooled instance (or s itself if it is too long to be pooled)
+     */
+    public String intern(String s) {
+        if (s == null || s.length() > MAX_LENGTH) {
+            return s;
+        }
+        int ix = spread(s.hashCode()) & mask;
+        String existing = get(ix);
+        if (s.equals(existing)) {
+            hitCount.increment();
+            return existing;
+        }
+        missCount.increment();
+        slots[ix] = new WeakReference<>(s);
+        return s;
+    }
+
+    /**
+     * Returns the canonical instance of a String held in a region of a buffer. No objects are created if the value
+     * is already in the pool.
+     *
+     * @param buf the buffer
+     * @param index the index of the first byte
+     * @param length the number of bytes
+     * @param upperCase true to upper case the value
+     *
+     * @return a String
+     */
+    public String intern(ByteBuf buf, int index, int length, boolean upperCase) {
+        if (length > MAX_LENGTH) {
+            return decode(buf, index, length, upperCase);
+        }
+
+        // hash the bytes the same way String.hashCode() hashes chars; anything that isn't ASCII is decoded and
+        // interned the slow way
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = buf.getByte(index + i);
+            if (b < 0) {
+                return intern(decode(buf, index, length, upperCase));
+            }
+            h = 31 * h + toChar(b, upperCase);
+        }
+
+        int ix = spread(h) & mask;
+        String existing = get(ix);
+        if (existing != null && matches(existing, buf, index, length, upperCase)) {
+            hitCount.increment();
+            return existing;
+        }
+        missCount.increment();
+        String s = decode(buf, index, length, upperCase);
+        slots[ix] = new WeakReference<>(s);
+        return s;
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public void registerGauges(SSDPMetrics metrics) {
+        metrics.registerGauge("internPoolHits", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getHitCount();
+            }
+        });
+        metrics.registerGauge("internPoolMisses", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getMissCount();
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private String get(int ix) {
+        WeakReference<String> ref = slots[ix];
+        return (ref != null) ? ref.get() : null;
+    }
+
+    private static boolean matches(String s, ByteBuf buf, int index, int length, boolean upperCase) {
+        if (s.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) != toChar(buf.getByte(index + i), upperCase)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char toChar(byte b, boolean upperCase) {
+        return (char)((upperCase && b >= 'a' && b <= 'z') ? b - 32 : b);
+    }
+
+    private static String decode(ByteBuf buf, int index, int length, boolean upperCase) {
+        String s = buf.toString(index, length, CharsetUtil.UTF_8);
+        return upperCase ? s.toUpperCase() : s;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Instrumentation for the SSDP plugin. Counters and histograms are updated directly by the components that own
+ * the events they describe and gauges allow components that keep their own statistics to be included in
+ * snapshots.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPMetrics {
+    public static final String PACKETS_RECEIVED_MULTICAST = "packetsReceivedMulticast";
+    public static final String PACKETS_RECEIVED_UNICAST = "packetsReceivedUnicast";
+    public static final String PARSE_FAILURES = "parseFailures";
+    public static final String PACKETS_IGNORED = "packetsIgnored";
+    public static final String DUPLICATES_SUPPRESSED = "duplicatesSuppressed";
+    public static final String SEARCH_REQUESTS_SERVED = "searchRequestsServed";
+    public static final String RESPONSES_SENT = "responsesSent";
+    public static final String RESPONSES_FAILED = "responsesFailed";
+    public static final String ADVERTISEMENTS_PUBLISHED = "advertisementsPublished";
+    public static final String PARSE_TIME_MICROS = "parseTimeMicros";
+    public static final String RESPONSE_DELAY_MILLIS = "responseDelayMillis";
+
+    private final SSDPCounter packetsReceivedMulticast = new SSDPCounter();
+    private final SSDPCounter packetsReceivedUnicast = new SSDPCounter();
+    private final SSDPCounter parseFailures = new SSDPCounter();
+    private final SSDPCounter packetsIgnored = new SSDPCounter();
+    private final SSDPCounter duplicatesSuppressed = new SSDPCounter();
+    private final SSDPCounter searchRequestsServed = new SSDPCounter();
+    private final SSDPCounter responsesSent = new SSDPCounter();
+    private final SSDPCounter responsesFailed = new SSDPCounter();
+    private final SSDPCounter advertisementsPublished = new SSDPCounter();
+    private final SSDPHistogram parseTime = new SSDPHistogram();
+    private final SSDPHistogram responseDelay = new SSDPHistogram();
+    private final Map<String,Gauge> gauges = new LinkedHashMap<>();
+
+    public void onPacketReceived(boolean multicast) {
+        if (multicast) {
+            packetsReceivedMulticast.increment();
+        } else {
+            packetsReceivedUnicast.increment();
+        }
+    }
+
+    public void onParseFailure() {
+        parseFailures.increment();
+    }
+
+    public void onPacketParsed(long nanos) {
+        parseTime.record(nanos / 1000);
+    }
+
+    public void onPacketIgnored() {
+        packetsIgnored.increment();
+    }
+
+    public void onDuplicateSuppressed() {
+        duplicatesSuppressed.increment();
+    }
+
+    public void onSearchRequestServed() {
+        searchRequestsServed.increment();
+    }
+
+    /**
+     * Records the outcome of sending a search response.
+     *
+     * @param success whether the response was sent
+     * @param delayMillis the time between receipt of the request and the send completing
+     */
+    public void onResponseSent(boolean success, long delayMillis) {
+        if (success) {
+            responsesSent.increment();
+            responseDelay.record(delayMillis);
+        } else {
+            responsesFailed.increment();
+        }
+    }
+
+    public void onAdvertisementPublished() {
+        advertisementsPublished.increment();
+    }
+
+    public void onAdvertisementsPublished(int count) {
+        advertisementsPublished.add(count);
+    }
+
+    /**
+     * Registers a gauge that will be included in snapshots.
+     *
+     * @param name the gauge name
+     * @param gauge the gauge
+     */
+    synchronized public void registerGauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Registers the gauges of a component that keeps its own statistics.
+     *
+     * @param source the component
+     */
+    public void register(Source source) {
+        source.registerGauges(this);
+    }
+
+    synchronized public void unregisterGauge(String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * Returns a point-in-time view of all counters, gauges and histograms.
+     *
+     * @return a Snapshot
+     */
+    public Snapshot getSnapshot() {
+        Map<String,Long> values = new LinkedHashMap<>();
+        values.put(PACKETS_RECEIVED_MULTICAST, packetsReceivedMulticast.get());
+        values.put(PACKETS_RECEIVED_UNICAST, packetsReceivedUnicast.get());
+        values.put(PARSE_FAILURES, parseFailures.get());
+        values.put(PACKETS_IGNORED, packetsIgnored.get());
+        values.put(DUPLICATES_SUPPRESSED, duplicatesSuppressed.get());
+        values.put(SEARCH_REQUESTS_SERVED, searchRequestsServed.get());
+        values.put(RESPONSES_SENT, responsesSent.get());
+        values.put(RESPONSES_FAILED, responsesFailed.get());
+        values.put(ADVERTISEMENTS_PUBLISHED, advertisementsPublished.get());
+        synchronized (this) {
+            for (Map.Entry<String,Gauge> e : gauges.entrySet()) {
+                values.put(e.getKey(), e.getValue().getValue());
+            }
+        }
+
+        Map<String,SSDPHistogram.Snapshot> histograms = new LinkedHashMap<>();
+        histograms.put(PARSE_TIME_MICROS, parseTime.getSnapshot());
+        histograms.put(RESPONSE_DELAY_MILLIS, responseDelay.getSnapshot());
+
+        return new Snapshot(System.currentTimeMillis(), values, histograms);
+    }
+
+    /**
+     * A component that keeps its own statistics and exposes them as gauges.
+     */
+    public interface Source {
+        /**
+         * Registers the component's gauges.
+         *
+         * @param metrics the metrics to register with
+         */
+        void registerGauges(SSDPMetrics metrics);
+    }
+
+    /**
+     * A value owned by another component that is read when a snapshot is taken.
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    /**
+     * A point-in-time view of the plugin's metrics.
+     */
+    public static class Snapshot {
+        private final long timestamp;
+        private final Map<String,Long> values;
+        private final Map<String,SSDPHistogram.Snapshot> histograms;
+
+        Snapshot(long timestamp, Map<String,Long> values, Map<String,SSDPHistogram.Snapshot> histograms) {
+            this.timestamp = timestamp;
+            this.values = Collections.unmodifiableMap(values);
+            this.histograms = Collections.unmodifiableMap(histograms);
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Returns a counter or gauge value.
+         *
+         * @param name the counter or gauge name
+         *
+         * @return the value (or 0 if there is no such counter or gauge)
+         */
+        public long getValue(String name) {
+            Long l = values.get(name);
+            return (l != null) ? l : 0;
+        }
+
+        public Map<String,Long> getValues() {
+            return values;
+        }
+
+        public SSDPHistogram.Snapshot getHistogram(String name) {
+            return histograms.get(name);
+        }
+
+        public Map<String,SSDPHistogram.Snapshot> getHistograms() {
+            return histograms;
+        }
+
+        @Override
+        public String toString() {
+            return "values=" + values + ", histograms=" + histograms;
+        }
+    }
+}
@@ -7,48 +7,127 @@
  *******************************************************************************/
 package com.whizzosoftware.hobson.ssdp;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Scanner;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufProcessor;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+import java.util.Arrays;
 
 /**
  * Encapsulates the details of an SSDP packet. This is used in a DeviceAdvertisement to allow listeners to get SSDP
  * information without having to parse the raw packet themselves.
  *
+ * Packets created from a ByteBuf only record the offsets of the start line and headers when they are parsed; header
+ * values are decoded into Strings the first time they are requested.
+ *
+ * Since many packets are retained for the lifetime of their advertisements, storage is kept compact: known headers
+ * live in an array indexed by SSDPHeader ordinal, any other headers in a small array of name/value pairs, and values
+ * that repeat across packets (SERVER, NT, LOCATION, etc.) are shared through the SSDPInternPool.
+ *
  * @author Dan Noguerol
  */
 public class SSDPPacket {
     public static final String PROTOCOL_ID = "ssdp";
+    public static final String NTS_ALIVE = "ssdp:alive";
+    public static final String NTS_BYEBYE = "ssdp:byebye";
 
     private static final String DEFAULT_CACHE_CONTROL = "180";
     private static final String DEFAULT_SERVER = "Hobson/1.0";
+    private static final String MULTICAST_HOST = "239.255.255.250:1900";
 
-    private static final String CACHE_CONTROL = "CACHE-CONTROL";
-    private static final String EXT = "EXT";
-    private static final String HOST = "HOST";
-    private static final String LOCATION = "LOCATION";
-    private static final String MAN = "MAN";
-    private static final String MX = "MX";
-    private static final String NT = "NT";
-    private static final String NTS = "NTS";
-    private static final String SERVER = "SERVER";
-    private static final String ST = "ST";
-    private static final String USN = "USN";
+    private static final ByteBufProcessor FIND_COLON = new ByteBufProcessor() {
+        @Override
+        public boolean process(byte value) throws Exception {
+            return value != ':';
+        }
+    };
+
+    private static final SSDPHeader[] HEADERS = SSDPHeader.values();
+
+    // the headers written by encode() and toString(), in order
+    private static final SSDPHeader[] ENCODED_HEADERS = {
+        SSDPHeader.CACHE_CONTROL,
+        SSDPHeader.EXT,
+        SSDPHeader.HOST,
+        SSDPHeader.MAN,
+        SSDPHeader.MX,
+        SSDPHeader.LOCATION,
+        SSDPHeader.NT,
+        SSDPHeader.NTS,
+        SSDPHeader.SERVER,
+        SSDPHeader.ST,
+        SSDPHeader.USN
+    };
+    private static final byte[] SEPARATOR = {':', ' '};
+    private static final byte[] CRLF = {'\r', '\n'};
 
     private String startLine;
-    private Map<String,String> headerMap = new HashMap<>();
+    private final String[] headers = new String[HEADERS.length];
+    private String[] otherHeaders;
+    private int otherHeaderCount;
+
+    // lazy decoding state for packets created from a ByteBuf
+    private ByteBuf content;
+    private boolean ownsContent;
+    private int startLineIndex;
+    private int startLineLength;
+    private int[] knownOffsets;
+    private int[] otherOffsets;
+    private int otherCount;
+
+    private volatile SSDPDeviceDescription description;
+    private volatile boolean provisional;
 
     static public SSDPPacket createWithData(String data) {
-        return new SSDPPacket(data);
+        return new SSDPPacket(Unpooled.wrappedBuffer(data.getBytes(CharsetUtil.UTF_8)));
+    }
+
+    /**
+     * Creates a packet from a buffer without copying it. Header values are decoded from the buffer on demand so
+     * the buffer must remain readable until either the packet is no longer used or detach() has been called.
+     *
+     * @param buf the buffer containing the packet data
+     *
+     * @return a SSDPPacket instance
+     */
+    static public SSDPPacket createWithData(ByteBuf buf) {
+        return new SSDPPacket(buf);
+    }
+
+    /**
+     * Creates a packet that takes ownership of a reference to a buffer. The buffer is released when the packet is
+     * detached or released.
+     *
+     * @param buf the buffer containing the packet data
+     *
+     * @return a SSDPPacket instance
+     */
+    static SSDPPacket createWithOwnedData(ByteBuf buf) {
+        SSDPPacket p = new SSDPPacket(buf);
+        p.ownsContent = true;
+        return p;
     }
 
     static public SSDPPacket createSearchRequest() {
+        return createSearchRequest("ssdp:all", 5);
+    }
+
+    /**
+     * Creates a multicast M-SEARCH packet.
+     *
+     * @param searchTarget the ST value
+     * @param mx the MX value in seconds
+     *
+     * @return a SSDPPacket instance
+     */
+    static public SSDPPacket createSearchRequest(String searchTarget, int mx) {
         SSDPPacket p = new SSDPPacket();
         p.setStartLine("M-SEARCH * HTTP/1.1");
-        p.setHost("239.255.255.250:1900");
+        p.setHost(MULTICAST_HOST);
         p.setMAN("\"ssdp:discover\"");
-        p.setMX("5");
-        p.setST("ssdp:all");
+        p.setMX(Integer.toString(mx));
+        p.setST(searchTarget);
         return p;
     }
 
@@ -64,23 +143,285 @@ public class SSDPPacket {
         return p;
     }
 
+    /**
+     * Creates a NOTIFY ssdp:alive packet.
+     *
+     * @param location the URL of the device description
+     * @param notificationType the NT value
+     * @param uniqueServiceName the USN value
+     * @param maxAge the number of seconds the advertisement is valid for
+     *
+     * @return a SSDPPacket instance
+     */
+    static public SSDPPacket createAliveNotification(String location, String notificationType, String uniqueServiceName, int maxAge) {
+        SSDPPacket p = new SSDPPacket();
+        p.setStartLine("NOTIFY * HTTP/1.1");
+        p.setHost(MULTICAST_HOST);
+        p.setCacheControl("max-age=" + maxAge);
+        p.setLocation(location);
+        p.setNT(notificationType);
+        p.setNTS(NTS_ALIVE);
+        p.setServer(DEFAULT_SERVER);
+        p.setUSN(uniqueServiceName);
+        return p;
+    }
+
+    /**
+     * Creates a NOTIFY ssdp:byebye packet.
+     *
+     * @param notificationType the NT value
+     * @param uniqueServiceName the USN value
+     *
+     * @return a SSDPPacket instance
+     */
+    static public SSDPPacket createByebyeNotification(String notificationType, String uniqueServiceName) {
+        SSDPPacket p = new SSDPPacket();
+        p.setStartLine("NOTIFY * HTTP/1.1");
+        p.setHost(MULTICAST_HOST);
+        p.setNT(notificationType);
+        p.setNTS(NTS_BYEBYE);
+        p.setUSN(uniqueServiceName);
+        return p;
+    }
+
     private SSDPPacket() {}
 
-    private SSDPPacket(String data) {
-        Scanner s = new Scanner(data);
+    private SSDPPacket(ByteBuf buf) {
+        int ix = buf.readerIndex();
+        int end = buf.writerIndex();
+        if (ix >= end) {
+            throw new IllegalArgumentException("Empty SSDP packet");
+        }
+
+        this.content = buf;
+        this.knownOffsets = new int[HEADERS.length * 2];
+        Arrays.fill(knownOffsets, -1);
+
+        boolean first = true;
+        while (ix < end) {
+            int lf = buf.forEachByte(ix, end - ix, ByteBufProcessor.FIND_LF);
+            int lineEnd = (lf > -1) ? lf : end;
+            int next = lineEnd + 1;
+            if (lineEnd > ix && buf.getByte(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+            if (first) {
+                // store the HTTP method
+                startLineIndex = ix;
+                startLineLength = lineEnd - ix;
+                first = false;
+            } else {
+                // store the remaining headers
+                parseHeaderLine(buf, ix, lineEnd);
+            }
+            ix = next;
+        }
+    }
+
+    private void parseHeaderLine(ByteBuf buf, int start, int end) {
+        if (end <= start) {
+            return;
+        }
+        int colon = buf.forEachByte(start, end - start, FIND_COLON);
+        if (colon > -1) {
+            int ns = trimStart(buf, start, colon);
+            int ne = trimEnd(buf, ns, colon);
+            int vs = trimStart(buf, colon + 1, end);
+            int ve = trimEnd(buf, vs, end);
+
+            SSDPHeader h = SSDPHeader.lookup(buf, ns, ne - ns);
+            if (h != null) {
+                knownOffsets[h.ordinal() * 2] = vs;
+                knownOffsets[h.ordinal() * 2 + 1] = ve - vs;
+            } else {
+                if (otherOffsets == null) {
+                    otherOffsets = new int[16];
+                } else if (otherOffsets.length < (otherCount + 1) * 4) {
+                    otherOffsets = Arrays.copyOf(otherOffsets, otherOffsets.length * 2);
+                }
+                int o = otherCount * 4;
+                otherOffsets[o] = ns;
+                otherOffsets[o + 1] = ne - ns;
+                otherOffsets[o + 2] = vs;
+                otherOffsets[o + 3] = ve - vs;
+                otherCount++;
+            }
+        }
+    }
+
+    private static int trimStart(ByteBuf buf, int start, int end) {
+        while (start < end && buf.getByte(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
 
-        // store the HTTP method
-        this.startLine = s.nextLine();
+    private static int trimEnd(ByteBuf buf, int start, int end) {
+        while (end > start && buf.getByte(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
 
-        // store the remaining headers
-        while (s.hasNextLine()) {
-            String line = s.nextLine();
-            int ix = line.indexOf(':');
-            if (ix > -1) {
-                String header = line.substring(0, ix).trim();
-                String value = line.substring(ix + 1).trim();
-                headerMap.put(header.toUpperCase(), value);
+    /**
+     * Decodes any header values that have not yet been requested and releases the reference to the underlying
+     * buffer. After this is called, the packet no longer depends on the buffer it was created from.
+     */
+    public void detach() {
+        if (content != null) {
+            getStartLine();
+            for (SSDPHeader h : HEADERS) {
+                get(h);
             }
+            decodeOtherHeaders();
+            release();
+        }
+    }
+
+    /**
+     * Drops the reference to the underlying buffer without decoding any further header values, releasing the
+     * buffer if the packet owns it (i.e. it was created by SSDPDecoder). Values that have already been requested
+     * remain available.
+     */
+    public void release() {
+        ByteBuf c = content;
+        if (c != null) {
+            content = null;
+            knownOffsets = null;
+            otherOffsets = null;
+            otherCount = 0;
+            if (ownsContent) {
+                ownsContent = false;
+                c.release();
+            }
+        }
+    }
+
+    /**
+     * Returns the packet as it was received (or as it would be encoded if it was not created from a buffer).
+     *
+     * @return a String
+     */
+    String getRawData() {
+        return (content != null) ? content.toString(CharsetUtil.UTF_8) : toString();
+    }
+
+    /**
+     * Returns the number of bytes encode() will write.
+     *
+     * @return the encoded length in bytes
+     */
+    public int getEncodedLength() {
+        int len = utf8Length(getStartLine()) + CRLF.length;
+        for (SSDPHeader h : ENCODED_HEADERS) {
+            String v = get(h);
+            if (v != null) {
+                len += h.getNameBytes().length + SEPARATOR.length + utf8Length(v) + CRLF.length;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Writes the packet to a buffer. The bytes written are the UTF-8 encoding of toString(); header names are
+     * copied from precomputed ASCII bytes and values are written a character at a time, so no intermediate
+     * Strings are created.
+     *
+     * @param out the buffer to write to
+     */
+    public void encode(ByteBuf out) {
+        writeString(out, getStartLine());
+        out.writeBytes(CRLF);
+        for (SSDPHeader h : ENCODED_HEADERS) {
+            String v = get(h);
+            if (v != null) {
+                out.writeBytes(h.getNameBytes());
+                out.writeBytes(SEPARATOR);
+                writeString(out, v);
+                out.writeBytes(CRLF);
+            }
+        }
+    }
+
+    private static int utf8Length(String s) {
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                len++;
+            } else if (c < 0x800) {
+                len += 2;
+            } else if (Character.isSurrogate(c)) {
+                // a valid pair takes 4 bytes; an unpaired surrogate is replaced with '?'
+                if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    len += 4;
+                    i++;
+                } else {
+                    len++;
+                }
+            } else {
+                len += 3;
+            }
+        }
+        return len;
+    }
+
+    private static void writeString(ByteBuf out, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.writeByte(c);
+            } else {
+                // anything beyond ASCII is rare enough to take the slow path
+                out.writeBytes(s.substring(i).getBytes(CharsetUtil.UTF_8));
+                return;
+            }
+        }
+    }
+
+    private String getStartLine() {
+        if (startLine == null && content != null) {
+            startLine = SSDPInternPool.DEFAULT.intern(content, startLineIndex, startLineLength, false);
+        }
+        return startLine;
+    }
+
+    private String get(SSDPHeader h) {
+        String value = headers[h.ordinal()];
+        if (value == null && content != null) {
+            int o = h.ordinal() * 2;
+            if (knownOffsets[o] > -1) {
+                if (h.isInterned()) {
+                    value = SSDPInternPool.DEFAULT.intern(content, knownOffsets[o], knownOffsets[o + 1], false);
+                } else {
+                    value = content.toString(knownOffsets[o], knownOffsets[o + 1], CharsetUtil.UTF_8);
+                }
+                headers[h.ordinal()] = value;
+                knownOffsets[o] = -1;
+            }
+        }
+        return value;
+    }
+
+    private void put(SSDPHeader h, String value) {
+        headers[h.ordinal()] = value;
+        if (knownOffsets != null) {
+            knownOffsets[h.ordinal() * 2] = -1;
+        }
+    }
+
+    private void decodeOtherHeaders() {
+        if (content != null && otherCount > 0) {
+            // names are stored upper case and pooled since the same vendor headers appear in most packets
+            otherHeaders = new String[otherCount * 2];
+            for (int i = 0; i < otherCount; i++) {
+                int o = i * 4;
+                otherHeaders[i * 2] = SSDPInternPool.DEFAULT.intern(content, otherOffsets[o], otherOffsets[o + 1], true);
+                otherHeaders[i * 2 + 1] = content.toString(otherOffsets[o + 2], otherOffsets[o + 3], CharsetUtil.UTF_8);
+            }
+            otherHeaderCount = otherCount;
+            otherCount = 0;
+            otherOffsets = null;
         }
     }
 
@@ -89,95 +430,204 @@ public class SSDPPacket {
     }
 
     public String getMethod() {
-        return startLine.substring(0, startLine.indexOf(' '));
+        String line = getStartLine();
+        return line.substring(0, line.indexOf(' '));
     }
 
     public String getCacheControl() {
-        return headerMap.get(CACHE_CONTROL);
+        return get(SSDPHeader.CACHE_CONTROL);
     }
 
     public void setCacheControl(String cacheControl) {
-        headerMap.put(CACHE_CONTROL, cacheControl);
+        put(SSDPHeader.CACHE_CONTROL, cacheControl);
+    }
+
+    /**
+     * Returns the max-age value of the CACHE-CONTROL header. A header containing only a number is treated as a
+     * max-age value.
+     *
+     * @return the max-age in seconds or -1 if there is no (valid) max-age
+     */
+    public int getCacheControlMaxAge() {
+        return parseMaxAge(getCacheControl());
+    }
+
+    /**
+     * Parses the max-age value of a CACHE-CONTROL header value.
+     *
+     * @param cc the header value
+     *
+     * @return the max-age in seconds or -1 if there is no (valid) max-age
+     */
+    static int parseMaxAge(String cc) {
+        if (cc != null) {
+            int ix = cc.toLowerCase().indexOf("max-age");
+            if (ix > -1) {
+                ix = cc.indexOf('=', ix);
+                if (ix == -1) {
+                    return -1;
+                }
+                ix++;
+            } else {
+                ix = 0;
+            }
+            while (ix < cc.length() && cc.charAt(ix) == ' ') {
+                ix++;
+            }
+            int value = 0;
+            int start = ix;
+            while (ix < cc.length() && Character.isDigit(cc.charAt(ix)) && value < Integer.MAX_VALUE / 10) {
+                value = value * 10 + (cc.charAt(ix) - '0');
+                ix++;
+            }
+            if (ix > start) {
+                return value;
+            }
+        }
+        return -1;
     }
 
     public String getExt() {
-        return headerMap.get(EXT);
+        return get(SSDPHeader.EXT);
     }
 
     public void setExt(String ext) {
-        headerMap.put(EXT, ext);
+        put(SSDPHeader.EXT, ext);
     }
 
     public String getHost() {
-        return headerMap.get(HOST);
+        return get(SSDPHeader.HOST);
     }
 
     public void setHost(String host) {
-        headerMap.put(HOST, host);
+        put(SSDPHeader.HOST, host);
     }
 
     public String getLocation() {
-        return headerMap.get(LOCATION);
+        return get(SSDPHeader.LOCATION);
     }
 
     public void setLocation(String location) {
-        headerMap.put(LOCATION, location);
+        put(SSDPHeader.LOCATION, location);
     }
 
     public String getMAN() {
-        return headerMap.get(MAN);
+        return get(SSDPHeader.MAN);
     }
 
     public void setMAN(String man) {
-        headerMap.put(MAN, man);
+        put(SSDPHeader.MAN, man);
     }
 
     public void setMX(String mx) {
-        headerMap.put(MX, mx);
+        put(SSDPHeader.MX, mx);
     }
 
     public String getMX() {
-        return headerMap.get(MX);
+        return get(SSDPHeader.MX);
+    }
+
+    /**
+     * Returns the MX header as a number.
+     *
+     * @return the MX value in seconds or -1 if there is no (valid) MX header
+     */
+    public int getMXValue() {
+        String mx = getMX();
+        if (mx != null) {
+            try {
+                int i = Integer.parseInt(mx);
+                return (i >= 0) ? i : -1;
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return -1;
     }
 
     public String getNT() {
-        return headerMap.get(NT);
+        return get(SSDPHeader.NT);
+    }
+
+    public void setNT(String nt) {
+        put(SSDPHeader.NT, nt);
     }
 
     public String getNTS() {
-        return headerMap.get(NTS);
+        return get(SSDPHeader.NTS);
+    }
+
+    public void setNTS(String nts) {
+        put(SSDPHeader.NTS, nts);
     }
 
     public String getServer() {
-        return headerMap.get(SERVER);
+        return get(SSDPHeader.SERVER);
     }
 
     public void setServer(String server) {
-        headerMap.put(SERVER, server);
+        put(SSDPHeader.SERVER, server);
     }
 
     public String getST() {
-        return headerMap.get(ST);
+        return get(SSDPHeader.ST);
     }
 
     public void setST(String st) {
-        headerMap.put(ST, st);
+        put(SSDPHeader.ST, st);
     }
 
     public String getUSN() {
-        return headerMap.get(USN);
+        return get(SSDPHeader.USN);
     }
 
     public void setUSN(String usn) {
-        headerMap.put(USN, usn);
+        put(SSDPHeader.USN, usn);
+    }
+
+    /**
+     * Returns the description document that was fetched from the packet's LOCATION.
+     *
+     * @return a SSDPDeviceDescription (or null if it has not been fetched)
+     */
+    public SSDPDeviceDescription getDescription() {
+        return description;
+    }
+
+    public void setDescription(SSDPDeviceDescription description) {
+        this.description = description;
+    }
+
+    /**
+     * Indicates whether the packet was reconstructed from a discovery snapshot at startup rather than received
+     * from the device. The device is republished with a non-provisional packet once it announces itself again.
+     *
+     * @return a boolean
+     */
+    public boolean isProvisional() {
+        return provisional;
+    }
+
+    public void setProvisional(boolean provisional) {
+        this.provisional = provisional;
     }
 
     public String getHeader(String name) {
-        return headerMap.get(name);
+        SSDPHeader h = SSDPHeader.forName(name);
+        if (h != null) {
+            return get(h);
+        }
+        decodeOtherHeaders();
+        // a repeated header takes the value of its last occurrence
+        for (int i = otherHeaderCount - 1; i >= 0; i--) {
+            if (otherHeaders[i * 2].equals(name)) {
+                return otherHeaders[i * 2 + 1];
+            }
+        }
+        return null;
     }
 
     public String toString() {
-        StringBuilder sb = new StringBuilder(this.startLine).append("\r\n");
+        StringBuilder sb = new StringBuilder(getStartLine()).append("\r\n");
         if (getCacheControl() != null) {
             sb.append("CACHE-CONTROL: ").append(getCacheControl()).append("\r\n");
         }
@@ -196,6 +646,9 @@ public class SSDPPacket {
         if (getLocation() != null) {
             sb.append("LOCATION: ").append(getLocation()).append("\r\n");
         }
+        if (getNT() != null) {
+            sb.append("NT: ").append(getNT()).append("\r\n");
+        }
         if (getNTS() != null) {
             sb.append("NTS: ").append(getNTS()).append("\r\n");
         }
@@ -17,21 +17,31 @@ import com.whizzosoftware.hobson.api.plugin.PluginType;
 import com.whizzosoftware.hobson.api.property.PropertyContainer;
 import com.whizzosoftware.hobson.api.property.TypedProperty;
 import io.netty.bootstrap.Bootstrap;
-import io.netty.bootstrap.ChannelFactory;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.DatagramPacket;
-import io.netty.channel.socket.InternetProtocolFamily;
-import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.ScheduledFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class that looks for devices advertising via SSDP and publishes them to a DiscoManager.
@@ -43,13 +53,91 @@ public class SSDPPlugin extends AbstractHobsonPlugin implements SSDPContext {
 
     private static final String PROTOCOL = "ssdp";
     private static final int PORT = 1900;
+    private static final long INTERFACE_CHECK_SECONDS = 15;
+    private static final long REBIND_TIMEOUT_MILLIS = 5000;
+    private static final String PROP_ADVERTISEMENT_CACHE_SIZE = "advertisementCacheSize";
+    private static final String PROP_EVENT_LOOP_THREADS = "eventLoopThreads";
+    private static final String PROP_NATIVE_TRANSPORT = "nativeTransport";
+    private static final String PROP_NOTIFY_MAX_AGE = "notifyMaxAge";
+    private static final String PROP_FETCH_DESCRIPTIONS = "fetchDescriptions";
+    private static final String PROP_TRAFFIC_LOG_FILE = "trafficLogFile";
+    private static final String PROP_RETAIN_RAW_DATA = "retainRawData";
+    private static final String PROP_DIAGNOSTIC_BUFFER_SIZE = "diagnosticBufferSize";
+    private static final String PROP_WORKER_THREADS = "workerThreads";
+    private static final String PROP_WORKER_QUEUE_SIZE = "workerQueueSize";
+    private static final String PROP_WORKER_OVERLOAD_POLICY = "workerOverloadPolicy";
+    private static final String PROP_LOCAL_PORT = "localPort";
+    private static final String PROP_RECEIVE_BUFFER_SIZE = "receiveBufferSize";
+    private static final String PROP_SEND_BUFFER_SIZE = "sendBufferSize";
+    private static final String PROP_MAX_MESSAGES_PER_READ = "maxMessagesPerRead";
+    private static final String PROP_RECEIVE_ALLOCATOR_SIZE = "receiveAllocatorSize";
+    private static final String PROP_MULTICAST_TTL = "multicastTtl";
+    private static final String PROP_SNAPSHOT_FILE = "snapshotFile";
+    private static final String PROP_SNAPSHOT_INTERVAL = "snapshotIntervalSeconds";
+    private static final int DEFAULT_SNAPSHOT_INTERVAL_SECONDS = 60;
+    private static final long SNAPSHOT_REFRESH_MILLIS = 10 * 60 * 1000;
+    private static final long SEARCH_TARGET_INDEX_REFRESH_SECONDS = 30;
+    private static final String PROP_SEARCH_RATE_LIMIT = "searchRateLimit";
+    private static final String PROP_SEARCH_BURST_LIMIT = "searchBurstLimit";
+    private static final String PROP_ADVERTISEMENT_RATE_LIMIT = "advertisementRateLimit";
+    private static final String PROP_ADVERTISEMENT_BURST_LIMIT = "advertisementBurstLimit";
 
-    private NioEventLoopGroup eventLoopGroup;
-    private NetworkInterface nic;
-    private InetSocketAddress localAddress;
+    private SSDPTransport transport;
+    private SSDPTransport multicastTransport;
+    private int eventLoopThreads;
+    private volatile SSDPSocketConfig socketConfig = SSDPSocketConfig.DEFAULT;
+    private EventLoopGroup eventLoopGroup;
+    private EventLoopGroup multicastEventLoopGroup;
+    private InetAddress primaryAddress;
     private InetSocketAddress groupAddress;
-    private NioDatagramChannel multicastChannel;
-    private NioDatagramChannel localChannel;
+    private DatagramChannel multicastChannel;
+    private final List<SSDPInterfaceBinding> bindings = new CopyOnWriteArrayList<>();
+    private SSDPInterfaceBinding fallbackBinding;
+    private SSDPInterfaceMonitor interfaceMonitor;
+    private ScheduledFuture interfaceMonitorFuture;
+    private ChannelInitializer<Channel> channelInitializer;
+    private SSDPAdvertisementCache advertisementCache;
+    private SSDPRateLimiter rateLimiter;
+    private final SSDPResponseCache responseCache = new SSDPResponseCache();
+    private final SSDPMetrics metrics = new SSDPMetrics();
+    private final SSDPSearchTargetIndex searchTargetIndex = new SSDPSearchTargetIndex();
+    private ScheduledFuture searchTargetIndexFuture;
+    private SSDPResponseScheduler responseScheduler;
+    private ScheduledFuture responseSchedulerFuture;
+    private SSDPAdvertiser advertiser;
+    private ScheduledFuture advertiserFuture;
+    private SSDPDiscoveryScheduler discoveryScheduler;
+    private SSDPDescriptionFetcher descriptionFetcher;
+    private boolean fetchDescriptions;
+    private boolean retainRawData;
+    private SSDPTrafficRecorder trafficRecorder;
+    private SSDPTrafficRing trafficRing;
+    private SSDPWorkerStage workerStage;
+    private final SSDPDeviceRegistry deviceRegistry = new SSDPDeviceRegistry();
+    private ScheduledFuture deviceRegistryFuture;
+    private final SSDPDeviceRegistry.Listener deviceRegistryListener = new SSDPDeviceRegistry.Listener() {
+        @Override
+        public void deviceAdded(SSDPDeviceRegistry.Device device) {
+            logger.trace("SSDP device added: {}", device);
+        }
+
+        @Override
+        public void deviceRemoved(SSDPDeviceRegistry.Device device, SSDPDeviceRegistry.RemovalReason reason) {
+            logger.debug("SSDP device removed ({}): {}", reason, device);
+            // make sure a device that comes back is published again with a fresh description
+            advertisementCache.remove(device.getUSN());
+            if (descriptionFetcher != null && device.getLocation() != null) {
+                descriptionFetcher.invalidate(device.getLocation());
+            }
+        }
+    };
+    private ScheduledFuture discoverySchedulerFuture;
+    private final SSDPSubscriptionIndex subscriptionIndex = new SSDPSubscriptionIndex();
+    private File snapshotFile;
+    private ScheduledFuture snapshotFuture;
+    private final Object snapshotLock = new Object();
+    private long snapshotModificationCount = -1;
+    private long snapshotWrittenAt;
 
     public SSDPPlugin(String pluginId, String version, String description) {
         super(pluginId, version, description);
@@ -57,7 +145,32 @@ public class SSDPPlugin extends AbstractHobsonPlugin implements SSDPContext {
 
     @Override
     protected TypedProperty[] getConfigurationPropertyTypes() {
-        return null;
+        return new TypedProperty[] {
+            new TypedProperty.Builder(PROP_LOCAL_PORT, "Local port", "The port the unicast sockets are bound to (default " + SSDPSocketConfig.DEFAULT_LOCAL_PORT + ")", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_RECEIVE_BUFFER_SIZE, "Receive buffer size", "The socket receive buffer (SO_RCVBUF) size in bytes; raise this if the kernel is dropping UDP packets", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_SEND_BUFFER_SIZE, "Send buffer size", "The socket send buffer (SO_SNDBUF) size in bytes", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_EVENT_LOOP_THREADS, "Event loop threads", "The number of I/O threads (takes effect when the plugin restarts)", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_MAX_MESSAGES_PER_READ, "Max messages per read", "The maximum number of datagrams read from a socket at a time (default " + SSDPSocketConfig.DEFAULT_MAX_MESSAGES_PER_READ + ")", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_RECEIVE_ALLOCATOR_SIZE, "Receive allocator size", "The buffer size in bytes each datagram is read into (default " + SSDPSocketConfig.DEFAULT_RECEIVE_ALLOCATOR_SIZE + ")", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_MULTICAST_TTL, "Multicast TTL", "The IP TTL of outbound multicast packets (UPnP recommends 2)", TypedProperty.Type.NUMBER).build(),
+            // the remaining properties are read when the plugin starts so changes take effect when it restarts
+            new TypedProperty.Builder(PROP_NATIVE_TRANSPORT, "Native transport", "Whether to use the native epoll transport where it is available (default true)", TypedProperty.Type.BOOLEAN).build(),
+            new TypedProperty.Builder(PROP_WORKER_THREADS, "Worker threads", "The number of threads that process advertisements and search requests (default " + SSDPWorkerStage.DEFAULT_WORKER_COUNT + ")", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_WORKER_QUEUE_SIZE, "Worker queue size", "The maximum number of tasks queued for each worker thread (default " + SSDPWorkerStage.DEFAULT_QUEUE_SIZE + ")", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_WORKER_OVERLOAD_POLICY, "Worker overload policy", "What to drop when a worker's queue is full: dropOldest (the default) or dropNewest", TypedProperty.Type.STRING).build(),
+            new TypedProperty.Builder(PROP_ADVERTISEMENT_CACHE_SIZE, "Advertisement cache size", "The number of devices whose last advertisement is remembered to suppress unchanged re-announcements (default " + SSDPAdvertisementCache.DEFAULT_CAPACITY + ")", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_NOTIFY_MAX_AGE, "Notify max-age", "The max-age in seconds of this hub's own NOTIFY announcements (default " + SSDPAdvertiser.DEFAULT_MAX_AGE + ")", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_FETCH_DESCRIPTIONS, "Fetch descriptions", "Whether to fetch each device's description document and attach it to its advertisement (default false)", TypedProperty.Type.BOOLEAN).build(),
+            new TypedProperty.Builder(PROP_RETAIN_RAW_DATA, "Retain raw data", "Whether published advertisements carry the raw packet text (default true)", TypedProperty.Type.BOOLEAN).build(),
+            new TypedProperty.Builder(PROP_SEARCH_RATE_LIMIT, "Search rate limit", "The number of search requests per second accepted from each host (default " + (int)SSDPRateLimiter.DEFAULT_SEARCH_RATE + ")", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_SEARCH_BURST_LIMIT, "Search burst limit", "The number of search requests a host may send at once above its rate limit (default " + SSDPRateLimiter.DEFAULT_SEARCH_BURST + ")", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_ADVERTISEMENT_RATE_LIMIT, "Advertisement rate limit", "The number of advertisements per second accepted from each host (default " + (int)SSDPRateLimiter.DEFAULT_ADVERTISEMENT_RATE + ")", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_ADVERTISEMENT_BURST_LIMIT, "Advertisement burst limit", "The number of advertisements a host may send at once above its rate limit (default " + SSDPRateLimiter.DEFAULT_ADVERTISEMENT_BURST + ")", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_SNAPSHOT_FILE, "Snapshot file", "A file to save discovered devices to so they are republished immediately after a restart (default none)", TypedProperty.Type.STRING).build(),
+            new TypedProperty.Builder(PROP_SNAPSHOT_INTERVAL, "Snapshot interval", "How often in seconds the snapshot file is checked for changes to save (default " + DEFAULT_SNAPSHOT_INTERVAL_SECONDS + ")", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_TRAFFIC_LOG_FILE, "Traffic log file", "A file to record every received datagram to for later replay (default none)", TypedProperty.Type.STRING).build(),
+            new TypedProperty.Builder(PROP_DIAGNOSTIC_BUFFER_SIZE, "Diagnostic buffer size", "The number of recently received datagrams kept in memory for diagnostics; 0 turns this off (default " + SSDPTrafficRing.DEFAULT_CAPACITY + ")", TypedProperty.Type.NUMBER).build()
+        };
     }
 
     @Override
@@ -73,13 +186,189 @@ public class SSDPPlugin extends AbstractHobsonPlugin implements SSDPContext {
     @Override
     public void onStartup(PropertyContainer config) {
         logger.debug("SSDP scanner starting");
-        eventLoopGroup = new NioEventLoopGroup(1);
+        socketConfig = createSocketConfig(config);
+        eventLoopThreads = socketConfig.getEventLoopThreads();
+        transport = SSDPTransport.select(getBooleanConfig(config, PROP_NATIVE_TRANSPORT, true));
+        eventLoopGroup = transport.createEventLoopGroup(eventLoopThreads, "ssdp");
+        if (transport.isMulticastSupported()) {
+            multicastTransport = transport;
+            multicastEventLoopGroup = eventLoopGroup;
+        } else {
+            multicastTransport = SSDPTransport.NIO;
+            multicastEventLoopGroup = multicastTransport.createEventLoopGroup(1, "ssdp-multicast");
+        }
+        workerStage = new SSDPWorkerStage(
+            "ssdp-worker",
+            getIntegerConfig(config, PROP_WORKER_THREADS, SSDPWorkerStage.DEFAULT_WORKER_COUNT),
+            getIntegerConfig(config, PROP_WORKER_QUEUE_SIZE, SSDPWorkerStage.DEFAULT_QUEUE_SIZE),
+            getOverloadPolicyConfig(config, PROP_WORKER_OVERLOAD_POLICY, SSDPWorkerStage.OverloadPolicy.DROP_OLDEST)
+        );
+        advertisementCache = new SSDPAdvertisementCache(getIntegerConfig(config, PROP_ADVERTISEMENT_CACHE_SIZE, SSDPAdvertisementCache.DEFAULT_CAPACITY));
+        rateLimiter = new SSDPRateLimiter(
+            SSDPClock.MONOTONIC,
+            getIntegerConfig(config, PROP_SEARCH_RATE_LIMIT, (int)SSDPRateLimiter.DEFAULT_SEARCH_RATE),
+            getIntegerConfig(config, PROP_SEARCH_BURST_LIMIT, SSDPRateLimiter.DEFAULT_SEARCH_BURST),
+            getIntegerConfig(config, PROP_ADVERTISEMENT_RATE_LIMIT, (int)SSDPRateLimiter.DEFAULT_ADVERTISEMENT_RATE),
+            getIntegerConfig(config, PROP_ADVERTISEMENT_BURST_LIMIT, SSDPRateLimiter.DEFAULT_ADVERTISEMENT_BURST),
+            SSDPRateLimiter.DEFAULT_MAX_SOURCES,
+            SSDPRateLimiter.DEFAULT_IDLE_MILLIS
+        );
+        responseScheduler = new SSDPResponseScheduler(new SSDPResponseScheduler.ResponseSink() {
+            @Override
+            public void sendResponses(List<SSDPResponseScheduler.ScheduledResponse> responses) {
+                // group the responses by the interface they need to go out of so each sender gets a single flush
+                Map<SSDPInterfaceBinding,List<SSDPResponseScheduler.ScheduledResponse>> batches = new IdentityHashMap<>();
+                for (SSDPResponseScheduler.ScheduledResponse r : responses) {
+                    SSDPInterfaceBinding binding = getBinding(r.getAddress().getAddress());
+                    if (binding != null) {
+                        List<SSDPResponseScheduler.ScheduledResponse> batch = batches.get(binding);
+                        if (batch == null) {
+                            batch = new ArrayList<>();
+                            batches.put(binding, batch);
+                        }
+                        batch.add(r);
+                    }
+                }
+                for (Map.Entry<SSDPInterfaceBinding,List<SSDPResponseScheduler.ScheduledResponse>> e : batches.entrySet()) {
+                    SSDPInterfaceBinding binding = e.getKey();
+                    List<DatagramPacket> packets = new ArrayList<>(e.getValue().size());
+                    List<ChannelFutureListener> listeners = new ArrayList<>(e.getValue().size());
+                    for (SSDPResponseScheduler.ScheduledResponse r : e.getValue()) {
+                        packets.add(createDiscoveryResponse(r.getAddress(), r.getAdvertisement(), r.getSearchTarget(), binding.getLocalAddress()));
+                        listeners.add(createResponseListener(r.getRequestTime()));
+                    }
+                    binding.getSender().send(packets, listeners);
+                }
+            }
+        });
+        advertiser = new SSDPAdvertiser(Math.max(4, getIntegerConfig(config, PROP_NOTIFY_MAX_AGE, SSDPAdvertiser.DEFAULT_MAX_AGE)), new SSDPAdvertiser.AnnouncementSink() {
+            @Override
+            public void sendAnnouncements(List<ByteBuf> packets) {
+                sendNotifications(packets);
+            }
+        });
+        // documents are parsed on the workers rather than the event loop the fetcher shares with the sockets
+        descriptionFetcher = new SSDPDescriptionFetcher(eventLoopGroup, transport.createSocketChannelFactory(), new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                if (!executeInWorker(null, runnable)) {
+                    throw new RejectedExecutionException("SSDP processing is overloaded");
+                }
+            }
+        });
+        fetchDescriptions = getBooleanConfig(config, PROP_FETCH_DESCRIPTIONS, false);
+        retainRawData = getBooleanConfig(config, PROP_RETAIN_RAW_DATA, true);
+        String trafficLogFile = getStringConfig(config, PROP_TRAFFIC_LOG_FILE);
+        if (trafficLogFile != null) {
+            try {
+                trafficRecorder = new SSDPTrafficRecorder(new File(trafficLogFile));
+                logger.info("Recording SSDP traffic to {}", trafficLogFile);
+            } catch (IOException e) {
+                logger.error("Unable to open SSDP traffic log " + trafficLogFile, e);
+            }
+        }
+        int diagnosticBufferSize = getIntegerConfig(config, PROP_DIAGNOSTIC_BUFFER_SIZE, SSDPTrafficRing.DEFAULT_CAPACITY);
+        if (diagnosticBufferSize > 0) {
+            trafficRing = new SSDPTrafficRing(diagnosticBufferSize);
+        }
+        discoveryScheduler = new SSDPDiscoveryScheduler(new SSDPDiscoveryScheduler.SearchSink() {
+            @Override
+            public void sendSearches(List<String> searchTargets, int mx) {
+                for (SSDPInterfaceBinding b : bindings) {
+                    SSDPPlugin.this.sendSearches(b, searchTargets, mx);
+                }
+            }
+        });
+        interfaceMonitor = new SSDPInterfaceMonitor(new SSDPInterfaceMonitor.Listener() {
+            @Override
+            public void interfaceAdded(SSDPInterface i) {
+                bindInterface(i);
+            }
+
+            @Override
+            public void interfaceRemoved(SSDPInterface i) {
+                unbindInterface(i);
+            }
+        });
+        registerGauges();
+        deviceRegistry.addListener(deviceRegistryListener);
+        deviceRegistryFuture = eventLoopGroup.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                deviceRegistry.tick();
+            }
+        }, deviceRegistry.getTickMillis(), deviceRegistry.getTickMillis(), TimeUnit.MILLISECONDS);
+        String snapshotPath = getStringConfig(config, PROP_SNAPSHOT_FILE);
+        if (snapshotPath != null) {
+            // republish the devices known before the restart right away rather than waiting for them to announce
+            // themselves again
+            snapshotFile = new File(snapshotPath);
+            restoreSnapshot();
+            long interval = Math.max(1, getIntegerConfig(config, PROP_SNAPSHOT_INTERVAL, DEFAULT_SNAPSHOT_INTERVAL_SECONDS));
+            snapshotFuture = eventLoopGroup.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    executeInWorker(null, new Runnable() {
+                        @Override
+                        public void run() {
+                            writeSnapshot();
+                        }
+                    });
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
+        searchTargetIndexFuture = eventLoopGroup.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                executeInEventLoop(new Runnable() {
+                    @Override
+                    public void run() {
+                        refreshInternalAdvertisements();
+                    }
+                });
+            }
+        }, 0, SEARCH_TARGET_INDEX_REFRESH_SECONDS, TimeUnit.SECONDS);
+        advertiserFuture = eventLoopGroup.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                advertiser.tick();
+            }
+        }, advertiser.getTickMillis(), advertiser.getTickMillis(), TimeUnit.MILLISECONDS);
+        discoverySchedulerFuture = eventLoopGroup.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                discoveryScheduler.tick();
+            }
+        }, SSDPDiscoveryScheduler.DEFAULT_TICK_MILLIS, SSDPDiscoveryScheduler.DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        responseSchedulerFuture = eventLoopGroup.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                responseScheduler.tick();
+            }
+        }, responseScheduler.getTickMillis(), responseScheduler.getTickMillis(), TimeUnit.MILLISECONDS);
         try {
             NetworkInfo ni = getHubManager().getLocalManager().getNetworkInfo();
-            nic = ni.getNetworkInterface();
-            localAddress = new InetSocketAddress(ni.getInetAddress(), 52378);
+            primaryAddress = ni.getInetAddress();
             groupAddress = new InetSocketAddress("239.255.255.250", PORT);
             createSockets();
+            if (bindings.isEmpty()) {
+                // interface enumeration found nothing usable so fall back to the hub's own view of the network
+                NetworkInterface nic = ni.getNetworkInterface();
+                fallbackBinding = bindInterface(new SSDPInterface((nic != null) ? nic.getName() : "default", nic, primaryAddress, 0));
+            }
+
+            // watch for interfaces coming and going so sockets can be rebound without restarting the plugin
+            interfaceMonitorFuture = eventLoopGroup.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    executeInEventLoop(new Runnable() {
+                        @Override
+                        public void run() {
+                            interfaceMonitor.refresh();
+                        }
+                    });
+                }
+            }, INTERFACE_CHECK_SECONDS, INTERFACE_CHECK_SECONDS, TimeUnit.SECONDS);
             setStatus(PluginStatus.running());
         } catch (IOException e) {
             setStatus(PluginStatus.failed("A startup error occurred. See log for details."));
@@ -89,99 +378,710 @@ public class SSDPPlugin extends AbstractHobsonPlugin implements SSDPContext {
     @Override
     public void onShutdown() {
         logger.info("SSDP scanner stopping");
+        if (responseSchedulerFuture != null) {
+            responseSchedulerFuture.cancel(false);
+            responseScheduler.clear();
+        }
+        if (searchTargetIndexFuture != null) {
+            searchTargetIndexFuture.cancel(false);
+        }
+        if (interfaceMonitorFuture != null) {
+            interfaceMonitorFuture.cancel(false);
+        }
+        if (deviceRegistryFuture != null) {
+            deviceRegistryFuture.cancel(false);
+        }
+        if (snapshotFuture != null) {
+            snapshotFuture.cancel(false);
+            snapshotFuture = null;
+            writeSnapshot();
+        }
+        deviceRegistry.removeListener(deviceRegistryListener);
+        deviceRegistry.clear();
+        if (discoverySchedulerFuture != null) {
+            discoverySchedulerFuture.cancel(false);
+            discoveryScheduler.stop();
+        }
+        if (advertiserFuture != null) {
+            advertiserFuture.cancel(false);
+            // the byebyes are written before the channels below are closed since both run on the channel's loop
+            try {
+                advertiser.byebyeAll();
+            } catch (Throwable e) {
+                logger.error("Error sending SSDP byebye notifications", e);
+            }
+        }
         try {
-            multicastChannel.leaveGroup(groupAddress.getAddress());
-            multicastChannel.close().syncUninterruptibly();
-            localChannel.close().syncUninterruptibly();
+            List<SSDPInterfaceBinding> closing;
+            synchronized (bindings) {
+                for (SSDPInterfaceBinding b : bindings) {
+                    leaveGroup(b);
+                }
+                closing = new ArrayList<>(bindings);
+                bindings.clear();
+            }
+            for (SSDPInterfaceBinding b : closing) {
+                b.close();
+            }
+            if (multicastChannel != null) {
+                multicastChannel.close().syncUninterruptibly();
+                multicastChannel = null;
+            }
         } catch (Throwable ignored) {
         }
+        responseCache.invalidateAll();
+        if (descriptionFetcher != null) {
+            descriptionFetcher.close();
+        }
+        if (trafficRecorder != null) {
+            trafficRecorder.close();
+            trafficRecorder = null;
+        }
+        if (trafficRing != null) {
+            // give the retained receive buffers back to the pool
+            trafficRing.clear();
+        }
+        if (workerStage != null) {
+            workerStage.shutdown(5, TimeUnit.SECONDS);
+        }
+        if (multicastEventLoopGroup != null && multicastEventLoopGroup != eventLoopGroup) {
+            multicastEventLoopGroup.shutdownGracefully();
+        }
+        if (eventLoopGroup != null) {
+            eventLoopGroup.shutdownGracefully();
+        }
+        multicastEventLoopGroup = null;
+        eventLoopGroup = null;
     }
 
     @Override
     public void onPluginConfigurationUpdate(PropertyContainer config) {
+        SSDPSocketConfig c = createSocketConfig(config);
+        SSDPSocketConfig previous = socketConfig;
+        socketConfig = c;
+        logger.debug("SSDP socket configuration updated: {}", c);
+        if (c.getEventLoopThreads() != eventLoopThreads) {
+            logger.info("SSDP event loop thread count change to {} will take effect when the plugin restarts", c.getEventLoopThreads());
+        }
+        if (eventLoopGroup != null && c.requiresRebind(previous)) {
+            if (rebindSockets()) {
+                setStatus(PluginStatus.running());
+            } else {
+                // go back to the configuration that was working so the plugin keeps its sockets and report the
+                // failure so it doesn't look like the new configuration is in effect
+                logger.error("Unable to apply SSDP socket configuration {}; reverting to {}", c, previous);
+                socketConfig = previous;
+                rebindSockets();
+                setStatus(PluginStatus.failed("Unable to apply the SSDP socket configuration. See log for details."));
+            }
+        }
+    }
+
+    /**
+     * Rebinds every socket with the current socket configuration and waits for the unicast sockets to be bound.
+     *
+     * When the transport supports SO_REUSEPORT (which the unicast sockets are then always bound with), the
+     * replacement sockets are bound before the ones they replace are closed so that inbound packets keep being
+     * received (the advertisement cache absorbs any duplicates while both are open). Otherwise the old sockets are
+     * closed first; binding a second socket to an address and port that is still in use only works with Linux
+     * SO_REUSEADDR semantics and fails on BSD and macOS. The multicast socket is always replaced bind-first since
+     * SO_REUSEADDR allows duplicate bindings of a multicast address everywhere.
+     *
+     * This blocks until the binds complete so it must not be called from one of the plugin's I/O threads.
+     *
+     * @return true if every unicast socket was bound
+     */
+    private boolean rebindSockets() {
+        logger.info("Rebinding SSDP sockets");
+        bindMulticastSocket();
+        boolean bindFirst = transport.isReusePortSupported();
+        boolean success = true;
+        for (SSDPInterfaceBinding b : bindings) {
+            if (!bindFirst) {
+                for (ChannelFuture f : b.close()) {
+                    f.awaitUninterruptibly(REBIND_TIMEOUT_MILLIS);
+                }
+            }
+            SSDPInterfaceBinding replacement = new SSDPInterfaceBinding(b.getInterface(), new InetSocketAddress(b.getInterface().getAddress(), socketConfig.getLocalPort()));
+            ChannelFuture f = bindChannels(replacement, b);
+            if (!f.awaitUninterruptibly(REBIND_TIMEOUT_MILLIS) || !f.isSuccess()) {
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Swaps a newly bound binding in for the one it replaces and closes the old one.
+     *
+     * @param replaced the binding being replaced
+     * @param binding the replacement
+     */
+    private void replaceBinding(SSDPInterfaceBinding replaced, SSDPInterfaceBinding binding) {
+        synchronized (bindings) {
+            int ix = bindings.indexOf(replaced);
+            if (ix < 0) {
+                // the interface went away while the replacement was being bound
+                binding.close();
+                return;
+            }
+            // group membership belongs to the shared multicast socket so it carries over
+            binding.setJoined(replaced.isJoined());
+            bindings.set(ix, binding);
+            if (fallbackBinding == replaced) {
+                fallbackBinding = binding;
+            }
+        }
+        replaced.close();
     }
 
     public void createSockets() {
         try {
-            logger.debug("Using network interface: {}; local address: {}", nic, localAddress);
+            logger.debug("Using primary address: {}; transport: {}", primaryAddress, transport);
 
-            if (nic == null) {
-                logger.error("Unable to determine local NIC; discovery may not work properly");
-            }
+            // a single instance of each handler is shared by every channel (and therefore every event loop); the
+            // (optional) traffic ring keeps the most recent datagrams and what became of them for diagnostics, the
+            // rate limiter drops packets from noisy sources before they are parsed, the (optional) traffic recorder
+            // logs everything that arrives so it can be replayed later and the codec pair converts between
+            // datagrams and SSDP packets
+            final SSDPDecoder decoder = new SSDPDecoder(metrics, interfaceMonitor);
+            final SSDPEncoder encoder = new SSDPEncoder();
+            final SSDPInboundHandler inboundHandler = new SSDPInboundHandler.Builder(this)
+                .advertisementCache(advertisementCache)
+                .metrics(metrics)
+                .interfaceMonitor(interfaceMonitor)
+                .descriptionFetcher(fetchDescriptions ? descriptionFetcher : null)
+                .retainRawData(retainRawData)
+                .deviceRegistry(deviceRegistry)
+                .build();
+            channelInitializer = new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(Channel channel) throws Exception {
+                    if (trafficRing != null) {
+                        channel.pipeline().addLast(trafficRing);
+                    }
+                    if (trafficRecorder != null) {
+                        channel.pipeline().addLast(trafficRecorder);
+                    }
+                    channel.pipeline().addLast(rateLimiter, decoder, inboundHandler, encoder);
+                }
+            };
 
-            if (nic != null) {
-                Bootstrap clientBootstrap = new Bootstrap()
-                    .group(eventLoopGroup)
-                    .channelFactory(new ChannelFactory<Channel>() {
-                        @Override
-                        public Channel newChannel() {
-                        return new NioDatagramChannel(InternetProtocolFamily.IPv4);
-                        }
-                    })
-                    .localAddress(groupAddress)
-                    .option(ChannelOption.IP_MULTICAST_IF, nic)
-                    .option(ChannelOption.SO_REUSEADDR, true)
-                    .handler(new SSDPInboundHandler(this));
+            bindMulticastSocket();
 
-                clientBootstrap.bind().addListener(new ChannelFutureListener() {
-                    @Override
-                    public void operationComplete(ChannelFuture channelFuture) throws Exception {
-                        multicastChannel = (NioDatagramChannel) channelFuture.channel();
-                        multicastChannel.joinGroup(groupAddress, nic);
+            // the monitor calls back into bindInterface() for every eligible interface it finds
+            interfaceMonitor.refresh();
+        } catch (Exception e) {
+            logger.error("Error creating SSDP sockets", e);
+        }
+    }
+
+    /**
+     * Binds the multicast socket. A single multicast socket joins the SSDP group on every interface; one socket per
+     * interface would see every group datagram once for each interface. If a multicast socket is already bound, it
+     * is closed once the new one has joined the group.
+     */
+    private void bindMulticastSocket() {
+        Bootstrap clientBootstrap = socketConfig.configure(new Bootstrap()
+            .group(multicastEventLoopGroup)
+            .channelFactory(multicastTransport.createChannelFactory())
+            .localAddress(groupAddress)
+            .option(ChannelOption.SO_REUSEADDR, true)
+            .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+            .handler(channelInitializer));
+
+        clientBootstrap.bind().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture channelFuture) throws Exception {
+                if (channelFuture.isSuccess()) {
+                    DatagramChannel previous;
+                    synchronized (bindings) {
+                        previous = multicastChannel;
+                        multicastChannel = (DatagramChannel) channelFuture.channel();
+                        for (SSDPInterfaceBinding b : bindings) {
+                            b.setJoined(false);
+                            joinGroup(b);
+                        }
                     }
-                });
+                    if (previous != null) {
+                        // closing the socket drops its group memberships
+                        previous.close();
+                    }
+                } else {
+                    logger.error("Unable to bind SSDP multicast socket to " + groupAddress, channelFuture.cause());
+                }
             }
+        });
+    }
 
-            Bootstrap serverBootstrap = new Bootstrap()
-                .group(eventLoopGroup)
-                .channelFactory(new ChannelFactory<Channel>() {
-                    @Override
-                    public Channel newChannel() {
-                        return new NioDatagramChannel(InternetProtocolFamily.IPv4);
-                    }
-                })
-                .localAddress(localAddress)
-                .option(ChannelOption.IP_MULTICAST_IF, nic)
-                .option(ChannelOption.SO_REUSEADDR, true)
-                .handler(new SSDPInboundHandler(this));
+    /**
+     * Binds the unicast socket(s) for an interface and joins the SSDP multicast group on it.
+     *
+     * @param iface the interface
+     *
+     * @return the new binding
+     */
+    private SSDPInterfaceBinding bindInterface(SSDPInterface iface) {
+        logger.debug("Binding SSDP sockets to interface: {}", iface);
+
+        final SSDPInterfaceBinding binding = new SSDPInterfaceBinding(iface, new InetSocketAddress(iface.getAddress(), socketConfig.getLocalPort()));
+        SSDPInterfaceBinding fallback;
+        synchronized (bindings) {
+            fallback = fallbackBinding;
+            fallbackBinding = null;
+            bindings.add(binding);
+            joinGroup(binding);
+        }
+        if (fallback != null) {
+            unbindInterface(fallback.getInterface());
+        }
+
+        bindChannels(binding, null);
+
+        return binding;
+    }
+
+    /**
+     * Binds the unicast socket(s) for a binding.
+     *
+     * @param binding the binding
+     * @param replaced the binding this one replaces once its primary socket is bound (or null)
+     *
+     * @return the future for the bind of the primary socket
+     */
+    private ChannelFuture bindChannels(final SSDPInterfaceBinding binding, final SSDPInterfaceBinding replaced) {
+        Bootstrap serverBootstrap = socketConfig.configure(new Bootstrap()
+            .group(eventLoopGroup)
+            .channelFactory(transport.createChannelFactory())
+            .localAddress(binding.getLocalAddress())
+            .option(ChannelOption.IP_MULTICAST_IF, binding.getInterface().getNetworkInterface())
+            .option(ChannelOption.SO_REUSEADDR, true)
+            .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+            .handler(channelInitializer));
+
+        // when the transport supports it, bind one socket per event loop thread to the same port and let the
+        // kernel spread inbound datagrams across them; SO_REUSEPORT is set even for a single socket so that it can
+        // be replaced without closing it first
+        int socketCount = 1;
+        if (transport.enableReusePort(serverBootstrap)) {
+            socketCount = Math.max(1, eventLoopThreads);
+        }
 
-            serverBootstrap.bind().addListener(new ChannelFutureListener() {
+        ChannelFuture primaryFuture = null;
+        for (int i = 0; i < socketCount; i++) {
+            final boolean primary = (i == 0);
+            ChannelFuture bindFuture = serverBootstrap.bind();
+            if (primary) {
+                primaryFuture = bindFuture;
+            }
+            bindFuture.addListener(new ChannelFutureListener() {
                 @Override
                 public void operationComplete(ChannelFuture channelFuture) throws Exception {
-                    localChannel = (NioDatagramChannel) channelFuture.channel();
-                    sendDiscoveryPacket();
+                    if (channelFuture.isSuccess()) {
+                        if (binding.addChannel((DatagramChannel) channelFuture.channel(), primary) && primary) {
+                            if (replaced != null) {
+                                replaceBinding(replaced, binding);
+                            } else {
+                                // a new interface restarts the search backoff so its devices are found quickly
+                                discoveryScheduler.restart();
+                            }
+                        }
+                    } else {
+                        logger.error("Unable to bind SSDP socket to " + binding.getLocalAddress(), channelFuture.cause());
+                        if (primary && replaced != null) {
+                            // keep using the existing sockets (if they weren't closed to make way for these)
+                            binding.close();
+                        }
+                    }
                 }
             });
+        }
+        return primaryFuture;
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    private void unbindInterface(SSDPInterface iface) {
+        logger.debug("Unbinding SSDP sockets from interface: {}", iface);
+
+        SSDPInterfaceBinding binding = null;
+        synchronized (bindings) {
+            for (SSDPInterfaceBinding b : bindings) {
+                if (b.getInterface().equals(iface)) {
+                    binding = b;
+                    break;
+                }
+            }
+            if (binding != null) {
+                bindings.remove(binding);
+                leaveGroup(binding);
+            }
         }
+        if (binding != null) {
+            binding.close();
+        }
+    }
+
+    private void joinGroup(SSDPInterfaceBinding b) {
+        if (multicastChannel != null && !b.isJoined()) {
+            NetworkInterface ni = b.getInterface().getNetworkInterface();
+            ChannelFuture f = (ni != null) ? multicastChannel.joinGroup(groupAddress, ni) : multicastChannel.joinGroup(groupAddress.getAddress());
+            f.addListener(createMembershipListener("join", b.getInterface()));
+            b.setJoined(true);
+        }
+    }
+
+    private void leaveGroup(SSDPInterfaceBinding b) {
+        if (multicastChannel != null && b.isJoined()) {
+            NetworkInterface ni = b.getInterface().getNetworkInterface();
+            ChannelFuture f = (ni != null) ? multicastChannel.leaveGroup(groupAddress, ni) : multicastChannel.leaveGroup(groupAddress.getAddress());
+            f.addListener(createMembershipListener("leave", b.getInterface()));
+            b.setJoined(false);
+        }
+    }
+
+    private ChannelFutureListener createMembershipListener(final String action, final SSDPInterface iface) {
+        return new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    logger.error("Unable to " + action + " SSDP multicast group on " + iface, future.cause());
+                }
+            }
+        };
     }
 
+    /**
+     * Returns the binding that packets for an address should be sent from. This is the binding for the interface
+     * whose subnet contains the address or the primary binding if there isn't one.
+     *
+     * @param address the destination address (or null for the primary binding)
+     *
+     * @return a SSDPInterfaceBinding (or null if no sockets are bound)
+     */
+    private SSDPInterfaceBinding getBinding(InetAddress address) {
+        SSDPInterfaceBinding primary = null;
+        for (SSDPInterfaceBinding b : bindings) {
+            if (b.getSender() != null) {
+                if (address != null && b.getInterface().isOnSubnet(address)) {
+                    return b;
+                }
+                if (primary == null || b.getInterface().getAddress().equals(primaryAddress)) {
+                    primary = b;
+                }
+            }
+        }
+        return primary;
+    }
+
+    /**
+     * Sends an ssdp:all search out of every interface immediately. Routine searches are sent by the discovery
+     * scheduler.
+     */
     public void sendDiscoveryPacket() {
+        List<String> sts = Collections.singletonList(SSDPSearchTargetIndex.ALL);
+        for (SSDPInterfaceBinding b : bindings) {
+            sendSearches(b, sts, SSDPDiscoveryScheduler.DEFAULT_MX);
+        }
+    }
+
+    private void sendSearches(SSDPInterfaceBinding binding, List<String> searchTargets, int mx) {
+        SSDPSender sender = binding.getSender();
+        if (sender != null) {
+            logger.debug("Sending SSDP discovery packets for {} on {}", searchTargets, binding.getInterface());
+            List<DatagramPacket> packets = new ArrayList<>(searchTargets.size());
+            for (String st : searchTargets) {
+                ByteBuf disco = SSDPEncoder.encode(sender.getChannel().alloc(), SSDPPacket.createSearchRequest(st, mx));
+                packets.add(new DatagramPacket(disco, groupAddress, binding.getLocalAddress()));
+            }
+            sender.send(packets);
+        }
+    }
+
+    /**
+     * Requests a search for a specific search target (e.g. a device type). Requests made at about the same time
+     * are merged into a single round.
+     *
+     * @param st the search target
+     * @param persistent whether the target should be searched for again whenever the network changes
+     */
+    public void requestSearch(String st, boolean persistent) {
+        if (discoveryScheduler != null) {
+            if (persistent) {
+                discoveryScheduler.addSearchTarget(st);
+            } else {
+                discoveryScheduler.search(st);
+            }
+        }
+    }
+
+    /**
+     * Returns the scheduler for outbound M-SEARCH rounds.
+     *
+     * @return a SSDPDiscoveryScheduler (or null if the plugin has not been started)
+     */
+    public SSDPDiscoveryScheduler getDiscoveryScheduler() {
+        return discoveryScheduler;
+    }
+
+    /**
+     * Multicasts NOTIFY packets out of every interface.
+     *
+     * @param packets the encoded packets; ownership of them passes to this method
+     */
+    private void sendNotifications(List<ByteBuf> packets) {
         try {
-            if (localChannel != null) {
-                logger.debug("Sending SSDP discovery packet");
-                byte[] disco = SSDPPacket.createSearchRequest().toString().getBytes();
-                ByteBuf buf = Unpooled.copiedBuffer(disco);
-                localChannel.writeAndFlush(new DatagramPacket(buf, groupAddress, localAddress)).sync();
+            for (SSDPInterfaceBinding b : bindings) {
+                SSDPSender sender = b.getSender();
+                if (sender != null) {
+                    List<DatagramPacket> dps = new ArrayList<>(packets.size());
+                    for (ByteBuf buf : packets) {
+                        dps.add(new DatagramPacket(buf.duplicate().retain(), groupAddress, b.getLocalAddress()));
+                    }
+                    sender.send(dps);
+                }
+            }
+        } finally {
+            for (ByteBuf buf : packets) {
+                buf.release();
             }
-        } catch (Throwable e) {
-            e.printStackTrace();
         }
     }
 
     public void sendDiscoveryResponse(InetSocketAddress address, DeviceAdvertisement da) throws IOException {
+        SSDPInterfaceBinding binding = getBinding(address.getAddress());
+        if (binding != null) {
+            binding.getSender().send(createDiscoveryResponse(address, da, null, binding.getLocalAddress()));
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(Channel channel) {
+        for (SSDPInterfaceBinding b : bindings) {
+            SSDPSender sender = b.getSender();
+            if (sender != null && sender.getChannel() == channel) {
+                sender.channelWritabilityChanged();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the sender for the primary interface.
+     *
+     * @return a SSDPSender (or null if no local channel has been bound)
+     */
+    public SSDPSender getSender() {
+        SSDPInterfaceBinding b = getBinding(null);
+        return (b != null) ? b.getSender() : null;
+    }
+
+    /**
+     * Returns the monitor that tracks the host's network interfaces and local addresses.
+     *
+     * @return a SSDPInterfaceMonitor (or null if the plugin has not been started)
+     */
+    public SSDPInterfaceMonitor getInterfaceMonitor() {
+        return interfaceMonitor;
+    }
+
+    private ChannelFutureListener createResponseListener(final long requestTime) {
+        return new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                metrics.onResponseSent(future.isSuccess(), SSDPClock.MONOTONIC.currentTimeMillis() - requestTime);
+            }
+        };
+    }
+
+    private void registerGauges() {
+        metrics.register(advertisementCache);
+        metrics.register(rateLimiter);
+        metrics.register(responseScheduler);
+        metrics.register(advertiser);
+        metrics.register(discoveryScheduler);
+        metrics.register(descriptionFetcher);
+        metrics.register(workerStage);
+        if (trafficRecorder != null) {
+            metrics.register(trafficRecorder);
+        }
+        if (trafficRing != null) {
+            metrics.register(trafficRing);
+        }
+        metrics.register(SSDPInternPool.DEFAULT);
+        metrics.register(deviceRegistry);
+        metrics.register(subscriptionIndex);
+        metrics.registerGauge("outboundPacketsDropped", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                long count = 0;
+                for (SSDPInterfaceBinding b : bindings) {
+                    SSDPSender sender = b.getSender();
+                    if (sender != null) {
+                        count += sender.getDroppedCount();
+                    }
+                }
+                return count;
+            }
+        });
+        metrics.registerGauge("interfaces", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return bindings.size();
+            }
+        });
+    }
+
+    private DatagramPacket createDiscoveryResponse(InetSocketAddress address, DeviceAdvertisement da, String searchTarget, InetSocketAddress localAddress) {
+        ByteBuf buf = responseCache.getResponse(da, searchTarget);
+        if (logger.isTraceEnabled()) {
+            logger.trace("Sending SSDP search response to {}: {}", address, buf.toString(CharsetUtil.UTF_8));
+        }
+        return new DatagramPacket(buf, address, localAddress);
+    }
+
+    @Override
+    public boolean executeInWorker(String key, Runnable runnable) {
+        SSDPWorkerStage ws = workerStage;
+        if (ws != null) {
+            return ws.submit(key, runnable);
+        }
+        executeInEventLoop(runnable);
+        return true;
+    }
+
+    @Override
+    public int getWorkerIndex(String key) {
+        SSDPWorkerStage ws = workerStage;
+        return (ws != null) ? ws.getWorkerIndex(key) : 0;
+    }
+
+    @Override
+    public void publishDeviceAdvertisement(DeviceAdvertisement advertisement, boolean internal) {
+        super.publishDeviceAdvertisement(advertisement, internal);
+        // subscribers only see advertisements received from the network
+        if (!internal && advertisement.getObject() instanceof SSDPPacket) {
+            subscriptionIndex.deliver(advertisement, (SSDPPacket)advertisement.getObject());
+        }
+    }
+
+    @Override
+    public void publishDeviceAdvertisements(Collection<DeviceAdvertisement> advertisements, boolean internal) {
+        // the hub API only takes advertisements one at a time but a batch still costs a single worker task
+        for (DeviceAdvertisement da : advertisements) {
+            publishDeviceAdvertisement(da, internal);
+        }
+    }
+
+    /**
+     * Subscribes to the external advertisements that match a filter. This lets consumers that are only interested
+     * in particular device types (or servers, etc.) avoid testing every advertisement themselves.
+     *
+     * @param filter the filter advertisements must match
+     * @param listener the listener to deliver matching advertisements to
+     *
+     * @return the subscription (which can be used to cancel it)
+     */
+    public SSDPSubscriptionIndex.Subscription subscribe(SSDPFilter filter, SSDPSubscriptionIndex.Listener listener) {
+        return subscriptionIndex.subscribe(filter, listener);
+    }
+
+    public SSDPSubscriptionIndex getSubscriptionIndex() {
+        return subscriptionIndex;
+    }
+
+    /**
+     * Returns the ring of recently received datagrams.
+     *
+     * @return an SSDPTrafficRing (or null if the diagnostic buffer is disabled)
+     */
+    public SSDPTrafficRing getTrafficRing() {
+        return trafficRing;
+    }
+
+    /**
+     * Returns a formatted dump of the most recently received datagrams and what was done with each of them.
+     *
+     * @return a String (empty if the diagnostic buffer is disabled)
+     */
+    public String dumpRecentTraffic() {
+        SSDPTrafficRing r = trafficRing;
+        return (r != null) ? r.dump() : "";
+    }
+
+    /**
+     * Registers and republishes the unexpired devices from the discovery snapshot. They are published with
+     * provisional packets and are republished normally once they announce themselves again.
+     */
+    private void restoreSnapshot() {
+        long now = System.currentTimeMillis();
+        List<SSDPDiscoverySnapshot.Entry> entries;
         try {
-            if (localChannel != null) {
-                String data = SSDPPacket.createSearchResponse(da.getUri(), da.getId(), "urn").toString();
-                logger.trace("Sending SSDP search response to {}: {}", address, data);
-                ByteBuf buf = Unpooled.copiedBuffer(data.getBytes());
-                localChannel.writeAndFlush(new DatagramPacket(buf, address, localAddress)).sync();
+            entries = SSDPDiscoverySnapshot.read(snapshotFile, now);
+        } catch (IOException e) {
+            logger.error("Unable to read SSDP discovery snapshot " + snapshotFile, e);
+            return;
+        }
+        int count = 0;
+        for (SSDPDiscoverySnapshot.Entry e : entries) {
+            if (deviceRegistry.restore(e, now) != null) {
+                int maxAge = (int)Math.max(1, (e.getExpiration() - now + 999) / 1000);
+                final SSDPPacket packet = SSDPPacket.createAliveNotification(e.getLocation(), e.getNotificationType(), e.getUSN(), maxAge);
+                packet.setServer(e.getServer());
+                packet.setProvisional(true);
+                executeInWorker(e.getUSN(), new Runnable() {
+                    @Override
+                    public void run() {
+                        DeviceAdvertisement.Builder b = new DeviceAdvertisement.Builder(packet.getUSN(), SSDPPacket.PROTOCOL_ID).object(packet);
+                        if (retainRawData) {
+                            b.rawData(packet.toString());
+                        }
+                        publishDeviceAdvertisement(b.build(), false);
+                    }
+                });
+                count++;
             }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
         }
+        logger.info("Restored {} SSDP device(s) from {}", count, snapshotFile);
+    }
+
+    /**
+     * Writes the discovery snapshot if any device has been added or removed or has changed its LOCATION since it
+     * was last written. Lease renewals alone don't trigger a write, but the snapshot is still rewritten every
+     * SNAPSHOT_REFRESH_MILLIS so the leases it holds don't all run out while the network is quiet.
+     */
+    private void writeSnapshot() {
+        synchronized (snapshotLock) {
+            long mc = deviceRegistry.getModificationCount();
+            long leaseNow = deviceRegistry.getClock().currentTimeMillis();
+            if (mc != snapshotModificationCount || snapshotWrittenAt == 0 || leaseNow - snapshotWrittenAt >= SNAPSHOT_REFRESH_MILLIS) {
+                try {
+                    int count = SSDPDiscoverySnapshot.write(snapshotFile, deviceRegistry.getDevices(), System.currentTimeMillis(), leaseNow);
+                    snapshotModificationCount = mc;
+                    snapshotWrittenAt = leaseNow;
+                    logger.trace("Wrote {} SSDP device(s) to {}", count, snapshotFile);
+                } catch (IOException e) {
+                    logger.error("Unable to write SSDP discovery snapshot " + snapshotFile, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the registry of external devices. Listeners can be added to it to learn when devices say byebye or
+     * their leases expire.
+     *
+     * @return a SSDPDeviceRegistry
+     */
+    public SSDPDeviceRegistry getDeviceRegistry() {
+        return deviceRegistry;
+    }
+
+    /**
+     * Returns the stage that processes inbound advertisements and search requests off the I/O threads.
+     *
+     * @return a SSDPWorkerStage (or null if the plugin has not been started)
+     */
+    public SSDPWorkerStage getWorkerStage() {
+        return workerStage;
     }
 
     /**
@@ -193,22 +1093,194 @@ public class SSDPPlugin extends AbstractHobsonPlugin implements SSDPContext {
      * @throws IOException on failure
      */
     public void processDiscoveryRequest(InetSocketAddress address, SSDPPacket packet) throws IOException {
-        if (packet.getST() != null) {
-            if ("ssdp:all".equals(packet.getST())) {
-                Collection<DeviceAdvertisement> das = getDiscoManager().getInternalDeviceAdvertisements(getContext().getHubContext(), PROTOCOL);
-                if (das != null) {
-                    for (DeviceAdvertisement da : das) {
-                        sendDiscoveryResponse(address, da);
-                    }
-                }
+        String st = packet.getST();
+        if (st != null) {
+            // control points often repeat a search; there's no need to look anything up again while the
+            // responses to the first one are still pending
+            if (responseScheduler.coalesce(address, st)) {
+                logger.trace("Merged duplicate SSDP search for {} from {}", st, address);
+                return;
+            }
+
+            Collection<DeviceAdvertisement> das;
+            String responseTarget;
+            if (SSDPSearchTargetIndex.ALL.equals(st)) {
+                das = getDiscoManager().getInternalDeviceAdvertisements(getContext().getHubContext(), PROTOCOL);
+                syncInternalAdvertisements(das);
+                responseTarget = null;
             } else {
-                DeviceAdvertisement da = getDiscoManager().getInternalDeviceAdvertisement(getContext().getHubContext(), PROTOCOL, packet.getST());
-                if (da != null) {
-                    sendDiscoveryResponse(address, da);
-                } else {
-                    logger.trace("No device advertisement has been published to respond to: {}", packet.getST());
+                das = searchTargetIndex.find(st);
+                if (das.isEmpty()) {
+                    // the advertisement may have been published since the index was last refreshed
+                    DeviceAdvertisement da = getDiscoManager().getInternalDeviceAdvertisement(getContext().getHubContext(), PROTOCOL, st);
+                    if (da != null) {
+                        searchTargetIndex.add(da);
+                        das = Collections.singletonList(da);
+                    } else {
+                        logger.trace("No device advertisement has been published to respond to: {}", st);
+                    }
                 }
+                responseTarget = st;
+            }
+
+            // spread the responses across the request's MX window
+            if (das != null && !das.isEmpty()) {
+                responseScheduler.schedule(address, das, responseTarget, packet.getMXValue());
+                metrics.onSearchRequestServed();
+            }
+        }
+    }
+
+    /**
+     * Returns the index used to match search targets against internal advertisements. Plugins that publish
+     * internal advertisements can add them here to make them searchable immediately.
+     *
+     * @return a SSDPSearchTargetIndex
+     */
+    public SSDPSearchTargetIndex getSearchTargetIndex() {
+        return searchTargetIndex;
+    }
+
+    private void refreshInternalAdvertisements() {
+        try {
+            syncInternalAdvertisements(getDiscoManager().getInternalDeviceAdvertisements(getContext().getHubContext(), PROTOCOL));
+        } catch (Throwable e) {
+            logger.error("Error refreshing SSDP internal advertisements", e);
+        }
+    }
+
+    private void syncInternalAdvertisements(Collection<DeviceAdvertisement> das) {
+        searchTargetIndex.sync(das);
+        responseCache.retain(das);
+        advertiser.sync(das);
+    }
+
+    /**
+     * Returns the fetcher for device description documents. Consumers of SSDP advertisements can use it to share
+     * a single connection pool and cache rather than fetching LOCATION documents themselves.
+     *
+     * @return a SSDPDescriptionFetcher (or null if the plugin has not been started)
+     */
+    public SSDPDescriptionFetcher getDescriptionFetcher() {
+        return descriptionFetcher;
+    }
+
+    /**
+     * Returns the advertiser that announces internal advertisements with NOTIFY packets.
+     *
+     * @return a SSDPAdvertiser (or null if the plugin has not been started)
+     */
+    public SSDPAdvertiser getAdvertiser() {
+        return advertiser;
+    }
+
+    /**
+     * Returns the cache used to suppress unchanged SSDP re-announcements.
+     *
+     * @return a SSDPAdvertisementCache (or null if the plugin has not been started)
+     */
+    public SSDPAdvertisementCache getAdvertisementCache() {
+        return advertisementCache;
+    }
+
+    /**
+     * Returns the cache of encoded search responses. Plugins that change their internal advertisements can use it
+     * to invalidate responses immediately rather than waiting for the next search request to notice the change.
+     *
+     * @return a SSDPResponseCache
+     */
+    public SSDPResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Returns the plugin's metrics.
+     *
+     * @return a SSDPMetrics instance
+     */
+    public SSDPMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns a point-in-time view of the plugin's metrics. This is intended to be polled by the hub.
+     *
+     * @return a SSDPMetrics.Snapshot
+     */
+    public SSDPMetrics.Snapshot getMetricsSnapshot() {
+        return metrics.getSnapshot();
+    }
+
+    /**
+     * Returns the per-source rate limiter for inbound packets.
+     *
+     * @return a SSDPRateLimiter (or null if the plugin has not been started)
+     */
+    public SSDPRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    private boolean getBooleanConfig(PropertyContainer config, String name, boolean defaultValue) {
+        Object o = (config != null) ? config.getPropertyValue(name) : null;
+        if (o instanceof Boolean) {
+            return (Boolean)o;
+        } else if (o != null) {
+            return Boolean.parseBoolean(o.toString().trim());
+        }
+        return defaultValue;
+    }
+
+    private SSDPWorkerStage.OverloadPolicy getOverloadPolicyConfig(PropertyContainer config, String name, SSDPWorkerStage.OverloadPolicy defaultValue) {
+        String s = getStringConfig(config, name);
+        if (s != null) {
+            switch (s.toLowerCase()) {
+                case "dropnewest":
+                case "drop_newest":
+                    return SSDPWorkerStage.OverloadPolicy.DROP_NEWEST;
+                case "dropoldest":
+                case "drop_oldest":
+                    return SSDPWorkerStage.OverloadPolicy.DROP_OLDEST;
+                default:
+                    logger.warn("Invalid value for configuration property {}: {}", name, s);
+            }
+        }
+        return defaultValue;
+    }
+
+    private SSDPSocketConfig createSocketConfig(PropertyContainer config) {
+        return new SSDPSocketConfig(
+            getIntegerConfig(config, PROP_LOCAL_PORT, SSDPSocketConfig.DEFAULT_LOCAL_PORT),
+            getIntegerConfig(config, PROP_RECEIVE_BUFFER_SIZE, SSDPSocketConfig.UNSET),
+            getIntegerConfig(config, PROP_SEND_BUFFER_SIZE, SSDPSocketConfig.UNSET),
+            getIntegerConfig(config, PROP_EVENT_LOOP_THREADS, SSDPSocketConfig.DEFAULT_EVENT_LOOP_THREADS),
+            getIntegerConfig(config, PROP_MAX_MESSAGES_PER_READ, SSDPSocketConfig.DEFAULT_MAX_MESSAGES_PER_READ),
+            getIntegerConfig(config, PROP_RECEIVE_ALLOCATOR_SIZE, SSDPSocketConfig.DEFAULT_RECEIVE_ALLOCATOR_SIZE),
+            getIntegerConfig(config, PROP_MULTICAST_TTL, SSDPSocketConfig.UNSET)
+        );
+    }
+
+    private String getStringConfig(PropertyContainer config, String name) {
+        Object o = (config != null) ? config.getPropertyValue(name) : null;
+        if (o != null) {
+            String s = o.toString().trim();
+            if (s.length() > 0) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    private int getIntegerConfig(PropertyContainer config, String name, int defaultValue) {
+        Object o = (config != null) ? config.getPropertyValue(name) : null;
+        if (o instanceof Number) {
+            return ((Number)o).intValue();
+        } else if (o != null) {
+            try {
+                return Integer.parseInt(o.toString().trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid value for configuration property {}: {}", name, o);
             }
         }
+        return defaultValue;
     }
 }
@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A handler that sits in front of SSDPInboundHandler and limits the rate of inbound packets per source address.
+ * Each source has separate token buckets for search requests and for advertisements (NOTIFY and search
+ * responses) so that a host flooding one kind of traffic can't starve the other. Packets that exceed the limit are
+ * dropped before they are parsed.
+ *
+ * Buckets are kept in a fixed number of independently locked stripes. Each stripe is bounded and evicts its least
+ * recently used bucket once it is full or once a bucket has been idle for too long.
+ *
+ * @author Dan Noguerol
+ */
+@ChannelHandler.Sharable
+public class SSDPRateLimiter extends ChannelInboundHandlerAdapter implements SSDPMetrics.Source {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    public static final double DEFAULT_SEARCH_RATE = 5;
+    public static final int DEFAULT_SEARCH_BURST = 20;
+    public static final double DEFAULT_ADVERTISEMENT_RATE = 50;
+    public static final int DEFAULT_ADVERTISEMENT_BURST = 200;
+    public static final int DEFAULT_MAX_SOURCES = 4096;
+    public static final long DEFAULT_IDLE_MILLIS = 5 * 60 * 1000;
+
+    private static final int STRIPE_COUNT = 16;
+    private static final byte[] M_SEARCH = "M-SEARCH".getBytes(CharsetUtil.US_ASCII);
+
+    private final SSDPClock clock;
+    private final double searchRate;
+    private final int searchBurst;
+    private final double advertisementRate;
+    private final int advertisementBurst;
+    private final long idleMillis;
+    private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+    private final AtomicLong droppedSearchCount = new AtomicLong();
+    private final AtomicLong droppedAdvertisementCount = new AtomicLong();
+
+    public SSDPRateLimiter() {
+        this(SSDPClock.MONOTONIC, DEFAULT_SEARCH_RATE, DEFAULT_SEARCH_BURST, DEFAULT_ADVERTISEMENT_RATE, DEFAULT_ADVERTISEMENT_BURST, DEFAULT_MAX_SOURCES, DEFAULT_IDLE_MILLIS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param clock the clock to use
+     * @param searchRate the sustained number of search requests allowed per second per source
+     * @param searchBurst the maximum number of search requests a source can send in a burst
+     * @param advertisementRate the sustained number of advertisements allowed per second per source
+     * @param advertisementBurst the maximum number of advertisements a source can send in a burst
+     * @param maxSources the maximum number of sources to track
+     * @param idleMillis the time after which an unused source is forgotten
+     */
+    public SSDPRateLimiter(SSDPClock clock, double searchRate, int searchBurst, double advertisementRate, int advertisementBurst, int maxSources, long idleMillis) {
+        this.clock = clock;
+        this.searchRate = searchRate;
+        this.searchBurst = searchBurst;
+        this.advertisementRate = advertisementRate;
+        this.advertisementBurst = advertisementBurst;
+        this.idleMillis = idleMillis;
+        int stripeCapacity = Math.max(1, maxSources / STRIPE_COUNT);
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe(stripeCapacity);
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof DatagramPacket) {
+            DatagramPacket p = (DatagramPacket)msg;
+            boolean search = isSearch(p.content());
+            if (!tryAcquire(p.sender().getAddress(), search)) {
+                logger.trace("Rate limit exceeded for {}; dropping packet", p.sender());
+                SSDPTrafficRing.outcome(SSDPTrafficRing.Outcome.RATE_LIMITED);
+                p.release();
+                return;
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    /**
+     * Attempts to take a token from a source's bucket.
+     *
+     * @param address the source address
+     * @param search whether the packet is a search request
+     *
+     * @return true if the packet should be processed; false if it should be dropped
+     */
+    public boolean tryAcquire(InetAddress address, boolean search) {
+        long now = clock.currentTimeMillis();
+        Stripe stripe = stripes[(address.hashCode() & 0x7fffffff) % STRIPE_COUNT];
+        boolean allowed;
+        synchronized (stripe) {
+            Buckets b = stripe.get(address);
+            if (b == null) {
+                b = new Buckets(searchBurst, advertisementBurst, now);
+                stripe.put(address, b);
+            }
+            b.lastAccess = now;
+            if (search) {
+                allowed = b.search.tryAcquire(now, searchRate, searchBurst);
+            } else {
+                allowed = b.advertisement.tryAcquire(now, advertisementRate, advertisementBurst);
+            }
+            stripe.evictIdle(now, idleMillis);
+        }
+        if (!allowed) {
+            if (search) {
+                droppedSearchCount.incrementAndGet();
+            } else {
+                droppedAdvertisementCount.incrementAndGet();
+            }
+        }
+        return allowed;
+    }
+
+    public long getDroppedSearchCount() {
+        return droppedSearchCount.get();
+    }
+
+    public long getDroppedAdvertisementCount() {
+        return droppedAdvertisementCount.get();
+    }
+
+    /**
+     * Returns the number of sources currently being tracked.
+     *
+     * @return an int
+     */
+    public int getSourceCount() {
+        int count = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                count += s.size();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void registerGauges(SSDPMetrics metrics) {
+        metrics.registerGauge("searchesRateLimited", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getDroppedSearchCount();
+            }
+        });
+        metrics.registerGauge("advertisementsRateLimited", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getDroppedAdvertisementCount();
+            }
+        });
+    }
+
+    static boolean isSearch(ByteBuf buf) {
+        int ix = buf.readerIndex();
+        if (buf.readableBytes() < M_SEARCH.length) {
+            return false;
+        }
+        for (int i = 0; i < M_SEARCH.length; i++) {
+            if (buf.getByte(ix + i) != M_SEARCH[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Stripe extends LinkedHashMap<InetAddress,Buckets> {
+        private final int capacity;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetAddress,Buckets> eldest) {
+            return size() > capacity;
+        }
+
+        /**
+         * Removes idle buckets from the least recently used end of the stripe. Only a couple of entries are
+         * examined per call so that the cost stays constant.
+         */
+        void evictIdle(long now, long idleMillis) {
+            Iterator<Buckets> it = values().iterator();
+            for (int i = 0; i < 2 && it.hasNext(); i++) {
+                if (now - it.next().lastAccess > idleMillis) {
+                    it.remove();
+                } else {
+                    break;
+                }
+            }
+        }
+    }
+
+    private static class Buckets {
+        final TokenBucket search;
+        final TokenBucket advertisement;
+        long lastAccess;
+
+        Buckets(int searchBurst, int advertisementBurst, long now) {
+            this.search = new TokenBucket(searchBurst, now);
+            this.advertisement = new TokenBucket(advertisementBurst, now);
+            this.lastAccess = now;
+        }
+    }
+
+    private static class TokenBucket {
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(int tokens, long now) {
+            this.tokens = tokens;
+            this.lastRefill = now;
+        }
+
+        boolean tryAcquire(long now, double rate, int burst) {
+            if (now > lastRefill) {
+                tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1000.0);
+                lastRefill = now;
+            }
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import com.whizzosoftware.hobson.api.disco.DeviceAdvertisement;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A cache of encoded search responses for internal device advertisements. Each response is encoded once into a
+ * pooled direct buffer and every send after that is a duplicate of the same buffer.
+ *
+ * An entry is re-encoded when the URI of its advertisement changes and is released when the advertisement is no
+ * longer published or when it is explicitly invalidated.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPResponseCache {
+    private final ByteBufAllocator allocator;
+    private final Map<String,CachedResponse> responses = new HashMap<>();
+
+    public SSDPResponseCache() {
+        this(PooledByteBufAllocator.DEFAULT);
+    }
+
+    public SSDPResponseCache(ByteBufAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    /**
+     * Returns the encoded search response for an advertisement. The caller owns the returned buffer and is
+     * responsible for releasing it (writing it to a channel does so).
+     *
+     * @param da the advertisement
+     *
+     * @return a ByteBuf
+     */
+    public ByteBuf getResponse(DeviceAdvertisement da) {
+        return getResponse(da, null);
+    }
+
+    /**
+     * Returns the encoded search response for an advertisement matched by a specific search target. The caller
+     * owns the returned buffer and is responsible for releasing it (writing it to a channel does so).
+     *
+     * @param da the advertisement
+     * @param searchTarget the ST to respond with (or null to use the advertisement ID)
+     *
+     * @return a ByteBuf
+     */
+    synchronized public ByteBuf getResponse(DeviceAdvertisement da, String searchTarget) {
+        if (searchTarget == null) {
+            searchTarget = da.getId();
+        }
+        String key = searchTarget.equals(da.getId()) ? da.getId() : da.getId() + ' ' + searchTarget;
+        CachedResponse r = responses.get(key);
+        if (r == null || !equals(r.uri, da.getUri())) {
+            if (r != null) {
+                r.buf.release();
+            }
+            r = new CachedResponse(da.getId(), da.getUri(), encode(da, searchTarget));
+            responses.put(key, r);
+        }
+        return r.buf.duplicate().retain();
+    }
+
+    /**
+     * Releases the cached responses for any advertisements that are not in the provided collection.
+     *
+     * @param current the currently published advertisements
+     */
+    synchronized public void retain(Collection<DeviceAdvertisement> current) {
+        if (responses.isEmpty()) {
+            return;
+        }
+        Set<String> ids = new HashSet<>();
+        if (current != null) {
+            for (DeviceAdvertisement da : current) {
+                ids.add(da.getId());
+            }
+        }
+        Iterator<Map.Entry<String,CachedResponse>> it = responses.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String,CachedResponse> e = it.next();
+            if (!ids.contains(e.getValue().id)) {
+                e.getValue().buf.release();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Invalidates the cached response for an advertisement.
+     *
+     * @param id the advertisement ID
+     */
+    synchronized public void invalidate(String id) {
+        Iterator<CachedResponse> it = responses.values().iterator();
+        while (it.hasNext()) {
+            CachedResponse r = it.next();
+            if (r.id.equals(id)) {
+                r.buf.release();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Invalidates all cached responses.
+     */
+    synchronized public void invalidateAll() {
+        for (CachedResponse r : responses.values()) {
+            r.buf.release();
+        }
+        responses.clear();
+    }
+
+    synchronized public int size() {
+        return responses.size();
+    }
+
+    private ByteBuf encode(DeviceAdvertisement da, String searchTarget) {
+        SSDPPacket p = SSDPPacket.createSearchResponse(da.getUri(), searchTarget, "urn");
+        ByteBuf buf = allocator.directBuffer(p.getEncodedLength());
+        p.encode(buf);
+        return buf;
+    }
+
+    private static boolean equals(String s1, String s2) {
+        return (s1 == null) ? s2 == null : s1.equals(s2);
+    }
+
+    private static class CachedResponse {
+        final String id;
+        final String uri;
+        final ByteBuf buf;
+
+        CachedResponse(String id, String uri, ByteBuf buf) {
+            this.id = id;
+            this.uri = uri;
+            this.buf = buf;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import com.whizzosoftware.hobson.api.disco.DeviceAdvertisement;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+
+/**
+ * Schedules search responses at random offsets within the MX window of the M-SEARCH request as described by the
+ * UPnP Device Architecture, rather than sending them all at once.
+ *
+ * Responses are placed on a hashed timing wheel so responses that fall within the same tick are coalesced and
+ * handed to the ResponseSink as a single batch. No more than a fixed number of responses are released per tick;
+ * any excess carries over to the following tick.
+ *
+ * Searches are coalesced per requester while their responses are pending. A repeat of a search (same sender and
+ * ST) is merged into the pending one, and a response that is already pending for a sender with the same ST isn't
+ * scheduled again. A narrower search that overlaps a pending ssdp:all search still gets its own responses since
+ * they carry a different ST. The number of responses that didn't need to be sent is available from
+ * getSavedCount().
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPResponseScheduler implements SSDPMetrics.Source {
+    public static final long DEFAULT_TICK_MILLIS = 50;
+    public static final int DEFAULT_MAX_RESPONSES_PER_TICK = 32;
+    public static final int DEFAULT_MX = 1;
+    public static final int MAX_MX = 5;
+
+    private final SSDPClock clock;
+    private final Random random;
+    private final int maxResponsesPerTick;
+    private final ResponseSink sink;
+    private final SSDPTimingWheel<ScheduledResponse> wheel;
+    private final Queue<ScheduledResponse> ready = new ArrayDeque<>();
+    private final Map<InetSocketAddress,Requester> requesters = new HashMap<>();
+    private long coalescedCount;
+    private long savedCount;
+
+    public SSDPResponseScheduler(ResponseSink sink) {
+        this(SSDPClock.MONOTONIC, new Random(), DEFAULT_TICK_MILLIS, DEFAULT_MAX_RESPONSES_PER_TICK, sink);
+    }
+
+    public SSDPResponseScheduler(SSDPClock clock, Random random, long tickMillis, int maxResponsesPerTick, ResponseSink sink) {
+        this.clock = clock;
+        this.random = random;
+        this.maxResponsesPerTick = maxResponsesPerTick;
+        this.sink = sink;
+        // enough buckets to cover the largest MX window in a single rotation
+        this.wheel = new SSDPTimingWheel<>(tickMillis, (int)(MAX_MX * 1000 / tickMillis) + 1, clock.currentTimeMillis());
+    }
+
+    /**
+     * Schedules responses to a search request.
+     *
+     * @param address the address of the requester
+     * @param advertisements the advertisements to respond with
+     * @param mx the MX value of the request in seconds (or -1 if it didn't include one)
+     *
+     * @return the number of responses scheduled
+     */
+    public int schedule(InetSocketAddress address, Collection<DeviceAdvertisement> advertisements, int mx) {
+        return schedule(address, advertisements, null, mx);
+    }
+
+    /**
+     * Schedules responses to a search request. Responses that are already pending for the requester with the same
+     * ST are not scheduled again.
+     *
+     * @param address the address of the requester
+     * @param advertisements the advertisements to respond with
+     * @param searchTarget the ST to respond with (or null to use each advertisement's ID)
+     * @param mx the MX value of the request in seconds (or -1 if it didn't include one)
+     *
+     * @return the number of responses scheduled
+     */
+    synchronized public int schedule(InetSocketAddress address, Collection<DeviceAdvertisement> advertisements, String searchTarget, int mx) {
+        long now = clock.currentTimeMillis();
+        int window = getWindowMillis(mx);
+        String requestKey = (searchTarget != null) ? searchTarget : SSDPSearchTargetIndex.ALL;
+        Requester r = requesters.get(address);
+        PendingRequest pr = null;
+        int count = 0;
+        for (DeviceAdvertisement da : advertisements) {
+            // a response with the advertisement's own ID as the ST is the same response an ssdp:all search gets
+            String st = (searchTarget != null && !searchTarget.equals(da.getId())) ? searchTarget : null;
+            String responseKey = (st != null) ? da.getId() + ' ' + st : da.getId();
+            if (r != null && r.responses.containsKey(responseKey)) {
+                savedCount++;
+                continue;
+            }
+            if (r == null) {
+                r = new Requester();
+                requesters.put(address, r);
+            }
+            if (pr == null) {
+                pr = r.requests.get(requestKey);
+                if (pr == null) {
+                    pr = new PendingRequest();
+                    r.requests.put(requestKey, pr);
+                }
+            }
+            ScheduledResponse sr = new ScheduledResponse(address, da, searchTarget, now);
+            sr.requestKey = requestKey;
+            sr.responseKey = responseKey;
+            r.responses.put(sr.responseKey, sr);
+            pr.remaining++;
+            long offset = (window > 0) ? random.nextInt(window) : 0;
+            wheel.schedule(sr, now + offset);
+            count++;
+        }
+        if (pr != null) {
+            pr.total += advertisements.size();
+        }
+        return count;
+    }
+
+    /**
+     * Merges a search into an identical one (same sender and ST) whose responses are still pending. The caller
+     * doesn't need to process a merged search any further.
+     *
+     * @param address the address of the requester
+     * @param st the ST of the search
+     *
+     * @return true if the search was merged
+     */
+    synchronized public boolean coalesce(InetSocketAddress address, String st) {
+        Requester r = requesters.get(address);
+        PendingRequest pr = (r != null) ? r.requests.get(st) : null;
+        if (pr != null) {
+            coalescedCount++;
+            savedCount += pr.total;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Releases all responses that are due. This should be called once per tick.
+     */
+    public void tick() {
+        List<ScheduledResponse> batch = null;
+        synchronized (this) {
+            wheel.expire(clock.currentTimeMillis(), ready);
+            int count = Math.min(ready.size(), maxResponsesPerTick);
+            if (count > 0) {
+                batch = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    ScheduledResponse sr = ready.poll();
+                    released(sr);
+                    batch.add(sr);
+                }
+            }
+        }
+        if (batch != null) {
+            sink.sendResponses(batch);
+        }
+    }
+
+    synchronized public int getPendingCount() {
+        return wheel.size() + ready.size();
+    }
+
+    synchronized public void clear() {
+        wheel.clear();
+        ready.clear();
+        requesters.clear();
+    }
+
+    /**
+     * Returns the number of searches that were merged into identical pending searches.
+     *
+     * @return a long
+     */
+    synchronized public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * Returns the number of responses that weren't sent because an identical response was already pending.
+     *
+     * @return a long
+     */
+    synchronized public long getSavedCount() {
+        return savedCount;
+    }
+
+    @Override
+    public void registerGauges(SSDPMetrics metrics) {
+        metrics.registerGauge("responsesPending", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getPendingCount();
+            }
+        });
+        metrics.registerGauge("searchRequestsCoalesced", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getCoalescedCount();
+            }
+        });
+        metrics.registerGauge("searchResponsesSaved", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getSavedCount();
+            }
+        });
+    }
+
+    private void released(ScheduledResponse sr) {
+        Requester r = requesters.get(sr.address);
+        if (r != null && r.responses.get(sr.responseKey) == sr) {
+            r.responses.remove(sr.responseKey);
+            PendingRequest pr = r.requests.get(sr.requestKey);
+            if (pr != null && --pr.remaining == 0) {
+                r.requests.remove(sr.requestKey);
+            }
+            if (r.responses.isEmpty()) {
+                requesters.remove(sr.address);
+            }
+        }
+    }
+
+    public long getTickMillis() {
+        return wheel.getTickMillis();
+    }
+
+    static int getWindowMillis(int mx) {
+        if (mx < 0) {
+            mx = DEFAULT_MX;
+        }
+        return Math.min(mx, MAX_MX) * 1000;
+    }
+
+    /**
+     * A response waiting to be sent.
+     */
+    public static class ScheduledResponse {
+        private final InetSocketAddress address;
+        private final DeviceAdvertisement advertisement;
+        private final String searchTarget;
+        private final long requestTime;
+
+        // coalescing state; only accessed while holding the scheduler's lock
+        private String requestKey;
+        private String responseKey;
+
+        public ScheduledResponse(InetSocketAddress address, DeviceAdvertisement advertisement, String searchTarget, long requestTime) {
+            this.address = address;
+            this.advertisement = advertisement;
+            this.searchTarget = searchTarget;
+            this.requestTime = requestTime;
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        public DeviceAdvertisement getAdvertisement() {
+            return advertisement;
+        }
+
+        /**
+         * Returns the ST to respond with.
+         *
+         * @return the ST (or null if the advertisement ID should be used)
+         */
+        public String getSearchTarget() {
+            return searchTarget;
+        }
+
+        public long getRequestTime() {
+            return requestTime;
+        }
+    }
+
+    /**
+     * The searches and responses pending for a single requester.
+     */
+    private static class Requester {
+        final Map<String,PendingRequest> requests = new HashMap<>();
+        final Map<String,ScheduledResponse> responses = new HashMap<>();
+    }
+
+    /**
+     * A search whose responses have not all been sent yet.
+     */
+    private static class PendingRequest {
+        int total;
+        int remaining;
+    }
+
+    /**
+     * The recipient of responses that are due to be sent.
+     */
+    public interface ResponseSink {
+        void sendResponses(List<ScheduledResponse> responses);
+    }
+}
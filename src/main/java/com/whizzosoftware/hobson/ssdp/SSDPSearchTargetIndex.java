@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import com.whizzosoftware.hobson.api.disco.DeviceAdvertisement;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An index of internal device advertisements by search target. Advertisement IDs are treated as search targets or
+ * USNs (e.g. "uuid:device-UUID::urn:schemas-upnp-org:device:Basic:1") and indexed by UUID, by root device and by
+ * device/service type and version so that any M-SEARCH ST can be answered without scanning every advertisement.
+ *
+ * Type searches follow UPnP version semantics: a search for version N matches advertisements of the same type
+ * with version N or greater.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPSearchTargetIndex {
+    public static final String ALL = "ssdp:all";
+    public static final String ROOT_DEVICE = "upnp:rootdevice";
+
+    private final Map<String,DeviceAdvertisement> byId = new HashMap<>();
+    private final Map<String,Set<String>> byTarget = new HashMap<>();
+    private final Map<String,Set<String>> byUuid = new HashMap<>();
+    private final Map<String,NavigableMap<Integer,Set<String>>> byType = new HashMap<>();
+    private final Set<String> rootDevices = new HashSet<>();
+
+    /**
+     * Adds (or replaces) an advertisement.
+     *
+     * @param da the advertisement
+     */
+    synchronized public void add(DeviceAdvertisement da) {
+        DeviceAdvertisement existing = byId.put(da.getId(), da);
+        if (existing == null) {
+            index(da.getId(), true);
+        }
+    }
+
+    /**
+     * Removes an advertisement.
+     *
+     * @param id the advertisement ID
+     */
+    synchronized public void remove(String id) {
+        if (byId.remove(id) != null) {
+            index(id, false);
+        }
+    }
+
+    /**
+     * Brings the index in line with the full set of published advertisements, adding and removing only the
+     * advertisements that have changed.
+     *
+     * @param current the currently published advertisements
+     */
+    synchronized public void sync(Collection<DeviceAdvertisement> current) {
+        Set<String> ids = new HashSet<>();
+        if (current != null) {
+            for (DeviceAdvertisement da : current) {
+                ids.add(da.getId());
+                add(da);
+            }
+        }
+        Iterator<String> it = byId.keySet().iterator();
+        while (it.hasNext()) {
+            String id = it.next();
+            if (!ids.contains(id)) {
+                it.remove();
+                index(id, false);
+            }
+        }
+    }
+
+    synchronized public int size() {
+        return byId.size();
+    }
+
+    synchronized public Collection<DeviceAdvertisement> getAll() {
+        return new ArrayList<>(byId.values());
+    }
+
+    /**
+     * Returns the advertisements that match a search target.
+     *
+     * @param st the search target
+     *
+     * @return a List of DeviceAdvertisement objects (never null)
+     */
+    synchronized public List<DeviceAdvertisement> find(String st) {
+        if (ALL.equals(st)) {
+            return new ArrayList<>(byId.values());
+        }
+
+        Set<String> ids = new LinkedHashSet<>();
+        addAll(ids, byTarget.get(st));
+        if (ROOT_DEVICE.equals(st)) {
+            ids.addAll(rootDevices);
+        } else if (st.startsWith("uuid:")) {
+            addAll(ids, byUuid.get(st));
+        } else {
+            int ix = st.lastIndexOf(':');
+            int version = parseVersion(st, ix);
+            if (version > -1) {
+                NavigableMap<Integer,Set<String>> versions = byType.get(st.substring(0, ix));
+                if (versions != null) {
+                    for (Set<String> s : versions.tailMap(version, true).values()) {
+                        ids.addAll(s);
+                    }
+                }
+            }
+        }
+
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<DeviceAdvertisement> results = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            results.add(byId.get(id));
+        }
+        return results;
+    }
+
+    private void index(String id, boolean add) {
+        String uuid = null;
+        String target = id;
+        int ix = id.indexOf("::");
+        if (ix > -1) {
+            uuid = id.substring(0, ix);
+            target = id.substring(ix + 2);
+        } else if (id.startsWith("uuid:")) {
+            uuid = id;
+            target = null;
+        }
+
+        if (uuid != null) {
+            update(byUuid, uuid, id, add);
+        }
+        if (target != null) {
+            update(byTarget, target, id, add);
+            if (ROOT_DEVICE.equals(target)) {
+                if (add) {
+                    rootDevices.add(id);
+                } else {
+                    rootDevices.remove(id);
+                }
+            } else if (target.startsWith("urn:")) {
+                int vix = target.lastIndexOf(':');
+                int version = parseVersion(target, vix);
+                if (version > -1) {
+                    String type = target.substring(0, vix);
+                    NavigableMap<Integer,Set<String>> versions = byType.get(type);
+                    if (versions == null && add) {
+                        versions = new TreeMap<>();
+                        byType.put(type, versions);
+                    }
+                    if (versions != null) {
+                        update(versions, version, id, add);
+                        if (versions.isEmpty()) {
+                            byType.remove(type);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static <K> void update(Map<K,Set<String>> map, K key, String id, boolean add) {
+        Set<String> s = map.get(key);
+        if (add) {
+            if (s == null) {
+                s = new LinkedHashSet<>();
+                map.put(key, s);
+            }
+            s.add(id);
+        } else if (s != null) {
+            s.remove(id);
+            if (s.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    private static void addAll(Set<String> ids, Set<String> s) {
+        if (s != null) {
+            ids.addAll(s);
+        }
+    }
+
+    static int parseVersion(String st, int ix) {
+        if (ix < 0 || ix == st.length() - 1) {
+            return -1;
+        }
+        int v = 0;
+        for (int i = ix + 1; i < st.length(); i++) {
+            char c = st.charAt(i);
+            if (c < '0' || c > '9' || v > 100000) {
+                return -1;
+            }
+            v = v * 10 + (c - '0');
+        }
+        return v;
+    }
+}
@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.channel.socket.DatagramPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A non-blocking sender for outbound SSDP datagrams. Writes are always performed on the channel's event loop and
+ * their completion is tracked with listeners rather than by waiting on them.
+ *
+ * When the channel is not writable, packets are held in a bounded queue that is drained when the channel becomes
+ * writable again. Once the queue is full, packets are dropped according to the configured DropPolicy.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPSender {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    public static final int DEFAULT_MAX_QUEUE_SIZE = 256;
+
+    private static final Exception DROPPED = new IllegalStateException("SSDP packet dropped; outbound queue full or channel closed") {
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            // the exception is shared so a stack trace would be both misleading and wasted work
+            return this;
+        }
+    };
+
+    public enum DropPolicy {
+        DROP_NEWEST,
+        DROP_OLDEST
+    }
+
+    private final Channel channel;
+    private final int maxQueueSize;
+    private final DropPolicy dropPolicy;
+    private final Queue<PendingWrite> queue = new ArrayDeque<>();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final ChannelFutureListener writeListener = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if (future.isSuccess()) {
+                sentCount.incrementAndGet();
+            } else {
+                failedCount.incrementAndGet();
+                logger.debug("Error sending SSDP packet", future.cause());
+            }
+        }
+    };
+
+    public SSDPSender(Channel channel) {
+        this(channel, DEFAULT_MAX_QUEUE_SIZE, DropPolicy.DROP_NEWEST);
+    }
+
+    public SSDPSender(Channel channel, int maxQueueSize, DropPolicy dropPolicy) {
+        this.channel = channel;
+        this.maxQueueSize = maxQueueSize;
+        this.dropPolicy = dropPolicy;
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Sends a single packet. This method never blocks.
+     *
+     * @param packet the packet to send
+     */
+    public void send(DatagramPacket packet) {
+        send(Collections.singletonList(packet));
+    }
+
+    /**
+     * Writes a group of packets followed by a single flush. This method never blocks.
+     *
+     * @param packets the packets to send
+     */
+    public void send(Collection<DatagramPacket> packets) {
+        send(packets, null);
+    }
+
+    /**
+     * Writes a group of packets followed by a single flush. This method never blocks.
+     *
+     * @param packets the packets to send
+     * @param listeners listeners to notify when each packet's write completes (or null); if provided, it must be
+     *                  the same size as the packets collection
+     */
+    public void send(final Collection<DatagramPacket> packets, final List<ChannelFutureListener> listeners) {
+        EventLoop loop = channel.eventLoop();
+        if (loop.inEventLoop()) {
+            write(packets, listeners);
+        } else {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(packets, listeners);
+                }
+            });
+        }
+    }
+
+    /**
+     * Drains any queued packets once the channel becomes writable. This should be called whenever the channel's
+     * writability changes.
+     */
+    public void channelWritabilityChanged() {
+        EventLoop loop = channel.eventLoop();
+        if (loop.inEventLoop()) {
+            drain();
+        } else {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+    }
+
+    /**
+     * Releases any packets that are still queued. This should be called when the channel is closed.
+     */
+    public void close() {
+        EventLoop loop = channel.eventLoop();
+        if (loop.inEventLoop()) {
+            releaseQueue();
+        } else {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    releaseQueue();
+                }
+            });
+        }
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    private void write(Collection<DatagramPacket> packets, List<ChannelFutureListener> listeners) {
+        boolean written = false;
+        int i = 0;
+        for (DatagramPacket p : packets) {
+            PendingWrite w = new PendingWrite(p, (listeners != null) ? listeners.get(i++) : null);
+            if (queue.isEmpty() && channel.isWritable()) {
+                w.write();
+                written = true;
+            } else {
+                enqueue(w);
+            }
+        }
+        if (written) {
+            channel.flush();
+        }
+    }
+
+    private void enqueue(PendingWrite w) {
+        if (!channel.isOpen()) {
+            w.drop();
+        } else if (queue.size() < maxQueueSize) {
+            queue.add(w);
+        } else {
+            if (dropPolicy == DropPolicy.DROP_OLDEST && !queue.isEmpty()) {
+                queue.poll().drop();
+                queue.add(w);
+            } else {
+                w.drop();
+            }
+            logger.trace("SSDP outbound queue is full; dropped packet");
+        }
+    }
+
+    private void drain() {
+        boolean written = false;
+        while (channel.isWritable() && !queue.isEmpty()) {
+            queue.poll().write();
+            written = true;
+        }
+        if (written) {
+            channel.flush();
+        }
+    }
+
+    private void releaseQueue() {
+        PendingWrite w;
+        while ((w = queue.poll()) != null) {
+            w.drop();
+        }
+    }
+
+    /**
+     * A packet and the (optional) caller-supplied listener for its write.
+     */
+    private class PendingWrite {
+        final DatagramPacket packet;
+        final ChannelFutureListener listener;
+
+        PendingWrite(DatagramPacket packet, ChannelFutureListener listener) {
+            this.packet = packet;
+            this.listener = listener;
+        }
+
+        void write() {
+            ChannelFuture f = channel.write(packet).addListener(writeListener);
+            if (listener != null) {
+                f.addListener(listener);
+            }
+        }
+
+        void drop() {
+            packet.release();
+            droppedCount.incrementAndGet();
+            if (listener != null) {
+                try {
+                    listener.operationComplete(channel.newFailedFuture(DROPPED));
+                } catch (Exception e) {
+                    logger.debug("Error notifying listener of dropped packet", e);
+                }
+            }
+        }
+    }
+}
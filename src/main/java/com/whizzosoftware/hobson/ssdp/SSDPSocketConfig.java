@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.FixedRecvByteBufAllocator;
+
+/**
+ * The tunable settings for the plugin's UDP sockets and event loop. Instances are immutable; a configuration
+ * update creates a new instance and the plugin compares it with the current one to decide whether its sockets need
+ * to be rebound.
+ *
+ * Buffer sizes and the multicast TTL are only applied when set; otherwise the operating system defaults are used.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPSocketConfig {
+    public static final int DEFAULT_LOCAL_PORT = 52378;
+    public static final int DEFAULT_EVENT_LOOP_THREADS = 1;
+    public static final int DEFAULT_MAX_MESSAGES_PER_READ = 16;
+    public static final int DEFAULT_RECEIVE_ALLOCATOR_SIZE = 2048;
+    public static final int UNSET = -1;
+
+    public static final SSDPSocketConfig DEFAULT = new SSDPSocketConfig(DEFAULT_LOCAL_PORT, UNSET, UNSET, DEFAULT_EVENT_LOOP_THREADS, DEFAULT_MAX_MESSAGES_PER_READ, DEFAULT_RECEIVE_ALLOCATOR_SIZE, UNSET);
+
+    private final int localPort;
+    private final int receiveBufferSize;
+    private final int sendBufferSize;
+    private final int eventLoopThreads;
+    private final int maxMessagesPerRead;
+    private final int receiveAllocatorSize;
+    private final int multicastTtl;
+
+    /**
+     * Constructor. Out of range values are replaced with their defaults.
+     *
+     * @param localPort the port the unicast sockets are bound to
+     * @param receiveBufferSize the SO_RCVBUF size in bytes (or UNSET)
+     * @param sendBufferSize the SO_SNDBUF size in bytes (or UNSET)
+     * @param eventLoopThreads the number of event loop threads
+     * @param maxMessagesPerRead the maximum number of datagrams read from a socket per read loop
+     * @param receiveAllocatorSize the size of the buffer each datagram is read into; larger datagrams are truncated
+     * @param multicastTtl the IP_MULTICAST_TTL for outbound multicast packets (or UNSET)
+     */
+    public SSDPSocketConfig(int localPort, int receiveBufferSize, int sendBufferSize, int eventLoopThreads, int maxMessagesPerRead, int receiveAllocatorSize, int multicastTtl) {
+        this.localPort = (localPort >= 0 && localPort <= 65535) ? localPort : DEFAULT_LOCAL_PORT;
+        this.receiveBufferSize = (receiveBufferSize > 0) ? receiveBufferSize : UNSET;
+        this.sendBufferSize = (sendBufferSize > 0) ? sendBufferSize : UNSET;
+        this.eventLoopThreads = (eventLoopThreads > 0) ? eventLoopThreads : DEFAULT_EVENT_LOOP_THREADS;
+        this.maxMessagesPerRead = (maxMessagesPerRead > 0) ? maxMessagesPerRead : DEFAULT_MAX_MESSAGES_PER_READ;
+        this.receiveAllocatorSize = (receiveAllocatorSize >= 512 && receiveAllocatorSize <= 65535) ? receiveAllocatorSize : DEFAULT_RECEIVE_ALLOCATOR_SIZE;
+        this.multicastTtl = (multicastTtl >= 0 && multicastTtl <= 255) ? multicastTtl : UNSET;
+    }
+
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public int getEventLoopThreads() {
+        return eventLoopThreads;
+    }
+
+    public int getMaxMessagesPerRead() {
+        return maxMessagesPerRead;
+    }
+
+    public int getReceiveAllocatorSize() {
+        return receiveAllocatorSize;
+    }
+
+    public int getMulticastTtl() {
+        return multicastTtl;
+    }
+
+    /**
+     * Applies the socket options to a bootstrap.
+     *
+     * @param b the bootstrap
+     *
+     * @return the bootstrap
+     */
+    public Bootstrap configure(Bootstrap b) {
+        b.option(ChannelOption.MAX_MESSAGES_PER_READ, maxMessagesPerRead);
+        b.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(receiveAllocatorSize));
+        if (receiveBufferSize != UNSET) {
+            b.option(ChannelOption.SO_RCVBUF, receiveBufferSize);
+        }
+        if (sendBufferSize != UNSET) {
+            b.option(ChannelOption.SO_SNDBUF, sendBufferSize);
+        }
+        if (multicastTtl != UNSET) {
+            b.option(ChannelOption.IP_MULTICAST_TTL, multicastTtl);
+        }
+        return b;
+    }
+
+    /**
+     * Indicates whether switching from another configuration to this one requires the sockets to be rebound.
+     *
+     * @param c the current configuration
+     *
+     * @return a boolean
+     */
+    public boolean requiresRebind(SSDPSocketConfig c) {
+        return localPort != c.localPort ||
+            receiveBufferSize != c.receiveBufferSize ||
+            sendBufferSize != c.sendBufferSize ||
+            maxMessagesPerRead != c.maxMessagesPerRead ||
+            receiveAllocatorSize != c.receiveAllocatorSize ||
+            multicastTtl != c.multicastTtl;
+    }
+
+    @Override
+    public String toString() {
+        return "localPort=" + localPort +
+            ", receiveBufferSize=" + receiveBufferSize +
+            ", sendBufferSize=" + sendBufferSize +
+            ", eventLoopThreads=" + eventLoopThreads +
+            ", maxMessagesPerRead=" + maxMessagesPerRead +
+            ", receiveAllocatorSize=" + receiveAllocatorSize +
+            ", multicastTtl=" + multicastTtl;
+    }
+}
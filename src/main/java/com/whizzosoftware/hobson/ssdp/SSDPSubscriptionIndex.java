@@ -0,0 +1,404 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import com.whizzosoftware.hobson.api.disco.DeviceAdvertisement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Delivers inbound advertisements to the consumers whose SSDPFilters they match. Rather than every consumer
+ * testing every advertisement, all subscriptions are compiled into one matching structure so that each
+ * advertisement is matched once:
+ *
+ * - each subscription is indexed by one of its conditions (preferring an exact or type test of the NT/ST)
+ * - exact conditions are looked up in a hash map per field
+ * - prefix conditions are looked up in a character trie per field, collecting every prefix along the value
+ * - type conditions are looked up by URN type and then by the versions at or below the advertised version
+ *
+ * Only the candidates found this way have any remaining conditions tested. The compiled structure is immutable
+ * and is rebuilt whenever a subscription is added or cancelled, so matching never takes a lock.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPSubscriptionIndex implements SSDPMetrics.Source {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private static final SSDPFilter.Field[] FIELDS = SSDPFilter.Field.values();
+
+    private final Set<Subscription> subscriptions = new LinkedHashSet<>();
+    private final SSDPCounter matchCount = new SSDPCounter();
+    private final SSDPCounter deliveryCount = new SSDPCounter();
+    private final SSDPCounter failureCount = new SSDPCounter();
+    private volatile Compiled compiled = new Compiled(Collections.<Subscription>emptySet());
+
+    /**
+     * Adds a subscription.
+     *
+     * @param filter the filter advertisements must match
+     * @param listener the listener to deliver matching advertisements to
+     *
+     * @return the Subscription (which can be used to cancel it)
+     */
+    public Subscription subscribe(SSDPFilter filter, Listener listener) {
+        Subscription s = new Subscription(filter, listener);
+        synchronized (this) {
+            subscriptions.add(s);
+            compiled = new Compiled(subscriptions);
+        }
+        return s;
+    }
+
+    /**
+     * Cancels a subscription.
+     *
+     * @param s the subscription
+     */
+    synchronized public void cancel(Subscription s) {
+        if (subscriptions.remove(s)) {
+            compiled = new Compiled(subscriptions);
+        }
+    }
+
+    synchronized public void clear() {
+        subscriptions.clear();
+        compiled = new Compiled(subscriptions);
+    }
+
+    synchronized public int size() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Returns the subscriptions whose filters match a packet.
+     *
+     * @param packet the packet
+     *
+     * @return a List of Subscription objects (never null)
+     */
+    public List<Subscription> match(SSDPPacket packet) {
+        return compiled.match(packet);
+    }
+
+    /**
+     * Delivers an advertisement to every subscription whose filter matches its packet. An exception thrown by one
+     * listener does not prevent delivery to the others.
+     *
+     * @param da the advertisement
+     * @param packet the advertisement's packet
+     *
+     * @return the number of subscriptions the advertisement was delivered to
+     */
+    public int deliver(DeviceAdvertisement da, SSDPPacket packet) {
+        List<Subscription> l = match(packet);
+        if (!l.isEmpty()) {
+            matchCount.increment();
+            for (Subscription s : l) {
+                try {
+                    s.listener.onAdvertisement(da, packet);
+                    deliveryCount.increment();
+                } catch (Throwable e) {
+                    failureCount.increment();
+                    logger.error("Error delivering SSDP advertisement to subscriber", e);
+                }
+            }
+        }
+        return l.size();
+    }
+
+    /**
+     * Returns the number of advertisements that matched at least one subscription.
+     *
+     * @return a long
+     */
+    public long getMatchCount() {
+        return matchCount.get();
+    }
+
+    public long getDeliveryCount() {
+        return deliveryCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    @Override
+    public void registerGauges(SSDPMetrics metrics) {
+        metrics.registerGauge("subscriptions", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return size();
+            }
+        });
+        metrics.registerGauge("subscriptionDeliveries", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getDeliveryCount();
+            }
+        });
+    }
+
+    /**
+     * Returns the condition a subscription is indexed by (or null if its filter has no conditions).
+     *
+     * @param filter the filter
+     *
+     * @return a Condition
+     */
+    static SSDPFilter.Condition selectIndexCondition(SSDPFilter filter) {
+        SSDPFilter.Condition best = null;
+        int bestRank = Integer.MAX_VALUE;
+        for (SSDPFilter.Condition c : filter.getConditions()) {
+            // exact tests are the most selective followed by types and then prefixes; the NT/ST is preferred
+            // over the other fields since it is what most consumers filter on
+            int rank;
+            switch (c.getKind()) {
+                case EXACT:
+                    rank = 0;
+                    break;
+                case TYPE:
+                    rank = 2;
+                    break;
+                default:
+                    rank = 4;
+                    break;
+            }
+            if (c.getField() != SSDPFilter.Field.TARGET) {
+                rank++;
+            }
+            if (rank < bestRank) {
+                best = c;
+                bestRank = rank;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * A consumer of matching advertisements.
+     */
+    public interface Listener {
+        /**
+         * Called from an SSDP processing thread for each matching advertisement. Advertisements for the same
+         * device are delivered in order.
+         *
+         * @param advertisement the advertisement
+         * @param packet the advertisement's packet
+         */
+        void onAdvertisement(DeviceAdvertisement advertisement, SSDPPacket packet);
+    }
+
+    /**
+     * A registered filter and listener.
+     */
+    public class Subscription {
+        private final SSDPFilter filter;
+        private final Listener listener;
+        private final SSDPFilter.Condition indexCondition;
+        private final boolean residual;
+
+        Subscription(SSDPFilter filter, Listener listener) {
+            this.filter = filter;
+            this.listener = listener;
+            this.indexCondition = selectIndexCondition(filter);
+            this.residual = filter.getConditions().size() > 1;
+        }
+
+        public SSDPFilter getFilter() {
+            return filter;
+        }
+
+        public Listener getListener() {
+            return listener;
+        }
+
+        public void cancel() {
+            SSDPSubscriptionIndex.this.cancel(this);
+        }
+    }
+
+    /**
+     * An immutable matching structure built from a set of subscriptions.
+     */
+    static private class Compiled {
+        final List<Subscription> all = new ArrayList<>();
+        final FieldIndex[] fields = new FieldIndex[FIELDS.length];
+
+        Compiled(Set<Subscription> subscriptions) {
+            for (Subscription s : subscriptions) {
+                SSDPFilter.Condition c = s.indexCondition;
+                if (c == null) {
+                    all.add(s);
+                } else {
+                    FieldIndex fi = fields[c.getField().ordinal()];
+                    if (fi == null) {
+                        fi = new FieldIndex();
+                        fields[c.getField().ordinal()] = fi;
+                    }
+                    fi.add(c, s);
+                }
+            }
+        }
+
+        List<Subscription> match(SSDPPacket packet) {
+            List<Subscription> results = null;
+            if (!all.isEmpty()) {
+                results = new ArrayList<>(all);
+            }
+            for (int i = 0; i < fields.length; i++) {
+                FieldIndex fi = fields[i];
+                if (fi != null) {
+                    String value = SSDPFilter.getValue(packet, FIELDS[i]);
+                    if (value != null) {
+                        results = fi.match(value, packet, results);
+                    }
+                }
+            }
+            return (results != null) ? results : Collections.<Subscription>emptyList();
+        }
+    }
+
+    /**
+     * The exact, prefix and type indices for a single field.
+     */
+    static private class FieldIndex {
+        final Map<String,List<Subscription>> exact = new HashMap<>();
+        final Map<String,NavigableMap<Integer,List<Subscription>>> types = new HashMap<>();
+        TrieNode prefixes;
+
+        void add(SSDPFilter.Condition c, Subscription s) {
+            switch (c.getKind()) {
+                case EXACT:
+                    add(exact, c.getValue(), s);
+                    break;
+                case TYPE:
+                    NavigableMap<Integer,List<Subscription>> versions = types.get(c.getValue());
+                    if (versions == null) {
+                        versions = new TreeMap<>();
+                        types.put(c.getValue(), versions);
+                    }
+                    add(versions, c.getMinVersion(), s);
+                    break;
+                case PREFIX:
+                    if (prefixes == null) {
+                        prefixes = new TrieNode();
+                    }
+                    TrieNode n = prefixes;
+                    for (int i = 0; i < c.getValue().length(); i++) {
+                        n = n.getOrCreateChild(c.getValue().charAt(i));
+                    }
+                    if (n.subscriptions == null) {
+                        n.subscriptions = new ArrayList<>();
+                    }
+                    n.subscriptions.add(s);
+                    break;
+            }
+        }
+
+        List<Subscription> match(String value, SSDPPacket packet, List<Subscription> results) {
+            if (!exact.isEmpty()) {
+                results = addMatches(results, exact.get(value), packet);
+            }
+            if (!types.isEmpty()) {
+                String v = SSDPFilter.getTypeValue(value);
+                int ix = v.lastIndexOf(':');
+                int version = SSDPSearchTargetIndex.parseVersion(v, ix);
+                if (version > -1) {
+                    NavigableMap<Integer,List<Subscription>> versions = types.get(v.substring(0, ix));
+                    if (versions != null) {
+                        for (List<Subscription> l : versions.headMap(version, true).values()) {
+                            results = addMatches(results, l, packet);
+                        }
+                    }
+                }
+            }
+            if (prefixes != null) {
+                TrieNode n = prefixes;
+                results = addMatches(results, n.subscriptions, packet);
+                for (int i = 0; i < value.length() && n != null; i++) {
+                    n = n.getChild(value.charAt(i));
+                    if (n != null) {
+                        results = addMatches(results, n.subscriptions, packet);
+                    }
+                }
+            }
+            return results;
+        }
+
+        private static <K> void add(Map<K,List<Subscription>> map, K key, Subscription s) {
+            List<Subscription> l = map.get(key);
+            if (l == null) {
+                l = new ArrayList<>();
+                map.put(key, l);
+            }
+            l.add(s);
+        }
+
+        private static List<Subscription> addMatches(List<Subscription> results, List<Subscription> candidates, SSDPPacket packet) {
+            if (candidates != null) {
+                for (Subscription s : candidates) {
+                    if (!s.residual || s.filter.matches(packet)) {
+                        if (results == null) {
+                            results = new ArrayList<>();
+                        }
+                        results.add(s);
+                    }
+                }
+            }
+            return results;
+        }
+    }
+
+    /**
+     * A node in a prefix trie. Children are kept in arrays sorted by character since most nodes have only one or
+     * two of them.
+     */
+    static private class TrieNode {
+        char[] keys = new char[0];
+        TrieNode[] children = new TrieNode[0];
+        List<Subscription> subscriptions;
+
+        TrieNode getChild(char c) {
+            int ix = Arrays.binarySearch(keys, c);
+            return (ix > -1) ? children[ix] : null;
+        }
+
+        TrieNode getOrCreateChild(char c) {
+            int ix = Arrays.binarySearch(keys, c);
+            if (ix > -1) {
+                return children[ix];
+            }
+            ix = -(ix + 1);
+            char[] k = new char[keys.length + 1];
+            TrieNode[] ch = new TrieNode[children.length + 1];
+            System.arraycopy(keys, 0, k, 0, ix);
+            System.arraycopy(children, 0, ch, 0, ix);
+            System.arraycopy(keys, ix, k, ix + 1, keys.length - ix);
+            System.arraycopy(children, ix, ch, ix + 1, children.length - ix);
+            TrieNode n = new TrieNode();
+            k[ix] = c;
+            ch[ix] = n;
+            keys = k;
+            children = ch;
+            return n;
+        }
+    }
+}
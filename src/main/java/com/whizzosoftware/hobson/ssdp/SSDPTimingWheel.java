@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import java.util.Collection;
+
+/**
+ * A hashed timing wheel. Items are placed in the bucket for the tick in which they expire so that scheduling,
+ * cancelling and expiring an item are all O(1) operations regardless of how many items are scheduled.
+ *
+ * The wheel has no thread of its own; it is advanced by calling expire() with the current time, which must come
+ * from a clock that never goes backwards (see SSDPClock.MONOTONIC); the wheel doesn't expire anything until time
+ * passes the last tick it reached. It is not thread-safe so callers must provide their own synchronization.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPTimingWheel<T> {
+    private final long tickMillis;
+    private final long startTime;
+    private final Timeout<T>[] buckets;
+    private final int mask;
+    private long currentTick;
+    private int size;
+
+    /**
+     * Constructor.
+     *
+     * @param tickMillis the duration of a tick in milliseconds
+     * @param wheelSize the number of buckets (rounded up to a power of two)
+     * @param startTime the time corresponding to the wheel's first tick
+     */
+    @SuppressWarnings("unchecked")
+    public SSDPTimingWheel(long tickMillis, int wheelSize, long startTime) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("Tick duration must be greater than zero");
+        }
+        int n = 1;
+        while (n < wheelSize) {
+            n <<= 1;
+        }
+        this.tickMillis = tickMillis;
+        this.startTime = startTime;
+        this.buckets = new Timeout[n];
+        this.mask = n - 1;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Schedules an item. Deadlines in the past are placed in the current tick.
+     *
+     * @param item the item
+     * @param deadline the time (in milliseconds) at which the item expires
+     *
+     * @return a Timeout that can be used to cancel the item
+     */
+    public Timeout<T> schedule(T item, long deadline) {
+        long tick = Math.max((deadline - startTime) / tickMillis, currentTick);
+        Timeout<T> t = new Timeout<>(item, tick);
+        int ix = (int)(tick & mask);
+        t.bucket = ix;
+        t.next = buckets[ix];
+        if (t.next != null) {
+            t.next.prev = t;
+        }
+        buckets[ix] = t;
+        size++;
+        return t;
+    }
+
+    /**
+     * Cancels a scheduled item.
+     *
+     * @param t the Timeout returned when the item was scheduled
+     *
+     * @return true if the item was removed; false if it had already expired or been cancelled
+     */
+    public boolean cancel(Timeout<T> t) {
+        if (t.bucket < 0) {
+            return false;
+        }
+        unlink(t);
+        return true;
+    }
+
+    /**
+     * Advances the wheel to the provided time and collects all items that have expired.
+     *
+     * @param now the current time in milliseconds
+     * @param expired the collection to add expired items to
+     *
+     * @return the number of items that expired
+     */
+    public int expire(long now, Collection<? super T> expired) {
+        long target = (now - startTime) / tickMillis;
+        if (target < currentTick) {
+            return 0;
+        }
+        int count = 0;
+        long steps = Math.min(target - currentTick + 1, buckets.length);
+        for (long i = 0; i < steps; i++) {
+            Timeout<T> t = buckets[(int)((currentTick + i) & mask)];
+            while (t != null) {
+                Timeout<T> next = t.next;
+                if (t.tick <= target) {
+                    unlink(t);
+                    expired.add(t.item);
+                    count++;
+                }
+                t = next;
+            }
+        }
+        currentTick = target + 1;
+        return count;
+    }
+
+    /**
+     * Removes all scheduled items.
+     */
+    public void clear() {
+        for (int i = 0; i < buckets.length; i++) {
+            Timeout<T> t = buckets[i];
+            while (t != null) {
+                Timeout<T> next = t.next;
+                t.bucket = -1;
+                t.prev = null;
+                t.next = null;
+                t = next;
+            }
+            buckets[i] = null;
+        }
+        size = 0;
+    }
+
+    private void unlink(Timeout<T> t) {
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else {
+            buckets[t.bucket] = t.next;
+        }
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        }
+        t.bucket = -1;
+        t.prev = null;
+        t.next = null;
+        size--;
+    }
+
+    /**
+     * A handle for an item scheduled on the wheel.
+     */
+    public static class Timeout<T> {
+        private final T item;
+        private final long tick;
+        private int bucket;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+
+        Timeout(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        public boolean isPending() {
+            return bucket > -1;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+/**
+ * A compact, append-only binary log of received SSDP datagrams that can be replayed later.
+ *
+ * A log starts with a magic number and version. It is followed by records that are either a sync record
+ * (an absolute timestamp in microseconds since the epoch, written each time a writer is opened) or a datagram
+ * record: the microseconds elapsed since the previous record, the sender address and port, and the datagram
+ * payload. Elapsed times and lengths are written as unsigned varints so a typical record has only a few bytes of
+ * overhead. A record that was cut short (e.g. by a crash while writing) marks the end of the log; when an existing
+ * log is opened for appending, any such record is truncated away first so the new records follow the last complete
+ * one.
+ *
+ * Writes are plain blocking file writes. When a log is recorded from the inbound pipeline (see
+ * SSDPTrafficRecorder) they happen on the I/O event loop and so add to the latency of the read path.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPTrafficLog {
+    static final byte[] MAGIC = {'S', 'S', 'D', 'P', 'L', 'O', 'G'};
+    static final int VERSION = 1;
+    static final int RECORD_SYNC = 0;
+    static final int RECORD_DATAGRAM = 1;
+    static final int MAX_DATAGRAM_SIZE = 65535;
+
+    private SSDPTrafficLog() {}
+
+    /**
+     * Opens a log for appending, writing the file header if the file is new. An existing log is read through once
+     * to find the end of its last complete record and anything after that is truncated.
+     *
+     * @param file the log file
+     * @param timeMicros the current time in microseconds since the epoch
+     *
+     * @return a Writer
+     * @throws IOException on failure or if the existing file is not a valid traffic log
+     */
+    public static Writer openWriter(File file, long timeMicros) throws IOException {
+        boolean exists = file.length() > 0;
+        if (exists) {
+            long end;
+            try (Reader r = openReader(file)) {
+                while (r.next() != null) {
+                    // read to the end
+                }
+                end = r.getPosition();
+            }
+            if (end < file.length()) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(end);
+                }
+            }
+        }
+        return new Writer(new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024), !exists, timeMicros);
+    }
+
+    /**
+     * Opens a log for reading.
+     *
+     * @param file the log file
+     *
+     * @return a Reader
+     * @throws IOException on failure or if the file is not a traffic log
+     */
+    public static Reader openReader(File file) throws IOException {
+        return new Reader(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+    }
+
+    /**
+     * Writes records to a log. Writes are synchronized so a single writer can be shared by several event loops.
+     */
+    public static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private long lastTimeMicros;
+        private long recordCount;
+        private boolean closed;
+
+        /**
+         * Constructor.
+         *
+         * @param out the stream to write to
+         * @param writeHeader whether to write the file header (false when appending to an existing log)
+         * @param timeMicros the current time in microseconds since the epoch
+         *
+         * @throws IOException on failure
+         */
+        public Writer(OutputStream out, boolean writeHeader, long timeMicros) throws IOException {
+            this.out = new DataOutputStream(out);
+            if (writeHeader) {
+                this.out.write(MAGIC);
+                this.out.writeByte(VERSION);
+            }
+            this.out.writeByte(RECORD_SYNC);
+            this.out.writeLong(timeMicros);
+            lastTimeMicros = timeMicros;
+        }
+
+        synchronized public void write(long timeMicros, InetSocketAddress sender, ByteBuf data) throws IOException {
+            int len = data.readableBytes();
+            writeHeader(timeMicros, sender, len);
+            data.getBytes(data.readerIndex(), out, len);
+            recordCount++;
+        }
+
+        synchronized public void write(long timeMicros, InetSocketAddress sender, byte[] data, int offset, int length) throws IOException {
+            writeHeader(timeMicros, sender, length);
+            out.write(data, offset, length);
+            recordCount++;
+        }
+
+        synchronized public void flush() throws IOException {
+            if (!closed) {
+                out.flush();
+            }
+        }
+
+        synchronized public long getRecordCount() {
+            return recordCount;
+        }
+
+        @Override
+        synchronized public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                out.close();
+            }
+        }
+
+        private void writeHeader(long timeMicros, InetSocketAddress sender, int length) throws IOException {
+            if (closed) {
+                throw new IOException("Traffic log is closed");
+            }
+            if (length > MAX_DATAGRAM_SIZE) {
+                throw new IOException("Datagram too large to record: " + length);
+            }
+            // clock adjustments never produce a negative delta; the record simply shares the previous timestamp
+            long delta = Math.max(0, timeMicros - lastTimeMicros);
+            lastTimeMicros += delta;
+            byte[] addr = sender.getAddress().getAddress();
+            out.writeByte(RECORD_DATAGRAM);
+            writeVarLong(out, delta);
+            out.writeByte(addr.length);
+            out.write(addr);
+            out.writeShort(sender.getPort());
+            writeVarLong(out, length);
+        }
+    }
+
+    /**
+     * Reads records from a log in the order they were written.
+     */
+    public static class Reader implements Closeable {
+        private final CountingInputStream counter;
+        private final DataInputStream in;
+        private long timeMicros;
+        private long position;
+
+        public Reader(InputStream in) throws IOException {
+            this.counter = new CountingInputStream(in);
+            this.in = new DataInputStream(counter);
+            byte[] magic = new byte[MAGIC.length];
+            try {
+                this.in.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC)) {
+                    throw new IOException("Not an SSDP traffic log");
+                }
+                int version = this.in.readUnsignedByte();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported SSDP traffic log version: " + version);
+                }
+            } catch (EOFException e) {
+                throw new IOException("Not an SSDP traffic log", e);
+            }
+            position = counter.count;
+        }
+
+        /**
+         * Returns the next datagram record.
+         *
+         * @return a Record (or null at the end of the log)
+         * @throws IOException on failure or if the log is corrupt
+         */
+        public Record next() throws IOException {
+            try {
+                while (true) {
+                    int type = in.read();
+                    if (type == -1) {
+                        return null;
+                    } else if (type == RECORD_SYNC) {
+                        timeMicros = in.readLong();
+                        position = counter.count;
+                    } else if (type == RECORD_DATAGRAM) {
+                        timeMicros += readVarLong(in);
+                        byte[] addr = new byte[in.readUnsignedByte()];
+                        in.readFully(addr);
+                        int port = in.readUnsignedShort();
+                        long len = readVarLong(in);
+                        if (len > MAX_DATAGRAM_SIZE) {
+                            throw new IOException("Invalid datagram length in SSDP traffic log: " + len);
+                        }
+                        byte[] data = new byte[(int)len];
+                        in.readFully(data);
+                        position = counter.count;
+                        return new Record(timeMicros, new InetSocketAddress(InetAddress.getByAddress(addr), port), data);
+                    } else {
+                        throw new IOException("Invalid record type in SSDP traffic log: " + type);
+                    }
+                }
+            } catch (EOFException e) {
+                // a partially written record at the end of the log
+                return null;
+            }
+        }
+
+        /**
+         * Returns the offset just past the last complete record that has been read.
+         *
+         * @return a byte offset
+         */
+        long getPosition() {
+            return position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Counts the bytes read through it so the Reader knows where each record ends.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * A single recorded datagram.
+     */
+    public static class Record {
+        private final long timeMicros;
+        private final InetSocketAddress sender;
+        private final byte[] data;
+
+        public Record(long timeMicros, InetSocketAddress sender, byte[] data) {
+            this.timeMicros = timeMicros;
+            this.sender = sender;
+            this.data = data;
+        }
+
+        public long getTimeMicros() {
+            return timeMicros;
+        }
+
+        public InetSocketAddress getSender() {
+            return sender;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int)((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int)v);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Invalid varint in SSDP traffic log");
+    }
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.DatagramPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A handler that sits at the front of the inbound pipeline and records every received datagram to an
+ * SSDPTrafficLog before passing it on unchanged. Datagrams are recorded before rate limiting so a log captures
+ * exactly what arrived on the wire, including any storm that was being throttled.
+ *
+ * The log is flushed at the end of each read batch. Writes (and flushes) are blocking file I/O performed on the I/O
+ * event loop, so recording slows the read path down and is meant for diagnostics rather than permanent use. If
+ * writing fails, recording stops and the datagrams continue to be processed normally.
+ *
+ * @author Dan Noguerol
+ */
+@ChannelHandler.Sharable
+public class SSDPTrafficRecorder extends ChannelInboundHandlerAdapter implements SSDPMetrics.Source {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final SSDPTrafficLog.Writer writer;
+    private final long baseMicros;
+    private final long baseNanos;
+    private volatile boolean recording = true;
+
+    public SSDPTrafficRecorder(File file) throws IOException {
+        this.baseMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+        this.baseNanos = System.nanoTime();
+        this.writer = SSDPTrafficLog.openWriter(file, baseMicros);
+    }
+
+    public SSDPTrafficRecorder(SSDPTrafficLog.Writer writer) {
+        this.baseMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+        this.baseNanos = System.nanoTime();
+        this.writer = writer;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (recording && msg instanceof DatagramPacket) {
+            DatagramPacket p = (DatagramPacket)msg;
+            try {
+                // timestamps come from the monotonic clock so that replay timing isn't skewed by clock changes
+                writer.write(baseMicros + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - baseNanos), p.sender(), p.content());
+            } catch (IOException e) {
+                stop(e);
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (recording) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                stop(e);
+            }
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    public long getRecordCount() {
+        return writer.getRecordCount();
+    }
+
+    @Override
+    public void registerGauges(SSDPMetrics metrics) {
+        metrics.registerGauge("datagramsRecorded", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getRecordCount();
+            }
+        });
+    }
+
+    /**
+     * Stops recording and closes the log.
+     */
+    public void close() {
+        recording = false;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.error("Error closing SSDP traffic log", e);
+        }
+    }
+
+    private void stop(IOException e) {
+        if (!recording) {
+            return;
+        }
+        logger.error("Error recording SSDP traffic; recording stopped", e);
+        close();
+    }
+}
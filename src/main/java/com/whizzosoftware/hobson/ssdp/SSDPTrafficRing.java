@@ -0,0 +1,321 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.CharsetUtil;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A handler that sits at the front of the inbound pipeline and keeps the most recently received datagrams in a
+ * fixed-size ring so that recent traffic can be inspected on demand without trace logging.
+ *
+ * Recording is lock-free: each datagram claims the next sequence number and replaces the entry in the slot it maps
+ * to. An entry holds a retained slice of its datagram's buffer, which is released when the entry is overwritten
+ * (or the ring is cleared). Since received buffers come from a pooled allocator, a full ring keeps up to capacity
+ * receive buffers out of the pool. The release and any read of an entry's data are done while holding the entry's
+ * monitor, so a dump can never read a buffer that has already gone back to the pool; that monitor is only ever
+ * contended between a writer and a dump.
+ *
+ * The handlers further along the pipeline report what they did with the datagram through outcome(), which updates
+ * the entry currently being processed on the calling thread (and does nothing if no ring is installed). Work that
+ * is handed off to another thread can take the entry along (see current()) and update it when it finishes.
+ *
+ * @author Dan Noguerol
+ */
+@ChannelHandler.Sharable
+public class SSDPTrafficRing extends ChannelInboundHandlerAdapter implements SSDPMetrics.Source {
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final ThreadLocal<Entry> current = new ThreadLocal<>();
+
+    /**
+     * What happened to a datagram.
+     */
+    public enum Outcome {
+        /** received and not (yet) handled */
+        RECEIVED,
+        RATE_LIMITED,
+        /** sent by this host */
+        LOCAL,
+        PARSE_ERROR,
+        IGNORED,
+        /** an unchanged advertisement that was suppressed */
+        DUPLICATE,
+        /** an advertisement handed off for publication that hasn't been published yet */
+        ACCEPTED,
+        PUBLISHED,
+        /** a search request queued for processing */
+        SEARCH,
+        BYEBYE,
+        /** an advertisement discarded before publication because its device said byebye */
+        WITHDRAWN,
+        /** dropped because processing is overloaded */
+        OVERLOADED
+    }
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicLong sequence = new AtomicLong();
+
+    public SSDPTrafficRing() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the number of datagrams to keep (rounded up to a power of two)
+     */
+    public SSDPTrafficRing(int capacity) {
+        int size = Math.max(2, Integer.highestOneBit(Math.max(1, capacity - 1) << 1));
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Returns the entry for the datagram currently being processed on this thread.
+     *
+     * @return an Entry (or null if there isn't one)
+     */
+    static public Entry current() {
+        return current.get();
+    }
+
+    /**
+     * Records the outcome of the datagram currently being processed on this thread.
+     *
+     * @param outcome the outcome
+     */
+    static public void outcome(Outcome outcome) {
+        Entry e = current.get();
+        if (e != null) {
+            e.outcome = outcome;
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof DatagramPacket) {
+            DatagramPacket p = (DatagramPacket)msg;
+            Entry e = record(p.sender(), ctx.channel().localAddress(), p.content());
+            current.set(e);
+            try {
+                ctx.fireChannelRead(msg);
+            } finally {
+                current.remove();
+            }
+        } else {
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    /**
+     * Records a datagram. The ring retains its own reference to the data.
+     *
+     * @param sender the address the datagram came from
+     * @param local the address of the socket that received it
+     * @param data the datagram payload
+     *
+     * @return the new Entry
+     */
+    public Entry record(InetSocketAddress sender, SocketAddress local, ByteBuf data) {
+        long seq = sequence.getAndIncrement();
+        Entry e = new Entry(seq, System.currentTimeMillis(), sender, local, data.slice().retain());
+        Entry old = slots.getAndSet((int)(seq & mask), e);
+        if (old != null) {
+            old.release();
+        }
+        return e;
+    }
+
+    public int getCapacity() {
+        return slots.length();
+    }
+
+    /**
+     * Returns the total number of datagrams recorded (including those that have since been overwritten).
+     *
+     * @return a long
+     */
+    public long getRecordedCount() {
+        return sequence.get();
+    }
+
+    @Override
+    public void registerGauges(SSDPMetrics metrics) {
+        metrics.registerGauge("datagramsBuffered", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getRecordedCount();
+            }
+        });
+    }
+
+    /**
+     * Returns the entries currently in the ring, oldest first. Datagrams recorded while this is running may or may
+     * not be included.
+     *
+     * @return a List of Entry objects
+     */
+    public List<Entry> getEntries() {
+        long end = sequence.get();
+        long start = Math.max(0, end - slots.length());
+        List<Entry> entries = new ArrayList<>((int)(end - start));
+        for (long seq = start; seq < end; seq++) {
+            Entry e = slots.get((int)(seq & mask));
+            // skip slots that a writer has claimed but not filled yet or has already overwritten
+            if (e != null && e.sequence == seq) {
+                entries.add(e);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Removes every entry and releases its data.
+     */
+    public void clear() {
+        for (int i = 0; i < slots.length(); i++) {
+            Entry e = slots.getAndSet(i, null);
+            if (e != null) {
+                e.release();
+            }
+        }
+    }
+
+    /**
+     * Formats the entries currently in the ring, oldest first.
+     *
+     * @return a String
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        for (Entry e : getEntries()) {
+            String data = e.getDataAsString();
+            sb.append('#').append(e.getSequence())
+                .append(' ').append(df.format(new Date(e.getTimestamp())))
+                .append(' ').append(e.getSender())
+                .append(" -> ").append(e.getLocalAddress())
+                .append(' ').append(e.getOutcome())
+                .append(" (").append(e.getLength()).append(" bytes)\n")
+                .append((data != null) ? data : "[overwritten]\n")
+                .append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A recorded datagram.
+     */
+    static public class Entry {
+        private final long sequence;
+        private final long timestamp;
+        private final InetSocketAddress sender;
+        private final SocketAddress localAddress;
+        private final int length;
+        private ByteBuf data;
+        private volatile Outcome outcome = Outcome.RECEIVED;
+
+        Entry(long sequence, long timestamp, InetSocketAddress sender, SocketAddress localAddress, ByteBuf data) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.sender = sender;
+            this.localAddress = localAddress;
+            this.length = data.readableBytes();
+            this.data = data;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public InetSocketAddress getSender() {
+            return sender;
+        }
+
+        /**
+         * Returns the address of the socket that received the datagram.
+         *
+         * @return a SocketAddress
+         */
+        public SocketAddress getLocalAddress() {
+            return localAddress;
+        }
+
+        /**
+         * Returns a copy of the datagram.
+         *
+         * @return a byte array (or null if the entry has been overwritten since it was obtained)
+         */
+        synchronized public byte[] getData() {
+            if (data == null) {
+                return null;
+            }
+            byte[] b = new byte[length];
+            data.getBytes(data.readerIndex(), b);
+            return b;
+        }
+
+        /**
+         * Returns the datagram as a string.
+         *
+         * @return a String (or null if the entry has been overwritten since it was obtained)
+         */
+        synchronized public String getDataAsString() {
+            return (data != null) ? data.toString(CharsetUtil.UTF_8) : null;
+        }
+
+        /**
+         * Returns the length of the datagram as received.
+         *
+         * @return the length in bytes
+         */
+        public int getLength() {
+            return length;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        /**
+         * Records the outcome of the datagram. This can be called from any thread.
+         *
+         * @param outcome the outcome
+         */
+        public void setOutcome(Outcome outcome) {
+            this.outcome = outcome;
+        }
+
+        synchronized void release() {
+            if (data != null) {
+                data.release();
+                data = null;
+            }
+        }
+    }
+}
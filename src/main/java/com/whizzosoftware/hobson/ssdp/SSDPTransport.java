@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ChannelFactory;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.InternetProtocolFamily;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * Encapsulates the Netty transport used for SSDP datagram channels and the TCP channels used to fetch device
+ * descriptions. The native epoll transport is used on Linux when it is available and NIO is used everywhere else.
+ *
+ * @author Dan Noguerol
+ */
+abstract public class SSDPTransport {
+    public static final SSDPTransport NIO = new SSDPTransport() {
+        @Override
+        public String getName() {
+            return "nio";
+        }
+
+        @Override
+        public EventLoopGroup createEventLoopGroup(int threads, String name) {
+            return new NioEventLoopGroup(threads, new DefaultThreadFactory(name, true));
+        }
+
+        @Override
+        public ChannelFactory<Channel> createChannelFactory() {
+            return new ChannelFactory<Channel>() {
+                @Override
+                public Channel newChannel() {
+                    return new NioDatagramChannel(InternetProtocolFamily.IPv4);
+                }
+            };
+        }
+
+        @Override
+        public ChannelFactory<Channel> createSocketChannelFactory() {
+            return new ChannelFactory<Channel>() {
+                @Override
+                public Channel newChannel() {
+                    return new NioSocketChannel();
+                }
+            };
+        }
+
+        @Override
+        public boolean isMulticastSupported() {
+            return true;
+        }
+
+        @Override
+        public boolean isReusePortSupported() {
+            return false;
+        }
+
+        @Override
+        public boolean enableReusePort(Bootstrap bootstrap) {
+            return false;
+        }
+    };
+
+    /**
+     * Selects the transport to use.
+     *
+     * @param preferNative whether the native transport should be used when it is available
+     *
+     * @return a SSDPTransport instance
+     */
+    public static SSDPTransport select(boolean preferNative) {
+        if (preferNative) {
+            try {
+                if (SSDPEpollTransport.isAvailable()) {
+                    return new SSDPEpollTransport();
+                }
+            } catch (Throwable ignored) {
+                // the native transport is not on the classpath
+            }
+        }
+        return NIO;
+    }
+
+    abstract public String getName();
+
+    /**
+     * Creates an event loop group that can run channels created by this transport.
+     *
+     * @param threads the number of threads
+     * @param name the prefix for thread names
+     *
+     * @return an EventLoopGroup
+     */
+    abstract public EventLoopGroup createEventLoopGroup(int threads, String name);
+
+    /**
+     * Creates a factory for IPv4 datagram channels.
+     *
+     * @return a ChannelFactory
+     */
+    abstract public ChannelFactory<Channel> createChannelFactory();
+
+    /**
+     * Creates a factory for TCP client channels.
+     *
+     * @return a ChannelFactory
+     */
+    abstract public ChannelFactory<Channel> createSocketChannelFactory();
+
+    /**
+     * Indicates whether channels created by this transport can join multicast groups.
+     *
+     * @return a boolean
+     */
+    abstract public boolean isMulticastSupported();
+
+    /**
+     * Indicates whether multiple channels created by this transport can bind to the same address with the kernel
+     * spreading datagrams across them.
+     *
+     * @return a boolean
+     */
+    abstract public boolean isReusePortSupported();
+
+    /**
+     * Enables SO_REUSEPORT on a bootstrap. This does nothing if the transport doesn't support it.
+     *
+     * @param bootstrap the bootstrap
+     *
+     * @return true if SO_REUSEPORT was enabled
+     */
+    abstract public boolean enableReusePort(Bootstrap bootstrap);
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
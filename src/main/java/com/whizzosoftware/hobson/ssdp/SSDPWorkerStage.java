@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A processing stage that decouples datagram receipt from the work it triggers (publishing advertisements and
+ * answering searches) so that slow processing never delays the I/O threads reading the sockets.
+ *
+ * The stage has a fixed number of worker threads, each with its own bounded queue. Tasks are assigned to a worker
+ * by hashing an ordering key (e.g. the USN) so tasks with the same key always run in the order they were
+ * submitted. Submitting never blocks: once a worker's queue is full, a task is dropped according to the stage's
+ * OverloadPolicy and counted. A queued task that is discarded before it runs (evicted to make room for a newer one
+ * or still queued at shutdown) is told so if it is a DroppableTask.
+ *
+ * @author Dan Noguerol
+ */
+public class SSDPWorkerStage implements SSDPMetrics.Source {
+    private static final Logger logger = LoggerFactory.getLogger(SSDPWorkerStage.class);
+
+    public static final int DEFAULT_WORKER_COUNT = 2;
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    public enum OverloadPolicy {
+        /**
+         * Reject the task being submitted.
+         */
+        DROP_NEWEST,
+        /**
+         * Discard the oldest queued task to make room for the task being submitted.
+         */
+        DROP_OLDEST
+    }
+
+    /**
+     * A task that needs to know when it is discarded after having been queued, e.g. to undo work done in
+     * anticipation of it running. A task that is rejected by submit() is not notified; the caller learns that from
+     * the return value.
+     */
+    public interface DroppableTask extends Runnable {
+        /**
+         * Called instead of run() when the task is discarded. This is called on the thread that caused the task to
+         * be discarded and must not block.
+         */
+        void onDropped();
+    }
+
+    private final OverloadPolicy overloadPolicy;
+    private final Worker[] workers;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private volatile boolean running = true;
+
+    public SSDPWorkerStage() {
+        this("ssdp-worker", DEFAULT_WORKER_COUNT, DEFAULT_QUEUE_SIZE, OverloadPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name the prefix for worker thread names
+     * @param workerCount the number of worker threads
+     * @param queueSize the maximum number of queued tasks per worker
+     * @param overloadPolicy what to do when a worker's queue is full
+     */
+    public SSDPWorkerStage(String name, int workerCount, int queueSize, OverloadPolicy overloadPolicy) {
+        this.overloadPolicy = overloadPolicy;
+        this.workers = new Worker[Math.max(1, workerCount)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(name + "-" + i, Math.max(1, queueSize));
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Submits a task. This method never blocks.
+     *
+     * @param key the ordering key; tasks with equal keys run in submission order (null to use any worker)
+     * @param task the task to run
+     *
+     * @return true if the task was queued; false if it was dropped (in which case it is not notified)
+     */
+    public boolean submit(String key, Runnable task) {
+        submittedCount.incrementAndGet();
+        if (!running) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        Worker w = workers[getWorkerIndex(key)];
+        if (w.queue.offer(task)) {
+            return true;
+        }
+        if (overloadPolicy == OverloadPolicy.DROP_OLDEST) {
+            // another producer may claim the freed slot first so keep evicting until this task fits
+            do {
+                Runnable evicted = w.queue.poll();
+                if (evicted != null) {
+                    droppedCount.incrementAndGet();
+                    notifyDropped(evicted);
+                }
+            } while (!w.queue.offer(task));
+            return true;
+        }
+        droppedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Stops the workers, waiting for them to finish their current task. Queued tasks that have not started are
+     * discarded (and notified if they are DroppableTasks).
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        running = false;
+        for (Worker w : workers) {
+            w.interrupt();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Worker w : workers) {
+            try {
+                w.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            Runnable task;
+            while ((task = w.queue.poll()) != null) {
+                notifyDropped(task);
+            }
+        }
+    }
+
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    public OverloadPolicy getOverloadPolicy() {
+        return overloadPolicy;
+    }
+
+    public int getQueuedCount() {
+        int n = 0;
+        for (Worker w : workers) {
+            n += w.queue.size();
+        }
+        return n;
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    @Override
+    public void registerGauges(SSDPMetrics metrics) {
+        metrics.registerGauge("workerTasksQueued", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getQueuedCount();
+            }
+        });
+        metrics.registerGauge("workerTasksCompleted", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getCompletedCount();
+            }
+        });
+        metrics.registerGauge("workerTasksDropped", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getDroppedCount();
+            }
+        });
+        metrics.registerGauge("workerTasksFailed", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getFailedCount();
+            }
+        });
+    }
+
+    /**
+     * Returns the index of the worker that tasks submitted with a key run on.
+     *
+     * @param key the ordering key (or null to pick the next worker in turn)
+     *
+     * @return the worker index
+     */
+    public int getWorkerIndex(String key) {
+        if (key == null) {
+            return (nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length;
+        }
+        // spread the hash so keys that differ only in their high bits still land on different workers
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & Integer.MAX_VALUE) % workers.length;
+    }
+
+    private void notifyDropped(Runnable task) {
+        if (task instanceof DroppableTask) {
+            try {
+                ((DroppableTask)task).onDropped();
+            } catch (Throwable e) {
+                logger.error("Error processing dropped SSDP task", e);
+            }
+        }
+    }
+
+    private class Worker extends Thread {
+        final BlockingQueue<Runnable> queue;
+
+        Worker(String name, int queueSize) {
+            super(name);
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Runnable task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    task.run();
+                    completedCount.incrementAndGet();
+                } catch (Throwable e) {
+                    failedCount.incrementAndGet();
+                    logger.error("Error processing SSDP task", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SSDPAdvertisementCacheTest {
+    private SSDPPacket createNotify(String usn, String location, String cacheControl) {
+        return SSDPPacket.createWithData("NOTIFY * HTTP/1.1\r\n" +
+                "CACHE-CONTROL: " + cacheControl + "\r\n" +
+                "LOCATION: " + location + "\r\n" +
+                "NT: upnp:rootdevice\r\n" +
+                "NTS: ssdp:alive\r\n" +
+                "USN: " + usn + "\r\n\r\n");
+    }
+
+    @Test
+    public void testDuplicateSuppression() {
+        SSDPAdvertisementCache cache = new SSDPAdvertisementCache(10);
+        assertTrue(cache.shouldPublish(createNotify("uuid:1", "http://host/a.xml", "max-age=90"), 0));
+        assertFalse(cache.shouldPublish(createNotify("uuid:1", "http://host/a.xml", "max-age=90"), 1000));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // a changed location is always published
+        assertTrue(cache.shouldPublish(createNotify("uuid:1", "http://host/b.xml", "max-age=90"), 2000));
+
+        // an expired entry is published again
+        assertTrue(cache.shouldPublish(createNotify("uuid:1", "http://host/b.xml", "max-age=90"), 93000));
+        assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void testEviction() {
+        SSDPAdvertisementCache cache = new SSDPAdvertisementCache(2);
+        assertTrue(cache.shouldPublish(createNotify("uuid:1", "http://host/1.xml", "max-age=90"), 0));
+        assertTrue(cache.shouldPublish(createNotify("uuid:2", "http://host/2.xml", "max-age=90"), 0));
+        assertFalse(cache.shouldPublish(createNotify("uuid:1", "http://host/1.xml", "max-age=90"), 0));
+        assertTrue(cache.shouldPublish(createNotify("uuid:3", "http://host/3.xml", "max-age=90"), 0));
+        assertEquals(2, cache.size());
+
+        // uuid:2 was the least recently used so it should have been evicted
+        assertTrue(cache.shouldPublish(createNotify("uuid:2", "http://host/2.xml", "max-age=90"), 0));
+    }
+
+    @Test
+    public void testRemovePacket() {
+        SSDPAdvertisementCache cache = new SSDPAdvertisementCache(10);
+        SSDPPacket p1 = createNotify("uuid:1", "http://host/a.xml", "max-age=90");
+        assertTrue(cache.shouldPublish(p1, 0));
+        cache.remove(p1);
+        assertTrue(cache.shouldPublish(createNotify("uuid:1", "http://host/a.xml", "max-age=90"), 1000));
+
+        // the entry for a newer advertisement is left alone
+        assertTrue(cache.shouldPublish(createNotify("uuid:1", "http://host/b.xml", "max-age=90"), 2000));
+        cache.remove(p1);
+        assertFalse(cache.shouldPublish(createNotify("uuid:1", "http://host/b.xml", "max-age=90"), 3000));
+    }
+
+    @Test
+    public void testCacheControlMaxAge() {
+        assertEquals(90, createNotify("uuid:1", "loc", "max-age=90").getCacheControlMaxAge());
+        assertEquals(1800, createNotify("uuid:1", "loc", "no-cache, MAX-AGE = 1800").getCacheControlMaxAge());
+        assertEquals(180, createNotify("uuid:1", "loc", "180").getCacheControlMaxAge());
+        assertEquals(-1, createNotify("uuid:1", "loc", "no-cache").getCacheControlMaxAge());
+    }
+}
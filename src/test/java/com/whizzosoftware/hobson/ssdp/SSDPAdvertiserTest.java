@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import com.whizzosoftware.hobson.api.disco.DeviceAdvertisement;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SSDPAdvertiserTest {
+    @Test
+    public void testAnnouncementsSpreadAcrossInterval() {
+        MockClock clock = new MockClock();
+        MockSink sink = new MockSink();
+        SSDPAdvertiser advertiser = new SSDPAdvertiser(clock, new Random(1), UnpooledByteBufAllocator.DEFAULT, 100, 250, 100, sink);
+
+        List<DeviceAdvertisement> das = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            das.add(new DeviceAdvertisement.Builder("uuid:" + i + "::upnp:rootdevice", SSDPPacket.PROTOCOL_ID).uri("http://host/" + i).build());
+        }
+        advertiser.sync(das);
+        assertEquals(20, advertiser.size());
+
+        // everything is announced within the initial window but not all at once
+        int batches = 0;
+        for (int t = 0; t <= SSDPAdvertiser.INITIAL_WINDOW_MILLIS; t += 250) {
+            clock.now = t;
+            int before = sink.packets.size();
+            advertiser.tick();
+            if (sink.packets.size() > before) {
+                batches++;
+            }
+        }
+        assertEquals(20, sink.packets.size());
+        assertTrue(batches > 1);
+
+        // re-announcements happen between 1/4 and 1/2 of the max-age
+        clock.now = 24750;
+        advertiser.tick();
+        assertEquals(20, sink.packets.size());
+        clock.now = 50000 + SSDPAdvertiser.INITIAL_WINDOW_MILLIS;
+        advertiser.tick();
+        assertEquals(40, sink.packets.size());
+        assertEquals(40, advertiser.getAliveCount());
+
+        SSDPPacket p = SSDPPacket.createWithData(sink.packets.get(0));
+        assertEquals("NOTIFY", p.getMethod());
+        assertEquals(SSDPPacket.NTS_ALIVE, p.getNTS());
+        assertEquals("upnp:rootdevice", p.getNT());
+        assertEquals(100, p.getCacheControlMaxAge());
+        assertTrue(sink.packets.get(0).endsWith("\r\n\r\n"));
+    }
+
+    @Test
+    public void testByebye() {
+        MockClock clock = new MockClock();
+        MockSink sink = new MockSink();
+        SSDPAdvertiser advertiser = new SSDPAdvertiser(clock, new Random(1), UnpooledByteBufAllocator.DEFAULT, 100, 250, 100, sink);
+
+        List<DeviceAdvertisement> das = new ArrayList<>();
+        das.add(new DeviceAdvertisement.Builder("uuid:1::urn:schemas-upnp-org:device:Basic:1", SSDPPacket.PROTOCOL_ID).uri("http://host/1").build());
+        das.add(new DeviceAdvertisement.Builder("uuid:2", SSDPPacket.PROTOCOL_ID).uri("http://host/2").build());
+        advertiser.sync(das);
+
+        // a withdrawn advertisement is sent a byebye right away
+        advertiser.sync(Collections.singletonList(das.get(1)));
+        assertEquals(1, sink.packets.size());
+        SSDPPacket p = SSDPPacket.createWithData(sink.packets.get(0));
+        assertEquals(SSDPPacket.NTS_BYEBYE, p.getNTS());
+        assertEquals("urn:schemas-upnp-org:device:Basic:1", p.getNT());
+        assertEquals("uuid:1::urn:schemas-upnp-org:device:Basic:1", p.getUSN());
+
+        advertiser.byebyeAll();
+        assertEquals(2, sink.packets.size());
+        assertEquals("uuid:2", SSDPPacket.createWithData(sink.packets.get(1)).getNT());
+        assertEquals(0, advertiser.size());
+        assertEquals(2, advertiser.getByebyeCount());
+
+        // nothing is left to announce
+        clock.now = 100000;
+        advertiser.tick();
+        assertEquals(2, sink.packets.size());
+    }
+
+    private class MockClock implements SSDPClock {
+        long now;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    private class MockSink implements SSDPAdvertiser.AnnouncementSink {
+        List<String> packets = new ArrayList<>();
+
+        @Override
+        public void sendAnnouncements(List<ByteBuf> packets) {
+            for (ByteBuf buf : packets) {
+                this.packets.add(buf.toString(CharsetUtil.UTF_8));
+                buf.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.*;
+
+public class SSDPDecoderTest {
+    private static final InetSocketAddress GROUP = new InetSocketAddress("239.255.255.250", 1900);
+    private static final InetSocketAddress SENDER = new InetSocketAddress("192.0.2.10", 1900);
+
+    @Test
+    public void testDecode() {
+        SSDPMetrics metrics = new SSDPMetrics();
+        SSDPDecoder decoder = new SSDPDecoder(metrics, new SSDPInterfaceMonitor(null));
+        ByteBuf buf = Unpooled.copiedBuffer("NOTIFY * HTTP/1.1\r\nNT: upnp:rootdevice\r\nNTS: ssdp:alive\r\nUSN: uuid:foo::upnp:rootdevice\r\nLOCATION: http://192.0.2.10/desc.xml\r\n\r\n", CharsetUtil.UTF_8);
+        DatagramPacket dp = new DatagramPacket(buf, GROUP, SENDER);
+
+        SSDPEnvelope e = decoder.decode(dp);
+        assertNotNull(e);
+        assertEquals(SENDER, e.sender());
+        assertEquals(GROUP, e.recipient());
+        assertEquals(2, buf.refCnt());
+
+        // the envelope holds its own reference to the datagram's buffer until it is released
+        dp.release();
+        assertEquals(1, buf.refCnt());
+        assertEquals("uuid:foo::upnp:rootdevice", e.content().getUSN());
+        e.release();
+        assertEquals(0, buf.refCnt());
+
+        // values that were decoded before release are still available
+        assertEquals("uuid:foo::upnp:rootdevice", e.content().getUSN());
+        assertEquals(1, metrics.getSnapshot().getValue(SSDPMetrics.PACKETS_RECEIVED_MULTICAST));
+    }
+
+    @Test
+    public void testDetachReleasesBuffer() {
+        SSDPDecoder decoder = new SSDPDecoder(new SSDPMetrics(), new SSDPInterfaceMonitor(null));
+        ByteBuf buf = Unpooled.copiedBuffer("M-SEARCH * HTTP/1.1\r\nST: ssdp:all\r\nMX: 3\r\n\r\n", CharsetUtil.UTF_8);
+        DatagramPacket dp = new DatagramPacket(buf, GROUP, SENDER);
+
+        SSDPEnvelope e = decoder.decode(dp);
+        dp.release();
+        e.content().detach();
+        assertEquals(0, buf.refCnt());
+        assertEquals("ssdp:all", e.content().getST());
+
+        // releasing after detaching is harmless
+        e.release();
+        assertEquals(0, buf.refCnt());
+    }
+
+    @Test
+    public void testDecodeEmptyDatagram() {
+        SSDPMetrics metrics = new SSDPMetrics();
+        SSDPDecoder decoder = new SSDPDecoder(metrics, new SSDPInterfaceMonitor(null));
+        ByteBuf buf = Unpooled.buffer(0);
+        DatagramPacket dp = new DatagramPacket(buf, GROUP, SENDER);
+
+        assertNull(decoder.decode(dp));
+        assertEquals(1, buf.refCnt());
+        assertEquals(1, metrics.getSnapshot().getValue(SSDPMetrics.PARSE_FAILURES));
+        dp.release();
+    }
+}
@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SSDPDescriptionFetcherTest {
+    private HttpServer server;
+    private NioEventLoopGroup group;
+    private ExecutorService parseExecutor;
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicInteger notModifiedCount = new AtomicInteger();
+    private volatile long responseDelay;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/description.xml", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requestCount.incrementAndGet();
+                try {
+                    Thread.sleep(responseDelay);
+                } catch (InterruptedException ignored) {
+                }
+                if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModifiedCount.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    byte[] b = SSDPDeviceDescriptionTest.DESCRIPTION.getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/xml");
+                    exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                    exchange.sendResponseHeaders(200, b.length);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(b);
+                    os.close();
+                }
+                exchange.close();
+            }
+        });
+        server.createContext("/nested.xml", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requestCount.incrementAndGet();
+                byte[] b = SSDPDeviceDescriptionTest.createNestedDescription(5000).getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, b.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(b);
+                os.close();
+                exchange.close();
+            }
+        });
+        server.start();
+        group = new NioEventLoopGroup(1);
+        parseExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop(0);
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        parseExecutor.shutdownNow();
+    }
+
+    private String getLocation(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    private SSDPDescriptionFetcher createFetcher() {
+        return new SSDPDescriptionFetcher(group, SSDPTransport.NIO.createSocketChannelFactory(), parseExecutor);
+    }
+
+    @Test
+    public void testFetchAndCache() throws Exception {
+        SSDPDescriptionFetcher fetcher = createFetcher();
+        SSDPDeviceDescription d = fetcher.fetch(getLocation("/description.xml"), 1800).get(5, TimeUnit.SECONDS);
+        assertEquals("Bridge", d.getFriendlyName());
+        assertEquals(1, requestCount.get());
+
+        // a cached description is returned without another request
+        assertSame(d, fetcher.fetch(getLocation("/description.xml"), 1800).get(5, TimeUnit.SECONDS));
+        assertEquals(1, requestCount.get());
+        assertEquals(1, fetcher.getCacheHitCount());
+        assertSame(d, fetcher.getCachedDescription(getLocation("/description.xml")));
+        fetcher.close();
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        responseDelay = 200;
+        SSDPDescriptionFetcher fetcher = createFetcher();
+        Future<SSDPDeviceDescription> f1 = fetcher.fetch(getLocation("/description.xml"), 1800);
+        Future<SSDPDeviceDescription> f2 = fetcher.fetch(getLocation("/description.xml"), 1800);
+        assertSame(f1.get(5, TimeUnit.SECONDS), f2.get(5, TimeUnit.SECONDS));
+        assertEquals(1, requestCount.get());
+        assertEquals(1, fetcher.getCoalescedCount());
+        fetcher.close();
+    }
+
+    @Test
+    public void testRevalidation() throws Exception {
+        SSDPDescriptionFetcher fetcher = createFetcher();
+
+        // a max-age of 0 means the entry must be revalidated on the next fetch
+        SSDPDeviceDescription d = fetcher.fetch(getLocation("/description.xml"), 0).get(5, TimeUnit.SECONDS);
+        assertSame(d, fetcher.fetch(getLocation("/description.xml"), 0).get(5, TimeUnit.SECONDS));
+        assertEquals(2, requestCount.get());
+        assertEquals(1, notModifiedCount.get());
+        assertEquals(1, fetcher.getRevalidatedCount());
+        fetcher.close();
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        SSDPDescriptionFetcher fetcher = createFetcher();
+        Future<SSDPDeviceDescription> f = fetcher.fetch(getLocation("/missing.xml"), 1800);
+        f.awaitUninterruptibly(5000);
+        assertFalse(f.isSuccess());
+        assertTrue(f.cause() instanceof IOException);
+
+        f = fetcher.fetch("ftp://127.0.0.1/description.xml", 1800);
+        f.awaitUninterruptibly(5000);
+        assertFalse(f.isSuccess());
+        assertEquals(2, fetcher.getFailureCount());
+        fetcher.close();
+    }
+
+    @Test
+    public void testUnparseableDescription() throws Exception {
+        SSDPDescriptionFetcher fetcher = createFetcher();
+        Future<SSDPDeviceDescription> f = fetcher.fetch(getLocation("/nested.xml"), 1800);
+        assertTrue(f.awaitUninterruptibly(5000));
+        assertFalse(f.isSuccess());
+
+        // the failed request must not be left in flight for later fetches to wait on
+        f = fetcher.fetch(getLocation("/nested.xml"), 1800);
+        assertTrue(f.awaitUninterruptibly(5000));
+        assertFalse(f.isSuccess());
+        assertEquals(2, requestCount.get());
+        assertEquals(0, fetcher.getCoalescedCount());
+        fetcher.close();
+    }
+
+    @Test
+    public void testTooManyRequests() throws Exception {
+        responseDelay = 200;
+        SSDPDescriptionFetcher fetcher = new SSDPDescriptionFetcher(group, SSDPTransport.NIO.createSocketChannelFactory(), parseExecutor, SSDPClock.SYSTEM, 2, 1, 16, 5000, 30);
+        Future<SSDPDeviceDescription> f1 = fetcher.fetch(getLocation("/description.xml"), 1800);
+        Future<SSDPDeviceDescription> f2 = fetcher.fetch(getLocation("/description.xml?other"), 1800);
+        assertTrue(f2.awaitUninterruptibly(5000));
+        assertFalse(f2.isSuccess());
+        assertTrue(f2.cause() instanceof IOException);
+
+        // fetches of a location that is already being fetched are still coalesced
+        Future<SSDPDeviceDescription> f3 = fetcher.fetch(getLocation("/description.xml"), 1800);
+        assertSame(f1.get(5, TimeUnit.SECONDS), f3.get(5, TimeUnit.SECONDS));
+        assertEquals(1, requestCount.get());
+        fetcher.close();
+    }
+
+    @Test
+    public void testParseRejected() throws Exception {
+        parseExecutor.shutdown();
+        SSDPDescriptionFetcher fetcher = createFetcher();
+        Future<SSDPDeviceDescription> f = fetcher.fetch(getLocation("/description.xml"), 1800);
+        assertTrue(f.awaitUninterruptibly(5000));
+        assertFalse(f.isSuccess());
+        assertEquals(1, fetcher.getFailureCount());
+        fetcher.close();
+    }
+
+    @Test
+    public void testTTL() {
+        assertEquals(1800, SSDPDescriptionFetcher.getTTL(1800, null));
+        assertEquals(60, SSDPDescriptionFetcher.getTTL(1800, "max-age=60"));
+        assertEquals(100, SSDPDescriptionFetcher.getTTL(100, "public, max-age=600"));
+        assertEquals(SSDPDescriptionFetcher.DEFAULT_MAX_AGE, SSDPDescriptionFetcher.getTTL(-1, "no-cache"));
+    }
+}
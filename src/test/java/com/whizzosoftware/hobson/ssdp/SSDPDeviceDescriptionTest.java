@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class SSDPDeviceDescriptionTest {
+    static final String DESCRIPTION = "<?xml version=\"1.0\"?>\n" +
+            "<root xmlns=\"urn:schemas-upnp-org:device-1-0\">\n" +
+            "  <specVersion><major>1</major><minor>0</minor></specVersion>\n" +
+            "  <URLBase>http://192.168.0.10:80/</URLBase>\n" +
+            "  <device>\n" +
+            "    <deviceType>urn:schemas-upnp-org:device:Basic:1</deviceType>\n" +
+            "    <friendlyName>Bridge</friendlyName>\n" +
+            "    <manufacturer>Acme</manufacturer>\n" +
+            "    <modelName>Bridge 2</modelName>\n" +
+            "    <modelNumber>BSB002</modelNumber>\n" +
+            "    <serialNumber>0017881</serialNumber>\n" +
+            "    <UDN>uuid:2f402f80-da50-11e1-9b23-0017881</UDN>\n" +
+            "    <iconList><icon><mimetype>image/png</mimetype><url>icon.png</url></icon></iconList>\n" +
+            "    <serviceList>\n" +
+            "      <service>\n" +
+            "        <serviceType>urn:schemas-upnp-org:service:SwitchPower:1</serviceType>\n" +
+            "        <serviceId>urn:upnp-org:serviceId:SwitchPower</serviceId>\n" +
+            "        <SCPDURL>/switch.xml</SCPDURL>\n" +
+            "        <controlURL>/switch/control</controlURL>\n" +
+            "        <eventSubURL>/switch/event</eventSubURL>\n" +
+            "      </service>\n" +
+            "    </serviceList>\n" +
+            "    <deviceList>\n" +
+            "      <device>\n" +
+            "        <deviceType>urn:schemas-upnp-org:device:BinaryLight:1</deviceType>\n" +
+            "        <friendlyName>Light</friendlyName>\n" +
+            "        <UDN>uuid:light</UDN>\n" +
+            "      </device>\n" +
+            "    </deviceList>\n" +
+            "    <presentationURL>index.html</presentationURL>\n" +
+            "  </device>\n" +
+            "</root>";
+
+    @Test
+    public void testParse() throws Exception {
+        SSDPDeviceDescription d = SSDPDeviceDescription.parse(new ByteArrayInputStream(DESCRIPTION.getBytes(StandardCharsets.UTF_8)));
+        assertEquals("http://192.168.0.10:80/", d.getURLBase());
+        assertEquals("urn:schemas-upnp-org:device:Basic:1", d.getDeviceType());
+        assertEquals("Bridge", d.getFriendlyName());
+        assertEquals("Acme", d.getManufacturer());
+        assertEquals("Bridge 2", d.getModelName());
+        assertEquals("BSB002", d.getModelNumber());
+        assertEquals("0017881", d.getSerialNumber());
+        assertEquals("uuid:2f402f80-da50-11e1-9b23-0017881", d.getUDN());
+        assertEquals("index.html", d.getPresentationURL());
+
+        assertEquals(1, d.getServices().size());
+        SSDPDeviceDescription.Service s = d.getServices().get(0);
+        assertEquals("urn:schemas-upnp-org:service:SwitchPower:1", s.getServiceType());
+        assertEquals("urn:upnp-org:serviceId:SwitchPower", s.getServiceId());
+        assertEquals("/switch.xml", s.getSCPDURL());
+        assertEquals("/switch/control", s.getControlURL());
+        assertEquals("/switch/event", s.getEventSubURL());
+
+        assertEquals(1, d.getDevices().size());
+        assertEquals("Light", d.getDevices().get(0).getFriendlyName());
+        assertEquals("uuid:light", d.getDevices().get(0).getUDN());
+        assertEquals(0, d.getDevices().get(0).getServices().size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testParseWithoutDevice() throws Exception {
+        SSDPDeviceDescription.parse(new ByteArrayInputStream("<root></root>".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testParseInvalid() throws Exception {
+        SSDPDeviceDescription.parse(new ByteArrayInputStream("<root><device>".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testParseNestedTooDeeply() throws Exception {
+        SSDPDeviceDescription.parse(new ByteArrayInputStream(createNestedDescription(100).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    static String createNestedDescription(int depth) {
+        StringBuilder sb = new StringBuilder("<root><device>");
+        for (int i = 0; i < depth; i++) {
+            sb.append("<deviceList><device>");
+        }
+        for (int i = 0; i < depth; i++) {
+            sb.append("</device></deviceList>");
+        }
+        return sb.append("</device></root>").toString();
+    }
+}
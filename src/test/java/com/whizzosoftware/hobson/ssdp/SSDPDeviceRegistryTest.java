@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SSDPDeviceRegistryTest {
+    private static final InetSocketAddress SENDER = new InetSocketAddress("192.168.0.10", 1900);
+
+    @Test
+    public void testRenewAndExpire() {
+        MockClock clock = new MockClock();
+        SSDPDeviceRegistry registry = new SSDPDeviceRegistry(clock, 1000);
+        MockListener listener = new MockListener();
+        registry.addListener(listener);
+
+        assertTrue(registry.renew("uuid:1::upnp:rootdevice", "http://192.168.0.10/desc.xml", "upnp:rootdevice", "Linux", 10, SENDER));
+        assertFalse(registry.renew("uuid:1::upnp:rootdevice", "http://192.168.0.10/desc.xml", "upnp:rootdevice", "Linux", 10, SENDER));
+        assertEquals(1, registry.size());
+        assertEquals(1, listener.added.size());
+        assertEquals(10000, registry.get("uuid:1::upnp:rootdevice").getExpiration());
+
+        clock.now = 9000;
+        assertEquals(0, registry.tick());
+        clock.now = 10000;
+        assertEquals(1, registry.tick());
+        assertEquals(0, registry.size());
+        assertEquals(1, listener.removed.size());
+        assertEquals(SSDPDeviceRegistry.RemovalReason.EXPIRED, listener.reasons.get(0));
+        assertEquals(1, registry.getExpiredCount());
+    }
+
+    @Test
+    public void testRenewalExtendsLease() {
+        MockClock clock = new MockClock();
+        SSDPDeviceRegistry registry = new SSDPDeviceRegistry(clock, 1000);
+        MockListener listener = new MockListener();
+        registry.addListener(listener);
+
+        registry.renew("uuid:1", "http://192.168.0.10/desc.xml", "uuid:1", null, 10, SENDER);
+        clock.now = 8000;
+        registry.renew("uuid:1", "http://192.168.0.10/desc.xml", "uuid:1", null, 10, SENDER);
+
+        // the original deadline passes but the device has since been renewed
+        clock.now = 10000;
+        assertEquals(0, registry.tick());
+        assertEquals(1, registry.size());
+        assertEquals(8000, registry.get("uuid:1").getLastSeen());
+
+        clock.now = 17000;
+        assertEquals(0, registry.tick());
+        clock.now = 18000;
+        assertEquals(1, registry.tick());
+        assertEquals(1, listener.removed.size());
+    }
+
+    @Test
+    public void testShorterLeaseIsRescheduled() {
+        MockClock clock = new MockClock();
+        SSDPDeviceRegistry registry = new SSDPDeviceRegistry(clock, 1000);
+
+        registry.renew("uuid:1", "http://192.168.0.10/desc.xml", "uuid:1", null, 1800, SENDER);
+        registry.renew("uuid:1", "http://192.168.0.10/desc.xml", "uuid:1", null, 5, SENDER);
+        clock.now = 5000;
+        assertEquals(1, registry.tick());
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void testDefaultMaxAge() {
+        MockClock clock = new MockClock();
+        SSDPDeviceRegistry registry = new SSDPDeviceRegistry(clock, 1000);
+        registry.renew("uuid:1", "http://192.168.0.10/desc.xml", "uuid:1", null, -1, SENDER);
+        assertEquals(SSDPDeviceRegistry.DEFAULT_MAX_AGE * 1000L, registry.get("uuid:1").getExpiration());
+    }
+
+    @Test
+    public void testByebye() {
+        MockClock clock = new MockClock();
+        SSDPDeviceRegistry registry = new SSDPDeviceRegistry(clock, 1000);
+        MockListener listener = new MockListener();
+        registry.addListener(listener);
+
+        registry.renew("uuid:1", "http://192.168.0.10/desc.xml", "uuid:1", null, 10, SENDER);
+        assertTrue(registry.byebye("uuid:1"));
+        assertFalse(registry.byebye("uuid:1"));
+        assertFalse(registry.byebye(null));
+        assertEquals(0, registry.size());
+        assertEquals(SSDPDeviceRegistry.RemovalReason.BYEBYE, listener.reasons.get(0));
+        assertEquals(1, registry.getByebyeCount());
+
+        // the cancelled lease never fires
+        clock.now = 20000;
+        assertEquals(0, registry.tick());
+        assertEquals(1, listener.removed.size());
+    }
+
+    @Test
+    public void testSnapshot() {
+        MockClock clock = new MockClock();
+        SSDPDeviceRegistry registry = new SSDPDeviceRegistry(clock, 1000);
+        assertTrue(registry.getDevices().isEmpty());
+
+        registry.renew("uuid:1", "http://192.168.0.10/desc.xml", "uuid:1", null, 10, SENDER);
+        registry.renew("uuid:2", "http://192.168.0.11/desc.xml", "uuid:2", null, 20, SENDER);
+        List<SSDPDeviceRegistry.Device> s1 = registry.getDevices();
+        assertEquals(2, s1.size());
+
+        // renewals don't change membership so the snapshot is reused
+        registry.renew("uuid:1", "http://192.168.0.10/desc.xml", "uuid:1", null, 10, SENDER);
+        assertSame(s1, registry.getDevices());
+
+        clock.now = 10000;
+        registry.tick();
+        List<SSDPDeviceRegistry.Device> s2 = registry.getDevices();
+        assertEquals(2, s1.size());
+        assertEquals(1, s2.size());
+        assertEquals("uuid:2", s2.get(0).getUSN());
+    }
+
+    @Test
+    public void testModificationCount() {
+        MockClock clock = new MockClock();
+        SSDPDeviceRegistry registry = new SSDPDeviceRegistry(clock, 1000);
+        registry.renew("uuid:1", "http://192.168.0.10/desc.xml", "uuid:1", null, 10, SENDER);
+        long mc = registry.getModificationCount();
+
+        // renewing a lease doesn't count as a modification
+        clock.now = 5000;
+        registry.renew("uuid:1", "http://192.168.0.10/desc.xml", "uuid:1", null, 10, SENDER);
+        assertEquals(mc, registry.getModificationCount());
+
+        // a new LOCATION does
+        registry.renew("uuid:1", "http://192.168.0.10/desc2.xml", "uuid:1", null, 10, SENDER);
+        assertTrue(registry.getModificationCount() > mc);
+        mc = registry.getModificationCount();
+
+        registry.renew("uuid:2", "http://192.168.0.11/desc.xml", "uuid:2", null, 10, SENDER);
+        assertTrue(registry.getModificationCount() > mc);
+        mc = registry.getModificationCount();
+
+        registry.byebye("uuid:2");
+        assertTrue(registry.getModificationCount() > mc);
+        mc = registry.getModificationCount();
+
+        clock.now = 15000;
+        assertEquals(1, registry.tick());
+        assertTrue(registry.getModificationCount() > mc);
+    }
+
+    @Test
+    public void testManyDevices() {
+        MockClock clock = new MockClock();
+        SSDPDeviceRegistry registry = new SSDPDeviceRegistry(clock, 1000);
+        for (int i = 0; i < 20000; i++) {
+            registry.renew("uuid:" + i, "http://10.0.0.1/desc.xml", "uuid:" + i, null, 60 + (i % 120), SENDER);
+        }
+        assertEquals(20000, registry.size());
+        int expired = 0;
+        for (clock.now = 0; clock.now <= 180000; clock.now += 1000) {
+            expired += registry.tick();
+        }
+        assertEquals(20000, expired);
+        assertEquals(0, registry.size());
+    }
+
+    private class MockClock implements SSDPClock {
+        long now;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    private class MockListener implements SSDPDeviceRegistry.Listener {
+        final List<SSDPDeviceRegistry.Device> added = new ArrayList<>();
+        final List<SSDPDeviceRegistry.Device> removed = new ArrayList<>();
+        final List<SSDPDeviceRegistry.RemovalReason> reasons = new ArrayList<>();
+
+        @Override
+        public void deviceAdded(SSDPDeviceRegistry.Device device) {
+            added.add(device);
+        }
+
+        @Override
+        public void deviceRemoved(SSDPDeviceRegistry.Device device, SSDPDeviceRegistry.RemovalReason reason) {
+            removed.add(device);
+            reasons.add(reason);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SSDPDiscoverySchedulerTest {
+    @Test
+    public void testBackoff() {
+        MockClock clock = new MockClock();
+        MockSink sink = new MockSink();
+        SSDPDiscoveryScheduler scheduler = new SSDPDiscoveryScheduler(clock, 1000, 8000, 100, 3, sink);
+
+        // nothing is sent before the scheduler is started
+        scheduler.tick();
+        assertEquals(0, sink.rounds.size());
+
+        scheduler.restart();
+        List<Long> times = new ArrayList<>();
+        for (long t = 0; t <= 30000; t += 100) {
+            clock.now = t;
+            int before = sink.rounds.size();
+            scheduler.tick();
+            if (sink.rounds.size() > before) {
+                times.add(t);
+            }
+        }
+        // rounds at 100, then +1000, +2000, +4000, +8000, +8000...
+        assertEquals(100, (long)times.get(0));
+        assertEquals(1100, (long)times.get(1));
+        assertEquals(3100, (long)times.get(2));
+        assertEquals(7100, (long)times.get(3));
+        assertEquals(15100, (long)times.get(4));
+        assertEquals(23100, (long)times.get(5));
+        assertEquals(6, times.size());
+        assertEquals(SSDPSearchTargetIndex.ALL, sink.rounds.get(0).get(0));
+        assertEquals(3, sink.mx);
+
+        // a restart resets the backoff
+        scheduler.restart();
+        clock.now += 100;
+        scheduler.tick();
+        assertEquals(7, sink.rounds.size());
+        assertEquals(clock.now + 1000, scheduler.getNextRoundTime());
+    }
+
+    @Test
+    public void testTargetedSearchesAreMerged() {
+        MockClock clock = new MockClock();
+        MockSink sink = new MockSink();
+        SSDPDiscoveryScheduler scheduler = new SSDPDiscoveryScheduler(clock, 1000, 60000, 100, 3, sink);
+        scheduler.restart();
+        clock.now = 100;
+        scheduler.tick();
+        assertEquals(1, sink.rounds.size());
+
+        // two requests within the merge window produce one round
+        clock.now = 200;
+        scheduler.search("urn:schemas-upnp-org:device:Basic:1");
+        clock.now = 250;
+        scheduler.search("urn:schemas-upnp-org:device:Basic:1");
+        scheduler.search("upnp:rootdevice");
+        scheduler.tick();
+        assertEquals(1, sink.rounds.size());
+        clock.now = 300;
+        scheduler.tick();
+        assertEquals(2, sink.rounds.size());
+        assertEquals(2, sink.rounds.get(1).size());
+        assertFalse(sink.rounds.get(1).contains(SSDPSearchTargetIndex.ALL));
+
+        // a request just before a general round is folded into it
+        clock.now = 1000;
+        scheduler.search("upnp:rootdevice");
+        clock.now = 1100;
+        scheduler.tick();
+        assertEquals(3, sink.rounds.size());
+        assertEquals(2, sink.rounds.get(2).size());
+        assertTrue(sink.rounds.get(2).contains(SSDPSearchTargetIndex.ALL));
+    }
+
+    @Test
+    public void testPersistentSearchTargets() {
+        MockClock clock = new MockClock();
+        MockSink sink = new MockSink();
+        SSDPDiscoveryScheduler scheduler = new SSDPDiscoveryScheduler(clock, 1000, 60000, 100, 3, sink);
+        scheduler.addSearchTarget("urn:schemas-upnp-org:device:Basic:1");
+        scheduler.restart();
+        clock.now = 100;
+        scheduler.tick();
+        assertEquals(1, sink.rounds.size());
+        assertEquals(2, sink.rounds.get(0).size());
+
+        // the target is searched for again after every restart
+        clock.now = 500;
+        scheduler.restart();
+        clock.now = 600;
+        scheduler.tick();
+        assertEquals(2, sink.rounds.size());
+        assertTrue(sink.rounds.get(1).contains("urn:schemas-upnp-org:device:Basic:1"));
+    }
+
+    private class MockClock implements SSDPClock {
+        long now;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    private class MockSink implements SSDPDiscoveryScheduler.SearchSink {
+        List<List<String>> rounds = new ArrayList<>();
+        int mx;
+
+        @Override
+        public void sendSearches(List<String> searchTargets, int mx) {
+            rounds.add(searchTargets);
+            this.mx = mx;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SSDPDiscoverySnapshotTest {
+    private static final InetSocketAddress SENDER = new InetSocketAddress("192.168.0.10", 1900);
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        MockClock clock = new MockClock();
+        clock.now = 1000000;
+        SSDPDeviceRegistry registry = new SSDPDeviceRegistry(clock, 1000);
+        registry.renew("uuid:1::upnp:rootdevice", "http://192.168.0.10/desc.xml", "upnp:rootdevice", "Linux", 1800, SENDER);
+        registry.renew("uuid:2", "http://192.168.0.11/desc.xml", "uuid:2", null, 10, null);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(2, SSDPDiscoverySnapshot.write(out, registry.getDevices(), clock.now, clock.now));
+
+        // read 5 seconds later
+        List<SSDPDiscoverySnapshot.Entry> entries = SSDPDiscoverySnapshot.read(new ByteArrayInputStream(out.toByteArray()), clock.now + 5000);
+        assertEquals(2, entries.size());
+        SSDPDiscoverySnapshot.Entry e1 = find(entries, "uuid:1::upnp:rootdevice");
+        assertEquals("http://192.168.0.10/desc.xml", e1.getLocation());
+        assertEquals("upnp:rootdevice", e1.getNotificationType());
+        assertEquals("Linux", e1.getServer());
+        assertEquals(SENDER, e1.getAddress());
+        assertEquals(clock.now + 1800000, e1.getExpiration());
+        SSDPDiscoverySnapshot.Entry e2 = find(entries, "uuid:2");
+        assertNull(e2.getServer());
+        assertNull(e2.getAddress());
+
+        // the second device's lease has run out by now
+        entries = SSDPDiscoverySnapshot.read(new ByteArrayInputStream(out.toByteArray()), clock.now + 10000);
+        assertEquals(1, entries.size());
+        assertEquals("uuid:1::upnp:rootdevice", entries.get(0).getUSN());
+    }
+
+    @Test
+    public void testOversizedFieldIsSkipped() throws Exception {
+        MockClock clock = new MockClock();
+        SSDPDeviceRegistry registry = new SSDPDeviceRegistry(clock, 1000);
+        StringBuilder sb = new StringBuilder("http://192.168.0.10/");
+        while (sb.length() <= SSDPDiscoverySnapshot.MAX_STRING_LENGTH) {
+            sb.append("0123456789");
+        }
+        registry.renew("uuid:1", sb.toString(), "uuid:1", null, 1800, SENDER);
+        registry.renew("uuid:2", "http://192.168.0.11/desc.xml", "uuid:2", null, 1800, SENDER);
+
+        // the device with the oversized LOCATION is left out and the rest of the snapshot is still readable
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(1, SSDPDiscoverySnapshot.write(out, registry.getDevices(), 0, 0));
+        List<SSDPDiscoverySnapshot.Entry> entries = SSDPDiscoverySnapshot.read(new ByteArrayInputStream(out.toByteArray()), 0);
+        assertEquals(1, entries.size());
+        assertEquals("uuid:2", entries.get(0).getUSN());
+    }
+
+    @Test
+    public void testTruncatedSnapshot() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MockClock clock = new MockClock();
+        SSDPDeviceRegistry registry = new SSDPDeviceRegistry(clock, 1000);
+        registry.renew("uuid:1", "http://192.168.0.10/desc.xml", "uuid:1", null, 1800, SENDER);
+        registry.renew("uuid:2", "http://192.168.0.11/desc.xml", "uuid:2", null, 1800, SENDER);
+        SSDPDiscoverySnapshot.write(out, registry.getDevices(), 0, 0);
+
+        byte[] b = out.toByteArray();
+        List<SSDPDiscoverySnapshot.Entry> entries = SSDPDiscoverySnapshot.read(new ByteArrayInputStream(Arrays.copyOf(b, b.length - 3)), 0);
+        assertEquals(1, entries.size());
+    }
+
+    @Test
+    public void testInvalidSnapshot() {
+        try {
+            SSDPDiscoverySnapshot.read(new ByteArrayInputStream("SSDPLOG\u0001".getBytes()), 0);
+            fail("Should have thrown exception");
+        } catch (IOException ignored) {}
+    }
+
+    @Test
+    public void testFileReplacedAndRestored() throws Exception {
+        File file = File.createTempFile("ssdp", ".snapshot");
+        file.delete();
+        try {
+            MockClock clock = new MockClock();
+            assertTrue(SSDPDiscoverySnapshot.read(file, clock.now).isEmpty());
+
+            SSDPDeviceRegistry registry = new SSDPDeviceRegistry(clock, 1000);
+            registry.renew("uuid:1", "http://192.168.0.10/desc.xml", "uuid:1", "Linux", 1800, SENDER);
+            SSDPDiscoverySnapshot.write(file, registry.getDevices(), clock.now, clock.now);
+            registry.renew("uuid:2", "http://192.168.0.11/desc.xml", "uuid:2", "Linux", 1800, SENDER);
+            assertEquals(2, SSDPDiscoverySnapshot.write(file, registry.getDevices(), clock.now, clock.now));
+            assertFalse(new File(file.getPath() + ".tmp").exists());
+
+            // a restarted registry restores the devices as provisional until they announce themselves
+            clock.now = 60000;
+            SSDPDeviceRegistry restored = new SSDPDeviceRegistry(clock, 1000);
+            for (SSDPDiscoverySnapshot.Entry e : SSDPDiscoverySnapshot.read(file, clock.now)) {
+                assertNotNull(restored.restore(e, clock.now));
+            }
+            assertEquals(2, restored.size());
+            assertEquals(2, restored.getRestoredCount());
+            assertTrue(restored.get("uuid:1").isProvisional());
+            assertEquals(1800000, restored.get("uuid:1").getExpiration());
+
+            restored.renew("uuid:1", "http://192.168.0.10/desc.xml", "uuid:1", "Linux", 1800, SENDER);
+            assertFalse(restored.get("uuid:1").isProvisional());
+            assertTrue(restored.get("uuid:2").isProvisional());
+
+            // the unconfirmed device expires with its restored lease
+            clock.now = 1800000;
+            assertEquals(1, restored.tick());
+            assertNull(restored.get("uuid:2"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testLeaseTimesAreConvertedToWallTime() throws Exception {
+        // the registry's clock is monotonic so its times have nothing to do with the wall clock
+        MockClock clock = new MockClock();
+        clock.now = 5000;
+        SSDPDeviceRegistry registry = new SSDPDeviceRegistry(clock, 1000);
+        registry.renew("uuid:1", "http://192.168.0.10/desc.xml", "uuid:1", null, 1800, SENDER);
+
+        long wallTime = 1400000000000L;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SSDPDiscoverySnapshot.write(out, registry.getDevices(), wallTime, clock.now);
+        List<SSDPDiscoverySnapshot.Entry> entries = SSDPDiscoverySnapshot.read(new ByteArrayInputStream(out.toByteArray()), wallTime + 60000);
+        assertEquals(1, entries.size());
+        assertEquals(wallTime + 1800000, entries.get(0).getExpiration());
+
+        // a minute later a restarted registry's clock starts over but keeps the remaining lease
+        clock.now = 200;
+        SSDPDeviceRegistry restored = new SSDPDeviceRegistry(clock, 1000);
+        assertNotNull(restored.restore(entries.get(0), wallTime + 60000));
+        assertEquals(200 + 1740000, restored.get("uuid:1").getExpiration());
+
+        // an entry whose lease has run out by wall-clock time isn't restored
+        restored = new SSDPDeviceRegistry(clock, 1000);
+        assertNull(restored.restore(entries.get(0), wallTime + 1800000));
+    }
+
+    private static SSDPDiscoverySnapshot.Entry find(List<SSDPDiscoverySnapshot.Entry> entries, String usn) {
+        for (SSDPDiscoverySnapshot.Entry e : entries) {
+            if (e.getUSN().equals(usn)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private class MockClock implements SSDPClock {
+        long now;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SSDPEncoderTest {
+    @Test
+    public void testEncodeAliveNotification() {
+        SSDPPacket p = SSDPPacket.createAliveNotification("http://192.168.0.1/desc.xml", "upnp:rootdevice", "uuid:foo::upnp:rootdevice", 1800);
+        ByteBuf buf = SSDPEncoder.encode(UnpooledByteBufAllocator.DEFAULT, p);
+        try {
+            assertTrue(buf.isDirect());
+            assertEquals(p.getEncodedLength() + 2, buf.readableBytes());
+            assertEquals(p.toString() + "\r\n", buf.toString(CharsetUtil.UTF_8));
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    public void testEncodeNonAsciiValue() {
+        SSDPPacket p = SSDPPacket.createSearchResponse("http://192.168.0.1/caf\u00e9.xml", "ssdp:all", "uuid:\u20ac\ud83d\ude00");
+        ByteBuf buf = SSDPEncoder.encode(UnpooledByteBufAllocator.DEFAULT, p);
+        try {
+            assertEquals(p.toString().getBytes(CharsetUtil.UTF_8).length + 2, buf.readableBytes());
+            assertEquals(p.toString() + "\r\n", buf.toString(CharsetUtil.UTF_8));
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    public void testEncodeParsedPacket() {
+        String s = "NOTIFY * HTTP/1.1\r\nHOST: 239.255.255.250:1900\r\nNT: upnp:rootdevice\r\nNTS: ssdp:alive\r\nUSN: uuid:foo::upnp:rootdevice\r\nLOCATION: http://192.168.0.1/desc.xml\r\nCACHE-CONTROL: max-age=1800\r\n\r\n";
+        SSDPPacket p = SSDPPacket.createWithData(s);
+        ByteBuf buf = SSDPEncoder.encode(UnpooledByteBufAllocator.DEFAULT, p);
+        try {
+            assertEquals(p.toString() + "\r\n", buf.toString(CharsetUtil.UTF_8));
+        } finally {
+            buf.release();
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import com.whizzosoftware.hobson.api.disco.DeviceAdvertisement;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SSDPInboundHandlerTest {
+    private static final InetSocketAddress GROUP = new InetSocketAddress("239.255.255.250", 1900);
+    private static final InetSocketAddress SENDER = new InetSocketAddress("192.0.2.10", 1900);
+
+    @Test
+    public void testAdvertisementsAreBatchedPerWorker() {
+        MockContext context = new MockContext();
+        EmbeddedChannel channel = new EmbeddedChannel(new SSDPInboundHandler.Builder(context).build());
+
+        // a single writeInbound() is a single read cycle
+        channel.writeInbound(
+            createNotify("uuid:foo::upnp:rootdevice", "http://192.0.2.10/desc1.xml"),
+            createNotify("uuid:bar-odd::upnp:rootdevice", "http://192.0.2.11/desc.xml"),
+            createNotify("uuid:baz::upnp:rootdevice", "http://192.0.2.12/desc.xml"),
+            createNotify("uuid:foo::upnp:rootdevice", "http://192.0.2.10/desc2.xml")
+        );
+
+        // one task per worker, each submitted with a key that maps to the worker its advertisements belong to
+        assertTrue(context.batches.isEmpty());
+        assertEquals(2, context.tasks.size());
+        assertEquals(0, context.getWorkerIndex(context.keys.get(0)));
+        assertEquals(1, context.getWorkerIndex(context.keys.get(1)));
+        context.runTasks();
+
+        assertEquals(2, context.batches.size());
+        List<DeviceAdvertisement> batch = context.batches.get(0);
+        assertEquals(2, batch.size());
+        // only the newest advertisement for each device survives
+        assertEquals("uuid:foo::upnp:rootdevice", batch.get(0).getId());
+        assertEquals("http://192.0.2.10/desc2.xml", ((SSDPPacket)batch.get(0).getObject()).getLocation());
+        assertEquals("uuid:baz::upnp:rootdevice", batch.get(1).getId());
+        batch = context.batches.get(1);
+        assertEquals(1, batch.size());
+        assertEquals("uuid:bar-odd::upnp:rootdevice", batch.get(0).getId());
+
+        // the next read cycle is a new batch
+        channel.writeInbound(createNotify("uuid:foo::upnp:rootdevice", "http://192.0.2.10/desc3.xml"));
+        context.runTasks();
+        assertEquals(3, context.batches.size());
+        assertEquals(1, context.batches.get(2).size());
+
+        channel.finish();
+    }
+
+    @Test
+    public void testTrafficOutcomes() {
+        MockContext context = new MockContext();
+        SSDPTrafficRing ring = new SSDPTrafficRing(8);
+        EmbeddedChannel channel = new EmbeddedChannel(ring, new SSDPInboundHandler.Builder(context).build());
+
+        channel.writeInbound(
+            createNotify("uuid:foo::upnp:rootdevice", "http://192.0.2.10/desc1.xml"),
+            createNotify("uuid:foo::upnp:rootdevice", "http://192.0.2.10/desc2.xml")
+        );
+        List<SSDPTrafficRing.Entry> entries = ring.getEntries();
+        assertEquals(SSDPTrafficRing.Outcome.DUPLICATE, entries.get(0).getOutcome());
+        // not published until the worker has run
+        assertEquals(SSDPTrafficRing.Outcome.ACCEPTED, entries.get(1).getOutcome());
+        context.runTasks();
+        assertEquals(SSDPTrafficRing.Outcome.PUBLISHED, entries.get(1).getOutcome());
+
+        // advertisements the worker stage drops are reported as such
+        context.overloaded = true;
+        channel.writeInbound(createNotify("uuid:foo::upnp:rootdevice", "http://192.0.2.10/desc3.xml"));
+        assertEquals(SSDPTrafficRing.Outcome.OVERLOADED, ring.getEntries().get(2).getOutcome());
+
+        channel.finish();
+        ring.clear();
+    }
+
+    @Test
+    public void testDroppedAdvertisementIsRepublished() {
+        MockContext context = new MockContext();
+        SSDPTrafficRing ring = new SSDPTrafficRing(8);
+        EmbeddedChannel channel = new EmbeddedChannel(ring, new SSDPInboundHandler.Builder(context).advertisementCache(new SSDPAdvertisementCache()).build());
+
+        channel.writeInbound(createNotify("uuid:foo::upnp:rootdevice", "http://192.0.2.10/desc.xml"));
+        assertEquals(1, context.tasks.size());
+
+        // the queued batch is evicted before it runs
+        context.evictOldest();
+        assertEquals(SSDPTrafficRing.Outcome.OVERLOADED, ring.getEntries().get(0).getOutcome());
+
+        // so the device's next identical alive isn't suppressed as a duplicate
+        channel.writeInbound(createNotify("uuid:foo::upnp:rootdevice", "http://192.0.2.10/desc.xml"));
+        assertEquals(1, context.tasks.size());
+        context.runTasks();
+        assertEquals(1, context.batches.size());
+        assertEquals("uuid:foo::upnp:rootdevice", context.batches.get(0).get(0).getId());
+        assertEquals(SSDPTrafficRing.Outcome.PUBLISHED, ring.getEntries().get(1).getOutcome());
+
+        // and once it has been published, the one after that is
+        channel.writeInbound(createNotify("uuid:foo::upnp:rootdevice", "http://192.0.2.10/desc.xml"));
+        assertTrue(context.tasks.isEmpty());
+        assertEquals(SSDPTrafficRing.Outcome.DUPLICATE, ring.getEntries().get(2).getOutcome());
+
+        channel.finish();
+        ring.clear();
+    }
+
+    @Test
+    public void testSupersededAdvertisementIsNotPublished() {
+        MockContext context = new MockContext();
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        try {
+            MockFetcher fetcher = new MockFetcher(group);
+            EmbeddedChannel channel = new EmbeddedChannel(new SSDPInboundHandler.Builder(context).advertisementCache(new SSDPAdvertisementCache()).descriptionFetcher(fetcher).build());
+
+            // the device moves while the fetch of its first description is still outstanding
+            channel.writeInbound(createNotify("uuid:foo::upnp:rootdevice", "http://192.0.2.10/desc1.xml"));
+            channel.writeInbound(createNotify("uuid:foo::upnp:rootdevice", "http://192.0.2.10/desc2.xml"));
+            // a repeat of the advertisement that is waiting for its description is a duplicate
+            channel.writeInbound(createNotify("uuid:foo::upnp:rootdevice", "http://192.0.2.10/desc2.xml"));
+            assertEquals(2, fetcher.fetchCount);
+
+            // the newer advertisement's description arrives first; the older one's completion is discarded
+            fetcher.complete("http://192.0.2.10/desc2.xml");
+            context.runTasks();
+            fetcher.complete("http://192.0.2.10/desc1.xml");
+            assertTrue(context.tasks.isEmpty());
+            assertEquals(1, context.batches.size());
+            assertEquals("http://192.0.2.10/desc2.xml", ((SSDPPacket)context.batches.get(0).get(0).getObject()).getLocation());
+
+            // only re-announcements of the published location are suppressed
+            channel.writeInbound(createNotify("uuid:foo::upnp:rootdevice", "http://192.0.2.10/desc2.xml"));
+            assertEquals(2, fetcher.fetchCount);
+            channel.writeInbound(createNotify("uuid:foo::upnp:rootdevice", "http://192.0.2.10/desc1.xml"));
+            assertEquals(3, fetcher.fetchCount);
+
+            channel.finish();
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    @Test
+    public void testDescriptionsAreOnlyFetchedFromTheSender() {
+        MockContext context = new MockContext();
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        try {
+            MockFetcher fetcher = new MockFetcher(group);
+            EmbeddedChannel channel = new EmbeddedChannel(new SSDPInboundHandler.Builder(context).interfaceMonitor(new SSDPInterfaceMonitor(null)).descriptionFetcher(fetcher).build());
+
+            // a LOCATION pointing somewhere other than the sender is published without its description
+            channel.writeInbound(createNotify("uuid:foo::upnp:rootdevice", "http://203.0.113.5/desc.xml"));
+            channel.writeInbound(createNotify("uuid:bar::upnp:rootdevice", "http://example.com/desc.xml"));
+            assertEquals(0, fetcher.fetchCount);
+            context.runTasks();
+            assertEquals(2, context.batches.size());
+
+            channel.writeInbound(createNotify("uuid:foo::upnp:rootdevice", "http://192.0.2.10:8080/desc.xml"));
+            assertEquals(1, fetcher.fetchCount);
+
+            channel.finish();
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    @Test
+    public void testByebyeIsOrderedWithAdvertisements() {
+        MockContext context = new MockContext();
+        SSDPDeviceRegistry registry = new SSDPDeviceRegistry();
+        final List<String> events = new ArrayList<>();
+        registry.addListener(new SSDPDeviceRegistry.Listener() {
+            @Override
+            public void deviceAdded(SSDPDeviceRegistry.Device device) {
+                events.add("added " + device.getUSN());
+            }
+
+            @Override
+            public void deviceRemoved(SSDPDeviceRegistry.Device device, SSDPDeviceRegistry.RemovalReason reason) {
+                events.add("removed " + device.getUSN());
+            }
+        });
+        SSDPTrafficRing ring = new SSDPTrafficRing(8);
+        EmbeddedChannel channel = new EmbeddedChannel(ring, new SSDPInboundHandler.Builder(context).advertisementCache(new SSDPAdvertisementCache()).deviceRegistry(registry).build());
+
+        // the byebye is applied after the advertisement that was handed to the worker before it
+        channel.writeInbound(createNotify("uuid:foo::upnp:rootdevice", "http://192.0.2.10/desc.xml"));
+        channel.writeInbound(createByebye("uuid:foo::upnp:rootdevice"));
+        assertEquals(0, registry.size());
+        // an advertisement from the same read cycle as the byebye is never published
+        channel.writeInbound(
+            createNotify("uuid:bar::upnp:rootdevice", "http://192.0.2.10/bar.xml"),
+            createByebye("uuid:bar::upnp:rootdevice")
+        );
+        assertEquals(SSDPTrafficRing.Outcome.WITHDRAWN, ring.getEntries().get(2).getOutcome());
+        context.runTasks();
+
+        assertEquals(1, context.batches.size());
+        assertEquals("uuid:foo::upnp:rootdevice", context.batches.get(0).get(0).getId());
+        assertEquals(2, events.size());
+        assertEquals("added uuid:foo::upnp:rootdevice", events.get(0));
+        assertEquals("removed uuid:foo::upnp:rootdevice", events.get(1));
+        assertEquals(0, registry.size());
+
+        // the device's next alive is published even though nothing about it has changed
+        channel.writeInbound(createNotify("uuid:foo::upnp:rootdevice", "http://192.0.2.10/desc.xml"));
+        context.runTasks();
+        assertEquals(2, context.batches.size());
+        assertEquals(1, registry.size());
+
+        channel.finish();
+        ring.clear();
+    }
+
+    private DatagramPacket createByebye(String usn) {
+        String s = "NOTIFY * HTTP/1.1\r\nNT: upnp:rootdevice\r\nNTS: ssdp:byebye\r\nUSN: " + usn + "\r\n\r\n";
+        return new DatagramPacket(Unpooled.copiedBuffer(s, CharsetUtil.UTF_8), GROUP, SENDER);
+    }
+
+    private DatagramPacket createNotify(String usn, String location) {
+        String s = "NOTIFY * HTTP/1.1\r\nNT: upnp:rootdevice\r\nNTS: ssdp:alive\r\nUSN: " + usn + "\r\nLOCATION: " + location + "\r\nCACHE-CONTROL: max-age=1800\r\n\r\n";
+        return new DatagramPacket(Unpooled.copiedBuffer(s, CharsetUtil.UTF_8), GROUP, SENDER);
+    }
+
+    /**
+     * A context with two workers whose tasks only run when runTasks() is called.
+     */
+    private class MockContext implements SSDPContext {
+        List<List<DeviceAdvertisement>> batches = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        List<Runnable> tasks = new ArrayList<>();
+        boolean overloaded;
+
+        void runTasks() {
+            for (Runnable r : tasks) {
+                r.run();
+            }
+            tasks.clear();
+            keys.clear();
+        }
+
+        void evictOldest() {
+            Runnable r = tasks.remove(0);
+            keys.remove(0);
+            if (r instanceof SSDPWorkerStage.DroppableTask) {
+                ((SSDPWorkerStage.DroppableTask)r).onDropped();
+            }
+        }
+
+        @Override
+        public void processDiscoveryRequest(InetSocketAddress address, SSDPPacket packet) {
+        }
+
+        @Override
+        public void publishDeviceAdvertisement(DeviceAdvertisement advertisement, boolean internal) {
+            fail("Advertisements should be published in batches");
+        }
+
+        @Override
+        public void publishDeviceAdvertisements(Collection<DeviceAdvertisement> advertisements, boolean internal) {
+            batches.add(new ArrayList<>(advertisements));
+        }
+
+        @Override
+        public Future executeInEventLoop(Runnable runnable) {
+            runnable.run();
+            return null;
+        }
+
+        @Override
+        public boolean executeInWorker(String key, Runnable runnable) {
+            if (overloaded) {
+                return false;
+            }
+            keys.add(key);
+            tasks.add(runnable);
+            return true;
+        }
+
+        @Override
+        public int getWorkerIndex(String key) {
+            return key.contains("-odd") ? 1 : 0;
+        }
+
+        @Override
+        public void sendDiscoveryPacket() {
+        }
+
+        @Override
+        public void channelWritabilityChanged(Channel channel) {
+        }
+    }
+
+    /**
+     * A fetcher whose fetches only complete (unsuccessfully) when complete() is called.
+     */
+    private static class MockFetcher extends SSDPDescriptionFetcher {
+        Map<String,Promise<SSDPDeviceDescription>> promises = new HashMap<>();
+        int fetchCount;
+
+        MockFetcher(EventLoopGroup group) {
+            super(group, SSDPTransport.NIO.createSocketChannelFactory(), null);
+        }
+
+        @Override
+        public Future<SSDPDeviceDescription> fetch(String location, int maxAge) {
+            fetchCount++;
+            Promise<SSDPDeviceDescription> p = ImmediateEventExecutor.INSTANCE.newPromise();
+            promises.put(location, p);
+            return p;
+        }
+
+        void complete(String location) {
+            promises.remove(location).setFailure(new IOException("Unavailable"));
+        }
+    }
+}
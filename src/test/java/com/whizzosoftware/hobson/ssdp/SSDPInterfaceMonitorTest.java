@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class SSDPInterfaceMonitorTest {
+    @Test
+    public void testUpdate() throws Exception {
+        final List<SSDPInterface> added = new ArrayList<>();
+        final List<SSDPInterface> removed = new ArrayList<>();
+        SSDPInterfaceMonitor monitor = new SSDPInterfaceMonitor(new SSDPInterfaceMonitor.Listener() {
+            @Override
+            public void interfaceAdded(SSDPInterface i) {
+                added.add(i);
+            }
+
+            @Override
+            public void interfaceRemoved(SSDPInterface i) {
+                removed.add(i);
+            }
+        });
+
+        SSDPInterface eth0 = new SSDPInterface("eth0", null, InetAddress.getByName("192.168.0.10"), 24);
+        SSDPInterface wlan0 = new SSDPInterface("wlan0", null, InetAddress.getByName("10.0.0.5"), 8);
+
+        Set<SSDPInterface> current = new LinkedHashSet<>();
+        current.add(eth0);
+        current.add(wlan0);
+        Set<InetAddress> addresses = new HashSet<>();
+        addresses.add(eth0.getAddress());
+        addresses.add(wlan0.getAddress());
+        addresses.add(InetAddress.getByName("127.0.0.1"));
+
+        assertTrue(monitor.update(current, addresses));
+        assertEquals(2, added.size());
+        assertEquals(0, removed.size());
+        assertTrue(monitor.isLocalAddress(InetAddress.getByName("127.0.0.1")));
+        assertTrue(monitor.isLocalAddress(InetAddress.getByName("10.0.0.5")));
+        assertFalse(monitor.isLocalAddress(InetAddress.getByName("10.0.0.6")));
+
+        // nothing changed
+        added.clear();
+        assertFalse(monitor.update(new LinkedHashSet<>(current), addresses));
+        assertEquals(0, added.size());
+
+        // an address change looks like the interface going away and coming back
+        SSDPInterface wlan0b = new SSDPInterface("wlan0", null, InetAddress.getByName("10.0.0.6"), 8);
+        current = new LinkedHashSet<>();
+        current.add(eth0);
+        current.add(wlan0b);
+        addresses = new HashSet<>();
+        addresses.add(eth0.getAddress());
+        addresses.add(wlan0b.getAddress());
+
+        assertTrue(monitor.update(current, addresses));
+        assertEquals(1, removed.size());
+        assertEquals(wlan0, removed.get(0));
+        assertEquals(1, added.size());
+        assertEquals(wlan0b, added.get(0));
+        assertFalse(monitor.isLocalAddress(InetAddress.getByName("10.0.0.5")));
+        assertTrue(monitor.isLocalAddress(InetAddress.getByName("10.0.0.6")));
+    }
+
+    @Test
+    public void testIsOnSubnet() throws Exception {
+        SSDPInterface i = new SSDPInterface("eth0", null, InetAddress.getByName("192.168.1.10"), 24);
+        assertTrue(i.isOnSubnet(InetAddress.getByName("192.168.1.200")));
+        assertFalse(i.isOnSubnet(InetAddress.getByName("192.168.2.1")));
+
+        i = new SSDPInterface("eth0", null, InetAddress.getByName("10.1.2.3"), 0);
+        assertTrue(i.isOnSubnet(InetAddress.getByName("192.168.2.1")));
+    }
+
+    @Test
+    public void testIsOnLocalSubnet() throws Exception {
+        SSDPInterfaceMonitor monitor = new SSDPInterfaceMonitor(null);
+        Set<SSDPInterface> current = new LinkedHashSet<>();
+        current.add(new SSDPInterface("eth0", null, InetAddress.getByName("192.168.1.10"), 24));
+        monitor.update(current, new HashSet<InetAddress>());
+
+        assertTrue(monitor.isOnLocalSubnet("192.168.1.200"));
+        assertFalse(monitor.isOnLocalSubnet("192.168.2.1"));
+        // host names are never resolved
+        assertFalse(monitor.isOnLocalSubnet("localhost"));
+        assertNull(SSDPInterfaceMonitor.parseIPv4Literal("192.168.1"));
+        assertNull(SSDPInterfaceMonitor.parseIPv4Literal("192.168.1.256"));
+        assertNull(SSDPInterfaceMonitor.parseIPv4Literal("192.168.1.-1"));
+        assertEquals(InetAddress.getByName("10.0.0.1"), SSDPInterfaceMonitor.parseIPv4Literal("10.0.0.1"));
+    }
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SSDPInternPoolTest {
+    @Test
+    public void testInternString() {
+        SSDPInternPool pool = new SSDPInternPool(64);
+        String s1 = new String("Linux/3.14 UPnP/1.0 Sonos/29.3-87071");
+        String s2 = new String("Linux/3.14 UPnP/1.0 Sonos/29.3-87071");
+        assertSame(s1, pool.intern(s1));
+        assertSame(s1, pool.intern(s2));
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        assertNull(pool.intern((String)null));
+    }
+
+    @Test
+    public void testInternFromBuffer() {
+        SSDPInternPool pool = new SSDPInternPool(64);
+        ByteBuf buf = Unpooled.copiedBuffer("NT: upnp:rootdevice\r\nNT: upnp:rootdevice\r\n", CharsetUtil.UTF_8);
+        String s1 = pool.intern(buf, 4, 15, false);
+        String s2 = pool.intern(buf, 25, 15, false);
+        assertEquals("upnp:rootdevice", s1);
+        assertSame(s1, s2);
+        assertSame(s1, pool.intern(new String("upnp:rootdevice")));
+        buf.release();
+    }
+
+    @Test
+    public void testInternUpperCase() {
+        SSDPInternPool pool = new SSDPInternPool(64);
+        ByteBuf buf = Unpooled.copiedBuffer("X-User-Agent", CharsetUtil.UTF_8);
+        String s = pool.intern(buf, 0, buf.readableBytes(), true);
+        assertEquals("X-USER-AGENT", s);
+        assertSame(s, pool.intern(buf, 0, buf.readableBytes(), true));
+        assertEquals("X-User-Agent", pool.intern(buf, 0, buf.readableBytes(), false));
+        buf.release();
+    }
+
+    @Test
+    public void testNonAscii() {
+        SSDPInternPool pool = new SSDPInternPool(64);
+        ByteBuf buf = Unpooled.copiedBuffer("Caf\u00e9", CharsetUtil.UTF_8);
+        String s = pool.intern(buf, 0, buf.readableBytes(), false);
+        assertEquals("Caf\u00e9", s);
+        assertSame(s, pool.intern(buf, 0, buf.readableBytes(), false));
+        buf.release();
+    }
+
+    @Test
+    public void testLongValuesNotPooled() {
+        SSDPInternPool pool = new SSDPInternPool(64);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i <= SSDPInternPool.MAX_LENGTH; i++) {
+            sb.append('a');
+        }
+        String s1 = sb.toString();
+        String s2 = sb.toString();
+        assertSame(s1, pool.intern(s1));
+        assertSame(s2, pool.intern(s2));
+        assertEquals(0, pool.getHitCount());
+    }
+
+    @Test
+    public void testCapacity() {
+        assertEquals(64, new SSDPInternPool(64).getCapacity());
+        assertEquals(128, new SSDPInternPool(100).getCapacity());
+        assertEquals(16, new SSDPInternPool(1).getCapacity());
+    }
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SSDPMetricsTest {
+    @Test
+    public void testSnapshot() {
+        SSDPMetrics metrics = new SSDPMetrics();
+        metrics.onPacketReceived(true);
+        metrics.onPacketReceived(true);
+        metrics.onPacketReceived(false);
+        metrics.onParseFailure();
+        metrics.onResponseSent(true, 120);
+        metrics.onResponseSent(false, 0);
+        metrics.registerGauge("foo", new SSDPMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return 42;
+            }
+        });
+
+        SSDPMetrics.Snapshot s = metrics.getSnapshot();
+        assertEquals(2, s.getValue(SSDPMetrics.PACKETS_RECEIVED_MULTICAST));
+        assertEquals(1, s.getValue(SSDPMetrics.PACKETS_RECEIVED_UNICAST));
+        assertEquals(1, s.getValue(SSDPMetrics.PARSE_FAILURES));
+        assertEquals(1, s.getValue(SSDPMetrics.RESPONSES_SENT));
+        assertEquals(1, s.getValue(SSDPMetrics.RESPONSES_FAILED));
+        assertEquals(42, s.getValue("foo"));
+        assertEquals(1, s.getHistogram(SSDPMetrics.RESPONSE_DELAY_MILLIS).getCount());
+        assertEquals(120, s.getHistogram(SSDPMetrics.RESPONSE_DELAY_MILLIS).getMax());
+    }
+
+    @Test
+    public void testSourceGauges() {
+        SSDPMetrics metrics = new SSDPMetrics();
+        SSDPDeviceRegistry registry = new SSDPDeviceRegistry();
+        metrics.register(registry);
+        assertEquals(0, metrics.getSnapshot().getValue("devicesRegistered"));
+
+        // gauges read the component's statistics when the snapshot is taken
+        registry.renew("uuid:1", "http://192.168.0.10/desc.xml", "uuid:1", null, 1800, null);
+        registry.byebye("uuid:1");
+        registry.renew("uuid:2", "http://192.168.0.11/desc.xml", "uuid:2", null, 1800, null);
+        SSDPMetrics.Snapshot s = metrics.getSnapshot();
+        assertEquals(1, s.getValue("devicesRegistered"));
+        assertEquals(1, s.getValue("deviceByebyes"));
+        assertTrue(s.getValues().containsKey("devicesRestored"));
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        SSDPHistogram h = new SSDPHistogram();
+        for (int i = 1; i <= 100; i++) {
+            h.record(i);
+        }
+        SSDPHistogram.Snapshot s = h.getSnapshot();
+        assertEquals(100, s.getCount());
+        assertEquals(50.5, s.getMean(), 0.001);
+        assertEquals(100, s.getMax());
+        // percentiles are reported as bucket upper bounds
+        assertTrue(s.get50thPercentile() >= 50 && s.get50thPercentile() <= 63);
+        assertTrue(s.get99thPercentile() >= 99 && s.get99thPercentile() <= 100);
+    }
+}
@@ -7,6 +7,9 @@
  *******************************************************************************/
 package com.whizzosoftware.hobson.ssdp;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -98,4 +101,81 @@ public class SSDPPacketTest {
                 "ST: st\r\n" +
                 "USN: usn\r\n", packet.toString());
     }
+
+    @Test
+    public void testByteBufConstructor() {
+        ByteBuf buf = Unpooled.copiedBuffer("NOTIFY * HTTP/1.1\r\n" +
+                "host: 239.255.255.250:1900\r\n" +
+                "Cache-Control:max-age=90\r\n" +
+                "LOCATION:  http://192.168.0.13:49153/nmsDescription.xml \r\n" +
+                "nt: upnp:rootdevice\r\n" +
+                "NTS: ssdp:alive\r\n" +
+                "X-User-Agent: redsonic\r\n" +
+                "USN: uuid:5AFEF00D-BABE-DADA-FA5A-00113215F871::upnp:rootdevice\r\n\r\n", CharsetUtil.UTF_8);
+        SSDPPacket packet = SSDPPacket.createWithData(buf);
+        assertEquals("NOTIFY", packet.getMethod());
+        assertEquals("239.255.255.250:1900", packet.getHost());
+        assertEquals("max-age=90", packet.getCacheControl());
+        assertEquals("http://192.168.0.13:49153/nmsDescription.xml", packet.getLocation());
+        assertEquals("upnp:rootdevice", packet.getNT());
+        assertEquals("upnp:rootdevice", packet.getHeader("NT"));
+        assertEquals("redsonic", packet.getHeader("X-USER-AGENT"));
+        assertNull(packet.getHeader("X-User-Agent"));
+        assertNull(packet.getST());
+    }
+
+    @Test
+    public void testDetach() {
+        ByteBuf buf = Unpooled.copiedBuffer("HTTP/1.1 200 OK\r\n" +
+                "EXT:\r\n" +
+                "LOCATION: http://192.168.0.179:49153/setup.xml\r\n" +
+                "01-NLS: 80587e26-1dd2-11b2-83d0-be74c3b5e86b\r\n" +
+                "ST: urn:Belkin:service:metainfo:1\r\n" +
+                "USN: uuid:Insight-1_0-221437K1200D6D::urn:Belkin:service:metainfo:1\r\n\r\n", CharsetUtil.UTF_8);
+        SSDPPacket packet = SSDPPacket.createWithData(buf);
+        packet.detach();
+        buf.release();
+        assertEquals("", packet.getExt());
+        assertEquals("http://192.168.0.179:49153/setup.xml", packet.getLocation());
+        assertEquals("80587e26-1dd2-11b2-83d0-be74c3b5e86b", packet.getHeader("01-NLS"));
+        assertEquals("urn:Belkin:service:metainfo:1", packet.getST());
+        assertEquals("uuid:Insight-1_0-221437K1200D6D::urn:Belkin:service:metainfo:1", packet.getUSN());
+    }
+
+    @Test
+    public void testSetterOverridesParsedValue() {
+        SSDPPacket packet = SSDPPacket.createWithData(Unpooled.copiedBuffer("HTTP/1.1 200 OK\r\nST: foo\r\n", CharsetUtil.UTF_8));
+        packet.setST(null);
+        assertNull(packet.getST());
+        packet.setST("bar");
+        assertEquals("bar", packet.getST());
+    }
+
+    @Test
+    public void testRepeatedValuesAreShared() {
+        String data = "NOTIFY * HTTP/1.1\r\n" +
+                "LOCATION: http://192.168.0.13:49153/nmsDescription.xml\r\n" +
+                "NT: upnp:rootdevice\r\n" +
+                "SERVER: Windows2000/0.0 UPnP/1.0 PhilipsIntelSDK/1.4 DLNADOC/1.50\r\n" +
+                "X-User-Agent: redsonic\r\n" +
+                "USN: uuid:5AFEF00D-BABE-DADA-FA5A-00113215F871::upnp:rootdevice\r\n\r\n";
+        SSDPPacket p1 = SSDPPacket.createWithData(data);
+        SSDPPacket p2 = SSDPPacket.createWithData(data);
+        p1.detach();
+        p2.detach();
+        assertSame(p1.getServer(), p2.getServer());
+        assertSame(p1.getLocation(), p2.getLocation());
+        assertSame(p1.getNT(), p2.getNT());
+        assertEquals(p1.getUSN(), p2.getUSN());
+        assertEquals("redsonic", p2.getHeader("X-USER-AGENT"));
+    }
+
+    @Test
+    public void testRepeatedOtherHeader() {
+        SSDPPacket packet = SSDPPacket.createWithData("HTTP/1.1 200 OK\r\nX-Foo: 1\r\nx-foo: 2\r\nST: foo\r\n\r\n");
+        assertEquals("2", packet.getHeader("X-FOO"));
+        assertNull(packet.getHeader("x-foo"));
+        assertNull(packet.getHeader("X-BAR"));
+        assertEquals("foo", packet.getHeader("ST"));
+    }
 }
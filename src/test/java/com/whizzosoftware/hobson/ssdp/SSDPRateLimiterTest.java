@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.*;
+
+public class SSDPRateLimiterTest {
+    @Test
+    public void testBurstAndRefill() throws Exception {
+        MockClock clock = new MockClock();
+        SSDPRateLimiter limiter = new SSDPRateLimiter(clock, 2, 3, 10, 10, 100, 60000);
+        InetAddress a = InetAddress.getByName("192.168.0.10");
+
+        assertTrue(limiter.tryAcquire(a, true));
+        assertTrue(limiter.tryAcquire(a, true));
+        assertTrue(limiter.tryAcquire(a, true));
+        assertFalse(limiter.tryAcquire(a, true));
+        assertEquals(1, limiter.getDroppedSearchCount());
+
+        // advertisements have their own bucket
+        assertTrue(limiter.tryAcquire(a, false));
+
+        // 2 tokens per second
+        clock.now = 500;
+        assertTrue(limiter.tryAcquire(a, true));
+        assertFalse(limiter.tryAcquire(a, true));
+        assertEquals(2, limiter.getDroppedSearchCount());
+    }
+
+    @Test
+    public void testSourcesAreIndependent() throws Exception {
+        MockClock clock = new MockClock();
+        SSDPRateLimiter limiter = new SSDPRateLimiter(clock, 1, 1, 1, 1, 100, 60000);
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("192.168.0.10"), true));
+        assertFalse(limiter.tryAcquire(InetAddress.getByName("192.168.0.10"), true));
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("192.168.0.11"), true));
+        assertEquals(2, limiter.getSourceCount());
+    }
+
+    @Test
+    public void testIdleEviction() throws Exception {
+        MockClock clock = new MockClock();
+        SSDPRateLimiter limiter = new SSDPRateLimiter(clock, 1, 1, 1, 1, 100, 1000);
+        InetAddress a = InetAddress.getByName("192.168.0.10");
+        assertTrue(limiter.tryAcquire(a, true));
+        clock.now = 5000;
+        // an address that falls into the same stripe
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("192.168.0.26"), true));
+        assertEquals(1, limiter.getSourceCount());
+    }
+
+    @Test
+    public void testIsSearch() {
+        assertTrue(SSDPRateLimiter.isSearch(Unpooled.copiedBuffer("M-SEARCH * HTTP/1.1\r\n", CharsetUtil.UTF_8)));
+        assertFalse(SSDPRateLimiter.isSearch(Unpooled.copiedBuffer("NOTIFY * HTTP/1.1\r\n", CharsetUtil.UTF_8)));
+        assertFalse(SSDPRateLimiter.isSearch(Unpooled.copiedBuffer("M-SE", CharsetUtil.UTF_8)));
+    }
+
+    private class MockClock implements SSDPClock {
+        long now;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+}
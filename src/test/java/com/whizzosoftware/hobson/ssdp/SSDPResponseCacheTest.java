@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import com.whizzosoftware.hobson.api.disco.DeviceAdvertisement;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class SSDPResponseCacheTest {
+    @Test
+    public void testResponsesAreShared() {
+        SSDPResponseCache cache = new SSDPResponseCache(UnpooledByteBufAllocator.DEFAULT);
+        DeviceAdvertisement da = createAdvertisement("uuid:1::upnp:rootdevice", "http://host/1");
+
+        // every response is a duplicate of the cached buffer holding its own reference
+        ByteBuf r1 = cache.getResponse(da);
+        assertEquals(2, r1.refCnt());
+        ByteBuf r2 = cache.getResponse(da);
+        assertEquals(3, r1.refCnt());
+        assertEquals(1, cache.size());
+
+        // reading one duplicate doesn't disturb the other
+        String s = r1.toString(CharsetUtil.UTF_8);
+        r1.skipBytes(r1.readableBytes());
+        assertEquals(s, r2.toString(CharsetUtil.UTF_8));
+        assertTrue(s.contains("http://host/1"));
+
+        r1.release();
+        r2.release();
+        assertEquals(1, r1.refCnt());
+
+        // invalidating leaves nothing behind
+        cache.invalidate(da.getId());
+        assertEquals(0, r1.refCnt());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testUriChangeReencodes() {
+        SSDPResponseCache cache = new SSDPResponseCache(UnpooledByteBufAllocator.DEFAULT);
+        ByteBuf r1 = cache.getResponse(createAdvertisement("uuid:1", "http://host/1"));
+        r1.release();
+        assertEquals(1, r1.refCnt());
+
+        ByteBuf r2 = cache.getResponse(createAdvertisement("uuid:1", "http://host/2"));
+        assertEquals(0, r1.refCnt());
+        assertEquals(1, cache.size());
+        String s = r2.toString(CharsetUtil.UTF_8);
+        assertTrue(s.contains("http://host/2"));
+        assertFalse(s.contains("http://host/1"));
+        r2.release();
+
+        // an unchanged URI reuses the cached buffer
+        ByteBuf r3 = cache.getResponse(createAdvertisement("uuid:1", "http://host/2"));
+        assertEquals(2, r3.refCnt());
+        r3.release();
+
+        cache.invalidateAll();
+        assertEquals(0, r3.refCnt());
+    }
+
+    @Test
+    public void testRetainReleasesWithdrawnAdvertisements() {
+        SSDPResponseCache cache = new SSDPResponseCache(UnpooledByteBufAllocator.DEFAULT);
+        DeviceAdvertisement da1 = createAdvertisement("uuid:1", "http://host/1");
+        DeviceAdvertisement da2 = createAdvertisement("uuid:2", "http://host/2");
+        ByteBuf r1 = cache.getResponse(da1);
+        ByteBuf r1all = cache.getResponse(da1, "ssdp:all");
+        ByteBuf r2 = cache.getResponse(da2);
+        assertEquals(3, cache.size());
+
+        // every response for the withdrawn advertisement is released, including per-ST ones
+        cache.retain(Collections.singletonList(da2));
+        assertEquals(1, cache.size());
+        assertEquals(1, r1.refCnt());
+        assertEquals(1, r1all.refCnt());
+        assertEquals(2, r2.refCnt());
+
+        // responses already handed out stay valid until their owners release them
+        assertTrue(r1all.toString(CharsetUtil.UTF_8).contains("ssdp:all"));
+        r1.release();
+        r1all.release();
+        r2.release();
+        assertEquals(0, r1.refCnt());
+        assertEquals(0, r1all.refCnt());
+        assertEquals(1, r2.refCnt());
+
+        cache.retain(null);
+        assertEquals(0, cache.size());
+        assertEquals(0, r2.refCnt());
+    }
+
+    private static DeviceAdvertisement createAdvertisement(String id, String uri) {
+        return new DeviceAdvertisement.Builder(id, SSDPPacket.PROTOCOL_ID).uri(uri).build();
+    }
+}
@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import com.whizzosoftware.hobson.api.disco.DeviceAdvertisement;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SSDPResponseSchedulerTest {
+    @Test
+    public void testResponsesSpreadAcrossMX() {
+        MockClock clock = new MockClock();
+        MockSink sink = new MockSink();
+        SSDPResponseScheduler scheduler = new SSDPResponseScheduler(clock, new Random(1), 50, 100, sink);
+
+        List<DeviceAdvertisement> das = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            das.add(new DeviceAdvertisement.Builder("id" + i, SSDPPacket.PROTOCOL_ID).build());
+        }
+        scheduler.schedule(new InetSocketAddress("127.0.0.1", 1900), das, 2);
+        assertEquals(20, scheduler.getPendingCount());
+
+        // advance through the MX window one tick at a time
+        int batches = 0;
+        for (int t = 0; t <= 2000; t += 50) {
+            clock.now = t;
+            int before = sink.responses.size();
+            scheduler.tick();
+            if (sink.responses.size() > before) {
+                batches++;
+            }
+        }
+        assertEquals(20, sink.responses.size());
+        assertEquals(0, scheduler.getPendingCount());
+        assertTrue(batches > 1);
+    }
+
+    @Test
+    public void testMaxResponsesPerTick() {
+        MockClock clock = new MockClock();
+        MockSink sink = new MockSink();
+        SSDPResponseScheduler scheduler = new SSDPResponseScheduler(clock, new Random(1), 50, 3, sink);
+
+        List<DeviceAdvertisement> das = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            das.add(new DeviceAdvertisement.Builder("id" + i, SSDPPacket.PROTOCOL_ID).build());
+        }
+        scheduler.schedule(new InetSocketAddress("127.0.0.1", 1900), das, 0);
+
+        scheduler.tick();
+        assertEquals(3, sink.responses.size());
+        scheduler.tick();
+        assertEquals(5, sink.responses.size());
+    }
+
+    @Test
+    public void testDuplicateSearchesCoalesced() {
+        MockClock clock = new MockClock();
+        MockSink sink = new MockSink();
+        SSDPResponseScheduler scheduler = new SSDPResponseScheduler(clock, new Random(1), 50, 100, sink);
+        InetSocketAddress a1 = new InetSocketAddress("192.168.0.10", 1900);
+        InetSocketAddress a2 = new InetSocketAddress("192.168.0.11", 1900);
+
+        List<DeviceAdvertisement> das = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            das.add(new DeviceAdvertisement.Builder("uuid:" + i + "::urn:schemas-upnp-org:device:Basic:1", SSDPPacket.PROTOCOL_ID).build());
+        }
+        assertEquals(3, scheduler.schedule(a1, das, "urn:schemas-upnp-org:device:Basic:1", 1));
+
+        // the same search from the same sender is merged; from another sender it isn't
+        assertTrue(scheduler.coalesce(a1, "urn:schemas-upnp-org:device:Basic:1"));
+        assertFalse(scheduler.coalesce(a1, "upnp:rootdevice"));
+        assertFalse(scheduler.coalesce(a2, "urn:schemas-upnp-org:device:Basic:1"));
+        assertEquals(1, scheduler.getCoalescedCount());
+        assertEquals(3, scheduler.getSavedCount());
+
+        // once the responses have gone out, the search is answered again
+        clock.now = 1000;
+        scheduler.tick();
+        assertEquals(3, sink.responses.size());
+        assertFalse(scheduler.coalesce(a1, "urn:schemas-upnp-org:device:Basic:1"));
+    }
+
+    @Test
+    public void testOnlySameSearchTargetIsCovered() {
+        MockClock clock = new MockClock();
+        MockSink sink = new MockSink();
+        SSDPResponseScheduler scheduler = new SSDPResponseScheduler(clock, new Random(1), 50, 100, sink);
+        InetSocketAddress a = new InetSocketAddress("192.168.0.10", 1900);
+
+        List<DeviceAdvertisement> das = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            das.add(new DeviceAdvertisement.Builder("uuid:" + i, SSDPPacket.PROTOCOL_ID).build());
+        }
+        assertEquals(3, scheduler.schedule(a, das, 3));
+        assertTrue(scheduler.coalesce(a, SSDPSearchTargetIndex.ALL));
+
+        // a search for an advertisement's own ID gets the same response as ssdp:all so it adds nothing
+        assertEquals(0, scheduler.schedule(a, das.subList(0, 1), "uuid:0", 3));
+        assertEquals(4, scheduler.getSavedCount());
+
+        // but a narrower search must be answered with its own ST
+        assertEquals(2, scheduler.schedule(a, das.subList(1, 3), "urn:schemas-upnp-org:device:Basic:1", 3));
+        assertEquals(0, scheduler.schedule(a, das.subList(1, 3), "urn:schemas-upnp-org:device:Basic:1", 3));
+        assertEquals(6, scheduler.getSavedCount());
+        assertEquals(5, scheduler.getPendingCount());
+
+        // and an ssdp:all search isn't covered by narrower ones
+        InetSocketAddress a2 = new InetSocketAddress("192.168.0.11", 1900);
+        assertEquals(1, scheduler.schedule(a2, das.subList(0, 1), "urn:schemas-upnp-org:device:Basic:1", 3));
+        assertEquals(3, scheduler.schedule(a2, das, 3));
+
+        clock.now = 3000;
+        scheduler.tick();
+        assertEquals(9, sink.responses.size());
+        assertEquals(0, scheduler.getPendingCount());
+        int narrow = 0;
+        for (SSDPResponseScheduler.ScheduledResponse sr : sink.responses) {
+            if ("urn:schemas-upnp-org:device:Basic:1".equals(sr.getSearchTarget())) {
+                narrow++;
+            }
+        }
+        assertEquals(3, narrow);
+    }
+
+    @Test
+    public void testWindow() {
+        assertEquals(1000, SSDPResponseScheduler.getWindowMillis(-1));
+        assertEquals(0, SSDPResponseScheduler.getWindowMillis(0));
+        assertEquals(3000, SSDPResponseScheduler.getWindowMillis(3));
+        assertEquals(5000, SSDPResponseScheduler.getWindowMillis(120));
+    }
+
+    private class MockClock implements SSDPClock {
+        long now;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    private class MockSink implements SSDPResponseScheduler.ResponseSink {
+        List<SSDPResponseScheduler.ScheduledResponse> responses = new ArrayList<>();
+
+        @Override
+        public void sendResponses(List<SSDPResponseScheduler.ScheduledResponse> responses) {
+            this.responses.addAll(responses);
+        }
+    }
+}
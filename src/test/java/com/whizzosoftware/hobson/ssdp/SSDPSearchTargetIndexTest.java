@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import com.whizzosoftware.hobson.api.disco.DeviceAdvertisement;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SSDPSearchTargetIndexTest {
+    private DeviceAdvertisement create(String id) {
+        return new DeviceAdvertisement.Builder(id, SSDPPacket.PROTOCOL_ID).build();
+    }
+
+    @Test
+    public void testFind() {
+        SSDPSearchTargetIndex index = new SSDPSearchTargetIndex();
+        index.add(create("uuid:1::upnp:rootdevice"));
+        index.add(create("uuid:1::urn:schemas-upnp-org:device:Basic:1"));
+        index.add(create("uuid:2::urn:schemas-upnp-org:device:Basic:2"));
+        index.add(create("uuid:2::urn:schemas-upnp-org:service:Switch:1"));
+        index.add(create("urn:hobson:device:Hub:1"));
+
+        assertEquals(5, index.find(SSDPSearchTargetIndex.ALL).size());
+
+        List<DeviceAdvertisement> results = index.find(SSDPSearchTargetIndex.ROOT_DEVICE);
+        assertEquals(1, results.size());
+        assertEquals("uuid:1::upnp:rootdevice", results.get(0).getId());
+
+        assertEquals(2, index.find("uuid:1").size());
+        assertEquals(2, index.find("uuid:2").size());
+        assertEquals(0, index.find("uuid:3").size());
+
+        // a search for version N matches version N and later
+        assertEquals(2, index.find("urn:schemas-upnp-org:device:Basic:1").size());
+        results = index.find("urn:schemas-upnp-org:device:Basic:2");
+        assertEquals(1, results.size());
+        assertEquals("uuid:2::urn:schemas-upnp-org:device:Basic:2", results.get(0).getId());
+        assertEquals(0, index.find("urn:schemas-upnp-org:device:Basic:3").size());
+
+        assertEquals(1, index.find("urn:schemas-upnp-org:service:Switch:1").size());
+        assertEquals(1, index.find("urn:hobson:device:Hub:1").size());
+        assertEquals(0, index.find("urn:hobson:device:Hub").size());
+    }
+
+    @Test
+    public void testRemoveAndSync() {
+        SSDPSearchTargetIndex index = new SSDPSearchTargetIndex();
+        index.add(create("uuid:1::urn:schemas-upnp-org:device:Basic:1"));
+        index.add(create("uuid:2::urn:schemas-upnp-org:device:Basic:1"));
+        assertEquals(2, index.find("urn:schemas-upnp-org:device:Basic:1").size());
+
+        index.remove("uuid:1::urn:schemas-upnp-org:device:Basic:1");
+        assertEquals(1, index.size());
+        assertEquals(0, index.find("uuid:1").size());
+        assertEquals(1, index.find("urn:schemas-upnp-org:device:Basic:1").size());
+
+        List<DeviceAdvertisement> current = new ArrayList<>();
+        current.add(create("uuid:3::upnp:rootdevice"));
+        index.sync(current);
+        assertEquals(1, index.size());
+        assertEquals(0, index.find("urn:schemas-upnp-org:device:Basic:1").size());
+        assertEquals(1, index.find(SSDPSearchTargetIndex.ROOT_DEVICE).size());
+    }
+
+    @Test
+    public void testParseVersion() {
+        String st = "urn:schemas-upnp-org:device:Basic:12";
+        assertEquals(12, SSDPSearchTargetIndex.parseVersion(st, st.lastIndexOf(':')));
+        st = "urn:schemas-upnp-org:device:Basic:";
+        assertEquals(-1, SSDPSearchTargetIndex.parseVersion(st, st.lastIndexOf(':')));
+        st = "urn:schemas-upnp-org:device:Basic";
+        assertEquals(-1, SSDPSearchTargetIndex.parseVersion(st, st.lastIndexOf(':')));
+    }
+}
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SSDPSenderTest {
+    private static final InetSocketAddress RECIPIENT = new InetSocketAddress("239.255.255.250", 1900);
+
+    @Test
+    public void testDropNewest() {
+        MockChannel channel = new MockChannel();
+        SSDPSender sender = new SSDPSender(channel, 2, SSDPSender.DropPolicy.DROP_NEWEST);
+        RecordingListener listener = new RecordingListener();
+        DatagramPacket p1 = createPacket("1");
+        DatagramPacket p2 = createPacket("2");
+        DatagramPacket p3 = createPacket("3");
+
+        channel.writable = false;
+        sender.send(Arrays.asList(p1, p2, p3), Arrays.<ChannelFutureListener>asList(listener, listener, listener));
+
+        // the packet that didn't fit is released and its listener told why
+        assertNull(channel.readOutbound());
+        assertEquals(1, sender.getDroppedCount());
+        assertEquals(0, p3.refCnt());
+        assertEquals(1, p1.refCnt());
+        assertEquals(1, p2.refCnt());
+        assertEquals(1, listener.futures.size());
+        assertFalse(listener.futures.get(0).isSuccess());
+        assertTrue(listener.futures.get(0).cause() instanceof IllegalStateException);
+        assertEquals(0, listener.futures.get(0).cause().getStackTrace().length);
+
+        channel.writable = true;
+        sender.channelWritabilityChanged();
+        assertSame(p1, channel.readOutbound());
+        assertSame(p2, channel.readOutbound());
+        assertNull(channel.readOutbound());
+        assertEquals(2, sender.getSentCount());
+        assertEquals(3, listener.futures.size());
+
+        p1.release();
+        p2.release();
+        channel.finish();
+    }
+
+    @Test
+    public void testDropOldest() {
+        MockChannel channel = new MockChannel();
+        SSDPSender sender = new SSDPSender(channel, 2, SSDPSender.DropPolicy.DROP_OLDEST);
+        DatagramPacket p1 = createPacket("1");
+        DatagramPacket p2 = createPacket("2");
+        DatagramPacket p3 = createPacket("3");
+
+        channel.writable = false;
+        sender.send(p1);
+        sender.send(p2);
+        sender.send(p3);
+
+        // the oldest queued packet makes room for the newest one
+        assertEquals(1, sender.getDroppedCount());
+        assertEquals(0, p1.refCnt());
+        assertEquals(1, p3.refCnt());
+
+        channel.writable = true;
+        sender.channelWritabilityChanged();
+        assertSame(p2, channel.readOutbound());
+        assertSame(p3, channel.readOutbound());
+        assertNull(channel.readOutbound());
+
+        p2.release();
+        p3.release();
+        channel.finish();
+    }
+
+    @Test
+    public void testWritabilityToggling() {
+        MockChannel channel = new MockChannel();
+        SSDPSender sender = new SSDPSender(channel);
+        DatagramPacket p1 = createPacket("1");
+        DatagramPacket p2 = createPacket("2");
+        DatagramPacket p3 = createPacket("3");
+
+        channel.writable = false;
+        sender.send(p1);
+        assertNull(channel.readOutbound());
+
+        // a packet sent before the queue is drained waits behind the queued one so order is kept
+        channel.writable = true;
+        sender.send(p2);
+        assertNull(channel.readOutbound());
+
+        sender.channelWritabilityChanged();
+        assertSame(p1, channel.readOutbound());
+        assertSame(p2, channel.readOutbound());
+
+        // once the queue is empty packets are written straight through
+        sender.send(p3);
+        assertSame(p3, channel.readOutbound());
+        assertEquals(3, sender.getSentCount());
+        assertEquals(0, sender.getDroppedCount());
+
+        // a writability change while still unwritable leaves the queue alone
+        DatagramPacket p4 = createPacket("4");
+        channel.writable = false;
+        sender.send(p4);
+        sender.channelWritabilityChanged();
+        assertNull(channel.readOutbound());
+        assertEquals(1, p4.refCnt());
+
+        sender.close();
+        assertEquals(0, p4.refCnt());
+        assertEquals(1, sender.getDroppedCount());
+
+        p1.release();
+        p2.release();
+        p3.release();
+        channel.finish();
+    }
+
+    @Test
+    public void testFailedWriteReleasesBuffer() {
+        MockChannel channel = new MockChannel();
+        SSDPSender sender = new SSDPSender(channel);
+        RecordingListener listener = new RecordingListener();
+        DatagramPacket p = createPacket("1");
+
+        // report the closed channel as writable so the write itself is attempted and fails
+        channel.close();
+        channel.writable = true;
+        sender.send(Arrays.asList(p), Arrays.<ChannelFutureListener>asList(listener));
+
+        assertEquals(0, p.refCnt());
+        assertEquals(1, sender.getFailedCount());
+        assertEquals(0, sender.getSentCount());
+        assertEquals(1, listener.futures.size());
+        assertFalse(listener.futures.get(0).isSuccess());
+    }
+
+    @Test
+    public void testClosedChannelDropsPacket() {
+        MockChannel channel = new MockChannel();
+        SSDPSender sender = new SSDPSender(channel);
+        DatagramPacket p = createPacket("1");
+
+        channel.close();
+        channel.writable = false;
+        sender.send(p);
+
+        assertEquals(0, p.refCnt());
+        assertEquals(1, sender.getDroppedCount());
+        assertEquals(0, sender.getFailedCount());
+    }
+
+    private static DatagramPacket createPacket(String s) {
+        return new DatagramPacket(Unpooled.copiedBuffer(s, CharsetUtil.UTF_8), RECIPIENT);
+    }
+
+    private static class MockChannel extends EmbeddedChannel {
+        boolean writable = true;
+
+        @Override
+        public boolean isWritable() {
+            return writable;
+        }
+    }
+
+    private static class RecordingListener implements ChannelFutureListener {
+        final List<ChannelFuture> futures = new ArrayList<>();
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            futures.add(future);
+        }
+    }
+}
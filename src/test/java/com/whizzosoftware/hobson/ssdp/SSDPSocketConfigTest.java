@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SSDPSocketConfigTest {
+    @Test
+    public void testDefaults() {
+        SSDPSocketConfig c = new SSDPSocketConfig(-5, 0, -1, 0, 0, 100000, 256);
+        assertEquals(SSDPSocketConfig.DEFAULT_LOCAL_PORT, c.getLocalPort());
+        assertEquals(SSDPSocketConfig.UNSET, c.getReceiveBufferSize());
+        assertEquals(SSDPSocketConfig.UNSET, c.getSendBufferSize());
+        assertEquals(SSDPSocketConfig.DEFAULT_EVENT_LOOP_THREADS, c.getEventLoopThreads());
+        assertEquals(SSDPSocketConfig.DEFAULT_MAX_MESSAGES_PER_READ, c.getMaxMessagesPerRead());
+        assertEquals(SSDPSocketConfig.DEFAULT_RECEIVE_ALLOCATOR_SIZE, c.getReceiveAllocatorSize());
+        assertEquals(SSDPSocketConfig.UNSET, c.getMulticastTtl());
+        assertFalse(c.requiresRebind(SSDPSocketConfig.DEFAULT));
+    }
+
+    @Test
+    public void testRequiresRebind() {
+        SSDPSocketConfig c = SSDPSocketConfig.DEFAULT;
+        assertTrue(new SSDPSocketConfig(1901, -1, -1, 1, 16, 2048, -1).requiresRebind(c));
+        assertTrue(new SSDPSocketConfig(52378, 1048576, -1, 1, 16, 2048, -1).requiresRebind(c));
+        assertTrue(new SSDPSocketConfig(52378, -1, 65536, 1, 16, 2048, -1).requiresRebind(c));
+        assertTrue(new SSDPSocketConfig(52378, -1, -1, 1, 64, 2048, -1).requiresRebind(c));
+        assertTrue(new SSDPSocketConfig(52378, -1, -1, 1, 16, 4096, -1).requiresRebind(c));
+        assertTrue(new SSDPSocketConfig(52378, -1, -1, 1, 16, 2048, 2).requiresRebind(c));
+
+        // the thread count can only change when the event loop group is recreated
+        assertFalse(new SSDPSocketConfig(52378, -1, -1, 4, 16, 2048, -1).requiresRebind(c));
+    }
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import com.whizzosoftware.hobson.api.disco.DeviceAdvertisement;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SSDPSubscriptionIndexTest {
+    private static final String RENDERER = "urn:schemas-upnp-org:device:MediaRenderer";
+
+    @Test
+    public void testExactMatch() {
+        SSDPSubscriptionIndex index = new SSDPSubscriptionIndex();
+        SSDPSubscriptionIndex.Subscription s = index.subscribe(SSDPFilter.exact(SSDPFilter.Field.TARGET, "upnp:rootdevice"), new MockListener());
+
+        assertEquals(1, index.match(alive("upnp:rootdevice", "uuid:foo::upnp:rootdevice", "Linux/3.0")).size());
+        assertSame(s, index.match(alive("upnp:rootdevice", "uuid:foo::upnp:rootdevice", "Linux/3.0")).get(0));
+        assertTrue(index.match(alive(RENDERER + ":1", "uuid:foo::" + RENDERER + ":1", "Linux/3.0")).isEmpty());
+    }
+
+    @Test
+    public void testSearchResponseTarget() {
+        SSDPSubscriptionIndex index = new SSDPSubscriptionIndex();
+        index.subscribe(SSDPFilter.exact(SSDPFilter.Field.TARGET, "upnp:rootdevice"), new MockListener());
+        assertEquals(1, index.match(SSDPPacket.createSearchResponse("http://192.168.0.1/desc.xml", "upnp:rootdevice", "uuid:foo::upnp:rootdevice")).size());
+    }
+
+    @Test
+    public void testPrefixMatch() {
+        SSDPSubscriptionIndex index = new SSDPSubscriptionIndex();
+        index.subscribe(SSDPFilter.prefix(SSDPFilter.Field.SERVER, "Linux"), new MockListener());
+        index.subscribe(SSDPFilter.prefix(SSDPFilter.Field.SERVER, "Linux/3"), new MockListener());
+        index.subscribe(SSDPFilter.prefix(SSDPFilter.Field.SERVER, "Windows"), new MockListener());
+        index.subscribe(SSDPFilter.prefix(SSDPFilter.Field.SERVER, ""), new MockListener());
+
+        assertEquals(3, index.match(alive("upnp:rootdevice", "uuid:foo::upnp:rootdevice", "Linux/3.0 UPnP/1.0")).size());
+        assertEquals(2, index.match(alive("upnp:rootdevice", "uuid:foo::upnp:rootdevice", "Linux/2.6 UPnP/1.0")).size());
+        assertEquals(1, index.match(alive("upnp:rootdevice", "uuid:foo::upnp:rootdevice", "Lin")).size());
+    }
+
+    @Test
+    public void testTypeMatch() {
+        SSDPSubscriptionIndex index = new SSDPSubscriptionIndex();
+        index.subscribe(SSDPFilter.type(SSDPFilter.Field.TARGET, RENDERER, 1), new MockListener());
+        index.subscribe(SSDPFilter.type(SSDPFilter.Field.TARGET, RENDERER + ":", 2), new MockListener());
+        index.subscribe(SSDPFilter.type(SSDPFilter.Field.USN, RENDERER, 3), new MockListener());
+
+        assertEquals(1, index.match(alive(RENDERER + ":1", "uuid:foo::" + RENDERER + ":1", null)).size());
+        assertEquals(2, index.match(alive(RENDERER + ":2", "uuid:foo::" + RENDERER + ":2", null)).size());
+        assertEquals(3, index.match(alive(RENDERER + ":3", "uuid:foo::" + RENDERER + ":3", null)).size());
+        assertTrue(index.match(alive("urn:schemas-upnp-org:device:MediaServer:3", "uuid:foo::urn:schemas-upnp-org:device:MediaServer:3", null)).isEmpty());
+        assertTrue(index.match(alive(RENDERER + ":x", "uuid:foo::" + RENDERER + ":x", null)).isEmpty());
+    }
+
+    @Test
+    public void testCombinedConditions() {
+        SSDPSubscriptionIndex index = new SSDPSubscriptionIndex();
+        SSDPFilter f = SSDPFilter.prefix(SSDPFilter.Field.SERVER, "Linux").and(SSDPFilter.type(SSDPFilter.Field.TARGET, RENDERER, 1));
+        index.subscribe(f, new MockListener());
+
+        assertEquals(SSDPFilter.Field.TARGET, SSDPSubscriptionIndex.selectIndexCondition(f).getField());
+        assertEquals(1, index.match(alive(RENDERER + ":1", "uuid:foo::" + RENDERER + ":1", "Linux/3.0")).size());
+        assertTrue(index.match(alive(RENDERER + ":1", "uuid:foo::" + RENDERER + ":1", "Windows")).isEmpty());
+        assertTrue(index.match(alive("upnp:rootdevice", "uuid:foo::upnp:rootdevice", "Linux/3.0")).isEmpty());
+    }
+
+    @Test
+    public void testMatchAll() {
+        SSDPSubscriptionIndex index = new SSDPSubscriptionIndex();
+        index.subscribe(SSDPFilter.all(), new MockListener());
+        assertEquals(1, index.match(alive("upnp:rootdevice", "uuid:foo::upnp:rootdevice", null)).size());
+    }
+
+    @Test
+    public void testDeliverAndCancel() {
+        SSDPSubscriptionIndex index = new SSDPSubscriptionIndex();
+        MockListener l1 = new MockListener();
+        SSDPSubscriptionIndex.Subscription s1 = index.subscribe(SSDPFilter.exact(SSDPFilter.Field.USN, "uuid:foo::upnp:rootdevice"), l1);
+        index.subscribe(SSDPFilter.all(), new SSDPSubscriptionIndex.Listener() {
+            @Override
+            public void onAdvertisement(DeviceAdvertisement advertisement, SSDPPacket packet) {
+                throw new RuntimeException("Test exception");
+            }
+        });
+        assertEquals(2, index.size());
+
+        SSDPPacket p = alive("upnp:rootdevice", "uuid:foo::upnp:rootdevice", null);
+        assertEquals(2, index.deliver(null, p));
+        assertEquals(1, l1.packets.size());
+        assertSame(p, l1.packets.get(0));
+        assertEquals(1, index.getMatchCount());
+        assertEquals(1, index.getDeliveryCount());
+        assertEquals(1, index.getFailureCount());
+
+        s1.cancel();
+        assertEquals(1, index.size());
+        assertEquals(1, index.deliver(null, p));
+        assertEquals(1, l1.packets.size());
+    }
+
+    private static SSDPPacket alive(String nt, String usn, String server) {
+        SSDPPacket p = SSDPPacket.createAliveNotification("http://192.168.0.1/desc.xml", nt, usn, 1800);
+        p.setServer(server);
+        return p;
+    }
+
+    private static class MockListener implements SSDPSubscriptionIndex.Listener {
+        final List<SSDPPacket> packets = new ArrayList<>();
+
+        @Override
+        public void onAdvertisement(DeviceAdvertisement advertisement, SSDPPacket packet) {
+            packets.add(packet);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SSDPTimingWheelTest {
+    @Test
+    public void testExpire() {
+        SSDPTimingWheel<String> wheel = new SSDPTimingWheel<>(100, 8, 0);
+        wheel.schedule("a", 50);
+        wheel.schedule("b", 250);
+        wheel.schedule("c", 1650);
+        assertEquals(3, wheel.size());
+
+        List<String> expired = new ArrayList<>();
+        assertEquals(1, wheel.expire(99, expired));
+        assertEquals("a", expired.get(0));
+
+        // nothing more is due yet
+        expired.clear();
+        assertEquals(0, wheel.expire(199, expired));
+
+        assertEquals(1, wheel.expire(300, expired));
+        assertEquals("b", expired.get(0));
+
+        // "c" lives in the same bucket as earlier ticks but is several rotations out
+        expired.clear();
+        assertEquals(0, wheel.expire(1500, expired));
+        assertEquals(1, wheel.expire(1700, expired));
+        assertEquals("c", expired.get(0));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testCancel() {
+        SSDPTimingWheel<String> wheel = new SSDPTimingWheel<>(100, 8, 0);
+        SSDPTimingWheel.Timeout<String> t = wheel.schedule("a", 150);
+        wheel.schedule("b", 150);
+        assertTrue(wheel.cancel(t));
+        assertFalse(wheel.cancel(t));
+        assertFalse(t.isPending());
+
+        List<String> expired = new ArrayList<>();
+        wheel.expire(200, expired);
+        assertEquals(1, expired.size());
+        assertEquals("b", expired.get(0));
+    }
+
+    @Test
+    public void testPastDeadline() {
+        SSDPTimingWheel<String> wheel = new SSDPTimingWheel<>(100, 8, 0);
+        List<String> expired = new ArrayList<>();
+        wheel.expire(1000, expired);
+        wheel.schedule("a", 500);
+        assertEquals(1, wheel.expire(1100, expired));
+    }
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SSDPTrafficLogTest {
+    private static final byte[] NOTIFY = "NOTIFY * HTTP/1.1\r\nUSN: uuid:1\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEARCH = "M-SEARCH * HTTP/1.1\r\nST: ssdp:all\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SSDPTrafficLog.Writer w = new SSDPTrafficLog.Writer(baos, true, 1000000);
+        w.write(1000500, new InetSocketAddress("192.168.0.10", 1900), NOTIFY, 0, NOTIFY.length);
+        w.write(1300000, new InetSocketAddress("fe80::1", 52378), SEARCH, 0, SEARCH.length);
+        // a timestamp that goes backwards is clamped to the previous one
+        w.write(1200000, new InetSocketAddress("192.168.0.11", 1900), NOTIFY, 7, 3);
+        assertEquals(3, w.getRecordCount());
+        w.close();
+
+        SSDPTrafficLog.Reader r = new SSDPTrafficLog.Reader(new ByteArrayInputStream(baos.toByteArray()));
+        SSDPTrafficLog.Record rec = r.next();
+        assertEquals(1000500, rec.getTimeMicros());
+        assertEquals(new InetSocketAddress("192.168.0.10", 1900), rec.getSender());
+        assertArrayEquals(NOTIFY, rec.getData());
+        rec = r.next();
+        assertEquals(1300000, rec.getTimeMicros());
+        assertEquals(new InetSocketAddress("fe80::1", 52378), rec.getSender());
+        assertArrayEquals(SEARCH, rec.getData());
+        rec = r.next();
+        assertEquals(1300000, rec.getTimeMicros());
+        assertEquals("* H", new String(rec.getData(), StandardCharsets.UTF_8));
+        assertNull(r.next());
+    }
+
+    @Test
+    public void testAppend() throws Exception {
+        File f = File.createTempFile("ssdp", ".log");
+        f.delete();
+        try {
+            SSDPTrafficLog.Writer w = SSDPTrafficLog.openWriter(f, 5000000);
+            w.write(5000001, new InetSocketAddress("192.168.0.10", 1900), NOTIFY, 0, NOTIFY.length);
+            w.close();
+
+            // a second session starts with its own absolute timestamp
+            w = SSDPTrafficLog.openWriter(f, 9000000);
+            w.write(9000002, new InetSocketAddress("192.168.0.10", 1900), SEARCH, 0, SEARCH.length);
+            w.close();
+
+            SSDPTrafficLog.Reader r = SSDPTrafficLog.openReader(f);
+            assertEquals(5000001, r.next().getTimeMicros());
+            assertEquals(9000002, r.next().getTimeMicros());
+            assertNull(r.next());
+            r.close();
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testTruncatedRecord() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SSDPTrafficLog.Writer w = new SSDPTrafficLog.Writer(baos, true, 0);
+        w.write(10, new InetSocketAddress("192.168.0.10", 1900), NOTIFY, 0, NOTIFY.length);
+        w.write(20, new InetSocketAddress("192.168.0.10", 1900), NOTIFY, 0, NOTIFY.length);
+        w.close();
+        byte[] b = baos.toByteArray();
+
+        SSDPTrafficLog.Reader r = new SSDPTrafficLog.Reader(new ByteArrayInputStream(Arrays.copyOf(b, b.length - 5)));
+        assertNotNull(r.next());
+        assertNull(r.next());
+    }
+
+    @Test
+    public void testAppendAfterTruncatedRecord() throws Exception {
+        File f = File.createTempFile("ssdp", ".log");
+        f.delete();
+        try {
+            SSDPTrafficLog.Writer w = SSDPTrafficLog.openWriter(f, 0);
+            w.write(10, new InetSocketAddress("192.168.0.10", 1900), NOTIFY, 0, NOTIFY.length);
+            w.write(20, new InetSocketAddress("192.168.0.10", 1900), NOTIFY, 0, NOTIFY.length);
+            w.close();
+
+            // simulate a crash part way through writing the second record
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+                raf.setLength(raf.length() - 5);
+            }
+
+            // the torn record is dropped so the next session's records can still be read
+            w = SSDPTrafficLog.openWriter(f, 9000000);
+            w.write(9000002, new InetSocketAddress("192.168.0.10", 1900), SEARCH, 0, SEARCH.length);
+            w.close();
+
+            SSDPTrafficLog.Reader r = SSDPTrafficLog.openReader(f);
+            assertEquals(10, r.next().getTimeMicros());
+            SSDPTrafficLog.Record rec = r.next();
+            assertEquals(9000002, rec.getTimeMicros());
+            assertArrayEquals(SEARCH, rec.getData());
+            assertNull(r.next());
+            r.close();
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidLog() throws Exception {
+        new SSDPTrafficLog.Reader(new ByteArrayInputStream("NOTIFY * HTTP/1.1".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testWriteAfterClose() throws Exception {
+        SSDPTrafficLog.Writer w = new SSDPTrafficLog.Writer(new ByteArrayOutputStream(), true, 0);
+        w.close();
+        w.write(10, new InetSocketAddress("192.168.0.10", 1900), NOTIFY, 0, NOTIFY.length);
+    }
+
+    @Test
+    public void testVarLong() throws Exception {
+        long[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE};
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        java.io.DataOutputStream out = new java.io.DataOutputStream(baos);
+        for (long v : values) {
+            SSDPTrafficLog.writeVarLong(out, v);
+        }
+        java.io.DataInputStream in = new java.io.DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        for (long v : values) {
+            assertEquals(v, SSDPTrafficLog.readVarLong(in));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SSDPTrafficRingTest {
+    private static final InetSocketAddress GROUP = new InetSocketAddress("239.255.255.250", 1900);
+    private static final InetSocketAddress SENDER = new InetSocketAddress("192.0.2.10", 1900);
+    private static final String NOTIFY = "NOTIFY * HTTP/1.1\r\nNT: upnp:rootdevice\r\nNTS: ssdp:alive\r\nUSN: uuid:foo::upnp:rootdevice\r\nLOCATION: http://192.0.2.10/desc.xml\r\n\r\n";
+
+    @Test
+    public void testWraparound() {
+        SSDPTrafficRing ring = new SSDPTrafficRing(4);
+        assertEquals(4, ring.getCapacity());
+        assertEquals(8, new SSDPTrafficRing(5).getCapacity());
+        assertTrue(ring.getEntries().isEmpty());
+
+        ByteBuf[] bufs = new ByteBuf[6];
+        for (int i = 0; i < 6; i++) {
+            bufs[i] = Unpooled.copiedBuffer("packet" + i, CharsetUtil.UTF_8);
+            ring.record(SENDER, GROUP, bufs[i]);
+            // the ring holds its own reference
+            bufs[i].release();
+            assertEquals(1, bufs[i].refCnt());
+        }
+        assertEquals(6, ring.getRecordedCount());
+
+        // overwritten entries release their data
+        assertEquals(0, bufs[0].refCnt());
+        assertEquals(0, bufs[1].refCnt());
+
+        // only the most recent entries are kept, oldest first
+        List<SSDPTrafficRing.Entry> entries = ring.getEntries();
+        assertEquals(4, entries.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i + 2, entries.get(i).getSequence());
+            assertEquals("packet" + (i + 2), entries.get(i).getDataAsString());
+            assertEquals(SSDPTrafficRing.Outcome.RECEIVED, entries.get(i).getOutcome());
+        }
+
+        // an entry obtained before it is overwritten no longer has its data
+        SSDPTrafficRing.Entry e = entries.get(0);
+        ring.record(SENDER, GROUP, Unpooled.copiedBuffer("packet6", CharsetUtil.UTF_8));
+        assertNull(e.getData());
+        assertEquals(7, e.getLength());
+        assertTrue(ring.dump().contains("packet6"));
+
+        ring.clear();
+        assertTrue(ring.getEntries().isEmpty());
+        assertEquals(0, bufs[5].refCnt());
+    }
+
+    @Test
+    public void testOutcomes() {
+        MockClock clock = new MockClock();
+        SSDPTrafficRing ring = new SSDPTrafficRing(8);
+        SSDPRateLimiter limiter = new SSDPRateLimiter(clock, 1, 1, 1, 2, 100, 60000);
+        EmbeddedChannel channel = new EmbeddedChannel(ring, limiter, new SSDPDecoder(new SSDPMetrics(), new SSDPInterfaceMonitor(null)));
+
+        channel.writeInbound(new DatagramPacket(Unpooled.buffer(0), GROUP, SENDER));
+        channel.writeInbound(new DatagramPacket(Unpooled.copiedBuffer(NOTIFY, CharsetUtil.UTF_8), GROUP, SENDER));
+        channel.writeInbound(new DatagramPacket(Unpooled.copiedBuffer(NOTIFY, CharsetUtil.UTF_8), GROUP, SENDER));
+
+        List<SSDPTrafficRing.Entry> entries = ring.getEntries();
+        assertEquals(3, entries.size());
+        assertEquals(SSDPTrafficRing.Outcome.PARSE_ERROR, entries.get(0).getOutcome());
+        assertEquals(SSDPTrafficRing.Outcome.RECEIVED, entries.get(1).getOutcome());
+        assertEquals(SSDPTrafficRing.Outcome.RATE_LIMITED, entries.get(2).getOutcome());
+        assertEquals(SENDER, entries.get(1).getSender());
+
+        // outcomes reported outside of a read are ignored
+        SSDPTrafficRing.outcome(SSDPTrafficRing.Outcome.IGNORED);
+        assertEquals(SSDPTrafficRing.Outcome.RECEIVED, entries.get(1).getOutcome());
+
+        ((SSDPEnvelope)channel.readInbound()).release();
+        channel.finish();
+    }
+
+    private class MockClock implements SSDPClock {
+        long now;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.ssdp;
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SSDPWorkerStageTest {
+    @Test
+    public void testOrderingByKey() throws Exception {
+        SSDPWorkerStage stage = new SSDPWorkerStage("test", 4, 10000, SSDPWorkerStage.OverloadPolicy.DROP_NEWEST);
+        try {
+            final List<List<Integer>> results = new ArrayList<>();
+            for (int k = 0; k < 8; k++) {
+                results.add(Collections.synchronizedList(new ArrayList<Integer>()));
+            }
+            final CountDownLatch latch = new CountDownLatch(8 * 500);
+            for (int i = 0; i < 500; i++) {
+                for (int k = 0; k < 8; k++) {
+                    final List<Integer> l = results.get(k);
+                    final int v = i;
+                    assertTrue(stage.submit("uuid:" + k, new Runnable() {
+                        @Override
+                        public void run() {
+                            l.add(v);
+                            latch.countDown();
+                        }
+                    }));
+                }
+            }
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            for (List<Integer> l : results) {
+                assertEquals(500, l.size());
+                for (int i = 0; i < 500; i++) {
+                    assertEquals(i, (int)l.get(i));
+                }
+            }
+            assertEquals(4000, stage.getSubmittedCount());
+            assertEquals(0, stage.getDroppedCount());
+        } finally {
+            stage.shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        SSDPWorkerStage stage = new SSDPWorkerStage("test", 1, 2, SSDPWorkerStage.OverloadPolicy.DROP_NEWEST);
+        try {
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+            assertTrue(stage.submit("a", new BlockingTask(started, release)));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            assertTrue(stage.submit("a", new RecordingTask(ran, "1")));
+            assertTrue(stage.submit("a", new RecordingTask(ran, "2")));
+            assertFalse(stage.submit("a", new RecordingTask(ran, "3")));
+            assertEquals(1, stage.getDroppedCount());
+            assertEquals(2, stage.getQueuedCount());
+
+            release.countDown();
+            waitForCompletion(stage, 3);
+            assertEquals(2, ran.size());
+            assertEquals("1", ran.get(0));
+            assertEquals("2", ran.get(1));
+        } finally {
+            stage.shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        SSDPWorkerStage stage = new SSDPWorkerStage("test", 1, 2, SSDPWorkerStage.OverloadPolicy.DROP_OLDEST);
+        try {
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+            assertTrue(stage.submit("a", new BlockingTask(started, release)));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            assertTrue(stage.submit("a", new RecordingTask(ran, "1")));
+            assertTrue(stage.submit("a", new RecordingTask(ran, "2")));
+            assertTrue(stage.submit("a", new RecordingTask(ran, "3")));
+            assertEquals(1, stage.getDroppedCount());
+            // the evicted task is told right away
+            assertEquals(1, ran.size());
+            assertEquals("dropped 1", ran.get(0));
+
+            release.countDown();
+            waitForCompletion(stage, 3);
+            assertEquals(3, ran.size());
+            assertEquals("2", ran.get(1));
+            assertEquals("3", ran.get(2));
+        } finally {
+            stage.shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testShutdownDropsQueuedTasks() throws Exception {
+        SSDPWorkerStage stage = new SSDPWorkerStage("test", 1, 10, SSDPWorkerStage.OverloadPolicy.DROP_OLDEST);
+        CountDownLatch started = new CountDownLatch(1);
+        List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        assertTrue(stage.submit("a", new BlockingTask(started, new CountDownLatch(1))));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(stage.submit("a", new RecordingTask(ran, "1")));
+
+        stage.shutdown(1, TimeUnit.SECONDS);
+        assertEquals(1, ran.size());
+        assertEquals("dropped 1", ran.get(0));
+    }
+
+    @Test
+    public void testFailedTask() throws Exception {
+        SSDPWorkerStage stage = new SSDPWorkerStage("test", 1, 10, SSDPWorkerStage.OverloadPolicy.DROP_NEWEST);
+        try {
+            List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+            stage.submit(null, new Runnable() {
+                @Override
+                public void run() {
+                    throw new RuntimeException("failed");
+                }
+            });
+            stage.submit(null, new RecordingTask(ran, "1"));
+            waitForCompletion(stage, 2);
+            assertEquals(1, stage.getFailedCount());
+            assertEquals(1, ran.size());
+        } finally {
+            stage.shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testSubmitAfterShutdown() {
+        SSDPWorkerStage stage = new SSDPWorkerStage("test", 1, 10, SSDPWorkerStage.OverloadPolicy.DROP_OLDEST);
+        stage.shutdown(1, TimeUnit.SECONDS);
+        assertFalse(stage.submit("a", new RecordingTask(new ArrayList<String>(), "1")));
+        assertEquals(1, stage.getDroppedCount());
+    }
+
+    @Test
+    public void testWorkerIndex() {
+        SSDPWorkerStage stage = new SSDPWorkerStage("test", 3, 10, SSDPWorkerStage.OverloadPolicy.DROP_OLDEST);
+        try {
+            String usn = "uuid:2f402f80-da50-11e1-9b23-0017881::upnp:rootdevice";
+            int ix = stage.getWorkerIndex(usn);
+            assertTrue(ix >= 0 && ix < 3);
+            assertEquals(ix, stage.getWorkerIndex(new String(usn)));
+        } finally {
+            stage.shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    private void waitForCompletion(SSDPWorkerStage stage, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stage.getCompletedCount() + stage.getFailedCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    private static class BlockingTask implements Runnable {
+        private final CountDownLatch started;
+        private final CountDownLatch release;
+
+        BlockingTask(CountDownLatch started, CountDownLatch release) {
+            this.started = started;
+            this.release = release;
+        }
+
+        @Override
+        public void run() {
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    private static class RecordingTask implements SSDPWorkerStage.DroppableTask {
+        private final List<String> ran;
+        private final String name;
+
+        RecordingTask(List<String> ran, String name) {
+            this.ran = ran;
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            ran.add(name);
+        }
+
+        @Override
+        public void onDropped() {
+            ran.add("dropped " + name);
+        }
+    }
+}